@@ -111,6 +111,12 @@ public class GroupGetPeerTest {
 			groupSyncher.wakeup();
 			Log.d(TAG, "onPeerListChanged");
 		}
+
+		@Override
+		public void onPeersDelta(Group group, List<Group.PeerInfo> added,
+								 List<Group.PeerInfo> removed) {
+			Log.d(TAG, String.format("Peers delta added:%d, removed:%d", added.size(), removed.size()));
+		}
 	}
 
 	@Test
@@ -16,6 +16,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -110,6 +112,12 @@ public class GroupInviteJoinTest {
 			groupSyncher.wakeup();
 			Log.d(TAG, "onPeerListChanged");
 		}
+
+		@Override
+		public void onPeersDelta(Group group, List<Group.PeerInfo> added,
+								 List<Group.PeerInfo> removed) {
+			Log.d(TAG, String.format("Peers delta added:%d, removed:%d", added.size(), removed.size()));
+		}
 	}
 
 	@Test
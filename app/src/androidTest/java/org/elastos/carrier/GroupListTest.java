@@ -90,6 +90,12 @@ public class GroupListTest {
 		public void onPeerListChanged(Group group) {
 			Log.d(TAG, "onPeerListChanged");
 		}
+
+		@Override
+		public void onPeersDelta(Group group, List<Group.PeerInfo> added,
+								 List<Group.PeerInfo> removed) {
+			Log.d(TAG, String.format("Peers delta added:%d, removed:%d", added.size(), removed.size()));
+		}
 	}
 
 	@Test
@@ -16,6 +16,8 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
+
+import java.util.List;
 import org.junit.runner.RunWith;
 
 import static org.junit.Assert.assertEquals;
@@ -112,6 +114,12 @@ public class GroupMessageTest {
 			groupSyncher.wakeup();
 			Log.d(TAG, "onPeerListChanged");
 		}
+
+		@Override
+		public void onPeersDelta(Group group, List<Group.PeerInfo> added,
+								 List<Group.PeerInfo> removed) {
+			Log.d(TAG, String.format("Peers delta added:%d, removed:%d", added.size(), removed.size()));
+		}
 	}
 
 	@Test
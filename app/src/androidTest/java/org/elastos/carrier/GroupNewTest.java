@@ -9,6 +9,8 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
@@ -83,6 +85,12 @@ public class GroupNewTest {
 		public void onPeerListChanged(Group group) {
 			Log.d(TAG, "onPeerListChanged");
 		}
+
+		@Override
+		public void onPeersDelta(Group group, List<Group.PeerInfo> added,
+								 List<Group.PeerInfo> removed) {
+			Log.d(TAG, String.format("Peers delta added:%d, removed:%d", added.size(), removed.size()));
+		}
 	}
 
 	@Test
@@ -32,6 +32,9 @@
 #include "carrierUtils.h"
 #include "carrierHandler.h"
 #include "carrierCookie.h"
+#include "jniCache.h"
+#include "friendInvite.h"
+#include "trace.h"
 
 static HandlerContext handlerContext;
 
@@ -63,8 +66,12 @@ jboolean carrierInit(JNIEnv* env, jobject thiz, jobject joptions, jobject jcallb
         cleanupOptionsHelper(&helper);
         return JNI_FALSE;
     }
+    hc->maxInterval = helper.max_interval;
+    hc->inviteTimeout = helper.invite_timeout;
+    hc->maxInvites = helper.max_invites;
+    handlerCtxtSetEvents(hc, helper.events);
 
-    carrier = ela_new(&opts, &carrierCallbacks, hc);
+    carrier = ela_new(&opts, &hc->nativeCallbacks, hc);
     cleanupOptionsHelper(&helper);
     if (!carrier) {
         logE("Call ela_new API error");
@@ -73,7 +80,7 @@ jboolean carrierInit(JNIEnv* env, jobject thiz, jobject joptions, jobject jcallb
     }
 
     hc->nativeCarrier = carrier;
-    setLongField(env, thiz, "nativeCookie", (uint64_t)hc);
+    setContext(env, thiz, hc);
 
     return JNI_TRUE;
 }
@@ -88,6 +95,8 @@ jboolean carrierRun(JNIEnv* env, jobject thiz, jint jinterval)
     assert(hc->nativeCarrier);
 
     hc->env = env;
+    hc->minInterval = jinterval;
+    hc->interval = jinterval;
 
     rc = ela_run(hc->nativeCarrier, jinterval);
     if (rc < 0) {
@@ -107,10 +116,11 @@ void carrierKill(JNIEnv* env, jobject thiz)
     assert(hc->nativeCarrier);
 
     ela_kill(hc->nativeCarrier);
+    handlerCtxtWakeup(hc);
     if (!hc->env)
         handlerCtxtCleanup(hc, env);
 
-    setLongField(env, thiz, "nativeCookie", 0);
+    setContext(env, thiz, NULL);
 }
 
 static
@@ -309,42 +319,55 @@ jboolean isReady(JNIEnv *env, jobject thiz)
     return (jboolean) ela_is_ready(getCarrier(env, thiz));
 }
 
+/* Local references needed to build and pass one FriendInfo to java */
+#define FRIEND_LOCAL_FRAME_CAPACITY     16
+
 static
 bool friendIteratedCallback(const ElaFriendInfo* friendInfo, void* context)
 {
     jobject jfriendInfo = NULL;
+    jboolean result = JNI_FALSE;
 
     ARG(context, 0, JNIEnv*, env);
     ARG(context, 1, jobject, jiterator);
     ARG(context, 2, jobject, jcontext);
+    ARG(context, 3, int*, javaErr);
+
+    // Every friend gets its own local reference frame, so iterating a huge
+    // friend list never grows the local reference table.
+    if ((*env)->PushLocalFrame(env, FRIEND_LOCAL_FRAME_CAPACITY) < 0) {
+        logE("Push JNI local frame error");
+        return false;
+    }
 
     if (friendInfo) {
         if (!newJavaFriendInfo(env, friendInfo, &jfriendInfo)) {
             logE("Construct Java FriendInfo object error");
+            (*env)->PopLocalFrame(env, NULL);
             return false;
         }
     }
 
-    jboolean result = JNI_FALSE;
-    if (!callBooleanMethod(env, NULL, jiterator, "onIterated",
-                       "("_W("FriendInfo;")_J("Object;)Z"),
-                       &result, jfriendInfo, jcontext)) {
+    if (!callBooleanMethodById(env, jiterator, gJniCache.friendsIterator.method,
+                               &result, jfriendInfo, jcontext)) {
         logE("Call method boolean onIterated(FriendInfo, Object error");
+        *javaErr = 0;
+        result = JNI_FALSE;
     }
 
-    if (jfriendInfo)
-        (*env)->DeleteLocalRef(env, jfriendInfo);
-
-    return result;
+    (*env)->PopLocalFrame(env, NULL);
+    return (bool)result;
 }
 
 static
 jboolean getFriends(JNIEnv* env, jobject thiz, jobject friendIterator, jobject context)
 {
+    int javaErr = 1;
     void* argv[] = {
         env,
         friendIterator,
-        context
+        context,
+        &javaErr
     };
     int rc;
 
@@ -356,6 +379,10 @@ jboolean getFriends(JNIEnv* env, jobject thiz, jobject friendIterator, jobject c
         setErrorCode(ela_get_error());
         return JNI_FALSE;
     }
+    if (!javaErr) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+        return JNI_FALSE;
+    }
     return JNI_TRUE;
 }
 
@@ -529,9 +556,14 @@ jboolean removeFriend(JNIEnv* env, jobject thiz, jstring jfriendId)
     return JNI_TRUE;
 }
 
+/*
+ * Message sends return 0, or the carrier error code on failure so java does
+ * not need a get_error_code() round trip; error codes are negative ints.
+ */
 static
-jboolean sendMessage(JNIEnv* env, jobject thiz, jstring jto, jbyteArray jmsg)
+jint sendMessage(JNIEnv* env, jobject thiz, jstring jto, jbyteArray jmsg)
 {
+    traceScope("send_message");
     const char *to;
     jbyte *msg;
     jsize len;
@@ -543,7 +575,7 @@ jboolean sendMessage(JNIEnv* env, jobject thiz, jstring jto, jbyteArray jmsg)
     to = (*env)->GetStringUTFChars(env, jto, NULL);
     if (!to) {
         setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
-        return JNI_FALSE;
+        return ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY);
     }
 
     msg = (*env)->GetByteArrayElements(env, jmsg, NULL);
@@ -551,32 +583,116 @@ jboolean sendMessage(JNIEnv* env, jobject thiz, jstring jto, jbyteArray jmsg)
     assert(msg);
     assert(len);
 
+    carrierActivity();
     rc = ela_send_friend_message(getCarrier(env, thiz), to, msg, (size_t)len);
+    (*env)->ReleaseByteArrayElements(env, jmsg, msg, JNI_ABORT);
     (*env)->ReleaseStringUTFChars(env, jto, to);
 
     if (rc < 0) {
         logE("Call ela_send_friend_message API error");
-        setErrorCode(ela_get_error());
-        return JNI_FALSE;
+        rc = ela_get_error();
+        setErrorCode(rc);
+        return rc;
     }
-    return JNI_TRUE;
+    return 0;
+}
+
+/*
+ * Fragment frame layout, must be kept in sync with MessageFraming.java:
+ *   magic(1) type(1) message id(4) fragment index(2) fragment count(2) payload
+ * Multi-byte fields are in network byte order.
+ */
+#define FRAME_MAGIC             0xFF
+#define FRAME_TYPE_FRAGMENT     0x01
+#define FRAGMENT_HEADER_LEN     10
+#define FRAGMENT_PAYLOAD_LEN    (ELA_MAX_APP_MESSAGE_LEN - FRAGMENT_HEADER_LEN)
+
+static
+jint sendLargeMessage(JNIEnv* env, jobject thiz, jstring jto, jint jmsgId, jbyteArray jmsg)
+{
+    traceScope("send_large_message");
+    uint8_t frame[ELA_MAX_APP_MESSAGE_LEN];
+    ElaCarrier* carrier;
+    const char *to;
+    jsize len;
+    int count;
+    int i;
+    int rc = 0;
+
+    assert(jto);
+    assert(jmsg);
+
+    len = (*env)->GetArrayLength(env, jmsg);
+    count = (len + FRAGMENT_PAYLOAD_LEN - 1) / FRAGMENT_PAYLOAD_LEN;
+    assert(count > 0 && count <= 0xFFFF);
+
+    to = (*env)->GetStringUTFChars(env, jto, NULL);
+    if (!to) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+        return ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY);
+    }
+
+    frame[0] = FRAME_MAGIC;
+    frame[1] = FRAME_TYPE_FRAGMENT;
+    frame[2] = (uint8_t)((uint32_t)jmsgId >> 24);
+    frame[3] = (uint8_t)((uint32_t)jmsgId >> 16);
+    frame[4] = (uint8_t)((uint32_t)jmsgId >> 8);
+    frame[5] = (uint8_t)((uint32_t)jmsgId);
+    frame[8] = (uint8_t)(count >> 8);
+    frame[9] = (uint8_t)(count);
+
+    carrier = getCarrier(env, thiz);
+    carrierActivity();
+
+    // Fragments are sent back to back, without waiting on each other.
+    for (i = 0; i < count; i++) {
+        jsize offset = i * FRAGMENT_PAYLOAD_LEN;
+        jsize size = len - offset < FRAGMENT_PAYLOAD_LEN ? len - offset : FRAGMENT_PAYLOAD_LEN;
+
+        frame[6] = (uint8_t)(i >> 8);
+        frame[7] = (uint8_t)(i);
+        (*env)->GetByteArrayRegion(env, jmsg, offset, size, (jbyte*)frame + FRAGMENT_HEADER_LEN);
+
+        rc = ela_send_friend_message(carrier, to, frame, (size_t)(FRAGMENT_HEADER_LEN + size));
+        if (rc < 0)
+            break;
+    }
+
+    (*env)->ReleaseStringUTFChars(env, jto, to);
+
+    if (rc < 0) {
+        logE("Call ela_send_friend_message API error on fragment %d/%d", i, count);
+        rc = ela_get_error();
+        setErrorCode(rc);
+        return rc;
+    }
+    return 0;
 }
 
 static
 void friendInviteRspCallback(ElaCarrier* carrier, const char* from, const char *bundle, int status,
                               const char* reason, const void* data, size_t length, void* context)
 {
+    traceScope("onFriendInviteResponse");
+    HandlerContext* hc = &handlerContext;
+    FriendInvite* fi;
+    JNIEnv* env;
     jstring jfrom = NULL;
     jstring jreason = NULL;
     jstring jdata = NULL;
 
-    (void)carrier;
     (void)length;
     (void)bundle;
 
-    ARG(context, 0, JNIEnv*, env);
-    ARG(context, 1, jobject, jhandler);
-    free(context);
+    assert(carrier == hc->nativeCarrier);
+    assert(hc->env);
+
+    fi = friendInviteRemove(hc, (uint32_t)(uintptr_t)context);
+    if (!fi) {
+        logD("Drop response of expired friend invite from %s", from);
+        return;
+    }
+    env = hc->env;
 
     jfrom = (*env)->NewStringUTF(env, from);
     if (!jfrom)
@@ -591,9 +707,8 @@ void friendInviteRspCallback(ElaCarrier* carrier, const char* from, const char *
         (*env)->DeleteLocalRef(env, jfrom);
         goto cleanup;
     }
-    if (!callVoidMethod(env, NULL, jhandler, "onReceived",
-                        "("_J("String;I")_J("String;")_J("String;)V"),
-                        jfrom, status, jreason, jdata)) {
+    if (!callVoidMethodById(env, fi->handler, gJniCache.friendInviteResponseHandler.method,
+                            jfrom, status, jreason, jdata)) {
         logE("Call method 'void onReceived(String, int, String, String)' error");
     }
 
@@ -602,23 +717,29 @@ void friendInviteRspCallback(ElaCarrier* carrier, const char* from, const char *
     if (jreason) (*env)->DeleteLocalRef(env, jreason);
 
 cleanup:
-    (*env)->DeleteGlobalRef(env, jhandler);
+    friendInviteFree(fi, env);
 }
 
 static
 jboolean inviteFriend(JNIEnv* env, jobject thiz, jstring jto, jstring jdata,
                       jobject jresponseHandler)
 {
+    HandlerContext* hc = getContext(env, thiz);
+    FriendInvite* fi;
     const char* to = NULL;
     const char* data = NULL;
-    jobject gjhandler = NULL;
-    void** argv;
+    uint32_t id;
     int rc;
 
     assert(jto);
     assert(jdata);
     assert(jresponseHandler);
 
+    if (!hc) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_WRONG_STATE));
+        return JNI_FALSE;
+    }
+
     to = (*env)->GetStringUTFChars(env, jto, NULL);
     data = (*env)->GetStringUTFChars(env, jdata, NULL);
     if (!to || !data) {
@@ -626,22 +747,12 @@ jboolean inviteFriend(JNIEnv* env, jobject thiz, jstring jto, jstring jdata,
         goto errorExit;
     }
 
-    gjhandler = (*env)->NewGlobalRef(env, jresponseHandler);
-    if (!gjhandler) {
-        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+    id = friendInviteAdd(hc, env, to, jresponseHandler);
+    if (!id)
         goto errorExit;
-    }
-
-    argv = (void**)calloc(1, sizeof(void*) * 4);
-    if (!argv) {
-        setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
-        goto errorExit;
-    }
-    argv[0] = getCarrierEnv(env, thiz);
-    argv[1] = gjhandler;
 
-    rc  = ela_invite_friend(getCarrier(env, thiz), to, NULL, data, strlen(data) + 1,
-                            friendInviteRspCallback, (void*)argv);
+    rc  = ela_invite_friend(hc->nativeCarrier, to, NULL, data, strlen(data) + 1,
+                            friendInviteRspCallback, (void*)(uintptr_t)id);
 
     (*env)->ReleaseStringUTFChars(env, jto, to);
     (*env)->ReleaseStringUTFChars(env, jdata, data);
@@ -651,7 +762,9 @@ jboolean inviteFriend(JNIEnv* env, jobject thiz, jstring jto, jstring jdata,
     if (rc < 0) {
         logE("Call ela_invite_friend API error");
         setErrorCode(ela_get_error());
-        free(argv);
+        fi = friendInviteRemove(hc, id);
+        if (fi)
+            friendInviteFree(fi, env);
         goto errorExit;
     }
     return JNI_TRUE;
@@ -659,7 +772,6 @@ jboolean inviteFriend(JNIEnv* env, jobject thiz, jstring jto, jstring jdata,
 errorExit:
     if (to) (*env)->ReleaseStringUTFChars(env, jto, to);
     if (data) (*env)->ReleaseStringUTFChars(env, jdata, data);
-    if (gjhandler) (*env)->DeleteGlobalRef(env, gjhandler);
     return JNI_FALSE;
 }
 
@@ -718,6 +830,31 @@ jint getErrorCode(JNIEnv* env, jclass clazz)
     return _getErrorCode();
 }
 
+static
+jint getIterateInterval(JNIEnv* env, jobject thiz)
+{
+    HandlerContext* hc = getContext(env, thiz);
+
+    return hc ? (jint)hc->interval : 0;
+}
+
+static
+jint getPendingInviteCount(JNIEnv* env, jobject thiz)
+{
+    HandlerContext* hc = getContext(env, thiz);
+
+    return hc ? friendInvitesCount(hc) : 0;
+}
+
+static
+jlong getAttachCount(JNIEnv* env, jclass clazz)
+{
+    (void)env;
+    (void)clazz;
+
+    return getJvmAttachCount();
+}
+
 static const char* gClassName = "org/elastos/carrier/Carrier";
 static JNINativeMethod gMethods[] = {
         {"native_init",        "("_W("Carrier$Options;")_W("Carrier$Callbacks;)Z"),
@@ -740,12 +877,16 @@ static JNINativeMethod gMethods[] = {
         {"add_friend",         "("_J("String;")_J("String;)Z"),    (void *) addFriend          },
         {"accept_friend",      "("_J("String;)Z"),                 (void *) acceptFriend       },
         {"remove_friend",      "("_J("String;)Z"),                 (void *) removeFriend       },
-        {"send_message",       "("_J("String;[B)Z"),               (void *) sendMessage        },
+        {"send_message",       "("_J("String;[B)I"),               (void *) sendMessage        },
+        {"send_large_message", "("_J("String;I[B)I"),              (void *) sendLargeMessage   },
         {"friend_invite",      "("_J("String;")_J("String;")_W("FriendInviteResponseHandler;)Z"), \
                                                                    (void*)inviteFriend         },
         {"reply_friend_invite","("_J("String;I")_J("String;")_J("String;)Z"),\
                                                                    (void*)replyFriendInvite    },
-        {"get_error_code",     "()I",                              (void*)getErrorCode         }
+        {"get_iterate_interval", "()I",                            (void*)getIterateInterval   },
+        {"get_pending_invite_count", "()I",                        (void*)getPendingInviteCount},
+        {"get_error_code",     "()I",                              (void*)getErrorCode         },
+        {"get_jvm_attach_count", "()J",                            (void*)getAttachCount       }
 };
 
 int registerCarrierMethods(JNIEnv* env)
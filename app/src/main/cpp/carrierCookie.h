@@ -26,31 +26,34 @@
 #include <jni.h>
 #include <stdint.h>
 #include <ela_carrier.h>
-#include "utilsExt.h"
 #include "carrierHandler.h"
+#include "jniCache.h"
 
 static inline
-ElaCarrier* getCarrier(JNIEnv* env, jobject thiz)
+HandlerContext* getContext(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "nativeCookie", &ctxt) ? \
-           (ctxt ? ((HandlerContext*)ctxt)->nativeCarrier : NULL) : NULL;
+    return thiz ? (HandlerContext*)(intptr_t) \
+           (*env)->GetLongField(env, thiz, gJniCache.fields.carrierCookie) : NULL;
 }
 
 static inline
-HandlerContext* getContext(JNIEnv* env, jobject thiz)
+void setContext(JNIEnv* env, jobject thiz, HandlerContext* hc)
+{
+    (*env)->SetLongField(env, thiz, gJniCache.fields.carrierCookie, (jlong)(intptr_t)hc);
+}
+
+static inline
+ElaCarrier* getCarrier(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "nativeCookie", &ctxt) ? \
-        (HandlerContext*)ctxt : NULL;
+    HandlerContext* hc = getContext(env, thiz);
+    return hc ? hc->nativeCarrier : NULL;
 }
 
 static inline
 JNIEnv* getCarrierEnv(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "nativeCookie", &ctxt) ? \
-           (ctxt ? ((HandlerContext*)ctxt)->env : NULL) : NULL;
+    HandlerContext* hc = getContext(env, thiz);
+    return hc ? hc->env : NULL;
 }
 
 #endif //__CARRIER_COOKIE_H__
@@ -23,15 +23,110 @@
 #include <jni.h>
 #include <assert.h>
 #include <stdlib.h>
+#include <errno.h>
+#include <pthread.h>
+#include <sys/time.h>
+#include <time.h>
 #include "log.h"
 #include "utils.h"
 #include "ela_carrier.h"
 #include "carrierUtils.h"
 #include "carrierHandler.h"
+#include "jniCache.h"
+#include "carrierId.h"
+#include "friendInvite.h"
+#include "trace.h"
+
+/* Idle upcall interval when the handler is not subscribed to idle events */
+#define IDLE_TICK_INTERVAL      1000
+
+static volatile unsigned long gActivity;
+static volatile int gIdleWaiting;
+static pthread_mutex_t gIdleLock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t  gIdleCond = PTHREAD_COND_INITIALIZER;
+
+void carrierActivity(void)
+{
+    __sync_fetch_and_add(&gActivity, 1);
+
+    // Only take the lock when the run loop is actually waiting.
+    if (gIdleWaiting) {
+        pthread_mutex_lock(&gIdleLock);
+        pthread_cond_signal(&gIdleCond);
+        pthread_mutex_unlock(&gIdleLock);
+    }
+}
+
+void handlerCtxtWakeup(HandlerContext* hc)
+{
+    pthread_mutex_lock(&gIdleLock);
+    hc->quit = 1;
+    pthread_cond_signal(&gIdleCond);
+    pthread_mutex_unlock(&gIdleLock);
+}
+
+/*
+ * Called on every iteration of the run loop. Any activity since the last
+ * iteration resets the interval to its minimum, otherwise the interval is
+ * doubled up to its maximum and the loop waits out the difference, unless
+ * woken by new activity.
+ */
+static
+void handlerCtxtIdle(HandlerContext* hc)
+{
+    unsigned long activity = gActivity;
+    struct timeval now;
+    struct timespec deadline;
+    int extra;
+
+    if (activity != hc->lastActivity) {
+        hc->lastActivity = activity;
+        hc->interval = hc->minInterval;
+        return;
+    }
+
+    hc->interval = hc->interval > 0 ? hc->interval * 2 : 1;
+    if (hc->interval > hc->maxInterval)
+        hc->interval = hc->maxInterval;
+
+    extra = hc->interval - hc->minInterval;
+    if (extra <= 0)
+        return;
+
+    gettimeofday(&now, NULL);
+    deadline.tv_sec  = now.tv_sec + extra / 1000;
+    deadline.tv_nsec = now.tv_usec * 1000L + (extra % 1000) * 1000000L;
+    if (deadline.tv_nsec >= 1000000000L) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000L;
+    }
+
+    traceScope("idle");
+
+    pthread_mutex_lock(&gIdleLock);
+    gIdleWaiting = 1;
+    while (!hc->quit && gActivity == activity) {
+        if (pthread_cond_timedwait(&gIdleCond, &gIdleLock, &deadline) == ETIMEDOUT)
+            break;
+    }
+    gIdleWaiting = 0;
+    pthread_mutex_unlock(&gIdleLock);
+}
+
+static
+uint64_t nowMillis(void)
+{
+    struct timespec now;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (uint64_t)now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
 
 static
 void cbOnIdle(ElaCarrier* carrier, void* context)
 {
+    uint64_t now;
+
     assert(carrier);
     assert(context);
 
@@ -39,9 +134,21 @@ void cbOnIdle(ElaCarrier* carrier, void* context)
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onIdle", "("_W("Carrier;)V"),
-                        hc->carrier)) {
+    friendInvitesExpire(hc);
+
+    if (hc->maxInterval > hc->minInterval)
+        handlerCtxtIdle(hc);
+
+    // The java layer still needs a periodic tick to expire its buffers.
+    if (!(hc->events & EVENT_IDLE)) {
+        now = nowMillis();
+        if (now - hc->lastTick < IDLE_TICK_INTERVAL)
+            return;
+        hc->lastTick = now;
+    }
+
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onIdle,
+                            hc->carrier)) {
         logE("Call Carrier.Callbacks.OnIdle error");
     }
 }
@@ -49,9 +156,12 @@ void cbOnIdle(ElaCarrier* carrier, void* context)
 static
 void cbOnConnection(ElaCarrier* carrier, ElaConnectionStatus status, void* context)
 {
+    traceScope("onConnection");
     HandlerContext *hc = (HandlerContext *) context;
     jobject jstatus = NULL;
 
+    traceState("connection", status);
+
     assert(carrier);
     assert(context);
 
@@ -63,10 +173,8 @@ void cbOnConnection(ElaCarrier* carrier, ElaConnectionStatus status, void* conte
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onConnection",
-                        "("_W("Carrier;")_W("ConnectionStatus;)V"),
-                        hc->carrier, jstatus)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onConnection,
+                            hc->carrier, jstatus)) {
         logE("Call Carrier.Callbacks.OnConnection error");
     }
 
@@ -76,6 +184,7 @@ void cbOnConnection(ElaCarrier* carrier, ElaConnectionStatus status, void* conte
 static
 void cbOnReady(ElaCarrier* carrier, void* context)
 {
+    traceScope("onReady");
     assert(carrier);
     assert(context);
 
@@ -83,10 +192,8 @@ void cbOnReady(ElaCarrier* carrier, void* context)
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onReady",
-                        "("_W("Carrier;)V"),
-                        hc->carrier)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onReady,
+                            hc->carrier)) {
         logE("Call Carrier.Callbacks.OnReady error");
     }
 }
@@ -94,6 +201,7 @@ void cbOnReady(ElaCarrier* carrier, void* context)
 static
 void cbOnSelfInfoChanged(ElaCarrier* carrier, const ElaUserInfo* userInfo, void* context)
 {
+    traceScope("onSelfInfoChanged");
     HandlerContext* hc = (HandlerContext*)context;
     jobject juserInfo;
 
@@ -109,10 +217,8 @@ void cbOnSelfInfoChanged(ElaCarrier* carrier, const ElaUserInfo* userInfo, void*
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onSelfInfoChanged",
-                        "("_W("Carrier;")_W("UserInfo;)V"),
-                        hc->carrier, juserInfo)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onSelfInfoChanged,
+                            hc->carrier, juserInfo)) {
         logE("Call Carrier.Callbacks.OnSelfInfoChanged error");
     }
     (*hc->env)->DeleteLocalRef(hc->env, juserInfo);
@@ -121,9 +227,10 @@ void cbOnSelfInfoChanged(ElaCarrier* carrier, const ElaUserInfo* userInfo, void*
 static
 bool cbFriendsIterated(ElaCarrier* carrier, const ElaFriendInfo* friendInfo, void* context)
 {
+    traceScope("friendsIterated");
     HandlerContext* hc = (HandlerContext*)context;
     jobject jfriendInfo = NULL;
-    jboolean result;
+    jboolean result = JNI_FALSE;
 
     assert(carrier);
     assert(context);
@@ -131,22 +238,25 @@ bool cbFriendsIterated(ElaCarrier* carrier, const ElaFriendInfo* friendInfo, voi
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
+    if ((*hc->env)->PushLocalFrame(hc->env, 16) < 0) {
+        logE("Push JNI local frame error");
+        return false;
+    }
+
     if (friendInfo) {
         if (!newJavaFriendInfo(hc->env, friendInfo, &jfriendInfo)) {
             logE("Construct Java FriendInfo object error");
+            (*hc->env)->PopLocalFrame(hc->env, NULL);
             return false;
         }
     }
 
-    if (!callBooleanMethod(hc->env, hc->clazz, hc->callbacks,
-                           "onFriendsIterated",
-                           "("_W("Carrier;")_W("FriendInfo;)Z"),
-                           &result, hc->carrier, jfriendInfo)) {
+    if (!callBooleanMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendsIterated,
+                               &result, hc->carrier, jfriendInfo)) {
         logE("Call Carrier.Callbacks.OnFriendIterated error");
     }
 
-    if (jfriendInfo)
-        (*hc->env)->DeleteLocalRef(hc->env, jfriendInfo);
+    (*hc->env)->PopLocalFrame(hc->env, NULL);
     return (bool)result;
 }
 
@@ -154,19 +264,24 @@ static
 void cbOnFriendConnectionChanged(ElaCarrier *carrier, const char *friendId,
                                  ElaConnectionStatus status, void *context)
 {
+    traceScope("onFriendConnectionChanged");
     HandlerContext *hc = (HandlerContext *) context;
-    jstring jfriendId;
+    jobject jfriendId;
     jobject jstatus;
 
+    traceState("friendConnection", status);
+
     assert(carrier);
     assert(context);
 
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    jfriendId = (*hc->env)->NewStringUTF(hc->env, friendId);
+    carrierActivity();
+
+    jfriendId = carrierIdIntern(hc->env, friendId);
     if (!jfriendId) {
-        logE("New Java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
 
@@ -176,10 +291,8 @@ void cbOnFriendConnectionChanged(ElaCarrier *carrier, const char *friendId,
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendConnection",
-                        "("_W("Carrier;")_J("String;")_W("ConnectionStatus;)V"),
-            hc->carrier, jfriendId, jstatus)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendConnection,
+                            hc->carrier, jfriendId, jstatus)) {
         logE("Call Carrier.Callbacks.OnFriendConnection error");
     }
 
@@ -191,8 +304,9 @@ static
 void cbOnFriendInfoChanged(ElaCarrier* carrier, const char* friendId,
                            const ElaFriendInfo* friendInfo, void* context)
 {
+    traceScope("onFriendInfoChanged");
     HandlerContext* hc = (HandlerContext*)context;
-    jstring jfriendId;
+    jobject jfriendId;
     jobject jfriendInfo;
 
     assert(carrier);
@@ -203,9 +317,9 @@ void cbOnFriendInfoChanged(ElaCarrier* carrier, const char* friendId,
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    jfriendId = (*hc->env)->NewStringUTF(hc->env, friendId);
+    jfriendId = carrierIdIntern(hc->env, friendId);
     if (!jfriendId) {
-        logE("New Java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
 
@@ -215,10 +329,8 @@ void cbOnFriendInfoChanged(ElaCarrier* carrier, const char* friendId,
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendInfoChanged",
-                        "("_W("Carrier;")_J("String;")_W("FriendInfo;)V"),
-                        hc->carrier, jfriendId, jfriendInfo)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendInfoChanged,
+                            hc->carrier, jfriendId, jfriendInfo)) {
         logE("Call Carrier.Callbacks.OnFriendInfoChanged error");
     }
     (*hc->env)->DeleteLocalRef(hc->env, jfriendId);
@@ -229,8 +341,9 @@ static
 void cbOnFriendPresence(ElaCarrier* carrier, const char* friendId,
                         ElaPresenceStatus status, void* context)
 {
+    traceScope("onFriendPresence");
     HandlerContext* hc = (HandlerContext*)context;
-    jstring jfriendId;
+    jobject jfriendId;
     jobject jpresence;
 
     assert(carrier);
@@ -240,9 +353,9 @@ void cbOnFriendPresence(ElaCarrier* carrier, const char* friendId,
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    jfriendId = (*hc->env)->NewStringUTF(hc->env, friendId);
+    jfriendId = carrierIdIntern(hc->env, friendId);
     if (!jfriendId) {
-        logE("New Java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
 
@@ -252,10 +365,8 @@ void cbOnFriendPresence(ElaCarrier* carrier, const char* friendId,
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendPresence",
-                        "("_W("Carrier;")_J("String;")_W("PresenceStatus;)V"),
-                        hc->carrier, jfriendId, jpresence)){
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendPresence,
+                            hc->carrier, jfriendId, jpresence)){
         logE("Call Carrier.Callbacks.onFriendPresence error");
     }
 
@@ -266,6 +377,7 @@ void cbOnFriendPresence(ElaCarrier* carrier, const char* friendId,
 static
 void cbOnFriendAdded(ElaCarrier* carrier, const ElaFriendInfo* friendInfo, void* context)
 {
+    traceScope("onFriendAdded");
     HandlerContext* hc = (HandlerContext*)context;
     jobject jfriendInfo;
 
@@ -281,10 +393,8 @@ void cbOnFriendAdded(ElaCarrier* carrier, const ElaFriendInfo* friendInfo, void*
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendAdded",
-                        "("_W("Carrier;")_W("FriendInfo;)V"),
-                        hc->carrier, jfriendInfo)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendAdded,
+                            hc->carrier, jfriendInfo)) {
         logE("Call Carrier.Callbacks.onFriendAdded error");
     }
     (*hc->env)->DeleteLocalRef(hc->env, jfriendInfo);
@@ -293,8 +403,9 @@ void cbOnFriendAdded(ElaCarrier* carrier, const ElaFriendInfo* friendInfo, void*
 static
 void cbOnFriendRemoved(ElaCarrier* carrier, const char* friendId, void* context)
 {
+    traceScope("onFriendRemoved");
     HandlerContext* hc = (HandlerContext*)context;
-    jstring jfriendId;
+    jobject jfriendId;
 
     assert(carrier);
     assert(friendId);
@@ -303,16 +414,14 @@ void cbOnFriendRemoved(ElaCarrier* carrier, const char* friendId, void* context)
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    jfriendId = (*hc->env)->NewStringUTF(hc->env, friendId);
+    jfriendId = carrierIdIntern(hc->env, friendId);
     if (!jfriendId) {
-        logE("New Java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendRemoved",
-                        "("_W("Carrier;")_J("String;)V"),
-                        hc->carrier, jfriendId)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendRemoved,
+                            hc->carrier, jfriendId)) {
         logE("Call Carrier.Callbacks.onFriendRemoved error");
     }
     (*hc->env)->DeleteLocalRef(hc->env, jfriendId);
@@ -322,6 +431,7 @@ static
 void cbOnFriendRequest(ElaCarrier* carrier, const char* userId, const ElaUserInfo* userInfo,
                        const char* hello, void* context)
 {
+    traceScope("onFriendRequest");
     HandlerContext* hc = (HandlerContext*)context;
     jstring juserId;
     jobject juserInfo;
@@ -335,6 +445,8 @@ void cbOnFriendRequest(ElaCarrier* carrier, const char* userId, const ElaUserInf
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
+    carrierActivity();
+
     juserId = (*hc->env)->NewStringUTF(hc->env, userId);
     if (!juserId) {
         logE("New Java String object error");
@@ -353,10 +465,8 @@ void cbOnFriendRequest(ElaCarrier* carrier, const char* userId, const ElaUserInf
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendRequest",
-                        "("_W("Carrier;")_J("String;")_W("UserInfo;")_J("String;)V"),
-                        hc->carrier, juserId, juserInfo, jhello)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendRequest,
+                            hc->carrier, juserId, juserInfo, jhello)) {
         logE("Call Carrier.Callbacks.OnFriendRequest error");
     }
 
@@ -369,8 +479,9 @@ static
 void cbOnFriendMessage(ElaCarrier* carrier, const char* friendId, const void* message, size_t length,
                        void* context)
 {
+    traceScope("onFriendMessage");
     HandlerContext* hc = (HandlerContext*)context;
-    jstring jfriendId;
+    jobject jfriendId;
     jstring jmessage;
 
     assert(carrier);
@@ -381,9 +492,11 @@ void cbOnFriendMessage(ElaCarrier* carrier, const char* friendId, const void* me
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    jfriendId = (*hc->env)->NewStringUTF(hc->env, friendId);
+    carrierActivity();
+
+    jfriendId = carrierIdIntern(hc->env, friendId);
     if (!jfriendId) {
-        logE("New Java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
     jmessage = (*hc->env)->NewByteArray(hc->env, length);
@@ -394,10 +507,8 @@ void cbOnFriendMessage(ElaCarrier* carrier, const char* friendId, const void* me
     }
     (*hc->env)->SetByteArrayRegion(hc->env, jmessage, 0, length, (jbyte *)message);
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onFriendMessage",
-                        "("_W("Carrier;")_J("String;[B)V"),
-                        hc->carrier, jfriendId, jmessage)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendMessage,
+                            hc->carrier, jfriendId, jmessage)) {
         logE("Call Carrier.Callbacks.onFriendMessage error");
     }
 
@@ -409,6 +520,7 @@ static
 void cbOnFriendInviteRquest(ElaCarrier* carrier, const char* from, const char *bundle,
                             const void* hello, size_t length, void* context)
 {
+    traceScope("onFriendInviteRquest");
     HandlerContext* hc = (HandlerContext*)context;
     jstring jfrom;
     jstring jhello;
@@ -423,6 +535,8 @@ void cbOnFriendInviteRquest(ElaCarrier* carrier, const char* from, const char *b
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
+    carrierActivity();
+
     jfrom = (*hc->env)->NewStringUTF(hc->env, from);
     if (!jfrom) {
         logE("New java String object error");
@@ -435,10 +549,8 @@ void cbOnFriendInviteRquest(ElaCarrier* carrier, const char* from, const char *b
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                           "onFriendInviteRequest",
-                           "("_W("Carrier;")_J("String;")_J("String;)V"),
-                           hc->carrier, jfrom, jhello)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onFriendInviteRequest,
+                            hc->carrier, jfrom, jhello)) {
         logE("Call Carrier.Callbacks.onFriendInviteRequest error");
     }
     (*hc->env)->DeleteLocalRef(hc->env, jfrom);
@@ -449,8 +561,9 @@ static
 void cbOnGroupInvite(ElaCarrier *carrier, const char *from,
                      const void *cookie, size_t length, void *context)
 {
+    traceScope("onGroupInvite");
     HandlerContext* hc = (HandlerContext*)context;
-    jstring jfrom;
+    jobject jfrom;
     jstring jcookie;
 
     assert(carrier);
@@ -461,9 +574,11 @@ void cbOnGroupInvite(ElaCarrier *carrier, const char *from,
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
-    jfrom = (*hc->env)->NewStringUTF(hc->env, from);
+    carrierActivity();
+
+    jfrom = carrierIdIntern(hc->env, from);
     if (!jfrom) {
-        logE("New java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
 
@@ -475,10 +590,8 @@ void cbOnGroupInvite(ElaCarrier *carrier, const char *from,
     }
     (*hc->env)->SetByteArrayRegion(hc->env, jcookie, 0, length, (jbyte *)cookie);
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onGroupInvite",
-                        "("_W("Carrier;")_J("String;[B)V"),
-                        hc->carrier, jfrom, jcookie)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onGroupInvite,
+                            hc->carrier, jfrom, jcookie)) {
         logE("Call Carrier.Callbacks.onGroupInvite error");
     }
 
@@ -489,6 +602,7 @@ void cbOnGroupInvite(ElaCarrier *carrier, const char *from,
 static
 void cbOnGroupConnected(ElaCarrier *carrier, const char *groupid, void *context)
 {
+    traceScope("onGroupConnected");
     HandlerContext* hc = (HandlerContext*)context;
     jstring jgroupid;
 
@@ -504,10 +618,8 @@ void cbOnGroupConnected(ElaCarrier *carrier, const char *groupid, void *context)
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onGroupConnected",
-                        "("_W("Carrier;")_J("String;)V"),
-                        hc->carrier, jgroupid)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onGroupConnected,
+                            hc->carrier, jgroupid)) {
         logE("Call Carrier.Callbacks.onGroupConnected error");
     }
 
@@ -519,9 +631,10 @@ void cbOnGroupMessage(ElaCarrier *carrier, const char *groupid,
                       const char *from, const void *message, size_t length,
                       void *context)
 {
+    traceScope("onGroupMessage");
     HandlerContext* hc = (HandlerContext*)context;
     jstring jgroupid;
-    jstring jfrom;
+    jobject jfrom;
     jstring jmessage;
 
     assert(carrier);
@@ -533,16 +646,18 @@ void cbOnGroupMessage(ElaCarrier *carrier, const char *groupid,
     assert(carrier == hc->nativeCarrier);
     assert(hc->env);
 
+    carrierActivity();
+
     jgroupid = (*hc->env)->NewStringUTF(hc->env, groupid);
     if (!jgroupid) {
         logE("New java String object error");
         return;
     }
 
-    jfrom = (*hc->env)->NewStringUTF(hc->env, from);
+    jfrom = carrierIdIntern(hc->env, from);
     if (!jfrom) {
         (*hc->env)->DeleteLocalRef(hc->env, jgroupid);
-        logE("New java String object error");
+        logE("Intern Java CarrierId object error");
         return;
     }
 
@@ -555,10 +670,8 @@ void cbOnGroupMessage(ElaCarrier *carrier, const char *groupid,
     }
     (*hc->env)->SetByteArrayRegion(hc->env, jmessage, 0, length, (jbyte *)message);
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onGroupMessage",
-                        "("_W("Carrier;")_J("String;")_J("String;[B)V"),
-                        hc->carrier, jgroupid, jfrom, jmessage)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onGroupMessage,
+                            hc->carrier, jgroupid, jfrom, jmessage)) {
         logE("Call Carrier.Callbacks.onGroupMessage error");
     }
 
@@ -571,6 +684,7 @@ static
 void cbOnGroupTitle(ElaCarrier *carrier, const char *groupid,
                     const char *from, const char *title, void *context)
 {
+    traceScope("onGroupTitle");
     HandlerContext* hc = (HandlerContext*)context;
     jstring jgroupid;
     jstring jfrom;
@@ -605,10 +719,8 @@ void cbOnGroupTitle(ElaCarrier *carrier, const char *groupid,
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onGroupTitle",
-                        "("_W("Carrier;")_J("String;")_J("String;")_J("String;)V"),
-                        hc->carrier, jgroupid, jfrom, jtitle)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onGroupTitle,
+                            hc->carrier, jgroupid, jfrom, jtitle)) {
         logE("Call Carrier.Callbacks.onGroupTitle error");
     }
 
@@ -622,6 +734,7 @@ void cbOnPeerName(ElaCarrier *carrier, const char *groupid,
                   const char *peerid, const char *peerName,
                   void *context)
 {
+    traceScope("onPeerName");
     HandlerContext* hc = (HandlerContext*)context;
     jstring jgroupid;
     jstring jpeerid;
@@ -656,10 +769,8 @@ void cbOnPeerName(ElaCarrier *carrier, const char *groupid,
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onPeerName",
-                        "("_W("Carrier;")_J("String;")_J("String;")_J("String;)V"),
-                        hc->carrier, jgroupid, jpeerid, jpeerName)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onPeerName,
+                            hc->carrier, jgroupid, jpeerid, jpeerName)) {
         logE("Call Carrier.Callbacks.onPeerName error");
     }
 
@@ -671,6 +782,7 @@ void cbOnPeerName(ElaCarrier *carrier, const char *groupid,
 static
 void cbOnPeerListChanged(ElaCarrier *carrier, const char *groupid, void *context)
 {
+    traceScope("onPeerListChanged");
     HandlerContext* hc = (HandlerContext*)context;
     jstring jgroupid;
 
@@ -686,10 +798,8 @@ void cbOnPeerListChanged(ElaCarrier *carrier, const char *groupid, void *context
         return;
     }
 
-    if (!callVoidMethod(hc->env, hc->clazz, hc->callbacks,
-                        "onPeerListChanged",
-                        "("_W("Carrier;")_J("String;)V"),
-                        hc->carrier, jgroupid)) {
+    if (!callVoidMethodById(hc->env, hc->callbacks, gJniCache.carrierCallbacks.onPeerListChanged,
+                            hc->carrier, jgroupid)) {
         logE("Call Carrier.Callbacks.onPeerListChanged error");
     }
 
@@ -720,6 +830,30 @@ ElaCallbacks carrierCallbacks = {
         }
 };
 
+void handlerCtxtSetEvents(HandlerContext* hc, int events)
+{
+    ElaCallbacks* cbs = &hc->nativeCallbacks;
+
+    *cbs = carrierCallbacks;
+    hc->events = events;
+
+    // The idle callback is always registered, the adaptive run loop,
+    // invite deadlines and java housekeeping depend on it.
+    if (!(events & EVENT_CONNECTION))        cbs->connection_status = NULL;
+    if (!(events & EVENT_READY))             cbs->ready = NULL;
+    if (!(events & EVENT_SELF_INFO))         cbs->self_info = NULL;
+    if (!(events & EVENT_FRIENDS))           cbs->friend_list = NULL;
+    if (!(events & EVENT_FRIEND_CONNECTION)) cbs->friend_connection = NULL;
+    if (!(events & EVENT_FRIEND_INFO))       cbs->friend_info = NULL;
+    if (!(events & EVENT_FRIEND_PRESENCE))   cbs->friend_presence = NULL;
+    if (!(events & EVENT_FRIEND_REQUEST))    cbs->friend_request = NULL;
+    if (!(events & EVENT_FRIEND_ADDED))      cbs->friend_added = NULL;
+    if (!(events & EVENT_FRIEND_REMOVED))    cbs->friend_removed = NULL;
+    if (!(events & EVENT_FRIEND_MESSAGE))    cbs->friend_message = NULL;
+    if (!(events & EVENT_FRIEND_INVITE))     cbs->friend_invite = NULL;
+    if (!(events & EVENT_GROUP_INVITE))      cbs->group_invite = NULL;
+}
+
 int handlerCtxtSet(HandlerContext* hc, JNIEnv* env, jobject jcarrier, jobject jcallbacks)
 {
     jclass lclazz = (*env)->GetObjectClass(env, jcallbacks);
@@ -764,5 +898,7 @@ void handlerCtxtCleanup(HandlerContext* hc, JNIEnv* env)
         (*env)->DeleteGlobalRef(env, hc->carrier);
     if (hc->callbacks)
         (*env)->DeleteGlobalRef(env, hc->callbacks);
+
+    friendInvitesCleanup(hc, env);
 }
 
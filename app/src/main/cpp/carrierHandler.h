@@ -24,19 +24,72 @@
 #define __JNI_CARRUER_HADNDLER_H__
 
 #include <jni.h>
+#include <stdint.h>
 #include <ela_carrier.h>
 
 extern ElaCallbacks carrierCallbacks;
 
+/*
+ * Event interest bits, must be kept in sync with Carrier.Options.EVENT_*.
+ * Native callbacks of events nobody subscribes to are not registered to
+ * the carrier at all, so those events never cross JNI.
+ */
+#define EVENT_IDLE              (1 << 0)
+#define EVENT_CONNECTION        (1 << 1)
+#define EVENT_READY             (1 << 2)
+#define EVENT_SELF_INFO         (1 << 3)
+#define EVENT_FRIENDS           (1 << 4)
+#define EVENT_FRIEND_CONNECTION (1 << 5)
+#define EVENT_FRIEND_INFO       (1 << 6)
+#define EVENT_FRIEND_PRESENCE   (1 << 7)
+#define EVENT_FRIEND_REQUEST    (1 << 8)
+#define EVENT_FRIEND_ADDED      (1 << 9)
+#define EVENT_FRIEND_REMOVED    (1 << 10)
+#define EVENT_FRIEND_MESSAGE    (1 << 11)
+#define EVENT_FRIEND_INVITE     (1 << 12)
+#define EVENT_GROUP_INVITE      (1 << 13)
+
 typedef struct HandlerContext {
     JNIEnv* env;
     ElaCarrier* nativeCarrier;
     jclass  clazz;
     jobject carrier;
     jobject callbacks;
+    ElaCallbacks nativeCallbacks;
+    int events;
+    uint64_t lastTick;
+
+    /*
+     * Adaptive iterate interval: ela_run iterates every minInterval ms, and
+     * idle iterations are stretched up to maxInterval ms while no activity
+     * is recorded. Fixed interval if maxInterval is not above minInterval.
+     */
+    int minInterval;
+    int maxInterval;
+    volatile int interval;
+    unsigned long lastActivity;
+    volatile int quit;
+
+    /* Pending friend invites, see friendInvite.h */
+    struct FriendInvite* invites;
+    struct FriendInvite* invitesTail;
+    int inviteCount;
+    int maxInvites;
+    int inviteTimeout;
+    uint32_t lastInviteId;
 } HandlerContext;
 
 int handlerCtxtSet(HandlerContext* hc, JNIEnv* env, jobject jcarrier, jobject jhandler);
+
+void handlerCtxtSetEvents(HandlerContext* hc, int events);
+void handlerCtxtWakeup(HandlerContext* hc);
 void handlerCtxtCleanup(HandlerContext* hc, JNIEnv* env);
 
+/*
+ * Record traffic seen by the JNI layer, which keeps the adaptive run loop at
+ * its shortest interval. Cheap enough for stream data paths, and callable
+ * from any thread.
+ */
+void carrierActivity(void);
+
 #endif //__JNI_CARRUER_HADNDLER_H__
\ No newline at end of file
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#include <jni.h>
+#include <assert.h>
+#include <string.h>
+#include <pthread.h>
+#include <ela_carrier.h>
+#include "log.h"
+#include "carrierId.h"
+#include "jniCache.h"
+
+/*
+ * Four-way set associative: a set keeps the ids it saw most recently and
+ * evicts in round robin, so the table never holds more than CARRIER_ID_SETS *
+ * CARRIER_ID_WAYS global references however many peers come and go.
+ */
+#define CARRIER_ID_SETS     256
+#define CARRIER_ID_WAYS     4
+
+typedef struct CarrierIdSlot {
+    char id[ELA_MAX_ID_LEN + 1];
+    jobject ref;
+} CarrierIdSlot;
+
+typedef struct CarrierIdSet {
+    CarrierIdSlot slots[CARRIER_ID_WAYS];
+    int next;
+} CarrierIdSet;
+
+static CarrierIdSet gIdSets[CARRIER_ID_SETS];
+static pthread_mutex_t gIdLock = PTHREAD_MUTEX_INITIALIZER;
+
+static
+unsigned int hashId(const char* id)
+{
+    unsigned int hash = 2166136261u;
+
+    while (*id)
+        hash = (hash ^ (unsigned char)*id++) * 16777619u;
+
+    return hash;
+}
+
+static
+jobject newCarrierId(JNIEnv* env, const char* id)
+{
+    jstring jid;
+    jobject jcarrierId;
+
+    jid = (*env)->NewStringUTF(env, id);
+    if (!jid) {
+        logE("New Java String object error");
+        return NULL;
+    }
+
+    jcarrierId = (*env)->NewObject(env, gJniCache.carrierId.clazz, gJniCache.carrierId.method,
+                                   jid);
+    (*env)->DeleteLocalRef(env, jid);
+
+    if (!jcarrierId || (*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        logE("Construct Java CarrierId object for %s error", id);
+        return NULL;
+    }
+
+    return jcarrierId;
+}
+
+jobject carrierIdIntern(JNIEnv* env, const char* id)
+{
+    CarrierIdSet* set;
+    CarrierIdSlot* slot;
+    jobject jcarrierId;
+    jobject ref;
+    int i;
+
+    assert(env);
+    assert(id);
+
+    if (strlen(id) > ELA_MAX_ID_LEN)
+        return newCarrierId(env, id);
+
+    set = &gIdSets[hashId(id) & (CARRIER_ID_SETS - 1)];
+
+    pthread_mutex_lock(&gIdLock);
+    for (i = 0; i < CARRIER_ID_WAYS; i++) {
+        slot = &set->slots[i];
+        if (slot->ref && !strcmp(slot->id, id)) {
+            // A local ref keeps the instance valid should it be evicted.
+            jcarrierId = (*env)->NewLocalRef(env, slot->ref);
+            pthread_mutex_unlock(&gIdLock);
+            return jcarrierId;
+        }
+    }
+    pthread_mutex_unlock(&gIdLock);
+
+    // Create outside the lock, it calls back into java.
+    jcarrierId = newCarrierId(env, id);
+    if (!jcarrierId)
+        return NULL;
+
+    ref = (*env)->NewGlobalRef(env, jcarrierId);
+    if (!ref)
+        return jcarrierId;
+
+    pthread_mutex_lock(&gIdLock);
+    for (i = 0; i < CARRIER_ID_WAYS; i++) {
+        slot = &set->slots[i];
+        if (slot->ref && !strcmp(slot->id, id))
+            break;
+    }
+
+    if (i < CARRIER_ID_WAYS) {
+        // Another thread interned it first, use that one.
+        (*env)->DeleteLocalRef(env, jcarrierId);
+        jcarrierId = (*env)->NewLocalRef(env, slot->ref);
+    } else {
+        slot = &set->slots[set->next];
+        set->next = (set->next + 1) % CARRIER_ID_WAYS;
+
+        if (slot->ref)
+            (*env)->DeleteGlobalRef(env, slot->ref);
+
+        strcpy(slot->id, id);
+        slot->ref = ref;
+        ref = NULL;
+    }
+    pthread_mutex_unlock(&gIdLock);
+
+    if (ref)
+        (*env)->DeleteGlobalRef(env, ref);
+
+    return jcarrierId;
+}
+
+void carrierIdsCleanup(JNIEnv* env)
+{
+    int i;
+    int j;
+
+    pthread_mutex_lock(&gIdLock);
+    for (i = 0; i < CARRIER_ID_SETS; i++) {
+        for (j = 0; j < CARRIER_ID_WAYS; j++) {
+            CarrierIdSlot* slot = &gIdSets[i].slots[j];
+            if (slot->ref) {
+                (*env)->DeleteGlobalRef(env, slot->ref);
+                slot->ref = NULL;
+            }
+        }
+        gIdSets[i].next = 0;
+    }
+    pthread_mutex_unlock(&gIdLock);
+}
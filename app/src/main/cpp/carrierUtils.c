@@ -22,14 +22,27 @@
 
 #include <jni.h>
 #include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
 #include <assert.h>
 #include <ela_carrier.h>
 #include "utilsExt.h"
 #include "log.h"
 #include "carrierUtils.h"
+#include "jniCache.h"
 
 #define _T(type)  "org/elastos/carrier/"type
 
+/*
+ * User and friend infos cross JNI packed in one byte array, decoded by a
+ * single java constructor instead of a string and an upcall per field. The
+ * layout must stay in step with PackedInfo.java: a flags byte, the seven
+ * user info strings, then for friends the label, connection status and
+ * presence bytes. Strings are a big-endian 16-bit length and UTF-8 bytes.
+ */
+#define PACKED_HAS_AVATAR   0x01
+#define PACKED_INFO_MAX     (sizeof(ElaFriendInfo) + 32)
+
 int getOptionsHelper(JNIEnv* env, jobject jopts, OptionsHelper* opts)
 {
     jclass clazz;
@@ -46,6 +59,10 @@ int getOptionsHelper(JNIEnv* env, jobject jopts, OptionsHelper* opts)
     }
 
     if (!getBoolean(env, clazz, jopts, "getUdpEnabled", &opts->udp_enabled) ||
+        !getInt(env, clazz, jopts, "getNativeEventMask", &opts->events) ||
+        !getInt(env, clazz, jopts, "getMaxIterateInterval", &opts->max_interval) ||
+        !getInt(env, clazz, jopts, "getFriendInviteTimeout", &opts->invite_timeout) ||
+        !getInt(env, clazz, jopts, "getMaxPendingFriendInvites", &opts->max_invites) ||
         !getStringExt(env, clazz, jopts, "getPersistentLocation",&opts->persistent_location)) {
 
         logE("At least one getter method of class 'Carrier.Options' mismatched");
@@ -148,26 +165,124 @@ void cleanupOptionsHelper(OptionsHelper* opts)
     }
 }
 
+static
+uint8_t* packString(uint8_t* p, const char* value)
+{
+    size_t len = strlen(value);
+
+    *p++ = (uint8_t)(len >> 8);
+    *p++ = (uint8_t)len;
+    memcpy(p, value, len);
+    return p + len;
+}
+
+static
+uint8_t* packUserInfo(uint8_t* p, const ElaUserInfo* ui)
+{
+    *p++ = ui->has_avatar ? PACKED_HAS_AVATAR : 0;
+
+    p = packString(p, ui->userid);
+    p = packString(p, ui->name);
+    p = packString(p, ui->description);
+    p = packString(p, ui->gender);
+    p = packString(p, ui->phone);
+    p = packString(p, ui->email);
+    return packString(p, ui->region);
+}
+
+static
+const uint8_t* unpackString(const uint8_t* p, const uint8_t* end, char* buf, size_t size)
+{
+    size_t len;
+
+    if (!p || end - p < 2)
+        return NULL;
+
+    len = ((size_t)p[0] << 8) | p[1];
+    p += 2;
+    if (len >= size || (size_t)(end - p) < len)
+        return NULL;
+
+    memcpy(buf, p, len);
+    buf[len] = 0;
+    return p + len;
+}
+
+static
+int unpackUserInfo(const uint8_t* p, const uint8_t* end, ElaUserInfo* ui)
+{
+    if (p >= end)
+        return 0;
+
+    ui->has_avatar = (*p++ & PACKED_HAS_AVATAR) != 0;
+
+    p = unpackString(p, end, ui->userid, sizeof(ui->userid));
+    p = unpackString(p, end, ui->name, sizeof(ui->name));
+    p = unpackString(p, end, ui->description, sizeof(ui->description));
+    p = unpackString(p, end, ui->gender, sizeof(ui->gender));
+    p = unpackString(p, end, ui->phone, sizeof(ui->phone));
+    p = unpackString(p, end, ui->email, sizeof(ui->email));
+    p = unpackString(p, end, ui->region, sizeof(ui->region));
+    return p != NULL;
+}
+
+static
+jobject newJavaPackedObject(JNIEnv* env, jclass clazz, jmethodID ctor,
+                            const uint8_t* buf, size_t length)
+{
+    jbyteArray jpacked;
+    jobject jobj;
+
+    jpacked = (*env)->NewByteArray(env, (jsize)length);
+    if (!jpacked) {
+        logE("New Java byte array error");
+        return NULL;
+    }
+    (*env)->SetByteArrayRegion(env, jpacked, 0, (jsize)length, (const jbyte*)buf);
+
+    jobj = (*env)->NewObject(env, clazz, ctor, jpacked);
+    (*env)->DeleteLocalRef(env, jpacked);
+
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        if (jobj)
+            (*env)->DeleteLocalRef(env, jobj);
+        return NULL;
+    }
+
+    return jobj;
+}
+
 int getNativeUserInfo(JNIEnv* env, jobject juserInfo, ElaUserInfo* ui)
 {
-    jclass clazz;
+    uint8_t buf[PACKED_INFO_MAX];
+    jbyteArray jpacked;
+    jsize length;
 
-    clazz = (*env)->GetObjectClass(env, juserInfo);
-    if (!clazz) {
-        logE("Java class 'UserInfo' not found");
+    memset(ui, 0, sizeof(*ui));
+
+    jpacked = (*env)->CallObjectMethod(env, juserInfo, gJniCache.userInfo.pack);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+        jpacked = NULL;
+    }
+    if (!jpacked) {
+        logE("Call method UserInfo::pack error");
+        return 0;
+    }
+
+    length = (*env)->GetArrayLength(env, jpacked);
+    if (length > (jsize)sizeof(buf)) {
+        logE("Packed UserInfo too long");
+        (*env)->DeleteLocalRef(env, jpacked);
         return 0;
     }
 
-    if (!getBoolean(env, clazz, juserInfo, "hasAvatar", &ui->has_avatar)||
-        !getString(env, clazz, juserInfo, "getUserId", ui->userid, sizeof(ui->userid)) ||
-        !getString(env, clazz, juserInfo, "getName", ui->name, sizeof(ui->name)) ||
-        !getString(env, clazz, juserInfo, "getDescription", ui->description, sizeof(ui->description)) ||
-        !getString(env, clazz, juserInfo, "getGender", ui->gender, sizeof(ui->gender)) ||
-        !getString(env, clazz, juserInfo, "getPhone", ui->phone, sizeof(ui->phone)) ||
-        !getString(env, clazz, juserInfo, "getEmail", ui->email, sizeof(ui->email)) ||
-        !getString(env, clazz, juserInfo, "getRegion", ui->region, sizeof(ui->region))) {
+    (*env)->GetByteArrayRegion(env, jpacked, 0, length, (jbyte*)buf);
+    (*env)->DeleteLocalRef(env, jpacked);
 
-        logE("At least one getter method of class 'UserInfo' missing");
+    if (!unpackUserInfo(buf, buf + length, ui)) {
+        logE("At least one field of class 'UserInfo' too long");
         return 0;
     }
     return 1;
@@ -187,53 +302,32 @@ int setJavaUserInfo(JNIEnv *env, jclass clazz, jobject jinfo, const ElaUserInfo
 
 int newJavaUserInfo(JNIEnv* env, const ElaUserInfo* userInfo, jobject* juserInfo)
 {
-    jclass clazz;
-    jmethodID contor;
+    uint8_t buf[PACKED_INFO_MAX];
+    uint8_t* p;
     jobject jobj;
 
-    clazz = (*env)->FindClass(env, _T("UserInfo"));
-    if (!clazz) {
-        logE("Java class 'UserInfo' not found");
-        return 0;
-    }
-    contor = (*env)->GetMethodID(env, clazz, "<init>", "()V");
-    if (!contor) {
-        logE("Contructor UserInfo() not found");
-        return 0;
-    }
+    p = packUserInfo(buf, userInfo);
 
-    jobj = (*env)->NewObject(env, clazz, contor);
+    jobj = newJavaPackedObject(env, gJniCache.userInfo.clazz, gJniCache.userInfo.packedCtor,
+                               buf, p - buf);
     if (!jobj) {
         logE("New class UserInfo object error");
         return 0;
     }
 
-    if (!setJavaUserInfo(env, clazz, jobj, userInfo)) {
-        logE("Set UserInfo object's fields error");
-        (*env)->DeleteLocalRef(env, jobj);
-        return 0;
-    }
-
     *juserInfo = jobj;
     return 1;
 }
 
 int newJavaPresenceStatus(JNIEnv* env, ElaPresenceStatus status, jobject* jpresence)
 {
-    jclass clazz;
     jobject jobj;
     int rc;
 
     assert(jpresence);
 
-    clazz = (*env)->FindClass(env, _T("PresenceStatus"));
-    if (!clazz) {
-        logE("Java class 'PresenceStatus' not found");
-        return 0;
-    }
-
-    rc = callStaticObjectMethod(env, clazz, "valueOf", "(I)"_W("PresenceStatus;"),
-                                &jobj, status);
+    rc = callStaticObjectMethodById(env, gJniCache.presenceStatus.clazz,
+                                    gJniCache.presenceStatus.method, &jobj, status);
     if (!rc) {
         logE("call static method PresenceStatus::valueOf error");
         return 0;
@@ -267,18 +361,11 @@ int newNativePresenceStatus(JNIEnv *env, jobject jpresence, ElaPresenceStatus *p
 
 int newJavaConnectionStatus(JNIEnv* env, ElaConnectionStatus status, jobject* jstatus)
 {
-    jclass clazz;
     jobject jobj;
     int rc;
 
-    clazz = (*env)->FindClass(env, _T("ConnectionStatus"));
-    if (!clazz) {
-        logE("Java class 'ConnectionStatus' not found");
-        return 0;
-    }
-
-    rc = callStaticObjectMethod(env, clazz, "valueOf", "(I)"_W("ConnectionStatus;"),
-                                &jobj, status);
+    rc = callStaticObjectMethodById(env, gJniCache.connectionStatus.clazz,
+                                    gJniCache.connectionStatus.method, &jobj, status);
     if (!rc) {
         logE("call static method ConnectionStatus::valueOf error");
         return 0;
@@ -290,80 +377,24 @@ int newJavaConnectionStatus(JNIEnv* env, ElaConnectionStatus status, jobject* js
 
 int newJavaFriendInfo(JNIEnv* env, const ElaFriendInfo* friendInfo, jobject* jfriendInfo)
 {
-    jclass clazz;
-    jmethodID contor;
+    uint8_t buf[PACKED_INFO_MAX];
+    uint8_t* p;
     jobject jobj;
-    jstring jlabel;
-    jobject jpresence;
-    jobject jconnection;
-    int rc;
 
-    clazz = (*env)->FindClass(env, _T("FriendInfo"));
-    if (!clazz) {
-        logE("Java class 'FriendInfo' not found");
-        return 0;
-    }
-    contor = (*env)->GetMethodID(env, clazz, "<init>", "()V");
-    if (!contor) {
-        logE("Contructor FriendInfo() not found");
-        return 0;
-    }
-    jobj = (*env)->NewObject(env, clazz, contor);
+    p = packUserInfo(buf, &friendInfo->user_info);
+    p = packString(p, friendInfo->label);
+    *p++ = (uint8_t)friendInfo->status;
+    *p++ = (uint8_t)friendInfo->presence;
+
+    jobj = newJavaPackedObject(env, gJniCache.friendInfo.clazz, gJniCache.friendInfo.packedCtor,
+                               buf, p - buf);
     if (!jobj) {
         logE("New class FriendInfo object error");
         return 0;
     }
 
-    // setUserInfo.
-    if (!setJavaUserInfo(env, clazz, jobj, &friendInfo->user_info)) {
-        logE("Set UserInfo of Friend Object error");
-        goto errorExit;
-    }
-
-    // setLabel.
-    jlabel = (*env)->NewStringUTF(env, friendInfo->label);
-    if (!jlabel) {
-        logE("Convert from C-chars to Java string error");
-        goto errorExit;
-    }
-    rc = callVoidMethod(env, clazz, jobj, "setLabel", "("_J("String;)V"), jlabel);
-    (*env)->DeleteLocalRef(env, jlabel);
-    if (!rc) {
-        logE("Call method 'void FriendInfo::setLabel(String label)' error");
-        goto errorExit;
-    }
-
-    // setPresence.
-    if (!newJavaPresenceStatus(env, friendInfo->presence, &jpresence)) {
-        logE("Construct Java PresenceStatuss object error");
-        goto errorExit;
-    }
-    rc = callVoidMethod(env, clazz, jobj, "setPresence", "("_W("PresenceStatus;)V"),
-                        jpresence);
-    (*env)->DeleteLocalRef(env, jpresence);
-    if (!rc) {
-        logE("Call method FriendInfo::setPresence error");
-        goto errorExit;
-    }
-
-    if (!newJavaConnectionStatus(env, friendInfo->status, &jconnection)) {
-        logE("Construct Java ConnectionStatus object error");
-        goto errorExit;
-    }
-    rc = callVoidMethod(env, clazz, jobj, "setConnectionStatus", "("_W("ConnectionStatus;)V"),
-                            jconnection);
-    (*env)->DeleteLocalRef(env, jconnection);
-    if (!rc) {
-        logE("Call method FriendInfo::setConnectionStatus error");
-        goto errorExit;
-    }
-
     *jfriendInfo = jobj;
     return 1;
-
-errorExit:
-    (*env)->DeleteGlobalRef(env, jobj);
-    return 0;
 }
 
 int newJavaGroupPeerInfo(JNIEnv* env, const ElaGroupPeer* peer, jobject* jpeerInfo)
@@ -373,17 +404,8 @@ int newJavaGroupPeerInfo(JNIEnv* env, const ElaGroupPeer* peer, jobject* jpeerIn
     jobject jobj;
     jstring jname, juserid;
 
-    clazz = (*env)->FindClass(env, _T("Group$PeerInfo"));
-    if (!clazz) {
-        logE("Java class 'GroupPeerInfo' not found");
-        return 0;
-    }
-
-    ctor = (*env)->GetMethodID(env, clazz, "<init>", "("_J("String;")_J("String;)V"));
-    if (!ctor) {
-        logE("Contructor GroupPeerInfo() not found");
-        return 0;
-    }
+    clazz = gJniCache.groupPeerInfo.clazz;
+    ctor = gJniCache.groupPeerInfo.method;
 
     jname = (*env)->NewStringUTF(env, peer->name);
     if (!jname)
@@ -38,6 +38,10 @@ typedef struct OptionsHelper {
     char* persistent_location;
     size_t  bootstraps_size;
     BootstrapHelper *bootstraps;
+    int events;
+    int max_interval;
+    int invite_timeout;
+    int max_invites;
 } OptionsHelper;
 
 int getOptionsHelper(JNIEnv* env, jobject jopts, OptionsHelper* opts);
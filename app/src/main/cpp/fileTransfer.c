@@ -32,13 +32,22 @@
 #include "fileTransferUtils.h"
 #include "fileTransferCookie.h"
 #include "carrierCookie.h"
+#include "carrierHandler.h"
 #include "utilsExt.h"
 #include "easyFile.h"
+#include "jniCache.h"
+#include "trace.h"
 
+/*
+ * The java FileTransfer is held weakly for callbacks, and pinned by a strong
+ * reference while the native transfer is active, so that one only reached
+ * through its handler callbacks is not collected mid-transfer.
+ */
 typedef struct CallbackContext {
     JNIEnv* env;
     jclass  clazz;
     jobject object;
+    jobject pin;
     jobject handler;
 } CallbackContext;
 
@@ -48,6 +57,7 @@ CallbackContext* callbackCtxCreate(JNIEnv* env, jobject jobjekt, jobject jhandle
     jclass  lclazz   = NULL;
     jclass  gclazz   = NULL;
     jobject gobject  = NULL;
+    jobject gpin     = NULL;
     jobject ghandler = NULL;
     CallbackContext* cc = NULL;
 
@@ -57,9 +67,10 @@ CallbackContext* callbackCtxCreate(JNIEnv* env, jobject jobjekt, jobject jhandle
         return NULL;
     }
     gclazz   = (*env)->NewGlobalRef(env, lclazz);
-    gobject  = (*env)->NewGlobalRef(env, jobjekt);
+    gobject  = (*env)->NewWeakGlobalRef(env, jobjekt);
+    gpin     = (*env)->NewGlobalRef(env, jobjekt);
     ghandler = (*env)->NewGlobalRef(env, jhandler);
-    if (!gclazz || !gobject || !ghandler) {
+    if (!gclazz || !gobject || !gpin || !ghandler) {
         setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
         goto errorExit;
     }
@@ -73,27 +84,40 @@ CallbackContext* callbackCtxCreate(JNIEnv* env, jobject jobjekt, jobject jhandle
     cc->env     = NULL;
     cc->clazz   = gclazz;
     cc->object  = gobject;
+    cc->pin     = gpin;
     cc->handler = ghandler;
     return cc;
 
 errorExit:
     if (gclazz)  (*env)->DeleteGlobalRef(env, gclazz);
-    if (gobject) (*env)->DeleteGlobalRef(env, gobject);
+    if (gobject) (*env)->DeleteWeakGlobalRef(env, gobject);
+    if (gpin)    (*env)->DeleteGlobalRef(env, gpin);
     if (ghandler)(*env)->DeleteGlobalRef(env, ghandler);
     if (cc) free(cc);
 
     return NULL;
 }
 
+/* Let the java FileTransfer be collected once the transfer is over */
+static
+void callbackCtxUnpin(CallbackContext* cc, JNIEnv* env)
+{
+    jobject pin = __sync_lock_test_and_set(&cc->pin, NULL);
+
+    if (pin)
+        (*env)->DeleteGlobalRef(env, pin);
+}
+
 static
 void callbackCtxCleanup(CallbackContext* cc, JNIEnv* env)
 {
     assert(cc);
 
+    callbackCtxUnpin(cc, env);
     if (cc->clazz)
         (*env)->DeleteGlobalRef(env, cc->clazz);
     if (cc->object)
-        (*env)->DeleteGlobalRef(env, cc->object);
+        (*env)->DeleteWeakGlobalRef(env, cc->object);
     if (cc->handler)
         (*env)->DeleteGlobalRef(env, cc->handler);
     free(cc);
@@ -103,11 +127,15 @@ static
 void stateChangedCallback(ElaFileTransfer *filetransfer,
                           FileTransferConnection state, void *context)
 {
+    traceScope("onFileTransferStateChanged");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jobject jstate;
 
+    traceState("fileTransferState", state);
+
     assert(filetransfer);
     assert(context);
 
@@ -122,11 +150,16 @@ void stateChangedCallback(ElaFileTransfer *filetransfer,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onStateChanged",
-                        "("_F("FileTransfer;")_F("FileTransferState;)V"),
-                        cc->object, jstate)) {
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (jfileTransfer &&
+        !callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onStateChanged,
+                            jfileTransfer, jstate)) {
         logE("Call java callback 'void onStateChanged(FileTransfer, FileTransferState) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
+
+    if (state == FileTransferConnection_closed || state == FileTransferConnection_failed)
+        callbackCtxUnpin(cc, env);
 
     (*env)->DeleteLocalRef(env, jstate);
     detachJvm(env, needDetach);
@@ -136,9 +169,11 @@ static
 void fileCallback(ElaFileTransfer *filetransfer, const char *fileid,
                   const char *filename, uint64_t size, void *context)
 {
+    traceScope("onFileRequest");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jstring jfileid, jfilename;
     jboolean jresult;
 
@@ -169,11 +204,13 @@ void fileCallback(ElaFileTransfer *filetransfer, const char *fileid,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onFileRequest",
-                        "("_F("FileTransfer;")_J("String;")_J("String;J)V"),
-                        cc->object, jfileid, jfilename, (jlong)size)) {
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (jfileTransfer &&
+        !callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onFileRequest,
+                            jfileTransfer, jfileid, jfilename, (jlong)size)) {
         logE("Call java callback 'void onFileRequest(FileTransfer, FileTransferState) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
 
     (*env)->DeleteLocalRef(env, jfileid);
     (*env)->DeleteLocalRef(env, jfilename);
@@ -184,9 +221,11 @@ static
 void pullCallback(ElaFileTransfer *filetransfer, const char *fileid,
                   uint64_t offset, void *context)
 {
+    traceScope("onPullRequest");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jstring jfileid;
 
     assert(filetransfer);
@@ -206,11 +245,13 @@ void pullCallback(ElaFileTransfer *filetransfer, const char *fileid,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onPullRequest",
-                        "("_F("FileTransfer;")_J("String;J)V"),
-                        cc->object, jfileid, (jlong)offset)) {
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (jfileTransfer &&
+        !callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onPullRequest,
+                            jfileTransfer, jfileid, (jlong)offset)) {
         logE("Call java callback 'void onPullRequest(FileTransfer, String, long) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
 
     (*env)->DeleteLocalRef(env, jfileid);
     detachJvm(env, needDetach);
@@ -220,9 +261,11 @@ static
 bool dataCallback(ElaFileTransfer *filetransfer, const char *fileid,
                   const uint8_t *data, size_t length, void *context)
 {
+    traceScope("onData");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jstring jfileid;
     jboolean jresult;
     jbyteArray jdata;
@@ -233,6 +276,8 @@ bool dataCallback(ElaFileTransfer *filetransfer, const char *fileid,
     assert(length);
     assert(context);
 
+    carrierActivity();
+
     env = attachJvm(&needDetach);
     if (!env) {
         logE("Attach JVM error");
@@ -254,17 +299,19 @@ bool dataCallback(ElaFileTransfer *filetransfer, const char *fileid,
     }
     (*env)->SetByteArrayRegion(env, jdata, 0, (jsize)length, (const jbyte *)data);
 
-    if (!length) {
-        if (!callVoidMethod(env, cc->clazz, cc->handler, "onDataFinished",
-                            "("_F("FileTransfer;")_J("String;)V"),
-                            cc->object, jfileid))
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (!jfileTransfer) {
+        jresult = JNI_FALSE;
+    } else if (!length) {
+        if (!callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onDataFinished,
+                                jfileTransfer, jfileid))
             logE("Call java callback 'void onDataFinished(FileTransfer, String) error");
         jresult = JNI_FALSE;
-    } else if (!callBooleanMethod(env, cc->clazz, cc->handler, "onData",
-                                  "("_F("FileTransfer;")_J("String;[B)Z"),
-                                  &jresult, cc->object, jfileid, jdata)) {
+    } else if (!callBooleanMethodById(env, cc->handler, gJniCache.fileTransferHandler.onData,
+                                      &jresult, jfileTransfer, jfileid, jdata)) {
         logE("Call java callback 'bool onData(FileTransfer, String, byte[]) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
 
     (*env)->DeleteLocalRef(env, jfileid);
     (*env)->DeleteLocalRef(env, jdata);
@@ -276,9 +323,11 @@ static
 void pendingCallback(ElaFileTransfer *filetransfer, const char *fileid,
                      void *context)
 {
+    traceScope("onPending");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jstring jfileid;
 
     assert(filetransfer);
@@ -298,11 +347,13 @@ void pendingCallback(ElaFileTransfer *filetransfer, const char *fileid,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onPending",
-                        "("_F("FileTransfer;")_J("String;)V"),
-                        cc->object, jfileid)) {
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (jfileTransfer &&
+        !callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onPending,
+                            jfileTransfer, jfileid)) {
         logE("Call java callback 'void onPending(FileTransfer, String) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
 
     (*env)->DeleteLocalRef(env, jfileid);
     detachJvm(env, needDetach);
@@ -312,9 +363,11 @@ static
 void resumeCallback(ElaFileTransfer *filetransfer, const char *fileid,
                     void *context)
 {
+    traceScope("onResume");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jstring jfileid;
 
     assert(filetransfer);
@@ -334,11 +387,13 @@ void resumeCallback(ElaFileTransfer *filetransfer, const char *fileid,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onResume",
-                        "("_F("FileTransfer;")_J("String;)V"),
-                        cc->object, jfileid)) {
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (jfileTransfer &&
+        !callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onResume,
+                            jfileTransfer, jfileid)) {
         logE("Call java callback 'void onResume(FileTransfer, String) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
 
     (*env)->DeleteLocalRef(env, jfileid);
     detachJvm(env, needDetach);
@@ -348,9 +403,11 @@ static
 void cancelCallback(ElaFileTransfer *filetransfer, const char *fileid,
                     int status, const char *reason, void *context)
 {
+    traceScope("onCancel");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
+    jobject jfileTransfer;
     jstring jfileid;
     jstring jreason;
 
@@ -380,11 +437,13 @@ void cancelCallback(ElaFileTransfer *filetransfer, const char *fileid,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onCancel",
-                        "("_F("FileTransfer;")_J("String;I")_J("String;)V"),
-                        cc->object, jfileid, (jint)status, jreason)) {
+    jfileTransfer = (*env)->NewLocalRef(env, cc->object);
+    if (jfileTransfer &&
+        !callVoidMethodById(env, cc->handler, gJniCache.fileTransferHandler.onCancel,
+                            jfileTransfer, jfileid, (jint)status, jreason)) {
         logE("Call java callback void onCancel(FileTransfer, String, int, String) error");
     }
+    (*env)->DeleteLocalRef(env, jfileTransfer);
 
     (*env)->DeleteLocalRef(env, jfileid);
     (*env)->DeleteLocalRef(env, jreason);
@@ -430,6 +489,18 @@ void close(JNIEnv* env, jobject thiz)
     callbackCtxCleanup(cc, env);
 }
 
+static
+void release(JNIEnv* env, jclass clazz, jlong jfiletransfer, jlong jcontext)
+{
+    CallbackContext *cc = (CallbackContext *)(intptr_t)jcontext;
+
+    (void)clazz;
+    assert(cc);
+
+    ela_filetransfer_close((ElaFileTransfer *)(intptr_t)jfiletransfer);
+    callbackCtxCleanup(cc, env);
+}
+
 static
 jstring getFileId(JNIEnv* env, jobject thiz, jstring jfilename)
 {
@@ -550,6 +621,7 @@ jboolean addFile(JNIEnv* env, jobject thiz, jobject jfileinfo)
 static
 jboolean pullData(JNIEnv* env, jobject thiz, jstring jfileid, jlong offset)
 {
+    traceScope("native_pull");
     int rc;
     const char *fileid;
 
@@ -573,10 +645,10 @@ jboolean pullData(JNIEnv* env, jobject thiz, jstring jfileid, jlong offset)
 static
 jint sendData(JNIEnv* env, jobject thiz, jstring jfileid, jbyteArray jdata, jint joffset, jint jlen)
 {
+    traceScope("native_send");
     int rc;
     const char *fileid;
     jbyte *data;
-    jsize len;
 
     assert(jfileid);
     assert(jdata);
@@ -584,18 +656,20 @@ jint sendData(JNIEnv* env, jobject thiz, jstring jfileid, jbyteArray jdata, jint
     fileid = (*env)->GetStringUTFChars(env, jfileid, NULL);
     if (!fileid) {
         setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
-        return -1;
+        return ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING);
     }
 
-    len = (*env)->GetArrayLength(env, jdata);
     data = (*env)->GetByteArrayElements(env, jdata, NULL);
 
+    carrierActivity();
     rc = ela_filetransfer_send(getFileTransfer(env, thiz), fileid, (const uint8_t *)(data + joffset), (size_t)jlen);
     (*env)->ReleaseStringUTFChars(env, jfileid, fileid);
-    (*env)->ReleaseByteArrayElements(env, jdata, data, 0);
+    (*env)->ReleaseByteArrayElements(env, jdata, data, JNI_ABORT);
 
+    // The error code goes back inline, it is negative as an int.
     if (rc < 0) {
-        setErrorCode(ela_get_error());
+        rc = ela_get_error();
+        setErrorCode(rc);
     }
 
     return (jint)rc;
@@ -759,6 +833,7 @@ static const char* gClassName = "org/elastos/carrier/filetransfer/FileTransfer";
 static JNINativeMethod gMethods[] = {
     {"generate_fileId",  "()"_J("String;"),                (void*)generateFileid},
     {"native_close",     "()V",                            (void*)close         },
+    {"native_release",   "(JJ)V",                          (void*)release       },
     {"get_fileId",       "("_J("String;)")_J("String;"),   (void*)getFileId     },
     {"get_filename",     "("_J("String;)")_J("String;"),   (void*)getFileName   },
     {"native_connect",   "()Z",                            (void*)connect       },
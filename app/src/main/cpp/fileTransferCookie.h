@@ -27,32 +27,33 @@
 #include <stdint.h>
 #include <ela_filetransfer.h>
 
-#include "utilsExt.h"
+#include "jniCache.h"
 
 static inline
 ElaFileTransfer* getFileTransfer(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "nativeCookie", &ctxt) ? (ElaFileTransfer*)ctxt : NULL;
+    return thiz ? (ElaFileTransfer*)(intptr_t) \
+           (*env)->GetLongField(env, thiz, gJniCache.fields.fileTransferCookie) : NULL;
 }
 
 static inline
 void setFileTransferCookie(JNIEnv* env, jobject thiz, ElaFileTransfer* filetransfer)
 {
-    setLongField(env, thiz, "nativeCookie", (uint64_t)filetransfer);
+    (*env)->SetLongField(env, thiz, gJniCache.fields.fileTransferCookie,
+                         (jlong)(intptr_t)filetransfer);
 }
 
 static inline
 void* getFileTransferContext(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "nativeContext", &ctxt) ? (void *)ctxt : NULL;
+    return thiz ? (void*)(intptr_t) \
+           (*env)->GetLongField(env, thiz, gJniCache.fields.fileTransferContext) : NULL;
 }
 
 static inline
 void setFileTransferContext(JNIEnv* env, jobject thiz, void* cc)
 {
-    setLongField(env, thiz, "nativeContext", (uint64_t)cc);
+    (*env)->SetLongField(env, thiz, gJniCache.fields.fileTransferContext, (jlong)(intptr_t)cc);
 }
 
-#endif //_FILE_TRANSFER_COOKIE_H__
\ No newline at end of file
+#endif //_FILE_TRANSFER_COOKIE_H__
@@ -31,6 +31,8 @@
 #include "utils.h"
 #include "carrierCookie.h"
 #include "fileTransferUtils.h"
+#include "jniCache.h"
+#include "trace.h"
 
 typedef struct CallbackContext {
     JNIEnv* env;
@@ -48,6 +50,7 @@ static
 void onFileTransferRequestCallback(ElaCarrier *carrier, const char *from,
                                    const ElaFileTransferInfo *fileinfo, void *context)
 {
+    traceScope("onConnectRequest");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     int rc;
@@ -81,9 +84,8 @@ void onFileTransferRequestCallback(ElaCarrier *carrier, const char *from,
         }
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onConnectRequest",
-                        "("_W("Carrier;")_J("String;")_F("FileTransferInfo;)V"),
-                        cc->carrier, jfrom, jfileInfo)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.fileTransferManagerHandler.method,
+                            cc->carrier, jfrom, jfileInfo)) {
         logE("Can not call method:\n\tvoid onConnectRequest(Carrier, String, FileTransferInfo)");
     }
 
@@ -27,6 +27,7 @@
 
 #include "log.h"
 #include "utilsExt.h"
+#include "jniCache.h"
 
 int newNativeFileTransferInfo(JNIEnv* env, const jobject jfileinfo, ElaFileTransferInfo* fileinfo)
 {
@@ -52,16 +53,9 @@ int newNativeFileTransferInfo(JNIEnv* env, const jobject jfileinfo, ElaFileTrans
 
 int newJavaFileTransferState(JNIEnv* env, FileTransferConnection state, jobject* jstate)
 {
-    const char* clazzName = "org/elastos/carrier/filetransfer/FileTransferState";
-    jclass clazz = findClass(env, clazzName);
-    if (!clazz) {
-        logE("Java enum 'FileTransferState' not found");
-        return 0;
-    }
-
-    const char* signature = "(I)"_F("FileTransferState;");
     jobject jobj = NULL;
-    int result = callStaticObjectMethod(env, clazz, "valueOf", signature, &jobj, state);
+    int result = callStaticObjectMethodById(env, gJniCache.fileTransferState.clazz, gJniCache.fileTransferState.method,
+                                            &jobj, state);
     if (!result) {
         logE("Call static method 'valueof' of FileTransferState error");
         return 0;
@@ -103,24 +97,14 @@ int newJavaFileTransfer(JNIEnv* env, jobject* jFileTransfer)
 
 int newJavaFileTransferInfo(JNIEnv* env, const ElaFileTransferInfo* fileinfo, jobject* jFileTransferInfo)
 {
-    const char* clazzName = "org/elastos/carrier/filetransfer/FileTransferInfo";
     jclass clazz;
     jmethodID ctor;
     jobject jobj;
     jstring jfilename, jfileid;
     int rc;
 
-    clazz = (*env)->FindClass(env, clazzName);
-    if (!clazz) {
-        logE("Java class 'FileTransferInfo' not found");
-        return 0;
-    }
-
-    ctor = (*env)->GetMethodID(env, clazz, "<init>", "("_J("String;")_J("String;")"J)V");
-    if (!ctor) {
-        logE("Constructor GroupPeerInfo() not found");
-        return 0;
-    }
+    clazz = gJniCache.fileTransferInfo.clazz;
+    ctor = gJniCache.fileTransferInfo.method;
 
     jfilename = (*env)->NewStringUTF(env, fileinfo->filename);
     if (!jfilename)
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#include <jni.h>
+#include <assert.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <pthread.h>
+#include <ela_carrier.h>
+#include "log.h"
+#include "utils.h"
+#include "friendInvite.h"
+#include "jniCache.h"
+#include "trace.h"
+
+#define TIMEOUT_REASON  "Timeout"
+
+/*
+ * Invites are added from any java thread, responses and deadlines are
+ * handled on the carrier thread. All invites share the same timeout, so
+ * the list is kept in deadline order by appending at its tail.
+ */
+static pthread_mutex_t gInviteLock = PTHREAD_MUTEX_INITIALIZER;
+
+static
+uint64_t nowMillis(void)
+{
+    struct timespec now;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (uint64_t)now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+uint32_t friendInviteAdd(HandlerContext* hc, JNIEnv* env, const char* to, jobject jhandler)
+{
+    FriendInvite* fi;
+
+    assert(hc);
+    assert(to);
+    assert(jhandler);
+
+    fi = (FriendInvite*)calloc(1, sizeof(FriendInvite));
+    if (!fi) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+        return 0;
+    }
+
+    fi->to = strdup(to);
+    if (!fi->to) {
+        free(fi);
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+        return 0;
+    }
+
+    fi->handler = (*env)->NewGlobalRef(env, jhandler);
+    if (!fi->handler) {
+        free(fi->to);
+        free(fi);
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+        return 0;
+    }
+
+    pthread_mutex_lock(&gInviteLock);
+    if (hc->maxInvites > 0 && hc->inviteCount >= hc->maxInvites) {
+        pthread_mutex_unlock(&gInviteLock);
+        logE("Too many pending friend invites (%d)", hc->inviteCount);
+        friendInviteFree(fi, env);
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LIMIT_EXCEEDED));
+        return 0;
+    }
+
+    // Zero is never used, it stands for no invite.
+    if (++hc->lastInviteId == 0)
+        ++hc->lastInviteId;
+    fi->id = hc->lastInviteId;
+    fi->deadline = nowMillis() + (uint64_t)hc->inviteTimeout;
+
+    if (hc->invitesTail)
+        hc->invitesTail->next = fi;
+    else
+        hc->invites = fi;
+    hc->invitesTail = fi;
+    hc->inviteCount++;
+    pthread_mutex_unlock(&gInviteLock);
+
+    return fi->id;
+}
+
+static
+FriendInvite* unlinkInvite(HandlerContext* hc, FriendInvite* prev, FriendInvite* fi)
+{
+    if (prev)
+        prev->next = fi->next;
+    else
+        hc->invites = fi->next;
+
+    if (hc->invitesTail == fi)
+        hc->invitesTail = prev;
+
+    hc->inviteCount--;
+    fi->next = NULL;
+    return fi;
+}
+
+FriendInvite* friendInviteRemove(HandlerContext* hc, uint32_t id)
+{
+    FriendInvite* prev = NULL;
+    FriendInvite* fi;
+
+    pthread_mutex_lock(&gInviteLock);
+    for (fi = hc->invites; fi; prev = fi, fi = fi->next) {
+        if (fi->id == id) {
+            unlinkInvite(hc, prev, fi);
+            break;
+        }
+    }
+    pthread_mutex_unlock(&gInviteLock);
+
+    return fi;
+}
+
+void friendInviteFree(FriendInvite* fi, JNIEnv* env)
+{
+    if (fi->handler)
+        (*env)->DeleteGlobalRef(env, fi->handler);
+    free(fi->to);
+    free(fi);
+}
+
+static
+void deliverTimeout(JNIEnv* env, FriendInvite* fi)
+{
+    jstring jto;
+    jstring jreason;
+
+    jto = (*env)->NewStringUTF(env, fi->to);
+    jreason = (*env)->NewStringUTF(env, TIMEOUT_REASON);
+    if (!jto || !jreason) {
+        logE("New Java String object error");
+        goto cleanup;
+    }
+
+    if (!callVoidMethodById(env, fi->handler, gJniCache.friendInviteResponseHandler.method,
+                            jto, ELA_STATUS_TIMEOUT, jreason, NULL)) {
+        logE("Call method 'void onReceived(String, int, String, String)' error");
+    }
+
+cleanup:
+    if (jto) (*env)->DeleteLocalRef(env, jto);
+    if (jreason) (*env)->DeleteLocalRef(env, jreason);
+}
+
+void friendInvitesExpire(HandlerContext* hc)
+{
+    FriendInvite* fi;
+    uint64_t now;
+
+    // Unlocked peek, the head only changes on this thread or gets added to.
+    if (!hc->invites)
+        return;
+
+    now = nowMillis();
+    for (;;) {
+        pthread_mutex_lock(&gInviteLock);
+        fi = hc->invites;
+        if (!fi || fi->deadline > now) {
+            pthread_mutex_unlock(&gInviteLock);
+            break;
+        }
+        unlinkInvite(hc, NULL, fi);
+        pthread_mutex_unlock(&gInviteLock);
+
+        traceScope("onFriendInviteTimeout");
+        logD("Friend invite %u to %s timed out", fi->id, fi->to);
+        deliverTimeout(hc->env, fi);
+        friendInviteFree(fi, hc->env);
+    }
+}
+
+int friendInvitesCount(HandlerContext* hc)
+{
+    return hc->inviteCount;
+}
+
+void friendInvitesCleanup(HandlerContext* hc, JNIEnv* env)
+{
+    FriendInvite* fi;
+
+    pthread_mutex_lock(&gInviteLock);
+    fi = hc->invites;
+    hc->invites = NULL;
+    hc->invitesTail = NULL;
+    hc->inviteCount = 0;
+    pthread_mutex_unlock(&gInviteLock);
+
+    while (fi) {
+        FriendInvite* next = fi->next;
+        friendInviteFree(fi, env);
+        fi = next;
+    }
+}
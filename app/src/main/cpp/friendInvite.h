@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#ifndef __JNI_FRIEND_INVITE_H__
+#define __JNI_FRIEND_INVITE_H__
+
+#include <jni.h>
+#include <stdint.h>
+#include "carrierHandler.h"
+
+/*
+ * Outstanding friend invites of a carrier node. Each invite holds a global
+ * ref to its java response handler until the response arrives, or until its
+ * deadline passes and the handler gets a timeout response. The carrier only
+ * sees the invite id as callback context, so late responses are dropped.
+ */
+typedef struct FriendInvite {
+    struct FriendInvite* next;
+    uint32_t id;
+    uint64_t deadline;
+    jobject handler;
+    char* to;
+} FriendInvite;
+
+/* Returns the new invite id, or 0 with the error code set */
+uint32_t friendInviteAdd(HandlerContext* hc, JNIEnv* env, const char* to, jobject jhandler);
+
+/* Unlinks the invite, the caller owns it then. NULL if already expired */
+FriendInvite* friendInviteRemove(HandlerContext* hc, uint32_t id);
+
+void friendInviteFree(FriendInvite* fi, JNIEnv* env);
+
+/* Called from the run loop, delivers timeout responses past deadline */
+void friendInvitesExpire(HandlerContext* hc);
+
+int friendInvitesCount(HandlerContext* hc);
+
+void friendInvitesCleanup(HandlerContext* hc, JNIEnv* env);
+
+#endif // __JNI_FRIEND_INVITE_H__
@@ -29,8 +29,10 @@
 #include "log.h"
 #include "utils.h"
 #include "carrierUtils.h"
-//#include "carrierHandler.h"
+#include "carrierHandler.h"
 #include "carrierCookie.h"
+#include "jniCache.h"
+#include "trace.h"
 
 static
 jstring newGroup(JNIEnv* env, jclass clazz, jobject carrier)
@@ -159,9 +161,11 @@ jstring groupJoin(JNIEnv* env, jclass clazz, jobject carrier, jstring jfriendid,
     return jgroupid;
 }
 
+/* Returns 0, or the carrier error code as a negative int */
 static
-jboolean groupSendMessage(JNIEnv* env, jobject thiz, jobject carrier, jstring jgroupid, jbyteArray jmsg)
+jint groupSendMessage(JNIEnv* env, jobject thiz, jobject carrier, jstring jgroupid, jbyteArray jmsg)
 {
+    traceScope("group_send_message");
     const char *groupid;
     jbyte *msg;
     jsize len;
@@ -174,7 +178,7 @@ jboolean groupSendMessage(JNIEnv* env, jobject thiz, jobject carrier, jstring jg
     groupid = (*env)->GetStringUTFChars(env, jgroupid, NULL);
     if (!groupid) {
         setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
-        return JNI_FALSE;
+        return ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY);
     }
 
     msg = (*env)->GetByteArrayElements(env, jmsg, NULL);
@@ -182,14 +186,17 @@ jboolean groupSendMessage(JNIEnv* env, jobject thiz, jobject carrier, jstring jg
     assert(msg);
     assert(len);
 
+    carrierActivity();
     rc = ela_group_send_message(getCarrier(env, carrier), groupid, msg, (size_t)len);
+    (*env)->ReleaseByteArrayElements(env, jmsg, msg, JNI_ABORT);
     (*env)->ReleaseStringUTFChars(env, jgroupid, groupid);
     if (rc < 0) {
         logE("Call ela_group_send_message API error");
-        setErrorCode(ela_get_error());
-        return JNI_FALSE;
+        rc = ela_get_error();
+        setErrorCode(rc);
+        return rc;
     }
-    return JNI_TRUE;
+    return 0;
 }
 
 static
@@ -281,9 +288,8 @@ bool groupPeerIteratedCallback(const ElaGroupPeer *peer, void *context)
         }
     }
 
-    rc = callBooleanMethod(env, NULL, jiterator, "onIterated",
-                       "("_W("Group$PeerInfo;")_J("Object;)Z"),
-                       &result, jpeerInfo, jcontext);
+    rc = callBooleanMethodById(env, jiterator, gJniCache.groupPeersIterator.method,
+                               &result, jpeerInfo, jcontext);
     (*env)->DeleteLocalRef(env, jpeerInfo);
     if (!rc) {
         logE("Call method boolean onIterated(GroupPeerInfo, Object) error");
@@ -379,6 +385,91 @@ jobject groupGetPeer(JNIEnv* env, jobject thiz, jobject carrier, jstring jgroupi
     return jpeerInfo;
 }
 
+typedef struct GroupIds {
+    char (*ids)[ELA_MAX_ID_LEN + 1];
+    int count;
+    int capacity;
+    int error;
+} GroupIds;
+
+static
+bool groupsIteratedCallback(const char* groupid, void* context)
+{
+    GroupIds* gids = (GroupIds*)context;
+
+    if (!groupid)
+        return false;
+
+    if (gids->count == gids->capacity) {
+        int capacity = gids->capacity ? gids->capacity * 2 : 8;
+        void* ids = realloc(gids->ids, sizeof(gids->ids[0]) * capacity);
+        if (!ids) {
+            gids->error = 1;
+            return false;
+        }
+        gids->ids = ids;
+        gids->capacity = capacity;
+    }
+
+    strncpy(gids->ids[gids->count], groupid, ELA_MAX_ID_LEN);
+    gids->ids[gids->count][ELA_MAX_ID_LEN] = 0;
+    gids->count++;
+    return true;
+}
+
+static
+jobjectArray getGroups(JNIEnv* env, jclass clazz, jobject carrier)
+{
+    GroupIds gids;
+    jclass stringClazz;
+    jobjectArray jgroupids = NULL;
+    int rc;
+    int i;
+
+    (void)clazz;
+
+    memset(&gids, 0, sizeof(gids));
+    rc = ela_get_groups(getCarrier(env, carrier), groupsIteratedCallback, &gids);
+    if (rc < 0) {
+        logE("Call ela_get_groups API error");
+        setErrorCode(ela_get_error());
+        goto cleanup;
+    }
+    if (gids.error) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+        goto cleanup;
+    }
+
+    stringClazz = (*env)->FindClass(env, "java/lang/String");
+    if (!stringClazz) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+        goto cleanup;
+    }
+
+    jgroupids = (*env)->NewObjectArray(env, gids.count, stringClazz, NULL);
+    (*env)->DeleteLocalRef(env, stringClazz);
+    if (!jgroupids) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+        goto cleanup;
+    }
+
+    for (i = 0; i < gids.count; i++) {
+        jstring jgroupid = (*env)->NewStringUTF(env, gids.ids[i]);
+        if (!jgroupid) {
+            (*env)->DeleteLocalRef(env, jgroupids);
+            jgroupids = NULL;
+            setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+            goto cleanup;
+        }
+        (*env)->SetObjectArrayElement(env, jgroupids, i, jgroupid);
+        (*env)->DeleteLocalRef(env, jgroupid);
+    }
+
+cleanup:
+    free(gids.ids);
+    return jgroupids;
+}
+
 static
 jint getErrorCode(JNIEnv* env, jclass clazz)
 {
@@ -396,7 +487,7 @@ static JNINativeMethod gGroupMethods[] = {
                                                                     (void*)groupInvite      },
         {"group_join",         "("_W("Carrier;")_J("String;")"[B)"_J("String;"),
                                                                     (void*)groupJoin        },
-        {"group_send_message", "("_W("Carrier;")_J("String;[B)Z"),  (void*)groupSendMessage },
+        {"group_send_message", "("_W("Carrier;")_J("String;[B)I"),  (void*)groupSendMessage },
         {"group_get_title",    "("_W("Carrier;")_J("String;)")_J("String;"),
                                                                     (void*)groupGetTitle    },
         {"group_set_title",    "("_W("Carrier;")_J("String;")_J("String;)Z"),
@@ -405,6 +496,7 @@ static JNINativeMethod gGroupMethods[] = {
                                                                     (void*)groupGetPeers    },
         {"group_get_peer",     "("_W("Carrier;")_J("String;")_J("String;)")_W("Group$PeerInfo;"),
                                                                     (void*)groupGetPeer     },
+        {"get_groups",         "("_W("Carrier;)[")_J("String;"),    (void*)getGroups        },
         {"get_error_code",     "()I",                               (void*)getErrorCode     }
 };
 
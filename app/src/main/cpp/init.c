@@ -26,6 +26,8 @@
 #include "utils.h"
 #include "ela_session.h"
 #include "ela_filetransfer.h"
+#include "jniCache.h"
+#include "carrierId.h"
 
 extern int registerCarrierMethods(JNIEnv* env);
 extern int registerCarrierGroupMethods(JNIEnv* env);
@@ -34,6 +36,7 @@ extern int registerCarrierSessionMethods(JNIEnv* env);
 extern int registerCarrierStreamMethods(JNIEnv* env);
 extern int registerCarrierFileTransferMethods(JNIEnv* env);
 extern int registerCarrierFileTransferManagerMethods(JNIEnv* env);
+extern int registerCarrierTraceMethods(JNIEnv* env);
 
 extern void unregisterCarrierMethods(JNIEnv* env);
 extern void unregisterCarrierGroupMethods(JNIEnv* env);
@@ -42,6 +45,7 @@ extern void unregisterCarrierSessionMethods(JNIEnv* env);
 extern void unregisterCarrierStreamMethods(JNIEnv* env);
 extern void unregisterCarrierFileTransferMethods(JNIEnv* env);
 extern void unregisterCarrierFileTransferManagerMethods(JNIEnv* env);
+extern void unregisterCarrierTraceMethods(JNIEnv* env);
 
 static jclass gClazzLoader = NULL;
 
@@ -100,7 +104,8 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved)
         (registerCarrierSessionMethods(env) != JNI_TRUE) ||
         (registerCarrierStreamMethods(env) != JNI_TRUE) ||
         (registerCarrierFileTransferManagerMethods(env) != JNI_TRUE) ||
-        (registerCarrierFileTransferMethods(env) != JNI_TRUE)) {
+        (registerCarrierFileTransferMethods(env) != JNI_TRUE) ||
+        (registerCarrierTraceMethods(env) != JNI_TRUE)) {
         logE("Register all native methods error");
         return -1;
     }
@@ -110,6 +115,12 @@ jint JNI_OnLoad(JavaVM* vm, void* reserved)
         return -1;
     }
 
+    if (jniCacheInit(env) < 0) {
+        logE("Cache java upcall methods error");
+        cleanupClassLoader(env);
+        return -1;
+    }
+
     setJvm(vm);
 
     ela_session_jni_onload(vm, reserved);
@@ -129,6 +140,8 @@ void JNI_OnUnload(JavaVM* vm, void* reserved)
         return;
     }
 
+    carrierIdsCleanup(env);
+    jniCacheCleanup(env);
     cleanupClassLoader(env);
 
     unregisterCarrierSessionManagerMethods(env);
@@ -138,5 +151,6 @@ void JNI_OnUnload(JavaVM* vm, void* reserved)
     unregisterCarrierMethods(env);
     unregisterCarrierFileTransferManagerMethods(env);
     unregisterCarrierFileTransferMethods(env);
+    unregisterCarrierTraceMethods(env);
 }
 
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#include <jni.h>
+#include <string.h>
+#include "log.h"
+#include "utils.h"
+#include "jniCache.h"
+
+#define _C(type)  "org/elastos/carrier/"type
+#define _CS(type) "org/elastos/carrier/session/"type
+#define _CF(type) "org/elastos/carrier/filetransfer/"type
+
+JniCache gJniCache;
+
+static
+jclass cacheClass(JNIEnv* env, const char* className)
+{
+    jclass lclazz;
+    jclass gclazz;
+
+    lclazz = (*env)->FindClass(env, className);
+    if (!lclazz) {
+        logE("Java class '%s' not found", className);
+        return NULL;
+    }
+
+    gclazz = (*env)->NewGlobalRef(env, lclazz);
+    (*env)->DeleteLocalRef(env, lclazz);
+    if (!gclazz)
+        logE("New global reference to class '%s' error", className);
+
+    return gclazz;
+}
+
+static
+int cacheMethod(JNIEnv* env, jclass clazz, const char* methodName, const char* sig,
+                jmethodID* method)
+{
+    *method = (*env)->GetMethodID(env, clazz, methodName, sig);
+    if (!*method) {
+        logE("Get method %s with signature:%s error", methodName, sig);
+        return 0;
+    }
+    return 1;
+}
+
+static
+int cacheStaticMethod(JNIEnv* env, jclass clazz, const char* methodName, const char* sig,
+                      jmethodID* method)
+{
+    *method = (*env)->GetStaticMethodID(env, clazz, methodName, sig);
+    if (!*method) {
+        logE("Get static method %s with signature:%s error", methodName, sig);
+        return 0;
+    }
+    return 1;
+}
+
+static
+int cacheMethodIds(JNIEnv* env, MethodIds* ids, const char* className,
+                   const char* methodName, const char* sig, int isStatic)
+{
+    ids->clazz = cacheClass(env, className);
+    if (!ids->clazz)
+        return 0;
+
+    return isStatic ? cacheStaticMethod(env, ids->clazz, methodName, sig, &ids->method) :
+                      cacheMethod(env, ids->clazz, methodName, sig, &ids->method);
+}
+
+static
+int cacheField(JNIEnv* env, const char* className, const char* fieldName, const char* sig,
+               jfieldID* field)
+{
+    jclass clazz;
+
+    clazz = (*env)->FindClass(env, className);
+    if (!clazz) {
+        logE("Java class '%s' not found", className);
+        return 0;
+    }
+
+    *field = (*env)->GetFieldID(env, clazz, fieldName, sig);
+    (*env)->DeleteLocalRef(env, clazz);
+    if (!*field) {
+        logE("Get field %s with signature:%s error", fieldName, sig);
+        return 0;
+    }
+    return 1;
+}
+
+static
+int cacheCookieFields(JNIEnv* env, CookieFieldIds* ids)
+{
+    return cacheField(env, _C("Carrier"), "nativeCookie", "J", &ids->carrierCookie) &&
+           cacheField(env, _CS("Session"), "nativeCookie", "J", &ids->sessionCookie) &&
+           cacheField(env, _CS("Stream"), "nativeCookie", "J", &ids->streamSession) &&
+           cacheField(env, _CS("Stream"), "contextCookie", "J", &ids->streamContext) &&
+           cacheField(env, _CS("Stream"), "streamId", "I", &ids->streamId) &&
+           cacheField(env, _CF("FileTransfer"), "nativeCookie", "J", &ids->fileTransferCookie) &&
+           cacheField(env, _CF("FileTransfer"), "nativeContext", "J", &ids->fileTransferContext);
+}
+
+static
+int cacheCarrierCallbacks(JNIEnv* env, CarrierCallbacksIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, _C("Carrier$Callbacks"));
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "onIdle", "("_W("Carrier;)V"), &ids->onIdle) &&
+           cacheMethod(env, clazz, "onConnection",
+                       "("_W("Carrier;")_W("ConnectionStatus;)V"), &ids->onConnection) &&
+           cacheMethod(env, clazz, "onReady", "("_W("Carrier;)V"), &ids->onReady) &&
+           cacheMethod(env, clazz, "onSelfInfoChanged",
+                       "("_W("Carrier;")_W("UserInfo;)V"), &ids->onSelfInfoChanged) &&
+           cacheMethod(env, clazz, "onFriendsIterated",
+                       "("_W("Carrier;")_W("FriendInfo;)Z"), &ids->onFriendsIterated) &&
+           cacheMethod(env, clazz, "onFriendConnection",
+                       "("_W("Carrier;")_W("CarrierId;")_W("ConnectionStatus;)V"),
+                       &ids->onFriendConnection) &&
+           cacheMethod(env, clazz, "onFriendInfoChanged",
+                       "("_W("Carrier;")_W("CarrierId;")_W("FriendInfo;)V"),
+                       &ids->onFriendInfoChanged) &&
+           cacheMethod(env, clazz, "onFriendPresence",
+                       "("_W("Carrier;")_W("CarrierId;")_W("PresenceStatus;)V"),
+                       &ids->onFriendPresence) &&
+           cacheMethod(env, clazz, "onFriendRequest",
+                       "("_W("Carrier;")_J("String;")_W("UserInfo;")_J("String;)V"),
+                       &ids->onFriendRequest) &&
+           cacheMethod(env, clazz, "onFriendAdded",
+                       "("_W("Carrier;")_W("FriendInfo;)V"), &ids->onFriendAdded) &&
+           cacheMethod(env, clazz, "onFriendRemoved",
+                       "("_W("Carrier;")_W("CarrierId;)V"), &ids->onFriendRemoved) &&
+           cacheMethod(env, clazz, "onFriendMessage",
+                       "("_W("Carrier;")_W("CarrierId;[B)V"), &ids->onFriendMessage) &&
+           cacheMethod(env, clazz, "onFriendInviteRequest",
+                       "("_W("Carrier;")_J("String;")_J("String;)V"),
+                       &ids->onFriendInviteRequest) &&
+           cacheMethod(env, clazz, "onGroupInvite",
+                       "("_W("Carrier;")_W("CarrierId;[B)V"), &ids->onGroupInvite) &&
+           cacheMethod(env, clazz, "onGroupConnected",
+                       "("_W("Carrier;")_J("String;)V"), &ids->onGroupConnected) &&
+           cacheMethod(env, clazz, "onGroupMessage",
+                       "("_W("Carrier;")_J("String;")_W("CarrierId;[B)V"), &ids->onGroupMessage) &&
+           cacheMethod(env, clazz, "onGroupTitle",
+                       "("_W("Carrier;")_J("String;")_J("String;")_J("String;)V"),
+                       &ids->onGroupTitle) &&
+           cacheMethod(env, clazz, "onPeerName",
+                       "("_W("Carrier;")_J("String;")_J("String;")_J("String;)V"),
+                       &ids->onPeerName) &&
+           cacheMethod(env, clazz, "onPeerListChanged",
+                       "("_W("Carrier;")_J("String;)V"), &ids->onPeerListChanged);
+}
+
+static
+int cacheStreamHandler(JNIEnv* env, StreamHandlerIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, _CS("StreamHandler"));
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "onStateChanged",
+                       "("_S("Stream;")_S("StreamState;)V"), &ids->onStateChanged) &&
+           cacheMethod(env, clazz, "onStreamData",
+                       "("_S("Stream;[B)V"), &ids->onStreamData) &&
+           cacheMethod(env, clazz, "onChannelOpen",
+                       "("_S("Stream;I")_J("String;)Z"), &ids->onChannelOpen) &&
+           cacheMethod(env, clazz, "onChannelOpened",
+                       "("_S("Stream;I)V"), &ids->onChannelOpened) &&
+           cacheMethod(env, clazz, "onChannelClose",
+                       "("_S("Stream;I")_S("CloseReason;)V"), &ids->onChannelClose) &&
+           cacheMethod(env, clazz, "onChannelData",
+                       "("_S("Stream;I[B)Z"), &ids->onChannelData) &&
+           cacheMethod(env, clazz, "onChannelPending",
+                       "("_S("Stream;I)V"), &ids->onChannelPending) &&
+           cacheMethod(env, clazz, "onChannelResume",
+                       "("_S("Stream;I)V"), &ids->onChannelResume);
+}
+
+static
+int cacheDirectStreamHandler(JNIEnv* env, DirectStreamHandlerIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, _CS("DirectStreamHandler"));
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "onStreamData",
+                       "("_S("Stream;")"Ljava/nio/ByteBuffer;)V", &ids->onStreamData) &&
+           cacheMethod(env, clazz, "onChannelData",
+                       "("_S("Stream;I")"Ljava/nio/ByteBuffer;)Z", &ids->onChannelData);
+}
+
+static
+int cacheBuffer(JNIEnv* env, BufferIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, "java/nio/Buffer");
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "clear", "()Ljava/nio/Buffer;", &ids->clear) &&
+           cacheMethod(env, clazz, "limit", "(I)Ljava/nio/Buffer;", &ids->limit);
+}
+
+static
+int cacheFileTransferHandler(JNIEnv* env, FileTransferHandlerIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, _CF("FileTransferHandler"));
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "onStateChanged",
+                       "("_F("FileTransfer;")_F("FileTransferState;)V"), &ids->onStateChanged) &&
+           cacheMethod(env, clazz, "onFileRequest",
+                       "("_F("FileTransfer;")_J("String;")_J("String;J)V"), &ids->onFileRequest) &&
+           cacheMethod(env, clazz, "onPullRequest",
+                       "("_F("FileTransfer;")_J("String;J)V"), &ids->onPullRequest) &&
+           cacheMethod(env, clazz, "onData",
+                       "("_F("FileTransfer;")_J("String;[B)Z"), &ids->onData) &&
+           cacheMethod(env, clazz, "onDataFinished",
+                       "("_F("FileTransfer;")_J("String;)V"), &ids->onDataFinished) &&
+           cacheMethod(env, clazz, "onPending",
+                       "("_F("FileTransfer;")_J("String;)V"), &ids->onPending) &&
+           cacheMethod(env, clazz, "onResume",
+                       "("_F("FileTransfer;")_J("String;)V"), &ids->onResume) &&
+           cacheMethod(env, clazz, "onCancel",
+                       "("_F("FileTransfer;")_J("String;I")_J("String;)V"), &ids->onCancel);
+}
+
+static
+int cacheUserInfo(JNIEnv* env, UserInfoIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, _C("UserInfo"));
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "<init>", "()V", &ids->ctor) &&
+           cacheMethod(env, clazz, "setHasAvatar", "(Z)V", &ids->setHasAvatar) &&
+           cacheMethod(env, clazz, "setUserId", "("_J("String;)V"), &ids->setUserId) &&
+           cacheMethod(env, clazz, "setName", "("_J("String;)V"), &ids->setName) &&
+           cacheMethod(env, clazz, "setDescription", "("_J("String;)V"), &ids->setDescription) &&
+           cacheMethod(env, clazz, "setGender", "("_J("String;)V"), &ids->setGender) &&
+           cacheMethod(env, clazz, "setPhone", "("_J("String;)V"), &ids->setPhone) &&
+           cacheMethod(env, clazz, "setEmail", "("_J("String;)V"), &ids->setEmail) &&
+           cacheMethod(env, clazz, "setRegion", "("_J("String;)V"), &ids->setRegion) &&
+           cacheMethod(env, clazz, "<init>", "([B)V", &ids->packedCtor) &&
+           cacheMethod(env, clazz, "pack", "()[B", &ids->pack);
+}
+
+static
+int cacheFriendInfo(JNIEnv* env, FriendInfoIds* ids)
+{
+    jclass clazz;
+
+    clazz = ids->clazz = cacheClass(env, _C("FriendInfo"));
+    if (!clazz)
+        return 0;
+
+    return cacheMethod(env, clazz, "<init>", "()V", &ids->ctor) &&
+           cacheMethod(env, clazz, "setLabel", "("_J("String;)V"), &ids->setLabel) &&
+           cacheMethod(env, clazz, "setPresence",
+                       "("_W("PresenceStatus;)V"), &ids->setPresence) &&
+           cacheMethod(env, clazz, "setConnectionStatus",
+                       "("_W("ConnectionStatus;)V"), &ids->setConnectionStatus) &&
+           cacheMethod(env, clazz, "<init>", "([B)V", &ids->packedCtor);
+}
+
+int jniCacheInit(JNIEnv* env)
+{
+    JniCache* c = &gJniCache;
+
+    memset(c, 0, sizeof(*c));
+
+    if (!cacheCarrierCallbacks(env, &c->carrierCallbacks) ||
+        !cacheStreamHandler(env, &c->streamHandler) ||
+        !cacheDirectStreamHandler(env, &c->directStreamHandler) ||
+        !cacheBuffer(env, &c->buffer) ||
+        !cacheFileTransferHandler(env, &c->fileTransferHandler) ||
+        !cacheUserInfo(env, &c->userInfo) ||
+        !cacheFriendInfo(env, &c->friendInfo) ||
+
+        !cacheMethodIds(env, &c->friendsIterator, _C("FriendsIterator"), "onIterated",
+                        "("_W("FriendInfo;")_J("Object;)Z"), 0) ||
+        !cacheMethodIds(env, &c->groupPeersIterator, _C("GroupPeersIterator"), "onIterated",
+                        "("_W("Group$PeerInfo;")_J("Object;)Z"), 0) ||
+        !cacheMethodIds(env, &c->friendInviteResponseHandler, _C("FriendInviteResponseHandler"),
+                        "onReceived", "("_J("String;I")_J("String;")_J("String;)V"), 0) ||
+        !cacheMethodIds(env, &c->sessionManagerHandler, _CS("ManagerHandler"), "onSessionRequest",
+                        "("_W("Carrier;")_J("String;")_J("String;)V"), 0) ||
+        !cacheMethodIds(env, &c->sessionRequestCompleteHandler,
+                        _CS("SessionRequestCompleteHandler"), "onCompletion",
+                        "("_S("Session;I")_J("String;")_J("String;)V"), 0) ||
+        !cacheMethodIds(env, &c->fileTransferManagerHandler, _CF("ManagerHandler"),
+                        "onConnectRequest",
+                        "("_W("Carrier;")_J("String;")_F("FileTransferInfo;)V"), 0) ||
+        !cacheMethodIds(env, &c->streamStateChanged, _CS("Stream"), "stateChanged",
+                        "("_S("StreamState;)V"), 0) ||
+
+        !cacheMethodIds(env, &c->connectionStatus, _C("ConnectionStatus"), "valueOf",
+                        "(I)"_W("ConnectionStatus;"), 1) ||
+        !cacheMethodIds(env, &c->presenceStatus, _C("PresenceStatus"), "valueOf",
+                        "(I)"_W("PresenceStatus;"), 1) ||
+        !cacheMethodIds(env, &c->streamState, _CS("StreamState"), "valueOf",
+                        "(I)"_S("StreamState;"), 1) ||
+        !cacheMethodIds(env, &c->closeReason, _CS("CloseReason"), "valueOf",
+                        "(I)"_S("CloseReason;"), 1) ||
+        !cacheMethodIds(env, &c->fileTransferState, _CF("FileTransferState"), "valueOf",
+                        "(I)"_F("FileTransferState;"), 1) ||
+
+        !cacheMethodIds(env, &c->groupPeerInfo, _C("Group$PeerInfo"), "<init>",
+                        "("_J("String;")_J("String;)V"), 0) ||
+        !cacheMethodIds(env, &c->fileTransferInfo, _CF("FileTransferInfo"), "<init>",
+                        "("_J("String;")_J("String;")"J)V", 0) ||
+        !cacheMethodIds(env, &c->carrierId, _C("CarrierId"), "<init>",
+                        "("_J("String;)V"), 0) ||
+
+        !cacheCookieFields(env, &c->fields)) {
+
+        logE("Resolve java upcall method IDs error");
+        jniCacheCleanup(env);
+        return -1;
+    }
+
+    return 0;
+}
+
+void jniCacheCleanup(JNIEnv* env)
+{
+    JniCache* c = &gJniCache;
+    MethodIds* ids[] = {
+        &c->friendsIterator,
+        &c->groupPeersIterator,
+        &c->friendInviteResponseHandler,
+        &c->sessionManagerHandler,
+        &c->sessionRequestCompleteHandler,
+        &c->fileTransferManagerHandler,
+        &c->streamStateChanged,
+        &c->connectionStatus,
+        &c->presenceStatus,
+        &c->streamState,
+        &c->closeReason,
+        &c->fileTransferState,
+        &c->groupPeerInfo,
+        &c->fileTransferInfo,
+        &c->carrierId
+    };
+    jclass clazzes[] = {
+        c->carrierCallbacks.clazz,
+        c->streamHandler.clazz,
+        c->directStreamHandler.clazz,
+        c->buffer.clazz,
+        c->fileTransferHandler.clazz,
+        c->userInfo.clazz,
+        c->friendInfo.clazz
+    };
+    int i;
+
+    for (i = 0; i < (int)(sizeof(ids) / sizeof(ids[0])); i++) {
+        if (ids[i]->clazz)
+            (*env)->DeleteGlobalRef(env, ids[i]->clazz);
+    }
+
+    for (i = 0; i < (int)(sizeof(clazzes) / sizeof(clazzes[0])); i++) {
+        if (clazzes[i])
+            (*env)->DeleteGlobalRef(env, clazzes[i]);
+    }
+
+    memset(c, 0, sizeof(*c));
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#ifndef __JNI_CACHE_H__
+#define __JNI_CACHE_H__
+
+#include <jni.h>
+
+/*
+ * Class global references and method IDs of all java upcalls, resolved once
+ * at JNI_OnLoad so that callbacks fired from the native carrier, session and
+ * filetransfer loops never call FindClass/GetMethodID in hot paths.
+ */
+typedef struct CarrierCallbacksIds {
+    jclass    clazz;
+    jmethodID onIdle;
+    jmethodID onConnection;
+    jmethodID onReady;
+    jmethodID onSelfInfoChanged;
+    jmethodID onFriendsIterated;
+    jmethodID onFriendConnection;
+    jmethodID onFriendInfoChanged;
+    jmethodID onFriendPresence;
+    jmethodID onFriendRequest;
+    jmethodID onFriendAdded;
+    jmethodID onFriendRemoved;
+    jmethodID onFriendMessage;
+    jmethodID onFriendInviteRequest;
+    jmethodID onGroupInvite;
+    jmethodID onGroupConnected;
+    jmethodID onGroupMessage;
+    jmethodID onGroupTitle;
+    jmethodID onPeerName;
+    jmethodID onPeerListChanged;
+} CarrierCallbacksIds;
+
+typedef struct StreamHandlerIds {
+    jclass    clazz;
+    jmethodID onStateChanged;
+    jmethodID onStreamData;
+    jmethodID onChannelOpen;
+    jmethodID onChannelOpened;
+    jmethodID onChannelClose;
+    jmethodID onChannelData;
+    jmethodID onChannelPending;
+    jmethodID onChannelResume;
+} StreamHandlerIds;
+
+typedef struct DirectStreamHandlerIds {
+    jclass    clazz;
+    jmethodID onStreamData;
+    jmethodID onChannelData;
+} DirectStreamHandlerIds;
+
+typedef struct BufferIds {
+    jclass    clazz;
+    jmethodID clear;
+    jmethodID limit;
+} BufferIds;
+
+typedef struct FileTransferHandlerIds {
+    jclass    clazz;
+    jmethodID onStateChanged;
+    jmethodID onFileRequest;
+    jmethodID onPullRequest;
+    jmethodID onData;
+    jmethodID onDataFinished;
+    jmethodID onPending;
+    jmethodID onResume;
+    jmethodID onCancel;
+} FileTransferHandlerIds;
+
+typedef struct UserInfoIds {
+    jclass    clazz;
+    jmethodID ctor;
+    jmethodID setHasAvatar;
+    jmethodID setUserId;
+    jmethodID setName;
+    jmethodID setDescription;
+    jmethodID setGender;
+    jmethodID setPhone;
+    jmethodID setEmail;
+    jmethodID setRegion;
+    jmethodID packedCtor;
+    jmethodID pack;
+} UserInfoIds;
+
+typedef struct FriendInfoIds {
+    jclass    clazz;
+    jmethodID ctor;
+    jmethodID setLabel;
+    jmethodID setPresence;
+    jmethodID setConnectionStatus;
+    jmethodID packedCtor;
+} FriendInfoIds;
+
+/* Single-method classes: enum valueOf(int), constructors and one-shot handlers */
+typedef struct MethodIds {
+    jclass    clazz;
+    jmethodID method;
+} MethodIds;
+
+/* Native handles stored in java objects, read on every native method call */
+typedef struct CookieFieldIds {
+    jfieldID carrierCookie;
+    jfieldID sessionCookie;
+    jfieldID streamSession;
+    jfieldID streamContext;
+    jfieldID streamId;
+    jfieldID fileTransferCookie;
+    jfieldID fileTransferContext;
+} CookieFieldIds;
+
+typedef struct JniCache {
+    CarrierCallbacksIds    carrierCallbacks;
+    StreamHandlerIds       streamHandler;
+    DirectStreamHandlerIds directStreamHandler;
+    BufferIds              buffer;
+    FileTransferHandlerIds fileTransferHandler;
+    UserInfoIds            userInfo;
+    FriendInfoIds          friendInfo;
+
+    MethodIds friendsIterator;
+    MethodIds groupPeersIterator;
+    MethodIds friendInviteResponseHandler;
+    MethodIds sessionManagerHandler;
+    MethodIds sessionRequestCompleteHandler;
+    MethodIds fileTransferManagerHandler;
+    MethodIds streamStateChanged;
+
+    MethodIds connectionStatus;
+    MethodIds presenceStatus;
+    MethodIds streamState;
+    MethodIds closeReason;
+    MethodIds fileTransferState;
+
+    MethodIds groupPeerInfo;
+    MethodIds fileTransferInfo;
+    MethodIds carrierId;
+
+    CookieFieldIds fields;
+} JniCache;
+
+extern JniCache gJniCache;
+
+int jniCacheInit(JNIEnv* env);
+
+void jniCacheCleanup(JNIEnv* env);
+
+#endif //__JNI_CACHE_H__
@@ -33,12 +33,42 @@
 #include "utilsExt.h"
 #include "sessionUtils.h"
 #include "sessionCookie.h"
+#include "carrierHandler.h"
+#include "jniCache.h"
+#include "trace.h"
+
+/*
+ * Reusable direct buffer for streams whose handler implements
+ * DirectStreamHandler. A slot is taken for the duration of one data
+ * callback and given back when the java handler returns.
+ */
+typedef struct ReceiveBuffer {
+    volatile int inUse;
+    void*   data;
+    size_t  capacity;
+    jobject buffer;
+} ReceiveBuffer;
+
+#define RECEIVE_POOL_SIZE       4
+#define RECEIVE_BUFFER_MIN_SIZE 4096
+
+/*
+ * Data passed to a DirectStreamHandler callback: in a pooled buffer, or
+ * in a one-off buffer when no pooled buffer is free or can grow.
+ */
+typedef struct ReceiveData {
+    ReceiveBuffer* rb;
+    void*   block;
+    jobject buffer;
+} ReceiveData;
 
 typedef struct CallbackContext {
     JNIEnv* env;
     jclass  clazz;
     jobject object;
     jobject handler;
+    bool    directReceive;
+    ReceiveBuffer pool[RECEIVE_POOL_SIZE];
 } CallbackContext;
 
 static
@@ -47,6 +77,15 @@ void sessionClose(JNIEnv* env, jobject thiz)
     ela_session_close(getSession(env, thiz));
 }
 
+static
+void sessionRelease(JNIEnv* env, jclass clazz, jlong jsession)
+{
+    (void)env;
+    (void)clazz;
+
+    ela_session_close((ElaSession*)(intptr_t)jsession);
+}
+
 static
 bool callbackCtxtSet(CallbackContext* cc, JNIEnv* env, jobject jobjekt, jobject jhandler) {
 
@@ -70,6 +109,8 @@ bool callbackCtxtSet(CallbackContext* cc, JNIEnv* env, jobject jobjekt, jobject
     cc->clazz   = gclazz;
     cc->object  = gobject;
     cc->handler = ghandler;
+    cc->directReceive = (*env)->IsInstanceOf(env, jhandler,
+                                             gJniCache.directStreamHandler.clazz);
     return true;
 
 errorExit:
@@ -83,8 +124,17 @@ errorExit:
 static
 void callbackCtxtCleanup(CallbackContext* cc, JNIEnv* env)
 {
+    int i;
+
     assert(cc);
 
+    for (i = 0; i < RECEIVE_POOL_SIZE; i++) {
+        if (cc->pool[i].buffer)
+            (*env)->DeleteGlobalRef(env, cc->pool[i].buffer);
+        if (cc->pool[i].data)
+            free(cc->pool[i].data);
+    }
+
     if (cc->clazz)
         (*env)->DeleteGlobalRef(env, cc->clazz);
     if (cc->object)
@@ -93,10 +143,126 @@ void callbackCtxtCleanup(CallbackContext* cc, JNIEnv* env)
         (*env)->DeleteGlobalRef(env, cc->handler);
 }
 
+static
+ReceiveBuffer* receiveBufferAcquire(CallbackContext* cc, JNIEnv* env, const void* data,
+                                    size_t len)
+{
+    ReceiveBuffer* rb = NULL;
+    jobject lbuffer;
+    jobject ret;
+    int i;
+
+    for (i = 0; i < RECEIVE_POOL_SIZE; i++) {
+        if (__sync_bool_compare_and_swap(&cc->pool[i].inUse, 0, 1)) {
+            rb = &cc->pool[i];
+            break;
+        }
+    }
+
+    if (!rb) {
+        logD("All receive buffers of stream are in use");
+        return NULL;
+    }
+
+    if (rb->capacity < len) {
+        size_t capacity = rb->capacity ? rb->capacity : RECEIVE_BUFFER_MIN_SIZE;
+        void* block;
+
+        while (capacity < len)
+            capacity <<= 1;
+
+        block = malloc(capacity);
+        if (!block)
+            goto errorExit;
+
+        lbuffer = (*env)->NewDirectByteBuffer(env, block, (jlong)capacity);
+        if (!lbuffer) {
+            free(block);
+            goto errorExit;
+        }
+
+        if (rb->buffer)
+            (*env)->DeleteGlobalRef(env, rb->buffer);
+        if (rb->data)
+            free(rb->data);
+
+        rb->buffer = (*env)->NewGlobalRef(env, lbuffer);
+        (*env)->DeleteLocalRef(env, lbuffer);
+        rb->data = block;
+        rb->capacity = rb->buffer ? capacity : 0;
+        if (!rb->buffer) {
+            free(block);
+            rb->data = NULL;
+            goto errorExit;
+        }
+    }
+
+    memcpy(rb->data, data, len);
+
+    ret = (*env)->CallObjectMethod(env, rb->buffer, gJniCache.buffer.clear);
+    if (ret) (*env)->DeleteLocalRef(env, ret);
+    ret = (*env)->CallObjectMethod(env, rb->buffer, gJniCache.buffer.limit, (jint)len);
+    if (ret) (*env)->DeleteLocalRef(env, ret);
+
+    return rb;
+
+errorExit:
+    logE("Allocate direct receive buffer of %d bytes error", (int)len);
+    rb->inUse = 0;
+    return NULL;
+}
+
+static
+void receiveBufferRelease(ReceiveBuffer* rb)
+{
+    __sync_lock_release(&rb->inUse);
+}
+
+static
+bool receiveDataAcquire(CallbackContext* cc, JNIEnv* env, const void* data, size_t len,
+                        ReceiveData* rd)
+{
+    rd->rb = receiveBufferAcquire(cc, env, data, len);
+    if (rd->rb) {
+        rd->block = NULL;
+        rd->buffer = rd->rb->buffer;
+        return true;
+    }
+
+    rd->block = malloc(len ? len : 1);
+    if (!rd->block) {
+        logE("Allocate receive buffer of %d bytes error, stream data dropped", (int)len);
+        return false;
+    }
+    memcpy(rd->block, data, len);
+
+    rd->buffer = (*env)->NewDirectByteBuffer(env, rd->block, (jlong)len);
+    if (!rd->buffer) {
+        logE("New direct receive buffer of %d bytes error, stream data dropped", (int)len);
+        free(rd->block);
+        return false;
+    }
+
+    return true;
+}
+
+static
+void receiveDataRelease(JNIEnv* env, ReceiveData* rd)
+{
+    if (rd->rb) {
+        receiveBufferRelease(rd->rb);
+        return;
+    }
+
+    (*env)->DeleteLocalRef(env, rd->buffer);
+    free(rd->block);
+}
+
 static
 void onSessionRequestCompleteCb(ElaSession* session, const char *bundle, int status,
                                 const char* reason, const char* sdp, size_t len, void* context)
 {
+    traceScope("onSessionRequestComplete");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv *env;
@@ -124,9 +290,8 @@ void onSessionRequestCompleteCb(ElaSession* session, const char *bundle, int sta
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onCompletion",
-                        "("_S("Session;I")_J("String;")_J("String;)V"),
-                        cc->object, status, jreason, jsdp)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.sessionRequestCompleteHandler.method,
+                            cc->object, status, jreason, jsdp)) {
         logE("Call java callback 'void onCompletion(Session, String, String' error");
     }
 
@@ -142,6 +307,7 @@ void onSessionRequestCompleteCb(ElaSession* session, const char *bundle, int sta
 static
 jboolean sessionRequest(JNIEnv* env, jobject thiz, jobject jhandler)
 {
+    traceScope("native_request");
     CallbackContext *cc;
     int rc;
 
@@ -173,6 +339,7 @@ jboolean sessionRequest(JNIEnv* env, jobject thiz, jobject jhandler)
 
 static
 jboolean sessionReplyRequest(JNIEnv* env, jobject thiz, jint jstatus, jstring jreason) {
+    traceScope("native_reply_request");
     const char *reason = NULL;
     int rc;
 
@@ -202,6 +369,7 @@ jboolean sessionReplyRequest(JNIEnv* env, jobject thiz, jint jstatus, jstring jr
 static
 jboolean sessionStart(JNIEnv* env, jobject thiz, jstring jsdp)
 {
+    traceScope("native_start");
     const char *sdp;
     int rc;
 
@@ -229,6 +397,7 @@ static
 void onStreamDataCallback(ElaSession* ws, int stream,
                          const void* data, size_t len, void* context)
 {
+    traceScope("onStreamData");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv *env;
@@ -238,12 +407,32 @@ void onStreamDataCallback(ElaSession* ws, int stream,
     assert(stream > 0);
     assert(data);
 
+    carrierActivity();
+
     env = attachJvm(&needDetach);
     if (!env) {
         logE("Attach current thread to JVM error");
         return ;
     }
 
+    if (cc->directReceive) {
+        ReceiveData rd;
+
+        if (!receiveDataAcquire(cc, env, data, len, &rd)) {
+            detachJvm(env, needDetach);
+            return;
+        }
+
+        if (!callVoidMethodById(env, cc->handler, gJniCache.directStreamHandler.onStreamData,
+                                cc->object, rd.buffer)) {
+            logE("Invoke java callback 'void onData(Stream, ByteBuffer)' error");
+        }
+
+        receiveDataRelease(env, &rd);
+        detachJvm(env, needDetach);
+        return;
+    }
+
     jdata = (*env)->NewByteArray(env, (jsize)len);
     if (!jdata) {
         detachJvm(env, needDetach);
@@ -251,9 +440,8 @@ void onStreamDataCallback(ElaSession* ws, int stream,
     }
     (*env)->SetByteArrayRegion(env, jdata, 0, (jsize)len, data);
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onStreamData",
-                        "("_S("Stream;[B)V"),
-                        cc->object, jdata)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.streamHandler.onStreamData,
+                            cc->object, jdata)) {
         logE("Invoke java callback 'void onData(Stream, byte[])' error");
     }
 
@@ -265,11 +453,14 @@ static
 void onStateChangedCallback(ElaSession* ws, int stream, ElaStreamState state,
                             void* context)
 {
+    traceScope("onStreamStateChanged");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv *env;
     jobject jstate;
 
+    traceState("streamState", state);
+
     assert(ws);
     assert(stream > 0);
 
@@ -284,9 +475,11 @@ void onStateChangedCallback(ElaSession* ws, int stream, ElaStreamState state,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onStateChanged",
-                        "("_S("Stream;")_S("StreamState;)V"),
-                        cc->object, jstate)) {
+    if (!callVoidMethodById(env, cc->object, gJniCache.streamStateChanged.method, jstate))
+        logE("Invoke java method 'void stateChanged(StreamState)' error");
+
+    if (!callVoidMethodById(env, cc->handler, gJniCache.streamHandler.onStateChanged,
+                            cc->object, jstate)) {
 
         logE("Invoke java callback 'void onStateChanged(Stream, StreamState)' error");
     }
@@ -299,6 +492,7 @@ static
 bool onChannelOpenCallback(ElaSession *ws, int stream, int channel,
                            const char* cookie, void* context)
 {
+    traceScope("onChannelOpen");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
@@ -322,10 +516,9 @@ bool onChannelOpenCallback(ElaSession *ws, int stream, int channel,
         return false;
     }
 
-    if (!callBooleanMethod(env, cc->clazz, cc->handler, "onChannelOpen",
-                           "("_S("Stream;I")_J("String;)Z"),
-                           &jresult,
-                           cc->object, channel, jcookie)) {
+    if (!callBooleanMethodById(env, cc->handler, gJniCache.streamHandler.onChannelOpen,
+                               &jresult,
+                               cc->object, channel, jcookie)) {
 
         logE("Invoke java callback 'boolean onChanneOpen(Stream, int, String)' error");
     }
@@ -340,6 +533,7 @@ static
 void onChannelOpenedCallback(ElaSession* ws, int stream, int channel,
                              void* context)
 {
+    traceScope("onChannelOpened");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
@@ -354,9 +548,8 @@ void onChannelOpenedCallback(ElaSession* ws, int stream, int channel,
         return ;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onChannelOpened",
-                        "("_S("Stream;I)V"),
-                        cc->object, channel)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.streamHandler.onChannelOpened,
+                            cc->object, channel)) {
         logE("Invoke java callback 'void onChannelOpened(Stream, int)' error");
     }
 
@@ -367,6 +560,7 @@ static
 void onChannelCloseCallback(ElaSession* ws, int stream, int channel,
                             CloseReason reason, void* context)
 {
+    traceScope("onChannelClose");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
@@ -387,9 +581,8 @@ void onChannelCloseCallback(ElaSession* ws, int stream, int channel,
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onChannelClose",
-                        "("_S("Stream;I")_S("CloseReason;)V"),
-                        cc->object, channel, jreason)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.streamHandler.onChannelClose,
+                            cc->object, channel, jreason)) {
 
         logE("Call java callback 'void onChannelClose(Stream, int, CloseReason)' error");
     }
@@ -402,22 +595,44 @@ static
 bool onChannelDataCallback(ElaSession* ws, int stream, int channel,
                            const void* data, size_t len, void *context)
 {
+    traceScope("onChannelData");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
     jbyteArray jdata;
-    jboolean jresult;
+    jboolean jresult = JNI_FALSE;
 
     assert(ws);
     assert(stream > 0);
     assert(channel > 0);
 
+    carrierActivity();
+
     env = attachJvm(&needDetach);
     if (!env) {
         logE("Attach current thread to JVM error");
         return false;
     }
 
+    if (cc->directReceive) {
+        ReceiveData rd;
+
+        if (!receiveDataAcquire(cc, env, data, len, &rd)) {
+            detachJvm(env, needDetach);
+            return false;
+        }
+
+        if (!callBooleanMethodById(env, cc->handler,
+                                   gJniCache.directStreamHandler.onChannelData,
+                                   &jresult, cc->object, channel, rd.buffer)) {
+            logE("Call java callback 'boolean onChannelData(Stream, int, ByteBuffer)' error");
+        }
+
+        receiveDataRelease(env, &rd);
+        detachJvm(env, needDetach);
+        return (bool)jresult;
+    }
+
     jdata = (*env)->NewByteArray(env, (jsize)len);
     if (!jdata) {
         detachJvm(env, needDetach);
@@ -425,9 +640,8 @@ bool onChannelDataCallback(ElaSession* ws, int stream, int channel,
     }
     (*env)->SetByteArrayRegion(env, jdata, 0, (jsize)len, data);
 
-    if (!callBooleanMethod(env, cc->clazz, cc->handler, "onChannelData",
-                           "("_S("Stream;I[B)Z"),
-                           &jresult, cc->object, channel, jdata)) {
+    if (!callBooleanMethodById(env, cc->handler, gJniCache.streamHandler.onChannelData,
+                               &jresult, cc->object, channel, jdata)) {
 
         logE("Call java callback 'boolean onChannelData(Stream, int, byte[])' error");
     }
@@ -442,6 +656,7 @@ static
 void onChannelPendingCallback(ElaSession* ws, int stream, int channel,
                               void* context)
 {
+    traceScope("onChannelPending");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
@@ -456,9 +671,8 @@ void onChannelPendingCallback(ElaSession* ws, int stream, int channel,
         return ;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onChannelPending",
-                        "("_S("Stream;I)V"),
-                        cc->object, channel)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.streamHandler.onChannelPending,
+                            cc->object, channel)) {
         logE("Call java callback 'void onChannelPending(Stream, int) error");
     }
 
@@ -469,6 +683,7 @@ static
 void onChannelResumeCallback(ElaSession* ws, int stream, int channel,
                              void* context)
 {
+    traceScope("onChannelResume");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
@@ -483,9 +698,8 @@ void onChannelResumeCallback(ElaSession* ws, int stream, int channel,
         return ;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onChannelResume",
-                        "("_S("Stream;I)V"),
-                        cc->object, channel)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.streamHandler.onChannelResume,
+                            cc->object, channel)) {
         logE("Call java callback 'void onChannelResume(Stream, int) error");
     }
 
@@ -542,8 +756,7 @@ jobject addStream(JNIEnv* env, jobject thiz, jobject jtype, jint joptions,
     };
 
     session = getSession(env, thiz);
-    setLongField(env, jstream, "nativeCookie",(uint64_t)session);
-    setLongField(env, jstream, "contextCookie", (uint64_t)cc);
+    setStreamCookies(env, jstream, session, cc);
 
     streamId = ela_session_add_stream(session, type, joptions, &cbs, cc);
     if (streamId < 0) {
@@ -556,7 +769,7 @@ jobject addStream(JNIEnv* env, jobject thiz, jobject jtype, jint joptions,
     }
 
     // TODO: CHECKME!
-    setIntField(env, jstream, "streamId", streamId);
+    setStreamId(env, jstream, streamId);
 
     return jstream;
 }
@@ -657,6 +870,7 @@ jint getErrorCode(JNIEnv* env, jclass clazz)
 static const char* gClassName = "org/elastos/carrier/session/Session";
 static JNINativeMethod gMethods[] = {
         {"session_close",         "()V",                           (void*)sessionClose        },
+        {"session_release",       "(J)V",                          (void*)sessionRelease      },
         {"native_request",        "("_S("SessionRequestCompleteHandler;)Z"),
                                                                    (void*)sessionRequest      },
         {"native_reply_request",  "(I"_J("String;)Z"),             (void*)sessionReplyRequest },
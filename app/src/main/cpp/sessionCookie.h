@@ -28,26 +28,46 @@
 #include <ela_carrier.h>
 #include <ela_session.h>
 #include "utils.h"
-#include "utilsExt.h"
+#include "jniCache.h"
 
 static inline
 ElaSession* getSession(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "nativeCookie", &ctxt) ? (ElaSession*)ctxt : NULL;
+    return thiz ? (ElaSession*)(intptr_t) \
+           (*env)->GetLongField(env, thiz, gJniCache.fields.sessionCookie) : NULL;
 }
 
 static inline
 void setSessionCookie(JNIEnv* env, jobject thiz, ElaSession* session)
 {
-    setLongField(env, thiz, "nativeCookie", (uint64_t)session);
+    (*env)->SetLongField(env, thiz, gJniCache.fields.sessionCookie, (jlong)(intptr_t)session);
+}
+
+static inline
+ElaSession* getStreamSession(JNIEnv* env, jobject thiz)
+{
+    return thiz ? (ElaSession*)(intptr_t) \
+           (*env)->GetLongField(env, thiz, gJniCache.fields.streamSession) : NULL;
 }
 
 static inline
 void* getStreamCookie(JNIEnv* env, jobject thiz)
 {
-    uint64_t ctxt = 0;
-    return getLongField(env, thiz, "contextCookie", &ctxt) ? (void*)ctxt : NULL;
+    return thiz ? (void*)(intptr_t) \
+           (*env)->GetLongField(env, thiz, gJniCache.fields.streamContext) : NULL;
+}
+
+static inline
+void setStreamCookies(JNIEnv* env, jobject thiz, ElaSession* session, void* context)
+{
+    (*env)->SetLongField(env, thiz, gJniCache.fields.streamSession, (jlong)(intptr_t)session);
+    (*env)->SetLongField(env, thiz, gJniCache.fields.streamContext, (jlong)(intptr_t)context);
+}
+
+static inline
+void setStreamId(JNIEnv* env, jobject thiz, int streamId)
+{
+    (*env)->SetIntField(env, thiz, gJniCache.fields.streamId, (jint)streamId);
 }
 
-#endif //_SESSION_COOKIE_H__
\ No newline at end of file
+#endif //_SESSION_COOKIE_H__
@@ -31,6 +31,8 @@
 #include "utils.h"
 #include "carrierCookie.h"
 #include "sessionUtils.h"
+#include "jniCache.h"
+#include "trace.h"
 
 typedef struct CallbackContext {
     JNIEnv* env;
@@ -45,6 +47,7 @@ static
 void onSessionRequestCallback(ElaCarrier* carrier, const char* from, const char *bundle,
                               const char* sdp, size_t len, void* context)
 {
+    traceScope("onSessionRequest");
     CallbackContext* cc = (CallbackContext*)context;
     int needDetach = 0;
     JNIEnv* env;
@@ -78,9 +81,8 @@ void onSessionRequestCallback(ElaCarrier* carrier, const char* from, const char
         return;
     }
 
-    if (!callVoidMethod(env, cc->clazz, cc->handler, "onSessionRequest",
-                        "("_W("Carrier;")_J("String;")_J("String;)V"),
-                        cc->carrier, jfrom, jsdp)) {
+    if (!callVoidMethodById(env, cc->handler, gJniCache.sessionManagerHandler.method,
+                            cc->carrier, jfrom, jsdp)) {
         logE("Can not call method:\n\tvoid onSessionRequest(Carrier, String, String)");
     }
 
@@ -27,19 +27,13 @@
 #include "sessionUtils.h"
 #include "sessionCookie.h"
 #include "log.h"
+#include "jniCache.h"
 
 int newJavaStreamState(JNIEnv* env, ElaStreamState state, jobject* jstate)
 {
-    const char* clazzName = "org/elastos/carrier/session/StreamState";
-    jclass clazz = findClass(env, clazzName);
-    if (!clazz) {
-        logE("Java enum 'StreamState' not found");
-        return 0;
-    }
-
-    const char* signature = "(I)"_S("StreamState;");
     jobject jobj = NULL;
-    int result = callStaticObjectMethod(env, clazz, "valueOf", signature, &jobj, state);
+    int result = callStaticObjectMethodById(env, gJniCache.streamState.clazz, gJniCache.streamState.method,
+                                            &jobj, state);
     if (!result) {
         logE("Call static method 'valueof' of StreamState error");
         return 0;
@@ -122,16 +116,9 @@ int newJavaStream(JNIEnv* env, jobject jtype, jobject* jstream)
 
 int newJavaCloseReason(JNIEnv* env, CloseReason reason, jobject* jreason)
 {
-    const char* clazzName = "org/elastos/carrier/session/CloseReason";
-    jclass clazz = findClass(env, clazzName);
-    if (!clazz) {
-        logE("Java enum 'CloseReason' not found");
-        return 0;
-    }
-
-    const char* signature = "(I)"_S("CloseReason;");
     jobject jobj = NULL;
-    int result = callStaticObjectMethod(env, clazz, "valueOf", signature, &jobj, (int)reason);
+    int result = callStaticObjectMethodById(env, gJniCache.closeReason.clazz, gJniCache.closeReason.method,
+                                            &jobj, (int)reason);
     if (!result) {
         logE("Call static method 'valueof' of CloseReason error");
         return 0;
@@ -23,6 +23,7 @@
 #include <jni.h>
 #include <stdlib.h>
 #include <assert.h>
+#include <stdint.h>
 #include <ela_carrier.h>
 #include <ela_session.h>
 
@@ -30,6 +31,8 @@
 #include "utils.h"
 #include "sessionCookie.h"
 #include "sessionUtils.h"
+#include "carrierHandler.h"
+#include "trace.h"
 
 static
 jboolean getTransportInfo(JNIEnv *env, jobject thiz, jint jstreamId, jobject jtransportInfo)
@@ -40,7 +43,7 @@ jboolean getTransportInfo(JNIEnv *env, jobject thiz, jint jstreamId, jobject jtr
     assert(jstreamId > 0);
     assert(jtransportInfo);
 
-    rc = ela_stream_get_transport_info(getSession(env, thiz), jstreamId, &info);
+    rc = ela_stream_get_transport_info(getStreamSession(env, thiz), jstreamId, &info);
     if (rc < 0) {
         logE("Call ela_stream_get_transport_info error");
         setErrorCode(ela_get_error());
@@ -54,34 +57,129 @@ jboolean getTransportInfo(JNIEnv *env, jobject thiz, jint jstreamId, jobject jtr
     return JNI_TRUE;
 }
 
+/*
+ * Writes return the bytes written, or the carrier error code on failure.
+ * Error codes have the top bit set, so java sees them as negative ints and
+ * needs no get_error_code() round trip to learn why a write failed.
+ *
+ * Small writes are copied onto the stack; larger ones only copy the
+ * [offset, offset + len) region instead of pinning the whole java array.
+ * Array elements are never held across the native write call, as it may
+ * block on the carrier thread which itself needs to call back into java.
+ */
+#define STACK_WRITE_BUF_SIZE    2048
+
+static
+ssize_t streamWrite(ElaSession* session, int streamId, int channel, const void* data,
+                    size_t len)
+{
+    traceScope("ela_stream_write");
+    ssize_t bytes;
+
+    carrierActivity();
+
+    if (channel > 0)
+        bytes = ela_stream_write_channel(session, streamId, channel, data, len);
+    else
+        bytes = ela_stream_write(session, streamId, data, len);
+
+    if (bytes < 0) {
+        int errorCode = ela_get_error();
+        logE("Call %s API error", channel > 0 ? "ela_stream_write_channel" : "ela_stream_write");
+        setErrorCode(errorCode);
+        return errorCode;
+    }
+
+    return bytes;
+}
+
 static
-jint writeData(JNIEnv* env, jobject thiz, jint jstreamId, jbyteArray jdata, jint offset, jint len)
+jint writeArray(JNIEnv* env, jlong jsession, jint streamId, jint channel, jbyteArray jdata,
+                jint offset, jint len)
 {
-    jbyte *data;
+    jbyte stackBuf[STACK_WRITE_BUF_SIZE];
+    jbyte* data;
     jsize _len;
     ssize_t bytes;
 
+    assert(jsession);
     assert(jdata);
 
     _len = (*env)->GetArrayLength(env, jdata);
 
     assert(offset >= 0 && offset < _len);
     assert((offset + len) <= _len);
-    
-    data = (*env)->GetByteArrayElements(env, jdata, NULL);
 
-    bytes = ela_stream_write(getSession(env, thiz), jstreamId, (const void*)(data + offset), (size_t)len);
-    (*env)->ReleaseByteArrayElements(env, jdata, data, 0);
+    if (len <= (jint)sizeof(stackBuf)) {
+        data = stackBuf;
+    } else {
+        data = (jbyte*)malloc((size_t)len);
+        if (!data) {
+            setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+            return ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY);
+        }
+    }
 
-    if (bytes < 0) {
-        logE("Call ela_stream_write API error");
-        setErrorCode(ela_get_error());
-        return -1;
+    (*env)->GetByteArrayRegion(env, jdata, offset, len, data);
+    if ((*env)->ExceptionCheck(env)) {
+        if (data != stackBuf)
+            free(data);
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+        return ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING);
     }
 
+    bytes = streamWrite((ElaSession*)(intptr_t)jsession, streamId, channel, data, (size_t)len);
+    if (data != stackBuf)
+        free(data);
+
     return (jint)bytes;
 }
 
+static
+jint writeBuffer(JNIEnv* env, jlong jsession, jint streamId, jint channel, jobject jbuffer,
+                 jint offset, jint len)
+{
+    uint8_t* data;
+    jlong capacity;
+
+    assert(jsession);
+    assert(jbuffer);
+
+    data = (uint8_t*)(*env)->GetDirectBufferAddress(env, jbuffer);
+    capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+    if (!data || capacity < 0) {
+        logE("Not a direct buffer or direct buffer access not supported");
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_INVALID_ARGS));
+        return ELA_GENERAL_ERROR(ELAERR_INVALID_ARGS);
+    }
+
+    assert(offset >= 0 && len > 0);
+    assert((jlong)offset + len <= capacity);
+
+    return (jint)streamWrite((ElaSession*)(intptr_t)jsession, streamId, channel,
+                             data + offset, (size_t)len);
+}
+
+static
+jint writeData(JNIEnv* env, jclass clazz, jlong jsession, jint jstreamId, jbyteArray jdata,
+               jint offset, jint len)
+{
+    traceScope("write_stream_data");
+    (void)clazz;
+
+    return writeArray(env, jsession, jstreamId, 0, jdata, offset, len);
+}
+
+static
+jint writeDirectData(JNIEnv* env, jclass clazz, jlong jsession, jint jstreamId, jobject jbuffer,
+                     jint offset, jint len)
+{
+    traceScope("write_stream_buffer");
+    (void)clazz;
+
+    return writeBuffer(env, jsession, jstreamId, 0, jbuffer, offset, len);
+}
+
 jint openChannel(JNIEnv* env, jobject thiz, jint streamId, jstring jcookie)
 {
     const char *cookie;
@@ -95,7 +193,7 @@ jint openChannel(JNIEnv* env, jobject thiz, jint streamId, jstring jcookie)
         return -1;
     }
 
-    channel = ela_stream_open_channel(getSession(env, thiz), streamId, cookie);
+    channel = ela_stream_open_channel(getStreamSession(env, thiz), streamId, cookie);
     (*env)->ReleaseStringUTFChars(env, jcookie, cookie);
 
     if (channel < 0) {
@@ -114,7 +212,7 @@ jboolean closeChannel(JNIEnv* env, jobject thiz, jint streamId, jint channel)
 
     assert(channel > 0);
 
-    rc = ela_stream_close_channel(getSession(env, thiz), streamId, channel);
+    rc = ela_stream_close_channel(getStreamSession(env, thiz), streamId, channel);
     if (rc < 0) {
         logE("Call ela_stream_close_channel API error");
         setErrorCode(ela_get_error());
@@ -125,34 +223,27 @@ jboolean closeChannel(JNIEnv* env, jobject thiz, jint streamId, jint channel)
 }
 
 static
-jint writeDataToChannel(JNIEnv* env, jobject thiz, jint streamId, jint channel, jbyteArray jdata,
-                        jint offset, jint len)
+jint writeDataToChannel(JNIEnv* env, jclass clazz, jlong jsession, jint streamId, jint channel,
+                        jbyteArray jdata, jint offset, jint len)
 {
-    jbyte *data;
-    jsize _len;
-    ssize_t bytes;
+    traceScope("write_channel_data");
+    (void)clazz;
 
     assert(channel > 0);
-    assert(jdata);
 
-    _len  = (*env)->GetArrayLength(env, jdata);
-
-    assert(offset >= 0 && offset < _len);
-    assert((offset + len) <= _len);
-
-    data = (*env)->GetByteArrayElements(env, jdata, NULL);
+    return writeArray(env, jsession, streamId, channel, jdata, offset, len);
+}
 
-    bytes = ela_stream_write_channel(getSession(env, thiz), streamId, channel,
-                                     (const void*)(data + offset), (size_t)len);
-    (*env)->ReleaseByteArrayElements(env, jdata, data, 0);
+static
+jint writeDirectDataToChannel(JNIEnv* env, jclass clazz, jlong jsession, jint streamId,
+                              jint channel, jobject jbuffer, jint offset, jint len)
+{
+    traceScope("write_channel_buffer");
+    (void)clazz;
 
-    if (bytes < 0) {
-        logE("Call ela_stream_write_channel API error");
-        setErrorCode(ela_get_error());
-        return -1;
-    }
+    assert(channel > 0);
 
-    return (jint)bytes;
+    return writeBuffer(env, jsession, streamId, channel, jbuffer, offset, len);
 }
 
 static
@@ -162,7 +253,7 @@ jboolean pendChannel(JNIEnv* env, jobject thiz, jint streamId, jint channel)
 
     assert(channel > 0);
 
-    rc = ela_stream_pend_channel(getSession(env, thiz), streamId, channel);
+    rc = ela_stream_pend_channel(getStreamSession(env, thiz), streamId, channel);
     if (rc < 0) {
         logE("Call ela_stream_pend_channel API error");
         setErrorCode(ela_get_error());
@@ -178,7 +269,7 @@ jboolean resumeChannel(JNIEnv* env, jobject thiz, jint streamId, jint channel)
 
     assert(channel > 0);
 
-    rc = ela_stream_resume_channel(getSession(env, thiz), streamId, channel);
+    rc = ela_stream_resume_channel(getStreamSession(env, thiz), streamId, channel);
     if (rc < 0) {
         logE("Call ela_stream_resume_channel API error");
         setErrorCode(ela_get_error());
@@ -218,7 +309,7 @@ jint openPortForwarding(JNIEnv* env, jobject thiz, jint streamId, jstring jservi
         goto errorExit;
     }
 
-    pfId = ela_stream_open_port_forwarding(getSession(env, thiz), streamId,
+    pfId = ela_stream_open_port_forwarding(getStreamSession(env, thiz), streamId,
                                            service, protocol, host, port);
 
     (*env)->ReleaseStringUTFChars(env, jservice, service);
@@ -249,7 +340,7 @@ jboolean closePortForwarding(JNIEnv* env, jobject thiz, jint streamId, jint port
     assert(streamId > 0);
     assert(portForwarding > 0);
 
-    rc = ela_stream_close_port_forwarding(getSession(env, thiz), streamId,
+    rc = ela_stream_close_port_forwarding(getStreamSession(env, thiz), streamId,
                                                       portForwarding);
     if (rc < 0) {
         logE("Call ela_stream_close_port_forwarding API error");
@@ -271,10 +362,12 @@ jint getErrorCode(JNIEnv* env, jclass clazz)
 static const char* gClassName = "org/elastos/carrier/session/Stream";
 static JNINativeMethod gMethods[] = {
         {"get_transport_info",    "(I"_S("TransportInfo;)Z"),      (void*)getTransportInfo },
-        {"write_stream_data",     "(I[BII)I",                      (void*)writeData        },
+        {"write_stream_data",     "(JI[BII)I",                     (void*)writeData        },
+        {"write_stream_buffer",   "(JILjava/nio/ByteBuffer;II)I", (void*)writeDirectData  },
         {"open_channel",          "(I"_J("String;)I"),             (void*)openChannel      },
         {"close_channel",         "(II)Z",                         (void*)closeChannel     },
-        {"write_channel_data",    "(II[BII)I",                     (void*)writeDataToChannel },
+        {"write_channel_data",    "(JII[BII)I",                    (void*)writeDataToChannel },
+        {"write_channel_buffer",  "(JIILjava/nio/ByteBuffer;II)I",(void*)writeDirectDataToChannel },
         {"pend_channel",          "(II)Z",                         (void*)pendChannel      },
         {"resume_channel",        "(II)Z",                         (void*)resumeChannel    },
         {"open_port_forwarding",  "(I"_J("String;")_S("PortForwardingProtocol;")_J("String;")_J("String;)I"),
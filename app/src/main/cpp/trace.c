@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#include <jni.h>
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <sys/syscall.h>
+#include <ela_carrier.h>
+#include "log.h"
+#include "utils.h"
+#include "trace.h"
+
+/* Must be a power of two, the ring is only allocated when first enabled */
+#define TRACE_RING_SIZE     16384
+#define TRACE_RING_MASK     (TRACE_RING_SIZE - 1)
+
+/* Upper bound of an exported event without its name */
+#define TRACE_EVENT_JSON_MAX    160
+
+typedef struct TraceEvent {
+    uint32_t seq;           // index + 1 once written, 0 while being written
+    uint32_t tid;
+    uint64_t ts;
+    const char* name;
+    int32_t arg;
+    char phase;
+} TraceEvent;
+
+volatile int gTraceEnabled;
+
+static TraceEvent* gRing;
+static uint32_t gHead;
+static uint32_t gTail;
+static pthread_mutex_t gRingLock = PTHREAD_MUTEX_INITIALIZER;
+
+static __thread uint32_t tTid;
+
+void traceRecord(const char* name, char phase, int32_t arg)
+{
+    TraceEvent* ev;
+    struct timespec now;
+    uint32_t idx;
+
+    if (!tTid)
+        tTid = (uint32_t)syscall(__NR_gettid);
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+
+    idx = __atomic_fetch_add(&gHead, 1, __ATOMIC_RELAXED);
+    ev = &gRing[idx & TRACE_RING_MASK];
+
+    // Readers skip the slot until its sequence is published again.
+    __atomic_store_n(&ev->seq, 0, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+
+    __atomic_store_n(&ev->tid, tTid, __ATOMIC_RELAXED);
+    __atomic_store_n(&ev->ts, (uint64_t)now.tv_sec * 1000000000ULL + now.tv_nsec,
+                     __ATOMIC_RELAXED);
+    __atomic_store_n(&ev->name, name, __ATOMIC_RELAXED);
+    __atomic_store_n(&ev->arg, arg, __ATOMIC_RELAXED);
+    __atomic_store_n(&ev->phase, phase, __ATOMIC_RELAXED);
+
+    __atomic_store_n(&ev->seq, idx + 1, __ATOMIC_RELEASE);
+}
+
+static
+void setEnabled(JNIEnv* env, jclass clazz, jboolean jenabled)
+{
+    (void)env;
+    (void)clazz;
+
+    if (!jenabled) {
+        gTraceEnabled = 0;
+        return;
+    }
+
+    pthread_mutex_lock(&gRingLock);
+    if (!gRing) {
+        // Never freed, threads may still be recording when tracing is disabled.
+        gRing = (TraceEvent*)calloc(TRACE_RING_SIZE, sizeof(TraceEvent));
+        if (!gRing)
+            logE("Allocate trace ring buffer error");
+    }
+    if (gRing) {
+        __atomic_thread_fence(__ATOMIC_SEQ_CST);
+        gTraceEnabled = 1;
+    }
+    pthread_mutex_unlock(&gRingLock);
+}
+
+static
+jboolean isEnabled(JNIEnv* env, jclass clazz)
+{
+    (void)env;
+    (void)clazz;
+
+    return gTraceEnabled ? JNI_TRUE : JNI_FALSE;
+}
+
+static
+void clear(JNIEnv* env, jclass clazz)
+{
+    (void)env;
+    (void)clazz;
+
+    __atomic_store_n(&gTail, __atomic_load_n(&gHead, __ATOMIC_ACQUIRE), __ATOMIC_RELEASE);
+}
+
+static
+int appendEvent(char** buf, size_t* size, size_t* pos, const TraceEvent* ev, int first)
+{
+    size_t need = *pos + strlen(ev->name) + TRACE_EVENT_JSON_MAX;
+    int rc;
+
+    if (need > *size) {
+        size_t _size = *size * 2 > need ? *size * 2 : need;
+        char* _buf = (char*)realloc(*buf, _size);
+        if (!_buf)
+            return 0;
+
+        *buf = _buf;
+        *size = _size;
+    }
+
+    rc = snprintf(*buf + *pos, *size - *pos,
+                  "%s{\"name\":\"%s\",\"cat\":\"carrier\",\"ph\":\"%c\",\"ts\":%llu.%03u,"
+                  "\"pid\":%d,\"tid\":%u",
+                  first ? "" : ",\n", ev->name, ev->phase,
+                  (unsigned long long)(ev->ts / 1000), (unsigned)(ev->ts % 1000),
+                  (int)getpid(), ev->tid);
+    *pos += rc;
+
+    if (ev->phase == 'i')
+        rc = snprintf(*buf + *pos, *size - *pos, ",\"s\":\"t\",\"args\":{\"state\":%d}}",
+                      (int)ev->arg);
+    else
+        rc = snprintf(*buf + *pos, *size - *pos, "}");
+    *pos += rc;
+
+    return 1;
+}
+
+static
+jstring exportEvents(JNIEnv* env, jclass clazz)
+{
+    TraceEvent ev;
+    TraceEvent* slot;
+    uint32_t head;
+    uint32_t start;
+    uint32_t i;
+    size_t size;
+    size_t pos = 0;
+    char* buf;
+    int first = 1;
+    jstring jtrace;
+
+    (void)clazz;
+
+    head = __atomic_load_n(&gHead, __ATOMIC_ACQUIRE);
+    start = __atomic_load_n(&gTail, __ATOMIC_ACQUIRE);
+    if (!gRing)
+        start = head;
+    else if (head - start > TRACE_RING_SIZE)
+        start = head - TRACE_RING_SIZE;
+
+    size = (size_t)(head - start) * 64 + 128;
+    buf = (char*)malloc(size);
+    if (!buf) {
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+        return NULL;
+    }
+
+    pos = (size_t)sprintf(buf, "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+    for (i = start; i != head; i++) {
+        slot = &gRing[i & TRACE_RING_MASK];
+
+        ev.seq = __atomic_load_n(&slot->seq, __ATOMIC_ACQUIRE);
+        if (ev.seq != i + 1)
+            continue;   // being written, or already overwritten by a later lap
+
+        ev.tid   = __atomic_load_n(&slot->tid, __ATOMIC_RELAXED);
+        ev.ts    = __atomic_load_n(&slot->ts, __ATOMIC_RELAXED);
+        ev.name  = __atomic_load_n(&slot->name, __ATOMIC_RELAXED);
+        ev.arg   = __atomic_load_n(&slot->arg, __ATOMIC_RELAXED);
+        ev.phase = __atomic_load_n(&slot->phase, __ATOMIC_RELAXED);
+
+        __atomic_thread_fence(__ATOMIC_ACQUIRE);
+        if (__atomic_load_n(&slot->seq, __ATOMIC_RELAXED) != ev.seq)
+            continue;
+
+        if (!appendEvent(&buf, &size, &pos, &ev, first)) {
+            free(buf);
+            setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+            return NULL;
+        }
+        first = 0;
+    }
+
+    if (pos + 4 > size) {
+        char* _buf = (char*)realloc(buf, pos + 4);
+        if (!_buf) {
+            free(buf);
+            setErrorCode(ELA_GENERAL_ERROR(ELAERR_OUT_OF_MEMORY));
+            return NULL;
+        }
+        buf = _buf;
+    }
+    strcpy(buf + pos, "\n]}");
+
+    jtrace = (*env)->NewStringUTF(env, buf);
+    free(buf);
+
+    if (!jtrace)
+        setErrorCode(ELA_GENERAL_ERROR(ELAERR_LANGUAGE_BINDING));
+
+    return jtrace;
+}
+
+static
+jint getErrorCode(JNIEnv* env, jclass clazz)
+{
+    (void)env;
+    (void)clazz;
+
+    return _getErrorCode();
+}
+
+static const char* gClassName = "org/elastos/carrier/Trace";
+static JNINativeMethod gMethods[] = {
+        {"set_enabled",    "(Z)V",                (void*)setEnabled   },
+        {"is_enabled",     "()Z",                 (void*)isEnabled    },
+        {"native_clear",   "()V",                 (void*)clear        },
+        {"export_events",  "()"_J("String;"),     (void*)exportEvents },
+        {"get_error_code", "()I",                 (void*)getErrorCode },
+};
+
+int registerCarrierTraceMethods(JNIEnv* env)
+{
+    return registerNativeMethods(env, gClassName,
+                                 gMethods,
+                                 sizeof(gMethods) / sizeof(gMethods[0]));
+}
+
+void unregisterCarrierTraceMethods(JNIEnv* env)
+{
+    jclass clazz = (*env)->FindClass(env, gClassName);
+    if (clazz)
+        (*env)->UnregisterNatives(env, clazz);
+}
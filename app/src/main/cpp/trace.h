@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+#ifndef __JNI_TRACE_H__
+#define __JNI_TRACE_H__
+
+#include <stdint.h>
+
+/*
+ * Trace events are recorded into a fixed-size ring shared by all threads,
+ * and exported in Chrome trace event format by Trace.export() on the java
+ * side. With tracing disabled a trace point costs one load and a branch.
+ */
+extern volatile int gTraceEnabled;
+
+void traceRecord(const char* name, char phase, int32_t arg);
+
+static inline
+const char* traceScopeBegin(const char* name)
+{
+    if (__builtin_expect(!gTraceEnabled, 1))
+        return NULL;
+
+    traceRecord(name, 'B', 0);
+    return name;
+}
+
+static inline
+void traceScopeEnd(const char** name)
+{
+    if (*name)
+        traceRecord(*name, 'E', 0);
+}
+
+/*
+ * Trace the rest of the enclosing block as a duration event. The end event
+ * is recorded on every return path, and only if the begin was recorded.
+ * Names must be string literals, they are referenced by the ring buffer.
+ */
+#define __traceConcat(a, b) a##b
+#define __traceVar(line) __traceConcat(__traceScope, line)
+#define traceScope(name) \
+    const char* __traceVar(__LINE__) __attribute__((cleanup(traceScopeEnd), unused)) = \
+        traceScopeBegin(name)
+
+/* Trace a state transition as an instant event with the new state value */
+#define traceState(name, state) do { \
+        if (__builtin_expect(gTraceEnabled, 0)) \
+            traceRecord(name, 'i', (int32_t)(state)); \
+    } while (0)
+
+#endif // __JNI_TRACE_H__
@@ -23,8 +23,10 @@
 #include <jni.h>
 #include <stdlib.h>
 #include <assert.h>
+#include <pthread.h>
 #include "utils.h"
 #include "log.h"
+#include "trace.h"
 
 static __thread int jniErrorCode;
 
@@ -40,9 +42,43 @@ int _getErrorCode(void)
 
 static JavaVM* javaVm = NULL;
 
+/*
+ * Native threads that call back into java (session, stream and filetransfer
+ * workers) stay attached for their whole lifetime. The pthread key destructor
+ * detaches them when the thread exits, instead of an attach/detach pair
+ * around every single callback.
+ */
+static pthread_key_t jvmThreadKey;
+static pthread_once_t jvmThreadKeyOnce = PTHREAD_ONCE_INIT;
+static volatile jlong jvmAttachCount = 0;
+
+static
+void jvmThreadDestructor(void* value)
+{
+    (void)value;
+
+    if (javaVm) {
+        (*javaVm)->DetachCurrentThread(javaVm);
+        logV("Detached exiting thread from JVM");
+    }
+}
+
+static
+void jvmThreadKeyCreate(void)
+{
+    if (pthread_key_create(&jvmThreadKey, jvmThreadDestructor) != 0)
+        logE("Create pthread key for JVM attachment error");
+}
+
 void setJvm(JavaVM* vm)
 {
     javaVm = vm;
+    pthread_once(&jvmThreadKeyOnce, jvmThreadKeyCreate);
+}
+
+jlong getJvmAttachCount(void)
+{
+    return __sync_add_and_fetch(&jvmAttachCount, 0);
 }
 
 JNIEnv* attachJvm(int* newlyAttached)
@@ -56,7 +92,6 @@ JNIEnv* attachJvm(int* newlyAttached)
     result = (*javaVm)->GetEnv(javaVm, (void**)&env, JNI_VERSION_1_6);
     switch(result) {
         case JNI_OK:
-            logD("Already attached JVM");
             break;
 
         case JNI_EVERSION:
@@ -67,11 +102,22 @@ JNIEnv* attachJvm(int* newlyAttached)
             result = (*javaVm)->AttachCurrentThread(javaVm, &env, NULL);
             if (result != JNI_OK) {
                 logE("Attach current thread to JVM error (%d)", result);
+                env = NULL;
+                break;
+            }
+
+            __sync_add_and_fetch(&jvmAttachCount, 1);
+
+            // Keep the thread attached until it exits, unless the destructor
+            // can not be registered, then fall back to detach after callback.
+            if (pthread_setspecific(jvmThreadKey, env) != 0) {
+                logE("Register JVM detach on thread exit error");
+                *newlyAttached = 1;
             } else {
                 logV("Attached current thread to JVM in success");
-                *newlyAttached = 1;
             }
             break;
+
         case JNI_ERR:
         default:
             logE("Get JNIEnv for current thread error");
@@ -136,6 +182,64 @@ int callVoidMethod(JNIEnv* env, jclass jcls, jobject jobj, const char* methodNam
     return 0;
 }
 
+/*
+ * Callback threads stay attached, so an exception thrown by an application
+ * handler must not be left pending for the next JNI call on the thread.
+ */
+static
+int upcallFailed(JNIEnv* env)
+{
+    if (!(*env)->ExceptionCheck(env))
+        return 0;
+
+    (*env)->ExceptionDescribe(env);
+    (*env)->ExceptionClear(env);
+    return 1;
+}
+
+int callVoidMethodById(JNIEnv* env, jobject jobj, jmethodID method, ...)
+{
+    va_list args;
+
+    if (!method)
+        return 0;
+
+    traceScope("upcall");
+
+    va_start(args, method);
+    (*env)->CallVoidMethodV(env, jobj, method, args);
+    va_end(args);
+    return !upcallFailed(env);
+}
+
+int callBooleanMethodById(JNIEnv* env, jobject jobj, jmethodID method, jboolean* result, ...)
+{
+    va_list args;
+
+    if (!method)
+        return 0;
+
+    traceScope("upcall");
+
+    va_start(args, result);
+    *result = (*env)->CallBooleanMethodV(env, jobj, method, args);
+    va_end(args);
+    return !upcallFailed(env);
+}
+
+int callStaticObjectMethodById(JNIEnv* env, jclass clazz, jmethodID method, jobject* result, ...)
+{
+    va_list args;
+
+    if (!clazz || !method)
+        return 0;
+
+    va_start(args, result);
+    *result = (*env)->CallStaticObjectMethodV(env, clazz, method, args);
+    va_end(args);
+    return !upcallFailed(env);
+}
+
 int callIntMethod(JNIEnv *env, jclass jcls, jobject jobj, const char* methodName,
         const char* sig,  jint* result, ...)
 {
@@ -40,6 +40,8 @@ void setJvm(JavaVM* vm);
 JNIEnv* attachJvm(int* newlyAttached);
 void detachJvm(JNIEnv* env, int needDetach);
 
+jlong getJvmAttachCount(void);
+
 jclass findClass(JNIEnv* env, const char* className);
 
 int registerNativeMethods(JNIEnv* env,
@@ -56,6 +58,26 @@ int callVoidMethod(JNIEnv* env,
         ...
     );
 
+int callVoidMethodById(JNIEnv* env,
+        jobject jobj,
+        jmethodID method,
+        ...
+    );
+
+int callBooleanMethodById(JNIEnv* env,
+        jobject jobj,
+        jmethodID method,
+        jboolean* result,
+        ...
+    );
+
+int callStaticObjectMethodById(JNIEnv* env,
+        jclass clazz,
+        jmethodID method,
+        jobject* result,
+        ...
+    );
+
 int callIntMethod(JNIEnv* env,
         jclass clazz,
         jobject jobj,
@@ -22,6 +22,8 @@
 
 package org.elastos.carrier;
 
+import java.util.List;
+
 /**
  * The abstract carrier group handler class.
  */
@@ -83,4 +85,18 @@ public abstract class AbstractGroupHandler implements GroupHandler {
 	 */
 	@Override
 	public void onPeerListChanged(Group group) {}
+
+	/**
+	 * The callback function that process the peers joined or left the group.
+	 *
+	 * @param
+	 *      group       The target group that changed it's peer list
+	 * @param
+	 *      added       The peers joined the group
+	 * @param
+	 *      removed     The peers left the group
+	 */
+	@Override
+	public void onPeersDelta(Group group, List<Group.PeerInfo> added,
+							 List<Group.PeerInfo> removed) {}
 }
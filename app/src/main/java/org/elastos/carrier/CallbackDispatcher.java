@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches carrier handler events from the native carrier thread to an
+ * application executor through a bounded queue.
+ *
+ * Events are grouped into lanes by key (friend id, group id, or the empty
+ * key for node level events). Events of one lane run in posting order and
+ * never concurrently, events of different lanes may run in parallel.
+ * Once closed, queued events are dropped and new ones are refused.
+ */
+final class CallbackDispatcher {
+	private static final String TAG = "CarrierDispatcher";
+
+	static final int KIND_GENERIC  = 0;
+	static final int KIND_PRESENCE = 1;
+	static final int KIND_IDLE     = 2;
+
+	/* Max events run by one drain task before it yields the executor thread */
+	private static final int DRAIN_BATCH = 32;
+
+	private static final class Event {
+		final int kind;
+		final long seq;
+		final long postTime;
+		Runnable task;
+
+		Event(int kind, long seq, long postTime, Runnable task) {
+			this.kind = kind;
+			this.seq = seq;
+			this.postTime = postTime;
+			this.task = task;
+		}
+	}
+
+	private final class Lane implements Runnable {
+		final String key;
+		final ArrayDeque<Event> events = new ArrayDeque<Event>();
+		boolean scheduled;
+
+		Lane(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			if (drain(this))
+				schedule(this);
+		}
+	}
+
+	private final Executor executor;
+	private final int capacity;
+	private final Carrier.Options.OverflowPolicy policy;
+	private final Histogram latency;
+	private final Histogram duration;
+
+	private final Object lock = new Object();
+	private final HashMap<String, Lane> lanes = new HashMap<String, Lane>();
+	private boolean idlePending;
+	private boolean closed;
+	private long seq;
+
+	private int depth;
+	private int peakDepth;
+	private long posted;
+	private long dispatched;
+	private long dropped;
+	private long coalesced;
+	private long blocked;
+
+	CallbackDispatcher(Executor executor, int capacity, Carrier.Options.OverflowPolicy policy,
+					   Histogram latency, Histogram duration) {
+		this.executor = executor;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.latency = latency;
+		this.duration = duration;
+	}
+
+	void post(String key, int kind, Runnable task) {
+		Lane toSchedule = null;
+
+		synchronized (lock) {
+			if (closed) {
+				dropped++;
+				return;
+			}
+
+			Lane lane = lanes.get(key);
+			if (lane == null) {
+				lane = new Lane(key);
+				lanes.put(key, lane);
+			}
+
+			// Idle ticks carry no data, one pending tick is enough.
+			if (kind == KIND_IDLE) {
+				if (idlePending) {
+					coalesced++;
+					return;
+				}
+				idlePending = true;
+			}
+
+			while (depth >= capacity) {
+				if (policy == Carrier.Options.OverflowPolicy.DROP_OLDEST) {
+					dropOldest();
+					continue;
+				}
+
+				// Only the tail can be replaced, or the new presence would
+				// overtake events posted after the queued one.
+				if (kind == KIND_PRESENCE &&
+					policy == Carrier.Options.OverflowPolicy.COALESCE_PRESENCE) {
+					Event tail = lane.events.peekLast();
+					if (tail != null && tail.kind == KIND_PRESENCE) {
+						tail.task = task;
+						coalesced++;
+						return;
+					}
+				}
+
+				blocked++;
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					Log.w(TAG, "Interrupted while waiting for dispatch queue, event dropped");
+					if (kind == KIND_IDLE)
+						idlePending = false;
+					dropped++;
+					return;
+				}
+
+				if (closed) {
+					dropped++;
+					return;
+				}
+
+				// the lane may have been drained and removed while waiting.
+				lane = lanes.get(key);
+				if (lane == null) {
+					lane = new Lane(key);
+					lanes.put(key, lane);
+				}
+			}
+
+			lane.events.add(new Event(kind, seq++, System.nanoTime(), task));
+			posted++;
+			if (++depth > peakDepth)
+				peakDepth = depth;
+
+			if (!lane.scheduled) {
+				lane.scheduled = true;
+				toSchedule = lane;
+			}
+		}
+
+		if (toSchedule != null)
+			schedule(toSchedule);
+	}
+
+	private void schedule(Lane lane) {
+		while (true) {
+			try {
+				executor.execute(lane);
+				return;
+			} catch (RejectedExecutionException e) {
+				Log.w(TAG, "Dispatch executor rejected events of '%s', run them inline", lane.key);
+			}
+
+			// A loop rather than recursion, the lane is finite as only the
+			// carrier thread posts.
+			if (!drain(lane))
+				return;
+		}
+	}
+
+	/*
+	 * Drop the queued events and refuse new ones, waking up the posters
+	 * waiting for room. Events already running complete.
+	 */
+	void close() {
+		synchronized (lock) {
+			if (closed)
+				return;
+
+			closed = true;
+			for (Lane lane : lanes.values())
+				lane.events.clear();
+			lanes.clear();
+			dropped += depth;
+			depth = 0;
+			idlePending = false;
+			lock.notifyAll();
+		}
+	}
+
+	/* Must be called with lock held */
+	private void dropOldest() {
+		Lane oldest = null;
+
+		for (Lane lane : lanes.values()) {
+			Event head = lane.events.peek();
+			if (head != null && (oldest == null || head.seq < oldest.events.peek().seq))
+				oldest = lane;
+		}
+
+		if (oldest == null)
+			return;
+
+		Event event = oldest.events.poll();
+		if (event.kind == KIND_IDLE)
+			idlePending = false;
+		depth--;
+		dropped++;
+		if (oldest.events.isEmpty() && !oldest.scheduled)
+			lanes.remove(oldest.key);
+	}
+
+	/*
+	 * Run up to DRAIN_BATCH events of a lane, returns true if events are
+	 * left and the lane must be scheduled again.
+	 */
+	private boolean drain(Lane lane) {
+		for (int i = 0; i < DRAIN_BATCH; i++) {
+			Event event;
+
+			synchronized (lock) {
+				event = lane.events.poll();
+				if (event == null) {
+					lane.scheduled = false;
+					if (lanes.get(lane.key) == lane)
+						lanes.remove(lane.key);
+					return false;
+				}
+
+				if (event.kind == KIND_IDLE)
+					idlePending = false;
+				depth--;
+				lock.notifyAll();
+			}
+
+			long start = System.nanoTime();
+			latency.record(start - event.postTime);
+			try {
+				event.task.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Carrier handler event of '%s' threw %s", lane.key, e);
+			}
+			duration.record(System.nanoTime() - start);
+
+			synchronized (lock) {
+				dispatched++;
+			}
+		}
+
+		// Yield the executor thread to other lanes, keep the lane scheduled.
+		return true;
+	}
+
+	DispatchStats getStats() {
+		synchronized (lock) {
+			return new DispatchStats(depth, peakDepth, capacity, posted, dispatched,
+									 dropped, coalesced, blocked);
+		}
+	}
+}
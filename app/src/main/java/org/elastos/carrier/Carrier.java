@@ -22,21 +22,37 @@
 
 package org.elastos.carrier;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Hashtable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.elastos.carrier.exceptions.CarrierException;
 
 /**
  * The class representing Carrier node instance.
  */
-public class Carrier {
+public class Carrier implements AutoCloseable {
 	private Charset UTF8 = Charset.forName("UTF-8");
 
 	/**
@@ -54,114 +70,379 @@ public class Carrier {
 	 */
 	public static final int MAX_APP_MESSAGE_LEN = 1024;
 
+	/**
+	 * Max length of message sent with sendLargeFriendMessage.
+	 */
+	public static final int MAX_LARGE_MESSAGE_LEN = 1024 * 1024;
+
 	private static final String TAG = "CarrierCore";
+
+	/* Error codes raised by the binding itself, as ELA_GENERAL_ERROR() */
+	private static final int ERROR_INVALID_PERSISTENCE_FILE =
+		0x80000000 | (CarrierException.FACILITY_GENERAL << 24) | 0x05;
+	private static final int ERROR_LIMIT_EXCEEDED =
+		0x80000000 | (CarrierException.FACILITY_GENERAL << 24) | 0x16;
+
+	/*
+	 * Time a group unknown to the application waits to be registered, and
+	 * late events of a group left are dropped, in milliseconds
+	 */
+	private static final long GROUP_PLACEHOLDER_TTL = 60 * 1000;
+
+	/* Delays between retries of a stalled outbox flush, in milliseconds */
+	private static final long OUTBOX_RETRY_MIN = 1000;
+	private static final long OUTBOX_RETRY_MAX = 60 * 1000;
+
 	private static Carrier carrier;
 	private Thread carrierThread;
 	private CarrierHandler handler;
 	private long nativeCookie = 0;  // store the native (JNI-layered) carrier handler
 	private boolean didKill = false;
-	private Hashtable<String, Group> groups = new Hashtable<>();
+	private ResourceTracker.Handle handle;
+	private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+	/*
+	 * Groups with events but not registered yet, and groups left whose late
+	 * events are dropped, with the time they expire. Both guarded by
+	 * groupPlaceholders.
+	 */
+	private final HashMap<String, GroupPlaceholder> groupPlaceholders =
+		new HashMap<String, GroupPlaceholder>();
+	private final HashMap<String, Long> leftGroups = new HashMap<String, Long>();
+	private CallbackDispatcher dispatcher;
+	private final FriendIndex friendIndex = new FriendIndex();
+	private final boolean indexFriends;
+	private final Set<String> connectedFriends =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private int eventMask;
+	private final MessageReassembler reassembler;
+	private final FriendMessageBatcher batcher;
+	private final AtomicInteger largeMessageId = new AtomicInteger(new Random().nextInt());
+	private final MessageCompressor compressor;
+	private final boolean messageFraming;
+	private final boolean compressFriendMessages;
+	private final boolean compressGroupMessages;
+	private final Set<String> compressionPeers =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final CarrierMetrics metrics = new CarrierMetrics();
+	private final MessageOutbox outbox;
+	private final long outboxMessageTtl;
+	private final ScheduledExecutorService outboxFlusher;
+	/* Reads group peer lists again off the carrier thread, its thread exits when idle */
+	private final ThreadPoolExecutor groupPeersRefresher;
+	private final HashMap<String, ScheduledFuture<?>> outboxFlushes =
+		new HashMap<String, ScheduledFuture<?>>();
+	private final MessageOutbox.Sender outboxSender = new MessageOutbox.Sender() {
+		@Override
+		public void send(String to, byte[] message) throws CarrierException {
+			sendLargeFriendMessage(to, message);
+		}
+	};
 
 	static {
 		System.loadLibrary("carrierjni");
 	}
 
+	private static final class GroupPlaceholder {
+		final Group group;
+		final long deadline;
+
+		GroupPlaceholder(Group group, long deadline) {
+			this.group = group;
+			this.deadline = deadline;
+		}
+	}
+
+	/* Friend ids arrive as CarrierId instances interned by the native layer */
 	private static class Callbacks {
 		private List<FriendInfo> friends;
 
-		void onIdle(Carrier carrier) {
-			carrier.handler.onIdle(carrier);
+		void onIdle(final Carrier carrier) {
+			long now = System.currentTimeMillis();
+			carrier.reassembler.tick(now);
+			carrier.expireGroups(now);
+
+			if (!carrier.subscribed(Options.EVENT_IDLE))
+				return;
+
+			carrier.dispatch("", CallbackDispatcher.KIND_IDLE, new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onIdle(carrier);
+				}
+			});
 		}
 
-		void onConnection(Carrier carrier, ConnectionStatus status) {
-			carrier.handler.onConnection(carrier, status);
+		void onConnection(final Carrier carrier, final ConnectionStatus status) {
+			carrier.dispatch("", new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onConnection(carrier, status);
+				}
+			});
 		}
 
-		void onReady(Carrier carrier) {
-			carrier.handler.onReady(carrier);
+		void onReady(final Carrier carrier) {
+			carrier.dispatch("", new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onReady(carrier);
+				}
+			});
 		}
 
-		void onSelfInfoChanged(Carrier carrier, UserInfo userInfo) {
-			carrier.handler.onSelfInfoChanged(carrier, userInfo);
+		void onSelfInfoChanged(final Carrier carrier, final UserInfo userInfo) {
+			carrier.dispatch("", new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onSelfInfoChanged(carrier, userInfo);
+				}
+			});
 		}
 
-		boolean onFriendsIterated(Carrier carrier, FriendInfo info) {
+		boolean onFriendsIterated(final Carrier carrier, FriendInfo info) {
 			if (friends == null)
 				friends = new ArrayList<FriendInfo>();
 
 			if (info != null) {
 				friends.add(info);
 			} else {
-				carrier.handler.onFriends(carrier, friends);
+				final List<FriendInfo> _friends = friends;
+				if (carrier.indexFriends)
+					carrier.friendIndex.seed(_friends);
+
+				if (carrier.subscribed(Options.EVENT_FRIENDS)) {
+					carrier.dispatch("", new Runnable() {
+						@Override
+						public void run() {
+							carrier.handler.onFriends(carrier, _friends);
+						}
+					});
+				}
 				friends = null;
 			}
 			return true;
 		}
 
-		void onFriendConnection(Carrier carrier, String friendid, ConnectionStatus status) {
-			carrier.handler.onFriendConnection(carrier, friendid, status);
+		void onFriendConnection(final Carrier carrier, CarrierId id,
+								final ConnectionStatus status) {
+			final String friendId = id.toString();
+			carrier.friendIndex.updateConnection(friendId, status);
+			if (status == ConnectionStatus.Connected)
+				carrier.connectedFriends.add(friendId);
+			else
+				carrier.connectedFriends.remove(friendId);
+			carrier.negotiateCompression(friendId, status);
+			if (status == ConnectionStatus.Connected)
+				carrier.flushOutbox(friendId);
+
+			if (carrier.subscribed(Options.EVENT_FRIEND_CONNECTION)) {
+				carrier.dispatch(friendId, new Runnable() {
+					@Override
+					public void run() {
+						carrier.handler.onFriendConnection(carrier, friendId, status);
+					}
+				});
+			}
+		}
+
+		void onFriendInfoChanged(final Carrier carrier, CarrierId id, final FriendInfo info) {
+			final String friendId = id.toString();
+			carrier.friendIndex.put(info);
+
+			if (carrier.subscribed(Options.EVENT_FRIEND_INFO)) {
+				carrier.dispatch(friendId, new Runnable() {
+					@Override
+					public void run() {
+						carrier.handler.onFriendInfoChanged(carrier, friendId, info);
+					}
+				});
+			}
 		}
 
-		void onFriendInfoChanged(Carrier carrier, String friendId, FriendInfo info) {
-			carrier.handler.onFriendInfoChanged(carrier, friendId, info);
+		void onFriendPresence(final Carrier carrier, CarrierId id,
+							  final PresenceStatus presence) {
+			final String friendId = id.toString();
+			carrier.friendIndex.updatePresence(friendId, presence);
+
+			if (carrier.subscribed(Options.EVENT_FRIEND_PRESENCE)) {
+				carrier.dispatch(friendId, CallbackDispatcher.KIND_PRESENCE, new Runnable() {
+					@Override
+					public void run() {
+						carrier.handler.onFriendPresence(carrier, friendId, presence);
+					}
+				});
+			}
 		}
 
-		void onFriendPresence(Carrier carrier, String friendId, PresenceStatus presence) {
-			carrier.handler.onFriendPresence(carrier, friendId, presence);
+		void onFriendRequest(final Carrier carrier, final String userId, final UserInfo info,
+							 final String hello) {
+			carrier.dispatch(userId, new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onFriendRequest(carrier, userId, info, hello);
+				}
+			});
 		}
 
-		void onFriendRequest(Carrier carrier, String userId, UserInfo info, String hello) {
-			carrier.handler.onFriendRequest(carrier, userId, info, hello);
+		void onFriendAdded(final Carrier carrier, final FriendInfo friendInfo) {
+			carrier.friendIndex.put(friendInfo);
+
+			if (carrier.subscribed(Options.EVENT_FRIEND_ADDED)) {
+				carrier.dispatch(friendInfo.getUserId(), new Runnable() {
+					@Override
+					public void run() {
+						carrier.handler.onFriendAdded(carrier, friendInfo);
+					}
+				});
+			}
 		}
 
-		void onFriendAdded(Carrier carrier, FriendInfo friendInfo) {
-			carrier.handler.onFriendAdded(carrier, friendInfo);
+		void onFriendRemoved(final Carrier carrier, CarrierId id) {
+			final String friendId = id.toString();
+			carrier.friendIndex.remove(friendId);
+			carrier.connectedFriends.remove(friendId);
+			carrier.discardOutbox(friendId);
+			carrier.reassembler.removeFriend(friendId);
+			carrier.metrics.removeFriend(friendId);
+
+			if (carrier.subscribed(Options.EVENT_FRIEND_REMOVED)) {
+				carrier.dispatch(friendId, new Runnable() {
+					@Override
+					public void run() {
+						carrier.handler.onFriendRemoved(carrier, friendId);
+					}
+				});
+			}
 		}
 
-		void onFriendRemoved(Carrier carrier, String friendId) {
-			carrier.handler.onFriendRemoved(carrier, friendId);
+		void onFriendMessage(final Carrier carrier, CarrierId id, byte[] data) {
+			final String from = id.toString();
+			if (!carrier.messageFraming) {
+				deliverFriendMessage(carrier, from, data);
+				return;
+			}
+
+			// Batched messages are application messages as is, never framed.
+			if (MessageFraming.isFramed(data) &&
+				MessageFraming.typeOf(data) == MessageFraming.TYPE_BATCH) {
+				List<byte[]> messages = FriendMessageBatcher.unpack(data);
+				if (messages != null) {
+					for (byte[] message : messages)
+						deliverFriendMessage(carrier, from, message);
+					return;
+				}
+			}
+
+			byte[] message = carrier.decodeFriendMessage(from, data);
+			if (message != null)
+				deliverFriendMessage(carrier, from, message);
 		}
 
-		void onFriendMessage(Carrier carrier, String from, byte[] message) {
-			carrier.handler.onFriendMessage(carrier, from, message);
+		private void deliverFriendMessage(final Carrier carrier, final String from,
+										  final byte[] message) {
+			carrier.metrics.friendReceived(from, message.length);
+			if (!carrier.subscribed(Options.EVENT_FRIEND_MESSAGE))
+				return;
+
+			carrier.dispatch(from, new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onFriendMessage(carrier, from, message);
+				}
+			});
 		}
 
-		void onFriendInviteRequest(Carrier carrier, String from, String data) {
-			carrier.handler.onFriendInviteRequest(carrier, from, data);
+		void onFriendInviteRequest(final Carrier carrier, final String from, final String data) {
+			carrier.dispatch(from, new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onFriendInviteRequest(carrier, from, data);
+				}
+			});
 		}
 
-		void onGroupInvite(Carrier carrier, String from, byte[] cookie) {
-			carrier.handler.onGroupInvite(carrier, from, cookie);
+		void onGroupInvite(final Carrier carrier, CarrierId id, final byte[] cookie) {
+			final String from = id.toString();
+			carrier.dispatch(from, new Runnable() {
+				@Override
+				public void run() {
+					carrier.handler.onGroupInvite(carrier, from, cookie);
+				}
+			});
 		}
 
 		void onGroupConnected(Carrier carrier, String groupId) {
-			Group group = carrier.groups.get(groupId);
-			if (group != null)
-				group.connected();
+			final Group group = carrier.groupFor(groupId);
+			if (group == null)
+				return;
+
+			group.post(new Runnable() {
+				@Override
+				public void run() {
+					group.connected();
+				}
+			});
 		}
 
-		void onGroupMessage(Carrier carrier, String groupId, String from, byte[] message) {
-			Group group = carrier.groups.get(groupId);
-			if (group != null)
-				group.messageReceived(from, message);
+		void onGroupMessage(Carrier carrier, String groupId, CarrierId id,
+							byte[] data) {
+			final String from = id.toString();
+			final byte[] message = carrier.decodeGroupMessage(data);
+			if (message != null) {
+				final Group group = carrier.groupFor(groupId);
+				if (group == null)
+					return;
+
+				carrier.metrics.groupReceived(groupId, message.length);
+				group.post(new Runnable() {
+					@Override
+					public void run() {
+						group.messageReceived(from, message);
+					}
+				});
+			}
 		}
 
-		void onGroupTitle(Carrier carrier, String groupId, String from, String title) {
-			Group group = carrier.groups.get(groupId);
-			if (group != null)
-				group.titleChanged(from, title);
+		void onGroupTitle(Carrier carrier, String groupId, final String from, final String title) {
+			final Group group = carrier.groupFor(groupId);
+			if (group == null)
+				return;
+
+			group.post(new Runnable() {
+				@Override
+				public void run() {
+					group.titleChanged(from, title);
+				}
+			});
 		}
 
-		void onPeerName(Carrier carrier, String groupId, String peerId, String peerName) {
-			Group group = carrier.groups.get(groupId);
-			if (group != null)
-				group.peerNameChanged(peerId, peerName);
+		void onPeerName(Carrier carrier, String groupId, final String peerId,
+						final String peerName) {
+			final Group group = carrier.groupFor(groupId);
+			if (group == null)
+				return;
+
+			group.peerRenamed(peerId, peerName);
+			group.post(new Runnable() {
+				@Override
+				public void run() {
+					group.peerNameChanged(peerId, peerName);
+				}
+			});
 		}
 
 		void onPeerListChanged(Carrier carrier, String groupId) {
-			Group group = carrier.groups.get(groupId);
-			if (group != null)
-				group.peerListChanged();
+			final Group group = carrier.groupFor(groupId);
+			if (group == null)
+				return;
+
+			group.post(new Runnable() {
+				@Override
+				public void run() {
+					group.peerListChanged();
+				}
+			});
+			group.peersChanged();
 		}
 	}
 
@@ -176,6 +457,101 @@ public class Carrier {
 		private String persistentLocation;
 		private boolean udpEnabled;
 		private List<BootstrapNode> bootstrapNodes;
+		private Executor dispatchExecutor;
+		private int dispatchQueueCapacity = DEFAULT_DISPATCH_QUEUE_CAPACITY;
+		private OverflowPolicy dispatchOverflowPolicy = OverflowPolicy.BLOCK;
+		private int eventMask = EVENT_ALL;
+		private int reassemblyTimeout = DEFAULT_REASSEMBLY_TIMEOUT;
+		private int maxReassemblyBytes = DEFAULT_MAX_REASSEMBLY_BYTES;
+		private int messageBatchLinger = 0;
+		private boolean messageFraming = false;
+		private boolean messageCompression = false;
+		private boolean groupMessageCompression = false;
+		private byte[] compressionDictionary;
+		private int outboxCapacity = DEFAULT_OUTBOX_CAPACITY;
+		private long outboxMessageTtl = DEFAULT_OUTBOX_MESSAGE_TTL;
+		private int maxIterateInterval = 0;
+		private int friendInviteTimeout = DEFAULT_FRIEND_INVITE_TIMEOUT;
+		private int maxPendingFriendInvites = DEFAULT_MAX_PENDING_FRIEND_INVITES;
+		private boolean friendIndex = false;
+
+		/**
+		 * Default time to wait for all fragments of a large message, in milliseconds.
+		 */
+		public static final int DEFAULT_REASSEMBLY_TIMEOUT = 30 * 1000;
+
+		/**
+		 * Default max bytes of incomplete large messages buffered per friend.
+		 */
+		public static final int DEFAULT_MAX_REASSEMBLY_BYTES = 2 * MAX_LARGE_MESSAGE_LEN;
+
+		/**
+		 * Default size of the outbox log, in bytes.
+		 */
+		public static final int DEFAULT_OUTBOX_CAPACITY = 4 * MAX_LARGE_MESSAGE_LEN;
+
+		/**
+		 * Default time a message may wait in the outbox, in milliseconds.
+		 */
+		public static final long DEFAULT_OUTBOX_MESSAGE_TTL = 7L * 24 * 3600 * 1000;
+
+		/**
+		 * Default time to wait for a friend invite response, in milliseconds.
+		 */
+		public static final int DEFAULT_FRIEND_INVITE_TIMEOUT = 2 * 60 * 1000;
+
+		/**
+		 * Default max friend invites waiting for a response.
+		 */
+		public static final int DEFAULT_MAX_PENDING_FRIEND_INVITES = 1024;
+
+		/**
+		 * Handler event interest bits, used with setEventMask.
+		 */
+		public static final int EVENT_IDLE              = 1 << 0;
+		public static final int EVENT_CONNECTION        = 1 << 1;
+		public static final int EVENT_READY             = 1 << 2;
+		public static final int EVENT_SELF_INFO         = 1 << 3;
+		public static final int EVENT_FRIENDS           = 1 << 4;
+		public static final int EVENT_FRIEND_CONNECTION = 1 << 5;
+		public static final int EVENT_FRIEND_INFO       = 1 << 6;
+		public static final int EVENT_FRIEND_PRESENCE   = 1 << 7;
+		public static final int EVENT_FRIEND_REQUEST    = 1 << 8;
+		public static final int EVENT_FRIEND_ADDED      = 1 << 9;
+		public static final int EVENT_FRIEND_REMOVED    = 1 << 10;
+		public static final int EVENT_FRIEND_MESSAGE    = 1 << 11;
+		public static final int EVENT_FRIEND_INVITE     = 1 << 12;
+		public static final int EVENT_GROUP_INVITE      = 1 << 13;
+		public static final int EVENT_ALL               = (1 << 14) - 1;
+
+		/**
+		 * Default capacity of the handler event dispatch queue.
+		 */
+		public static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = 1024;
+
+		/**
+		 * What the carrier thread does when the handler event dispatch
+		 * queue is full.
+		 */
+		public enum OverflowPolicy {
+			/**
+			 * Wait until the executor has taken events off the queue, or
+			 * the node is killed.
+			 */
+			BLOCK,
+
+			/**
+			 * Discard the oldest queued event to make room.
+			 */
+			DROP_OLDEST,
+
+			/**
+			 * A friend presence event replaces the presence event at the
+			 * tail of the same friend's queued events, other events wait
+			 * as with BLOCK.
+			 */
+			COALESCE_PRESENCE
+		}
 
 		public static class BootstrapNode {
 			private String ipv4;
@@ -247,31 +623,418 @@ public class Carrier {
 		 * Setting this value to false will force carrier node to TCP only, which will
 		 * potentially slow down the message to run through.
 		 *
-		 * @param udpEnabled flag to enable or disable udp transport.
+		 * @param udpEnabled flag to enable or disable udp transport.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setUdpEnabled(boolean udpEnabled) {
+			this.udpEnabled = udpEnabled;
+			return this;
+		}
+
+		/**
+		 * Get the udp transport used or not.
+		 *
+		 * @return	The value of enable/dsiable udp transport.
+		 */
+		public boolean getUdpEnabled() {
+			return udpEnabled;
+		}
+
+		public Options setBootstrapNodes(List<BootstrapNode> bootstrapNodes) {
+			this.bootstrapNodes = bootstrapNodes;
+			return this;
+		}
+
+		public List<BootstrapNode> getBootstrapNodes() {
+			return bootstrapNodes;
+		}
+
+		/**
+		 * Set the executor to run carrier handler callbacks on.
+		 *
+		 * By default handler callbacks run on the carrier thread, inside the
+		 * native run loop. With an executor set, the carrier thread only
+		 * queues events and returns to the loop. Events of the same friend
+		 * (or group) are still delivered in order and one at a time.
+		 *
+		 * @param executor The executor to run handler callbacks, or null
+		 *                 to run them on the carrier thread.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setDispatchExecutor(Executor executor) {
+			this.dispatchExecutor = executor;
+			return this;
+		}
+
+		public Executor getDispatchExecutor() {
+			return dispatchExecutor;
+		}
+
+		/**
+		 * Set the max number of handler events queued for the dispatch
+		 * executor.
+		 *
+		 * @param capacity The queue capacity, must be positive.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setDispatchQueueCapacity(int capacity) {
+			if (capacity <= 0)
+				throw new IllegalArgumentException();
+
+			this.dispatchQueueCapacity = capacity;
+			return this;
+		}
+
+		public int getDispatchQueueCapacity() {
+			return dispatchQueueCapacity;
+		}
+
+		/**
+		 * Set what to do when the dispatch queue is full.
+		 *
+		 * @param policy The overflow policy, BLOCK by default.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setDispatchOverflowPolicy(OverflowPolicy policy) {
+			if (policy == null)
+				throw new IllegalArgumentException();
+
+			this.dispatchOverflowPolicy = policy;
+			return this;
+		}
+
+		public OverflowPolicy getDispatchOverflowPolicy() {
+			return dispatchOverflowPolicy;
+		}
+
+		/**
+		 * Set the handler events the application is interested in.
+		 *
+		 * Events not in the mask are not registered to the native carrier,
+		 * so no java objects are built and no JNI upcalls are made for them,
+		 * and the matching CarrierHandler methods are never called. Friend
+		 * connection, removal and message events are still received for the
+		 * outbox and the message framing, and the other friend events too
+		 * when the friend index is enabled, but they are not forwarded to the
+		 * handler unless in the mask. For
+		 * example, leaving out EVENT_IDLE saves one upcall per iteration of
+		 * the carrier run loop, only a housekeeping upcall once a second is
+		 * left. Group events are always delivered.
+		 *
+		 * @param mask The bitwise OR of EVENT_* values, EVENT_ALL by default.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setEventMask(int mask) {
+			this.eventMask = mask & EVENT_ALL;
+			return this;
+		}
+
+		public int getEventMask() {
+			return eventMask;
+		}
+
+		/**
+		 * Set how long to wait for the missing fragments of a large friend
+		 * message before it is discarded.
+		 *
+		 * @param timeout The timeout in milliseconds, must be positive.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setReassemblyTimeout(int timeout) {
+			if (timeout <= 0)
+				throw new IllegalArgumentException();
+
+			this.reassemblyTimeout = timeout;
+			return this;
+		}
+
+		public int getReassemblyTimeout() {
+			return reassemblyTimeout;
+		}
+
+		/**
+		 * Set the max bytes of incomplete large messages buffered per friend.
+		 * The oldest incomplete messages of the friend are discarded to stay
+		 * within the limit. Sixteen times this value bounds all friends.
+		 *
+		 * @param maxBytes The per friend limit, at least MAX_LARGE_MESSAGE_LEN.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setMaxReassemblyBytes(int maxBytes) {
+			if (maxBytes < MAX_LARGE_MESSAGE_LEN)
+				throw new IllegalArgumentException();
+
+			this.maxReassemblyBytes = maxBytes;
+			return this;
+		}
+
+		public int getMaxReassemblyBytes() {
+			return maxReassemblyBytes;
+		}
+
+		/**
+		 * Enable the framing of friend messages by this binding.
+		 *
+		 * Framed messages start with byte 0xFF. With framing enabled,
+		 * received messages starting with 0xFF are decoded as frames, and
+		 * sent messages starting with 0xFF are escaped, so friends must use
+		 * this binding with framing enabled as well. Disabled by default:
+		 * friend messages then pass through as is, as with other carrier
+		 * SDKs, and only sendLargeFriendMessage sends frames, for messages
+		 * over MAX_APP_MESSAGE_LEN. Message batching and compression need
+		 * framing and enable it too.
+		 *
+		 * @param enabled Whether to frame friend messages.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setMessageFraming(boolean enabled) {
+			this.messageFraming = enabled;
+			return this;
+		}
+
+		public boolean isMessageFraming() {
+			return messageFraming || messageCompression || messageBatchLinger > 0;
+		}
+
+		/**
+		 * Enable batching of small friend messages sent with
+		 * Carrier.sendBatchedFriendMessage.
+		 *
+		 * Messages bound for the same friend within the linger time are
+		 * packed into one carrier message, and unpacked again before they
+		 * reach the friend's onFriendMessage. The friend must use this
+		 * binding as well, see setMessageFraming.
+		 *
+		 * @param linger The max time a message waits for others to join
+		 *               its batch, in milliseconds. 0 disables batching.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setMessageBatchLinger(int linger) {
+			if (linger < 0)
+				throw new IllegalArgumentException();
+
+			this.messageBatchLinger = linger;
+			return this;
+		}
+
+		public int getMessageBatchLinger() {
+			return messageBatchLinger;
+		}
+
+		/**
+		 * Enable deflate compression of friend messages.
+		 *
+		 * Compression is negotiated per friend: messages are only compressed
+		 * for friends that enabled it too, with the same dictionary. Messages
+		 * that would not get smaller are sent as is.
+		 *
+		 * @param enabled Whether to compress friend messages.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setMessageCompression(boolean enabled) {
+			this.messageCompression = enabled;
+			return this;
+		}
+
+		public boolean isMessageCompression() {
+			return messageCompression;
+		}
+
+		/**
+		 * Enable deflate compression of group messages.
+		 *
+		 * Group messages can not be negotiated per peer, so this must only be
+		 * enabled when all group peers use this binding with compression
+		 * enabled and the same dictionary.
+		 *
+		 * @param enabled Whether to compress group messages.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setGroupMessageCompression(boolean enabled) {
+			this.groupMessageCompression = enabled;
+			return this;
+		}
+
+		public boolean isGroupMessageCompression() {
+			return groupMessageCompression;
+		}
+
+		/**
+		 * Set the preset dictionary used to compress messages, as trained by
+		 * CompressionDictionary.train. Without dictionary, short messages
+		 * seldom get smaller.
+		 *
+		 * @param dictionary The dictionary, up to 32 KB, or null for none.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setCompressionDictionary(byte[] dictionary) {
+			if (dictionary != null && dictionary.length > MessageCompressor.MAX_DICTIONARY_LEN)
+				throw new IllegalArgumentException();
+
+			this.compressionDictionary = dictionary;
+			return this;
+		}
+
+		public byte[] getCompressionDictionary() {
+			return compressionDictionary;
+		}
+
+		/**
+		 * Set the size of the outbox log kept under the persistent location,
+		 * which bounds the messages queued with Carrier.queueFriendMessage.
+		 *
+		 * @param capacity The log size in bytes, at least MAX_LARGE_MESSAGE_LEN
+		 *                 plus 64 KB, or 0 to disable the outbox.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setOutboxCapacity(int capacity) {
+			if (capacity != 0 && capacity < MAX_LARGE_MESSAGE_LEN + 64 * 1024)
+				throw new IllegalArgumentException();
+
+			this.outboxCapacity = capacity;
+			return this;
+		}
+
+		public int getOutboxCapacity() {
+			return outboxCapacity;
+		}
+
+		/**
+		 * Set the default time a message may wait in the outbox for its friend
+		 * to get connected, after which it is dropped.
+		 *
+		 * @param ttl The time to live in milliseconds.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setOutboxMessageTtl(long ttl) {
+			if (ttl <= 0)
+				throw new IllegalArgumentException();
+
+			this.outboxMessageTtl = ttl;
+			return this;
+		}
+
+		public long getOutboxMessageTtl() {
+			return outboxMessageTtl;
+		}
+
+		/**
+		 * Enable the adaptive iterate interval of the carrier run loop.
+		 *
+		 * The interval passed to Carrier.start becomes the shortest interval,
+		 * used while messages, streams or file transfers are active. While the
+		 * node is idle, the interval doubles at each iteration up to this max.
+		 * Any activity brings it back to the shortest interval at once.
+		 *
+		 * @param interval The longest interval in milliseconds, or 0 to keep
+		 *                 the interval passed to Carrier.start fixed.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setMaxIterateInterval(int interval) {
+			if (interval < 0)
+				throw new IllegalArgumentException();
+
+			this.maxIterateInterval = interval;
+			return this;
+		}
+
+		public int getMaxIterateInterval() {
+			return maxIterateInterval;
+		}
+
+		/**
+		 * Set the time to wait for a friend invite response.
+		 *
+		 * When no response arrived in time, the response handler receives a
+		 * FriendInviteResponseHandler.STATUS_TIMEOUT response, and a later
+		 * response from the friend is dropped.
+		 *
+		 * @param timeout The timeout in milliseconds, or 0 to wait forever.
+		 *
+		 * @return The current options object reference.
+		 */
+		public Options setFriendInviteTimeout(int timeout) {
+			if (timeout < 0)
+				throw new IllegalArgumentException();
+
+			this.friendInviteTimeout = timeout;
+			return this;
+		}
+
+		public int getFriendInviteTimeout() {
+			return friendInviteTimeout;
+		}
+
+		/**
+		 * Set the max friend invites waiting for a response. Carrier.inviteFriend
+		 * fails with a limit exceeded error while that many are pending.
+		 *
+		 * @param max The max pending invites, or 0 for no limit.
 		 *
 		 * @return The current options object reference.
 		 */
-		public Options setUdpEnabled(boolean udpEnabled) {
-			this.udpEnabled = udpEnabled;
+		public Options setMaxPendingFriendInvites(int max) {
+			if (max < 0)
+				throw new IllegalArgumentException();
+
+			this.maxPendingFriendInvites = max;
 			return this;
 		}
 
+		public int getMaxPendingFriendInvites() {
+			return maxPendingFriendInvites;
+		}
+
 		/**
-		 * Get the udp transport used or not.
+		 * Enable the in-memory friend index.
 		 *
-		 * @return	The value of enable/dsiable udp transport.
+		 * Once the carrier node has reported its friend list, friend queries
+		 * such as Carrier.getFriends, getFriend and isFriend are answered
+		 * from the index without crossing into native code. Keeping the
+		 * index current takes all friend events, including presence and
+		 * info changes, even when they are left out of the event mask.
+		 *
+		 * @param enabled Whether to keep a friend index.
+		 *
+		 * @return The current options object reference.
 		 */
-		public boolean getUdpEnabled() {
-			return udpEnabled;
+		public Options setFriendIndex(boolean enabled) {
+			this.friendIndex = enabled;
+			return this;
 		}
 
-		public Options setBootstrapNodes(List<BootstrapNode> bootstrapNodes) {
-			this.bootstrapNodes = bootstrapNodes;
-			return this;
+		public boolean isFriendIndex() {
+			return friendIndex;
 		}
 
-		public List<BootstrapNode> getBootstrapNodes() {
-			return bootstrapNodes;
+		/*
+		 * Friend connection, removal and message events are always
+		 * subscribed natively for the outbox and the message framing, the
+		 * other friend events only for the friend index. They are only
+		 * forwarded to the handler if asked for.
+		 */
+		int getNativeEventMask() {
+			int mask = eventMask | EVENT_FRIEND_CONNECTION | EVENT_FRIEND_REMOVED |
+				EVENT_FRIEND_MESSAGE;
+			if (friendIndex)
+				mask |= EVENT_FRIENDS | EVENT_FRIEND_INFO | EVENT_FRIEND_PRESENCE |
+					EVENT_FRIEND_ADDED;
+			return mask;
 		}
 	}
 
@@ -303,16 +1066,369 @@ public class Carrier {
 	private native boolean accept_friend(String userId);
 	private native boolean remove_friend(String userId);
 
-	private native boolean send_message(String to, byte[] message);
+	private native int send_message(String to, byte[] message);
+	private native int send_large_message(String to, int messageId, byte[] message);
 	private native boolean friend_invite(String to, String data,
 										 FriendInviteResponseHandler handler);
 	private native boolean reply_friend_invite(String from, int status, String reason,
 											   String data);
 
+	private native int get_iterate_interval();
+	private native int get_pending_invite_count();
+
 	private static native int get_error_code();
+	private static native long get_jvm_attach_count();
 
-	private Carrier(CarrierHandler handler) {
+	private Carrier(CarrierHandler handler, Options options) {
 		this.handler = handler;
+		this.eventMask = options.getEventMask();
+		this.indexFriends = options.isFriendIndex();
+		// Large messages may be escaped before they are split.
+		int maxReassemblyBytes = Math.max(options.getMaxReassemblyBytes(),
+			MAX_LARGE_MESSAGE_LEN + MessageFraming.HEADER_LEN);
+		this.reassembler = new MessageReassembler(maxReassemblyBytes,
+			(int)Math.min(Integer.MAX_VALUE, 16L * maxReassemblyBytes),
+			options.getReassemblyTimeout());
+
+		if (options.isMessageCompression() || options.isGroupMessageCompression())
+			this.compressor = new MessageCompressor(options.getCompressionDictionary());
+		else
+			this.compressor = null;
+		this.compressFriendMessages = options.isMessageCompression();
+		this.messageFraming = options.isMessageFraming();
+
+		if (options.getOutboxCapacity() > 0 && options.getPersistentLocation() != null) {
+			this.outbox = new MessageOutbox(new File(options.getPersistentLocation(),
+				MessageOutbox.FILE_NAME), options.getOutboxCapacity());
+			this.outboxFlusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CarrierOutbox");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			this.outbox = null;
+			this.outboxFlusher = null;
+		}
+		this.outboxMessageTtl = options.getOutboxMessageTtl();
+
+		this.groupPeersRefresher = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CarrierGroupPeers");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		this.groupPeersRefresher.allowCoreThreadTimeOut(true);
+		this.compressGroupMessages = options.isGroupMessageCompression();
+
+		if (options.getMessageBatchLinger() > 0)
+			this.batcher = new FriendMessageBatcher(this, options.getMessageBatchLinger());
+		else
+			this.batcher = null;
+
+		if (options.getDispatchExecutor() != null)
+			this.dispatcher = new CallbackDispatcher(options.getDispatchExecutor(),
+													 options.getDispatchQueueCapacity(),
+													 options.getDispatchOverflowPolicy(),
+													 metrics.dispatchLatency,
+													 metrics.callbackDuration);
+	}
+
+	/*
+	 * Strip this binding's framing from a received friend message, called
+	 * on the carrier thread only. Returns null while a large message is
+	 * still incomplete.
+	 */
+	private byte[] decodeFriendMessage(String from, byte[] message) {
+		if (!MessageFraming.isFramed(message))
+			return message;
+
+		switch (MessageFraming.typeOf(message)) {
+		case MessageFraming.TYPE_ESCAPED:
+			return MessageFraming.unescape(message);
+
+		case MessageFraming.TYPE_FRAGMENT:
+			message = reassembler.onFragment(from, message, System.currentTimeMillis());
+			if (message == null || !MessageFraming.isFramed(message))
+				return message;
+
+			// Large messages are escaped or compressed as a whole before they are split.
+			if (MessageFraming.typeOf(message) == MessageFraming.TYPE_ESCAPED)
+				return MessageFraming.unescape(message);
+			if (MessageFraming.typeOf(message) == MessageFraming.TYPE_COMPRESSED)
+				return decompress(from, message);
+			return message;
+
+		case MessageFraming.TYPE_COMPRESSED:
+			return decompress(from, message);
+
+		case MessageFraming.TYPE_CAPABILITIES:
+			onCapabilities(from, message);
+			return null;
+
+		default:
+			return message;
+		}
+	}
+
+	private byte[] decompress(String from, byte[] frame) {
+		if (compressor == null) {
+			Log.w(TAG, "Compressed message from %s dropped, compression disabled", from);
+			return null;
+		}
+
+		byte[] message = compressor.decompress(frame, MAX_LARGE_MESSAGE_LEN);
+		if (message == null)
+			Log.w(TAG, "Undecodable compressed message from %s dropped", from);
+		return message;
+	}
+
+	/*
+	 * Friends announce whether they take compressed messages when they get
+	 * connected, and answer the first announcement of a friend with theirs.
+	 */
+	private void negotiateCompression(String friendId, ConnectionStatus status) {
+		if (!compressFriendMessages)
+			return;
+
+		if (status == ConnectionStatus.Connected)
+			sendCapabilities(friendId);
+		else
+			compressionPeers.remove(friendId);
+	}
+
+	private void onCapabilities(String from, byte[] frame) {
+		if (!compressFriendMessages || frame.length < MessageFraming.CAPABILITIES_LEN)
+			return;
+
+		boolean deflate = (frame[2] & MessageFraming.CAP_DEFLATE) != 0 &&
+			MessageFraming.readInt(frame, 3) == compressor.getDictionaryId();
+
+		boolean known;
+		if (deflate)
+			known = !compressionPeers.add(from);
+		else
+			known = !compressionPeers.remove(from);
+
+		if (!known)
+			sendCapabilities(from);
+	}
+
+	private void sendCapabilities(String to) {
+		byte[] frame = new byte[MessageFraming.CAPABILITIES_LEN];
+		frame[0] = MessageFraming.MAGIC;
+		frame[1] = MessageFraming.TYPE_CAPABILITIES;
+		frame[2] = MessageFraming.CAP_DEFLATE;
+		MessageFraming.writeInt(frame, 3, compressor.getDictionaryId());
+
+		try {
+			sendFrame(to, frame);
+		} catch (CarrierException e) {
+			Log.e(TAG, "Send capabilities to friend %s error: %s", to, e);
+		}
+	}
+
+	/* Returns the compressed frame, or null if the message should be sent as is */
+	private byte[] compressFor(String to, byte[] message) {
+		if (!compressFriendMessages || !compressionPeers.contains(to))
+			return null;
+
+		return compressor.compress(message);
+	}
+
+	private boolean isConnected(String friendId) {
+		return connectedFriends.contains(friendId);
+	}
+
+	private boolean isDisconnected(String friendId) {
+		return !connectedFriends.contains(friendId);
+	}
+
+	/*
+	 * Flush the outbox of a friend on the outbox thread, the carrier thread
+	 * must not wait for the sends.
+	 */
+	private void flushOutbox(String friendId) {
+		if (outbox == null)
+			return;
+
+		scheduleOutboxFlush(friendId, 0);
+	}
+
+	private void scheduleOutboxFlush(final String friendId, final long delay) {
+		// Locked so that a flush rescheduling itself is always recorded last.
+		synchronized (outboxFlushes) {
+			ScheduledFuture<?> future;
+			try {
+				future = outboxFlusher.schedule(new Runnable() {
+					@Override
+					public void run() {
+						runOutboxFlush(friendId, delay);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				return;		// killed
+			}
+
+			// A new connection flushes at once, instead of waiting out a backoff.
+			ScheduledFuture<?> previous = outboxFlushes.put(friendId, future);
+			if (previous != null)
+				previous.cancel(false);
+		}
+	}
+
+	/*
+	 * A flush stops at the first failed send. While the friend stays
+	 * connected it is retried with a growing delay, reset by any progress.
+	 */
+	private void runOutboxFlush(String friendId, long delay) {
+		if (isDisconnected(friendId))
+			return;
+
+		try {
+			int count = outbox.flush(friendId, outboxSender);
+			if (count > 0)
+				Log.d(TAG, "Delivered %d queued messages to friend %s", count, friendId);
+
+			if (outbox.getPendingCount(friendId) > 0 && !isDisconnected(friendId)) {
+				if (count > 0 || delay == 0)
+					delay = OUTBOX_RETRY_MIN;
+				else
+					delay = Math.min(delay * 2, OUTBOX_RETRY_MAX);
+				scheduleOutboxFlush(friendId, delay);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Flush outbox of friend %s error: %s", friendId, e);
+		}
+	}
+
+	/* Read the peer list of a group again, off the carrier thread */
+	void refreshGroupPeers(Runnable refresh) {
+		try {
+			groupPeersRefresher.execute(refresh);
+		} catch (RejectedExecutionException e) {
+			// killed
+		}
+	}
+
+	/*
+	 * Queue messages whose deferred send failed in the outbox, in order
+	 * behind the friend's queued messages. Returns false if the outbox is
+	 * disabled, full or can not be written.
+	 */
+	boolean requeueFriendMessages(String to, List<byte[]> messages) {
+		if (outbox == null || messages == null)
+			return false;
+
+		long now = System.currentTimeMillis();
+		long deadline = outboxMessageTtl < Long.MAX_VALUE - now ?
+			now + outboxMessageTtl : Long.MAX_VALUE;
+
+		try {
+			for (byte[] message : messages) {
+				if (!outbox.offer(to, message, deadline, false, outboxSender))
+					return false;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Queue messages to friend %s error: %s", to, e);
+			return false;
+		}
+
+		if (isConnected(to))
+			scheduleOutboxFlush(to, OUTBOX_RETRY_MIN);
+		return true;
+	}
+
+	private void discardOutbox(String friendId) {
+		if (outbox == null)
+			return;
+
+		synchronized (outboxFlushes) {
+			ScheduledFuture<?> flush = outboxFlushes.remove(friendId);
+			if (flush != null)
+				flush.cancel(false);
+		}
+
+		try {
+			outbox.discard(friendId);
+		} catch (IOException e) {
+			Log.e(TAG, "Discard outbox of friend %s error: %s", friendId, e);
+		}
+	}
+
+	/*
+	 * Frame a message sent with Group.sendMessage, throws
+	 * IllegalArgumentException if it can not be framed.
+	 */
+	byte[] encodeGroupMessage(byte[] message) {
+		if (!compressGroupMessages)
+			return message;
+
+		byte[] frame = compressor.compress(message);
+		if (frame != null)
+			return frame;
+
+		if (MessageFraming.isFramed(message)) {
+			// Never sent raw, peers would take it for a frame.
+			if (message.length + MessageFraming.HEADER_LEN > MAX_APP_MESSAGE_LEN)
+				throw new IllegalArgumentException();
+			return MessageFraming.escape(message);
+		}
+
+		return message;
+	}
+
+	/* Strip the group message framing, returns null for undecodable messages */
+	private byte[] decodeGroupMessage(byte[] message) {
+		if (!compressGroupMessages || !MessageFraming.isFramed(message))
+			return message;
+
+		switch (MessageFraming.typeOf(message)) {
+		case MessageFraming.TYPE_ESCAPED:
+			return MessageFraming.unescape(message);
+
+		case MessageFraming.TYPE_COMPRESSED:
+			byte[] decoded = compressor.decompress(message, MAX_APP_MESSAGE_LEN);
+			if (decoded == null)
+				Log.w(TAG, "Undecodable compressed group message dropped");
+			return decoded;
+
+		default:
+			return message;
+		}
+	}
+
+	private boolean subscribed(int event) {
+		return (eventMask & event) != 0;
+	}
+
+	void dispatch(String key, Runnable event) {
+		dispatch(key, CallbackDispatcher.KIND_GENERIC, event);
+	}
+
+	private void dispatch(String key, int kind, Runnable event) {
+		if (dispatcher == null) {
+			long start = System.nanoTime();
+			event.run();
+			metrics.callbackDuration.record(System.nanoTime() - start);
+		} else {
+			dispatcher.post(key, kind, event);
+		}
+	}
+
+	CarrierMetrics getMetrics() {
+		return metrics;
+	}
+
+	/* Count a failed message send, and build its exception */
+	private CarrierException writeFailed(int error) {
+		metrics.writeFailed(error);
+		return CarrierException.fromErrorCode(error);
 	}
 
 	/**
@@ -325,6 +1441,20 @@ public class Carrier {
 		return "5.0/Android";
 	}
 
+	/**
+	 * Get the number of times native callback threads have been attached to
+	 * the JVM since the library was loaded.
+	 *
+	 * Native threads stay attached until they exit, so this count should stay
+	 * close to the number of native threads that have called back into java.
+	 *
+	 * @return
+	 * 		The number of JVM thread attachments.
+	 */
+	public static long getJvmAttachCount() {
+		return get_jvm_attach_count();
+	}
+
 	/**
 	 * Check if the ID is Carrier node id.
 	 *
@@ -335,11 +1465,7 @@ public class Carrier {
 	 * 		True if id is valid, otherwise false.
 	 */
 	public static boolean isValidId(String id) {
-		try {
-			return Base58.decode(id).length == 32;
-		} catch (Exception e) {
-			return false;
-		}
+		return FixedBase58.isValid(id, FixedBase58.ID_LEN);
 	}
 
 	/**
@@ -352,11 +1478,7 @@ public class Carrier {
 	 * 		True if key is valid, otherwise false.
 	 */
 	public static boolean isValidAddress(String address) {
-		try {
-			return Base58.decode(address).length == 38;
-		} catch (Exception e) {
-			return false;
-		}
+		return FixedBase58.isValid(address, FixedBase58.ADDRESS_LEN);
 	}
 
 	/**
@@ -369,16 +1491,7 @@ public class Carrier {
 	 * 		User id if address is valid, otherwise null
 	 */
 	public static String getIdFromAddress(String address) {
-		try {
-			byte[] addr = Base58.decode(address);
-
-			if (addr.length != 38)
-				return null;
-
-			return Base58.encode(Arrays.copyOf(addr, 32));
-		} catch (Exception e) {
-			return null;
-		}
+		return FixedBase58.idFromAddress(address);
 	}
 
 	/**
@@ -399,22 +1512,19 @@ public class Carrier {
 
 		if (carrier == null) {
 			Callbacks callbacks = new Callbacks();
-			Carrier tmp = new Carrier(handler);
+			Carrier tmp = new Carrier(handler, options);
 
 			if (!tmp.native_init(options, callbacks))
 				throw CarrierException.fromErrorCode(get_error_code());
 
+			tmp.rehydrateGroups();
+			tmp.handle = ResourceTracker.track(tmp, "Carrier", null);
+
 			Log.i(TAG, "Carrier node instance created");
 			carrier = tmp;
   		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		kill();
-		super.finalize();
-	}
-
 	/**
 	 * Get a carrier node singleton instance.
 	 *
@@ -430,7 +1540,8 @@ public class Carrier {
 	 * to network is successful, carrier node starts working.
 	 *
 	 * @param
-	 * 		iterateInterval		Internal loop interval, in milliseconds.
+	 * 		iterateInterval		Internal loop interval, in milliseconds. The shortest
+	 * 							interval when Options.setMaxIterateInterval is set.
 	 */
 	public void start(final int iterateInterval) {
 		if (carrierThread == null) {
@@ -439,7 +1550,7 @@ public class Carrier {
 				public void run() {
 					Log.i(TAG, "Native carrier node started");
 					if (!carrier.native_run(iterateInterval)) {
-						Log.e(TAG, "Native carrier node started error(" + get_error_code() + ")");
+						Log.e(TAG, "Native carrier node started error(%d)", get_error_code());
 						return;
 					}
 					Log.i(TAG, "Native carrier node stoped");
@@ -459,7 +1570,18 @@ public class Carrier {
 		if (!didKill) {
 
 			Log.i(TAG, "Killing Carrier node instance ...");
+			if (handle != null)
+				handle.closed();
+			// Wakes up the carrier thread if blocked on a full dispatch queue.
+			if (dispatcher != null)
+				dispatcher.close();
+			if (batcher != null)
+				batcher.shutdown();
+
 			native_kill();
+			friendIndex.reset();
+			connectedFriends.clear();
+			compressionPeers.clear();
 			didKill = true;
 			carrier = null;
 
@@ -471,11 +1593,88 @@ public class Carrier {
 				}
 				carrierThread = null;
 			}
+			reassembler.clear();
+			groupPeersRefresher.shutdownNow();
+
+			if (outbox != null) {
+				outboxFlusher.shutdownNow();
+				synchronized (outboxFlushes) {
+					outboxFlushes.clear();
+				}
+				outbox.close();
+			}
 
 			Log.i(TAG, "Carrier instance killed");
 		}
 	}
 
+	/**
+	 * Same as kill, for use with try-with-resources.
+	 */
+	@Override
+	public void close() {
+		kill();
+	}
+
+	/**
+	 * Get the metrics of the handler event dispatch queue.
+	 *
+	 * @return
+	 * 		The snapshot of dispatch queue metrics, all zero when no dispatch
+	 * 		executor is set in options.
+	 */
+	public DispatchStats getDispatchStats() {
+		if (dispatcher == null)
+			return new DispatchStats(0, 0, 0, 0, 0, 0, 0, 0);
+
+		return dispatcher.getStats();
+	}
+
+	/**
+	 * Get a snapshot of the node metrics: messages and bytes exchanged per
+	 * friend and per group, failed sends by error code, handler dispatch
+	 * latency and callback time, along with the run loop interval and the
+	 * dispatch and compression metrics.
+	 *
+	 * @return
+	 * 		The metrics snapshot.
+	 */
+	public CarrierStats getStats() {
+		return new CarrierStats(metrics.getFriendTraffic(), metrics.getGroupTraffic(),
+								metrics.getWriteErrors(), metrics.dispatchLatency.snapshot(),
+								metrics.callbackDuration.snapshot(), getIterateInterval(),
+								getDispatchStats(), getCompressionStats());
+	}
+
+	/**
+	 * Get the current interval of the carrier run loop.
+	 *
+	 * @return
+	 * 		The interval in milliseconds, between the interval passed to start
+	 * 		and the max iterate interval when the adaptive interval is enabled.
+	 * 		0 if the node is not running.
+	 */
+	public int getIterateInterval() {
+		if (didKill)
+			return 0;
+
+		return get_iterate_interval();
+	}
+
+	/**
+	 * Get the metrics of friend and group message compression.
+	 *
+	 * @return
+	 * 		The snapshot of compression metrics, all zero when compression
+	 * 		is not enabled in options.
+	 */
+	public CompressionStats getCompressionStats() {
+		if (compressor == null)
+			return new CompressionStats(0, 0, 0, 0, 0, 0, 0, 0);
+
+		return compressor.getStats();
+	}
+
 	/**
 	 * Get node address associated with the carrier node instance.
 	 *
@@ -487,7 +1686,7 @@ public class Carrier {
 		if (address == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Current carrier address: " + address);
+		Log.d(TAG, "Current carrier address: %s", address);
 		return address;
 	}
 
@@ -502,7 +1701,7 @@ public class Carrier {
 		if (nodeId == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Current carrier NodeId: " + nodeId);
+		Log.d(TAG, "Current carrier NodeId: %s", nodeId);
 		return nodeId;
 	}
 
@@ -514,7 +1713,7 @@ public class Carrier {
 	 */
 	public String getUserId() throws CarrierException {
 		String userId = getNodeId();
-		Log.d(TAG, "Current carrier userId: " + userId);
+		Log.d(TAG, "Current carrier userId: %s", userId);
 		return userId;
 	}
 
@@ -595,7 +1794,7 @@ public class Carrier {
 		if (userInfo == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Current user information: " + userInfo);
+		Log.d(TAG, "Current user information: %s", userInfo);
 		return userInfo;
 	}
 
@@ -616,7 +1815,7 @@ public class Carrier {
 		if (!set_presence(presence))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Current presence updated to be " + presence);
+		Log.d(TAG, "Current presence updated to be %s", presence);
 	}
 
 	/**
@@ -630,7 +1829,7 @@ public class Carrier {
 		if (presence == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Current presence " + presence);
+		Log.d(TAG, "Current presence %s", presence);
 		return presence;
 	}
 
@@ -658,6 +1857,14 @@ public class Carrier {
 	 * 		CarrierException
 	 */
 	public List<FriendInfo> getFriends() throws CarrierException {
+		if (friendIndex.isSeeded()) {
+			List<FriendInfo> snapshot = friendIndex.getSnapshot();
+			List<FriendInfo> friends = new ArrayList<FriendInfo>(snapshot.size());
+			for (FriendInfo info : snapshot)
+				friends.add(FriendIndex.copyOf(info));
+			return friends;
+		}
+
 		List<FriendInfo> friends = new ArrayList<FriendInfo>();
 
 		boolean result = get_friends(new FriendsIterator() {
@@ -673,13 +1880,110 @@ public class Carrier {
 		if (!result)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Current user's friends listed below: +++++>>");
-		for (FriendInfo friend: friends) {
-			Log.d(TAG, friend.toString());
+		Log.d(TAG, "Current user's friends listed: %d", friends.size());
+		return friends;
+	}
+
+	/**
+	 * Visit current user's friends one by one.
+	 *
+	 * Friends are streamed to the visitor as they are read, so memory use
+	 * stays constant however long the friend list is. The visitor can stop
+	 * the iteration at any friend by returning false.
+	 *
+	 * @param
+	 * 		visitor		The visitor to receive each friend
+	 *
+	 * @return
+	 * 		The number of friends visited.
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public int visitFriends(final FriendVisitor visitor) throws CarrierException {
+		if (visitor == null)
+			throw new IllegalArgumentException();
+
+		final int[] visited = new int[1];
+
+		if (friendIndex.isSeeded()) {
+			for (FriendInfo info : friendIndex.getSnapshot()) {
+				visited[0]++;
+				if (!visitor.onFriend(FriendIndex.copyOf(info)))
+					break;
+			}
+			return visited[0];
+		}
+
+		boolean result = get_friends(new FriendsIterator() {
+			public boolean onIterated(FriendInfo info, Object context) {
+				if (info == null)
+					return false;
+
+				visited[0]++;
+				return visitor.onFriend(info);
+			}
+		}, null);
+
+		if (!result)
+			throw CarrierException.fromErrorCode(get_error_code());
+
+		return visited[0];
+	}
+
+	/**
+	 * Get a read-only snapshot of current user's friend list.
+	 *
+	 * With the friend index enabled, see Options.setFriendIndex, once the
+	 * carrier node has reported its friend list the snapshot is served
+	 * from the in-memory friend index without crossing into native
+	 * code, and the same list instance is returned until the friend list
+	 * changes. The returned list and its FriendInfo objects are shared and
+	 * must not be modified.
+	 *
+	 * @return
+	 * 		The unmodifiable list of friend information.
+	 *
+	 * @throws
+	 * 		CarrierException
+	 */
+	public List<FriendInfo> getFriendsSnapshot() throws CarrierException {
+		if (friendIndex.isSeeded())
+			return friendIndex.getSnapshot();
+
+		return Collections.unmodifiableList(getFriends());
+	}
+
+	/**
+	 * Get specified friend information.
+	 *
+	 * @param
+	 * 		userId		The user identifier of friend
+	 *
+	 * @return
+	 * 		The friend information.
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public FriendInfo getFriend(String userId) throws CarrierException {
+		if (userId == null || userId.length() == 0)
+			throw new IllegalArgumentException();
+
+		if (friendIndex.isSeeded()) {
+			FriendInfo friendInfo = friendIndex.get(userId);
+			if (friendInfo != null)
+				return FriendIndex.copyOf(friendInfo);
 		}
-		Log.d(TAG, "<<++++++++");
 
-		return friends;
+		FriendInfo friendInfo = get_friend(userId);
+		if (friendInfo == null)
+			throw CarrierException.fromErrorCode(get_error_code());
+
+		Log.d(TAG, "The information of friend %s: %s", userId, friendInfo);
+		return friendInfo;
 	}
 
 	/**
@@ -695,16 +1999,11 @@ public class Carrier {
 	 * 		IllegalArgumentException
 	 * 		CarrierException
 	 */
-	public FriendInfo getFriend(String userId) throws CarrierException {
-		if (userId == null || userId.length() == 0)
+	public FriendInfo getFriend(CarrierId userId) throws CarrierException {
+		if (userId == null)
 			throw new IllegalArgumentException();
 
-		FriendInfo friendInfo = get_friend(userId);
-		if (friendInfo == null)
-			throw CarrierException.fromErrorCode(get_error_code());
-
-		Log.d(TAG, "The information of friend " + userId + ": " + friendInfo);
-		return friendInfo;
+		return getFriend(userId.toString());
 	}
 
 	/**
@@ -730,7 +2029,9 @@ public class Carrier {
 		if (!label_friend(userId, label))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Label friend " + userId + " as  " + label);
+		friendIndex.updateLabel(userId, label);
+
+		Log.d(TAG, "Label friend %s as %s", userId, label);
 	}
 
 	/**
@@ -750,9 +2051,32 @@ public class Carrier {
 		if (userId == null || userId.length() == 0)
 			throw new IllegalArgumentException();
 
+		if (friendIndex.isSeeded())
+			return friendIndex.contains(userId);
+
 		return is_friend(userId);
 	}
 
+	/**
+	 * Check if the user ID is friend.
+	 *
+	 * @param
+	 * 		userId 		The userId to check
+	 *
+	 * @return
+	 * 		True if the user is a friend, or false if not
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public boolean isFriend(CarrierId userId) throws CarrierException {
+		if (userId == null)
+			throw new IllegalArgumentException();
+
+		return isFriend(userId.toString());
+	}
+
 	/**
 	 * Add friend by sending a new friend request.
 	 *
@@ -772,13 +2096,12 @@ public class Carrier {
 		if (address == null || address.length() == 0)
 			throw new IllegalArgumentException();
 
-		Log.d(TAG, "Attempt to add " + address + " to be friend by greeting with (" +
-				hello + ")");
+		Log.d(TAG, "Attempt to add %s to be friend by greeting with (%s)", address, hello);
 
 		if (!add_friend(address, hello))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Added friend " + address + " success");
+		Log.d(TAG, "Added friend %s success", address);
 	}
 
 	/**
@@ -799,7 +2122,7 @@ public class Carrier {
 		if (!accept_friend(userId))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Accepted friend request from " + userId);
+		Log.d(TAG, "Accepted friend request from %s", userId);
 	}
 
 	/**
@@ -821,7 +2144,24 @@ public class Carrier {
 		if (!remove_friend(userId))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Friend " + userId + " was removed");
+		Log.d(TAG, "Friend %s was removed", userId);
+	}
+
+	/**
+	 * Remove a friend.
+	 *
+	 * @param
+	 * 		userId	The target user id to remove friendship
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public void removeFriend(CarrierId userId) throws CarrierException {
+		if (userId == null)
+			throw new IllegalArgumentException();
+
+		removeFriend(userId.toString());
 	}
 
 	/**
@@ -854,6 +2194,12 @@ public class Carrier {
 	 * The message length may not exceed MAX_APP_MESSAGE_LEN, and message itself
 	 * should be text-formatted. Larger messages must be split by application
 	 * and sent as separate messages. Other nodes can reassemble the fragments.
+	 * The message is deflated on the way when the friend negotiated message
+	 * compression, see Options.setMessageCompression. With message framing
+	 * enabled, a message starting with byte 0xFF gets a two byte escape
+	 * header, and is sent as a large message when it no longer fits, see
+	 * Options.setMessageFraming and sendLargeFriendMessage. Otherwise the
+	 * message is sent as is.
 	 *
 	 * @param
 	 * 		to 			The target id
@@ -869,10 +2215,280 @@ public class Carrier {
 				message == null || message.length == 0)
 			throw new IllegalArgumentException();
 
-		if (!send_message(to, message))
-			throw CarrierException.fromErrorCode(get_error_code());
+		int length = message.length;
+		byte[] frame = compressFor(to, message);
+		if (frame != null) {
+			message = frame;
+		} else if (messageFraming && MessageFraming.isFramed(message)) {
+			// Never sent raw, the friend would take it for a frame.
+			if (message.length <= MAX_APP_MESSAGE_LEN &&
+				message.length + MessageFraming.HEADER_LEN > MAX_APP_MESSAGE_LEN) {
+				sendLargeFriendMessage(to, message);
+				return;
+			}
+			message = MessageFraming.escape(message);
+		}
+
+		int rc = send_message(to, message);
+		if (rc < 0)
+			throw writeFailed(rc);
+
+		metrics.friendSent(to, 1, length);
+
+		if (Log.isLoggable(Log.DEBUG))
+			Log.d(TAG, "Send %d bytes message to friend %s", message.length, to);
+	}
+
+	/**
+	 * Send a message to a friend.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public void sendFriendMessage(CarrierId to, String message) throws CarrierException {
+		if (to == null)
+			throw new IllegalArgumentException();
+
+		sendFriendMessage(to.toString(), message);
+	}
+
+	/**
+	 * Send a message to a friend.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public void sendFriendMessage(CarrierId to, byte[] message) throws CarrierException {
+		if (to == null)
+			throw new IllegalArgumentException();
+
+		sendFriendMessage(to.toString(), message);
+	}
+
+	/**
+	 * Send a small message to a friend through the message batcher.
+	 *
+	 * With batching enabled in Options, the message is queued and sent later
+	 * together with other messages to the same friend, within the configured
+	 * linger time. Errors of the deferred send are only logged. Messages too
+	 * long to share a carrier message are sent at once, as are all messages
+	 * when batching is disabled.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public void sendBatchedFriendMessage(String to, byte[] message) throws CarrierException {
+		if (to == null || to.length() == 0 ||
+				message == null || message.length == 0)
+			throw new IllegalArgumentException();
+
+		if (batcher == null || message.length > FriendMessageBatcher.MAX_BATCHED_MESSAGE_LEN) {
+			sendLargeFriendMessage(to, message);
+			return;
+		}
+
+		batcher.queue(to, message);
+	}
+
+	/**
+	 * Send the pending batched messages to a friend right away.
+	 *
+	 * Batches that fail to send, here or after their linger time, are
+	 * queued in the outbox when it is enabled, see queueFriendMessage.
+	 * Otherwise they are lost, and only the errors of the batches sent by
+	 * this call are reported.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException if a batch was lost
+	 */
+	public void flushBatchedFriendMessages(String to) throws CarrierException {
+		if (to == null || to.length() == 0)
+			throw new IllegalArgumentException();
+
+		if (batcher != null) {
+			CarrierException e = batcher.flush(to);
+			if (e != null)
+				throw e;
+		}
+	}
+
+	/* Send a frame built by this binding, bypassing the plain message escaping */
+	void sendFrame(String to, byte[] frame) throws CarrierException {
+		int rc = send_message(to, frame);
+		if (rc < 0)
+			throw writeFailed(rc);
+	}
+
+	/**
+	 * Send a message of up to MAX_LARGE_MESSAGE_LEN bytes to a friend.
+	 *
+	 * Messages over MAX_APP_MESSAGE_LEN are split into fragments that are
+	 * all sent at once, without waiting for each other. The friend must use
+	 * this binding with message framing enabled: fragments are reassembled
+	 * before the message is delivered to its onFriendMessage, see
+	 * Options.setMessageFraming. Incomplete messages are discarded
+	 * after the reassembly timeout set in Options.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public void sendLargeFriendMessage(String to, byte[] message) throws CarrierException {
+		if (to == null || to.length() == 0 ||
+				message == null || message.length == 0 || message.length > MAX_LARGE_MESSAGE_LEN)
+			throw new IllegalArgumentException();
+
+		if (message.length <= MAX_APP_MESSAGE_LEN &&
+			(!messageFraming || !MessageFraming.isFramed(message) ||
+			 message.length + MessageFraming.HEADER_LEN <= MAX_APP_MESSAGE_LEN)) {
+			sendFriendMessage(to, message);
+			return;
+		}
+
+		// Whole messages are compressed or escaped, never single fragments.
+		int length = message.length;
+		byte[] frame = compressFor(to, message);
+		if (frame != null && frame.length <= MAX_APP_MESSAGE_LEN) {
+			sendFrame(to, frame);
+			metrics.friendSent(to, 1, length);
+			return;
+		}
+
+		if (frame != null)
+			message = frame;
+		else if (MessageFraming.isFramed(message))
+			message = MessageFraming.escape(message);
+
+		int rc = send_large_message(to, largeMessageId.getAndIncrement(), message);
+		if (rc < 0)
+			throw writeFailed(rc);
+
+		metrics.friendSent(to, 1, length);
+
+		if (Log.isLoggable(Log.DEBUG))
+			Log.d(TAG, "Send %d bytes large message to friend %s", message.length, to);
+	}
+
+	/**
+	 * Send a message to a friend, or queue it until the friend gets connected.
+	 *
+	 * The message is sent at once when the friend is connected and has no
+	 * message waiting in the outbox. Otherwise it is stored in the outbox
+	 * log under the persistent location, and delivered after the older
+	 * messages of the same friend when the friend gets connected, even
+	 * after a restart. Delivery runs on a background thread, and is retried
+	 * with a growing delay after a send error while the friend stays
+	 * connected. Messages are dropped when their friend is removed
+	 * or after the default outbox time to live set in Options.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application, up to
+	 * 					MAX_LARGE_MESSAGE_LEN bytes
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		IllegalStateException if the outbox is disabled
+	 * 		CarrierException if the outbox is full or can not be written
+	 */
+	public void queueFriendMessage(String to, byte[] message) throws CarrierException {
+		queueFriendMessage(to, message, outboxMessageTtl);
+	}
+
+	/**
+	 * Send a message to a friend, or queue it until the friend gets connected.
+	 *
+	 * Like queueFriendMessage(String, byte[]), with the time the message
+	 * may wait in the outbox.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application, up to
+	 * 					MAX_LARGE_MESSAGE_LEN bytes
+	 * @param
+	 * 		ttl			The time to live of the queued message, in milliseconds
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		IllegalStateException if the outbox is disabled
+	 * 		CarrierException if the outbox is full or can not be written
+	 */
+	public void queueFriendMessage(String to, byte[] message, long ttl) throws CarrierException {
+		if (to == null || to.length() == 0 || message == null || message.length == 0 ||
+				message.length > MAX_LARGE_MESSAGE_LEN || ttl <= 0)
+			throw new IllegalArgumentException();
+
+		if (outbox == null)
+			throw new IllegalStateException("Outbox disabled");
+
+		boolean connected = isConnected(to);
+		long now = System.currentTimeMillis();
+		long deadline = ttl < Long.MAX_VALUE - now ? now + ttl : Long.MAX_VALUE;
+
+		boolean accepted;
+		try {
+			accepted = outbox.offer(to, message, deadline, connected, outboxSender);
+		} catch (IOException e) {
+			throw CarrierException.fromErrorCode(ERROR_INVALID_PERSISTENCE_FILE, e);
+		}
+
+		if (!accepted)
+			throw CarrierException.fromErrorCode(ERROR_LIMIT_EXCEEDED, "Outbox full");
+	}
+
+	/**
+	 * Get the number of messages waiting in the outbox for a friend.
+	 *
+	 * @param
+	 * 		friendId	The friend id
+	 *
+	 * @return
+	 * 		The number of queued messages, 0 if the outbox is disabled
+	 *
+	 * @throws
+	 * 		CarrierException
+	 */
+	public int getQueuedMessageCount(String friendId) throws CarrierException {
+		if (friendId == null || friendId.length() == 0)
+			throw new IllegalArgumentException();
+
+		if (outbox == null)
+			return 0;
 
-		Log.d(TAG, "Send " + message.length + " bytes message to friend " + to);
+		try {
+			return outbox.getPendingCount(friendId);
+		} catch (IOException e) {
+			throw CarrierException.fromErrorCode(ERROR_INVALID_PERSISTENCE_FILE, e);
+		}
 	}
 
 	/**
@@ -881,6 +2497,9 @@ public class Carrier {
 	 * Application can attach the application defined data with in the invite
 	 * request, and the data will send to target friend.
 	 *
+	 * The handler is called once, with the friend response or with a timeout
+	 * response if none arrived within Options.setFriendInviteTimeout.
+	 *
 	 * @param
 	 * 		to			The target id
 	 * @param
@@ -899,12 +2518,44 @@ public class Carrier {
 				data == null || data.length() == 0 || handler == null)
 			throw new IllegalArgumentException();
 
-		Log.d(TAG, "Inviting friend " + to + "with greet data " + data);
+		Log.d(TAG, "Inviting friend %s with greet data %s", to, data);
 
 		if (!friend_invite(to, data, handler))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Send friend invite request to " + to);
+		Log.d(TAG, "Send friend invite request to %s", to);
+	}
+
+	/**
+	 * Send invite request to a friend.
+	 *
+	 * @param
+	 * 		to			The target id
+	 * @param
+	 * 		data 		The application defined data send to target user
+	 * @param
+	 * 		handler	   	The handler to receive invite reponse
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 * 		CarrierException
+	 */
+	public void inviteFriend(CarrierId to, String data, FriendInviteResponseHandler handler)
+			throws CarrierException {
+		if (to == null)
+			throw new IllegalArgumentException();
+
+		inviteFriend(to.toString(), data, handler);
+	}
+
+	/**
+	 * Get the number of friend invites waiting for a response.
+	 *
+	 * @return
+	 * 		The number of pending friend invites.
+	 */
+	public int getPendingFriendInviteCount() {
+		return get_pending_invite_count();
 	}
 
 	/**
@@ -932,20 +2583,20 @@ public class Carrier {
 			throw new IllegalArgumentException();
 
 		if (status == 0)
-			Log.d(TAG, String.format("Attempt to confirm friend invite to %s with data [%s]",
-					to, data));
+			Log.d(TAG, "Attempt to confirm friend invite to %s with data [%s]", to, data);
 		else
-			Log.d(TAG, String.format("Attempt to refuse friend invite to %s with status %d," +
-					"and reason %s", to, status, reason));
+			Log.d(TAG, "Attempt to refuse friend invite to %s with status %d, " +
+					"and reason %s",
+					to, status, reason);
 
 		if (!reply_friend_invite(to, status, reason, data))
 			throw CarrierException.fromErrorCode(get_error_code());
 
 		if (status == 0)
-			Log.d(TAG, String.format("Confirmed friend invite to %s with data [%s]", to, data));
+			Log.d(TAG, "Confirmed friend invite to %s with data [%s]", to, data);
 		else
-			Log.d(TAG, String.format("Refused friend invite to %s with status %d and " +
-					"reason %s", to, status, reason));
+			Log.d(TAG, "Refused friend invite to %s with status %d and reason %s",
+					to, status, reason);
 	}
 
 	/**
@@ -961,9 +2612,7 @@ public class Carrier {
 	 * 		CarrierException
 	 */
 	public Group newGroup(GroupHandler handler) throws CarrierException {
-		Group group = new Group(this, handler);
-		groups.put(group.getId(), group);
-		return group;
+		return register(new Group(this, handler), handler);
 	}
 
 	/**
@@ -992,9 +2641,7 @@ public class Carrier {
 				friendId.length() == 0 || cookie.length == 0)
 			throw new IllegalArgumentException();
 
-		Group group = new Group(this, handler, friendId, cookie);
-		groups.put(group.getId(), group);
-		return group;
+		return register(new Group(this, handler, friendId, cookie), handler);
 	}
 
 	/**
@@ -1011,16 +2658,24 @@ public class Carrier {
 		if (group == null)
 			throw new IllegalArgumentException();
 
-		Group tmp = groups.remove(group.getId());
-		if (tmp == null)
-			throw new IllegalArgumentException();
+		// Marked left together, so that late events do not bring the group back.
+		synchronized (groupPlaceholders) {
+			if (groups.remove(group.getId()) == null)
+				throw new IllegalArgumentException();
+
+			leftGroups.put(group.getId(), System.currentTimeMillis() + GROUP_PLACEHOLDER_TTL);
+		}
 
 		try {
 			group.leave();
 		} catch (CarrierException e) {
-			groups.put(group.getId(), group);
+			synchronized (groupPlaceholders) {
+				leftGroups.remove(group.getId());
+				groups.put(group.getId(), group);
+			}
 			throw e;
 		}
+		metrics.removeGroup(group.getId());
 	}
 
 	/**
@@ -1032,4 +2687,118 @@ public class Carrier {
 	public Collection<Group> getGroups() {
 		return Collections.unmodifiableCollection(groups.values());
 	}
+
+	/**
+	 * Get a group by its id.
+	 *
+	 * Groups restored from the persistent data when the carrier node was
+	 * created have no handler, their events are kept until one is set with
+	 * Group.setHandler.
+	 *
+	 * @param
+	 * 		groupId		The group id
+	 *
+	 * @return
+	 * 		The group, or null if not joined in
+	 */
+	public Group getGroup(String groupId) {
+		if (groupId == null || groupId.length() == 0)
+			throw new IllegalArgumentException();
+
+		return groups.get(groupId);
+	}
+
+	/*
+	 * Group callbacks may arrive before a new or joined group is registered,
+	 * so the events of unknown groups are kept by a placeholder group
+	 * without handler, until the group is registered by newGroup or
+	 * groupJoin. Placeholders are not listed as joined groups, and expire
+	 * if never registered. Events of groups just left are dropped,
+	 * returning null.
+	 */
+	private Group groupFor(String groupId) {
+		Group group = groups.get(groupId);
+		if (group != null)
+			return group;
+
+		synchronized (groupPlaceholders) {
+			group = groups.get(groupId);
+			if (group != null)
+				return group;
+
+			if (leftGroups.containsKey(groupId))
+				return null;
+
+			GroupPlaceholder placeholder = groupPlaceholders.get(groupId);
+			if (placeholder == null) {
+				placeholder = new GroupPlaceholder(new Group(this, groupId),
+					System.currentTimeMillis() + GROUP_PLACEHOLDER_TTL);
+				groupPlaceholders.put(groupId, placeholder);
+			}
+			return placeholder.group;
+		}
+	}
+
+	/* Register a new or joined group, adopting the events kept for it */
+	private Group register(Group group, GroupHandler handler) {
+		Group existing;
+
+		synchronized (groupPlaceholders) {
+			leftGroups.remove(group.getId());
+			GroupPlaceholder placeholder = groupPlaceholders.remove(group.getId());
+
+			existing = groups.get(group.getId());
+			if (existing == null && placeholder != null) {
+				existing = placeholder.group;
+				groups.put(group.getId(), existing);
+			} else if (existing == null) {
+				groups.put(group.getId(), group);
+				return group;
+			}
+		}
+
+		existing.setHandler(handler);
+		return existing;
+	}
+
+	/* Drop the unregistered placeholders and the left group marks that expired */
+	private void expireGroups(long now) {
+		synchronized (groupPlaceholders) {
+			if (groupPlaceholders.isEmpty() && leftGroups.isEmpty())
+				return;
+
+			Iterator<Map.Entry<String, GroupPlaceholder>> it =
+				groupPlaceholders.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, GroupPlaceholder> entry = it.next();
+				if (entry.getValue().deadline - now > 0)
+					continue;
+
+				it.remove();
+				metrics.removeGroup(entry.getKey());
+				Log.w(TAG, "Group %s was never registered, its events are dropped",
+					  entry.getKey());
+			}
+
+			Iterator<Long> left = leftGroups.values().iterator();
+			while (left.hasNext()) {
+				if (left.next() - now <= 0)
+					left.remove();
+			}
+		}
+	}
+
+	/* Register the groups restored by the native carrier from its persistent data */
+	private void rehydrateGroups() {
+		String[] groupIds = Group.getGroupIds(this);
+		if (groupIds == null) {
+			Log.e(TAG, "Get groups error 0x%x", get_error_code());
+			return;
+		}
+
+		for (String groupId : groupIds)
+			groups.putIfAbsent(groupId, new Group(this, groupId));
+
+		Log.i(TAG, "%d groups restored", groupIds.length);
+	}
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.Arrays;
+
+/**
+ * An immutable carrier user id.
+ *
+ * A CarrierId holds the 32 raw bytes of the id together with its base58 form
+ * and a precomputed hash, so it is a cheap key for maps routing by friend.
+ * Callbacks from the native layer reuse the same instance for ids seen
+ * recently, and toString() always returns the same String instance.
+ */
+public final class CarrierId {
+	private final byte[] bytes;
+	private final String id;
+	private final int hash;
+
+	/* Called from JNI with ids the native carrier reported */
+	CarrierId(String id) {
+		byte[] bytes = new byte[FixedBase58.ID_LEN];
+		if (!FixedBase58.decode(id, FixedBase58.ID_LEN, bytes, 0))
+			throw new IllegalArgumentException("Invalid carrier id " + id);
+
+		this.bytes = bytes;
+		this.id = id;
+		this.hash = Arrays.hashCode(bytes);
+	}
+
+	private CarrierId(byte[] bytes, String id) {
+		this.bytes = bytes;
+		this.id = id;
+		this.hash = Arrays.hashCode(bytes);
+	}
+
+	/**
+	 * Get the CarrierId of a base58 encoded user id.
+	 *
+	 * @param
+	 * 		id			The user id
+	 *
+	 * @return
+	 * 		The CarrierId of id.
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 */
+	public static CarrierId fromString(String id) {
+		if (id == null)
+			throw new IllegalArgumentException();
+
+		return new CarrierId(id);
+	}
+
+	/**
+	 * Get the CarrierId of the raw bytes of a user id.
+	 *
+	 * @param
+	 * 		bytes		The 32 bytes of the user id
+	 *
+	 * @return
+	 * 		The CarrierId of bytes.
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 */
+	public static CarrierId fromBytes(byte[] bytes) {
+		if (bytes == null || bytes.length != FixedBase58.ID_LEN)
+			throw new IllegalArgumentException();
+
+		byte[] copy = bytes.clone();
+		return new CarrierId(copy, FixedBase58.encode(copy, 0, copy.length));
+	}
+
+	/**
+	 * Get the raw bytes of the user id.
+	 *
+	 * @return
+	 * 		A copy of the 32 bytes of the user id.
+	 */
+	public byte[] toByteArray() {
+		return bytes.clone();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+
+		if (!(o instanceof CarrierId))
+			return false;
+
+		CarrierId other = (CarrierId)o;
+		return hash == other.hash && Arrays.equals(bytes, other.bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Get the base58 encoded user id.
+	 */
+	@Override
+	public String toString() {
+		return id;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of a carrier node, see Carrier.getStats.
+ */
+final class CarrierMetrics {
+	/*
+	 * The four traffic counters of a friend or group share one padded row
+	 * per stripe, so a peer costs a few cache lines whatever the thread.
+	 */
+	static final class Traffic {
+		private static final int MESSAGES_SENT = 0;
+		private static final int BYTES_SENT = 1;
+		private static final int MESSAGES_RECEIVED = 2;
+		private static final int BYTES_RECEIVED = 3;
+		private static final int ROW = 8;
+
+		private final AtomicLongArray cells = new AtomicLongArray(Counter.STRIPES * ROW);
+
+		void sent(int messages, int bytes) {
+			int row = Counter.stripe() * ROW;
+			cells.getAndAdd(row + MESSAGES_SENT, messages);
+			cells.getAndAdd(row + BYTES_SENT, bytes);
+		}
+
+		void received(int bytes) {
+			int row = Counter.stripe() * ROW;
+			cells.getAndIncrement(row + MESSAGES_RECEIVED);
+			cells.getAndAdd(row + BYTES_RECEIVED, bytes);
+		}
+
+		private long sum(int field) {
+			long sum = 0;
+			for (int i = 0; i < Counter.STRIPES; i++)
+				sum += cells.get(i * ROW + field);
+			return sum;
+		}
+
+		TrafficStats snapshot() {
+			return new TrafficStats(sum(MESSAGES_SENT), sum(BYTES_SENT),
+									sum(MESSAGES_RECEIVED), sum(BYTES_RECEIVED));
+		}
+	}
+
+	private final ConcurrentHashMap<String, Traffic> friends =
+		new ConcurrentHashMap<String, Traffic>();
+	private final ConcurrentHashMap<String, Traffic> groups =
+		new ConcurrentHashMap<String, Traffic>();
+	private final ConcurrentHashMap<Integer, Counter> writeErrors =
+		new ConcurrentHashMap<Integer, Counter>();
+
+	/* Time events wait in the dispatch queue */
+	final Histogram dispatchLatency = new Histogram();
+
+	/* Time spent in handler callbacks */
+	final Histogram callbackDuration = new Histogram();
+
+	private static Traffic traffic(ConcurrentHashMap<String, Traffic> map, String key) {
+		Traffic traffic = map.get(key);
+		if (traffic == null) {
+			Traffic created = new Traffic();
+			traffic = map.putIfAbsent(key, created);
+			if (traffic == null)
+				traffic = created;
+		}
+		return traffic;
+	}
+
+	void friendSent(String friendId, int messages, int bytes) {
+		traffic(friends, friendId).sent(messages, bytes);
+	}
+
+	void friendReceived(String friendId, int bytes) {
+		traffic(friends, friendId).received(bytes);
+	}
+
+	void groupSent(String groupId, int bytes) {
+		traffic(groups, groupId).sent(1, bytes);
+	}
+
+	void groupReceived(String groupId, int bytes) {
+		traffic(groups, groupId).received(bytes);
+	}
+
+	void removeFriend(String friendId) {
+		friends.remove(friendId);
+	}
+
+	void removeGroup(String groupId) {
+		groups.remove(groupId);
+	}
+
+	void writeFailed(int errorCode) {
+		Counter counter = writeErrors.get(errorCode);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = writeErrors.putIfAbsent(errorCode, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.increment();
+	}
+
+	static Map<String, TrafficStats> snapshot(ConcurrentHashMap<String, Traffic> map) {
+		HashMap<String, TrafficStats> stats = new HashMap<String, TrafficStats>();
+		for (Map.Entry<String, Traffic> entry : map.entrySet())
+			stats.put(entry.getKey(), entry.getValue().snapshot());
+		return Collections.unmodifiableMap(stats);
+	}
+
+	Map<String, TrafficStats> getFriendTraffic() {
+		return snapshot(friends);
+	}
+
+	Map<String, TrafficStats> getGroupTraffic() {
+		return snapshot(groups);
+	}
+
+	Map<Integer, Long> getWriteErrors() {
+		HashMap<Integer, Long> errors = new HashMap<Integer, Long>();
+		for (Map.Entry<Integer, Counter> entry : writeErrors.entrySet())
+			errors.put(entry.getKey(), entry.getValue().get());
+		return Collections.unmodifiableMap(errors);
+	}
+}
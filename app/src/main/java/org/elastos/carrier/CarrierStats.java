@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics of a carrier node, see Carrier.getStats.
+ */
+public final class CarrierStats {
+	private final Map<String, TrafficStats> friendTraffic;
+	private final Map<String, TrafficStats> groupTraffic;
+	private final Map<Integer, Long> writeErrors;
+	private final Histogram.Snapshot dispatchLatency;
+	private final Histogram.Snapshot callbackDuration;
+	private final int iterateInterval;
+	private final DispatchStats dispatchStats;
+	private final CompressionStats compressionStats;
+
+	CarrierStats(Map<String, TrafficStats> friendTraffic, Map<String, TrafficStats> groupTraffic,
+				 Map<Integer, Long> writeErrors, Histogram.Snapshot dispatchLatency,
+				 Histogram.Snapshot callbackDuration, int iterateInterval,
+				 DispatchStats dispatchStats, CompressionStats compressionStats) {
+		this.friendTraffic = friendTraffic;
+		this.groupTraffic = groupTraffic;
+		this.writeErrors = writeErrors;
+		this.dispatchLatency = dispatchLatency;
+		this.callbackDuration = callbackDuration;
+		this.iterateInterval = iterateInterval;
+		this.dispatchStats = dispatchStats;
+		this.compressionStats = compressionStats;
+	}
+
+	/**
+	 * Get the messages exchanged with each friend.
+	 *
+	 * @return
+	 * 		The traffic by friend id.
+	 */
+	public Map<String, TrafficStats> getFriendTraffic() {
+		return friendTraffic;
+	}
+
+	/**
+	 * Get the messages exchanged in each group.
+	 *
+	 * @return
+	 * 		The traffic by group id.
+	 */
+	public Map<String, TrafficStats> getGroupTraffic() {
+		return groupTraffic;
+	}
+
+	/**
+	 * Get the failed friend and group message sends.
+	 *
+	 * @return
+	 * 		The number of failures by CarrierException error code.
+	 */
+	public Map<Integer, Long> getWriteErrors() {
+		return writeErrors;
+	}
+
+	/**
+	 * Get the time handler events waited in the dispatch queue, only
+	 * recorded when a dispatch executor is set in options.
+	 *
+	 * @return
+	 * 		The dispatch latency histogram.
+	 */
+	public Histogram.Snapshot getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	/**
+	 * Get the time spent in the carrier handler callbacks.
+	 *
+	 * @return
+	 * 		The callback duration histogram.
+	 */
+	public Histogram.Snapshot getCallbackDuration() {
+		return callbackDuration;
+	}
+
+	/**
+	 * Get the current interval of the carrier run loop.
+	 *
+	 * @return
+	 * 		The interval in milliseconds.
+	 */
+	public int getIterateInterval() {
+		return iterateInterval;
+	}
+
+	public DispatchStats getDispatchStats() {
+		return dispatchStats;
+	}
+
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CarrierStats[friends:%d, groups:%d, writeErrors:%s, " +
+							 "dispatchLatency:%s, callbackDuration:%s, iterateInterval:%d]",
+							 friendTraffic.size(), groupTraffic.size(), writeErrors,
+							 dispatchLatency, callbackDuration, iterateInterval);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds preset dictionaries for message compression from sample traffic.
+ *
+ * Both ends of a conversation must set the same dictionary with
+ * Carrier.Options.setCompressionDictionary, so a dictionary is usually
+ * trained once offline and shipped with the application.
+ */
+public final class CompressionDictionary {
+	/* Length of the byte sequences counted in the samples */
+	private static final int SEGMENT_LEN = 8;
+
+	/* Maps bytes to chars one to one, to use strings as segment keys */
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private CompressionDictionary() {}
+
+	/**
+	 * Train a dictionary from typical messages.
+	 *
+	 * The byte sequences found in the most samples are kept, the most
+	 * common ones last, where deflate refers to them most cheaply.
+	 * Sequences found in a single sample are never kept.
+	 *
+	 * @param
+	 * 		samples		The sample messages, the more the better
+	 * @param
+	 * 		maxSize		The max dictionary size, up to 32 KB
+	 *
+	 * @return
+	 * 		The dictionary, possibly empty if the samples have nothing in common
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 */
+	public static byte[] train(Collection<byte[]> samples, int maxSize) {
+		if (samples == null || maxSize <= 0 || maxSize > MessageCompressor.MAX_DICTIONARY_LEN)
+			throw new IllegalArgumentException();
+
+		// Count each segment once per sample, so that a single repetitive
+		// sample does not crowd out what messages have in common.
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		HashSet<String> seen = new HashSet<String>();
+
+		for (byte[] sample : samples) {
+			if (sample == null || sample.length < SEGMENT_LEN)
+				continue;
+
+			String text = new String(sample, LATIN1);
+			seen.clear();
+			for (int i = 0; i + SEGMENT_LEN <= text.length(); i++) {
+				String segment = text.substring(i, i + SEGMENT_LEN);
+				if (seen.add(segment)) {
+					Integer count = counts.get(segment);
+					counts.put(segment, count == null ? 1 : count + 1);
+				}
+			}
+		}
+
+		List<String> segments = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() > 1)
+				segments.add(entry.getKey());
+		}
+
+		Collections.sort(segments, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int diff = counts.get(b) - counts.get(a);
+				return diff != 0 ? diff : a.compareTo(b);
+			}
+		});
+
+		// Pick the most common segments first, skipping those already
+		// covered by a picked one and chaining overlapping ones into runs.
+		StringBuilder picked = new StringBuilder();
+		List<StringBuilder> runs = new ArrayList<StringBuilder>();
+		for (String segment : segments) {
+			if (picked.length() >= maxSize)
+				break;
+
+			if (picked.indexOf(segment) >= 0)
+				continue;
+
+			int overlap = SEGMENT_LEN - 1;
+			while (overlap > 0 && !endsWith(picked, segment, overlap))
+				overlap--;
+
+			if (overlap == 0)
+				runs.add(new StringBuilder());
+
+			runs.get(runs.size() - 1).append(segment, overlap, SEGMENT_LEN);
+			picked.append(segment, overlap, SEGMENT_LEN);
+		}
+
+		// Deflate favors short distances, so the most common runs go last.
+		StringBuilder reversed = new StringBuilder(picked.length());
+		for (int i = runs.size() - 1; i >= 0; i--)
+			reversed.append(runs.get(i));
+
+		int skip = Math.max(0, reversed.length() - maxSize);
+		return reversed.substring(skip).getBytes(LATIN1);
+	}
+
+	private static boolean endsWith(StringBuilder text, String segment, int overlap) {
+		if (text.length() < overlap)
+			return false;
+
+		for (int i = 0; i < overlap; i++) {
+			if (text.charAt(text.length() - overlap + i) != segment.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
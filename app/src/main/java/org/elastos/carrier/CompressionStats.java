@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+/**
+ * A snapshot of the message compression metrics.
+ *
+ * Compares the CPU time spent on deflating and inflating messages with
+ * the bytes saved on the wire. All values are zero when message
+ * compression is not enabled in Carrier.Options.
+ */
+public final class CompressionStats {
+	private final long compressed;
+	private final long skipped;
+	private final long bytesIn;
+	private final long bytesOut;
+	private final long compressNanos;
+	private final long decompressed;
+	private final long decompressNanos;
+	private final long failures;
+
+	CompressionStats(long compressed, long skipped, long bytesIn, long bytesOut,
+					 long compressNanos, long decompressed, long decompressNanos,
+					 long failures) {
+		this.compressed = compressed;
+		this.skipped = skipped;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.compressNanos = compressNanos;
+		this.decompressed = decompressed;
+		this.decompressNanos = decompressNanos;
+		this.failures = failures;
+	}
+
+	/**
+	 * Get the number of messages sent compressed.
+	 *
+	 * @return
+	 * 		The number of compressed messages.
+	 */
+	public long getCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Get the number of messages sent as is because they were too short
+	 * or would not get smaller.
+	 *
+	 * @return
+	 * 		The number of skipped messages.
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Get the original size of the compressed messages.
+	 *
+	 * @return
+	 * 		The number of bytes before compression.
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Get the size of the compressed messages on the wire, frame headers
+	 * included.
+	 *
+	 * @return
+	 * 		The number of bytes after compression.
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * Get the bytes saved by compression.
+	 *
+	 * @return
+	 * 		The difference of bytes in and bytes out.
+	 */
+	public long getBytesSaved() {
+		return bytesIn - bytesOut;
+	}
+
+	/**
+	 * Get the time spent compressing, skipped messages included.
+	 *
+	 * @return
+	 * 		The compression time in nanoseconds.
+	 */
+	public long getCompressNanos() {
+		return compressNanos;
+	}
+
+	/**
+	 * Get the number of compressed messages received and inflated.
+	 *
+	 * @return
+	 * 		The number of decompressed messages.
+	 */
+	public long getDecompressed() {
+		return decompressed;
+	}
+
+	/**
+	 * Get the time spent decompressing.
+	 *
+	 * @return
+	 * 		The decompression time in nanoseconds.
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos;
+	}
+
+	/**
+	 * Get the number of received compressed messages that could not be
+	 * inflated, most likely because of a different dictionary.
+	 *
+	 * @return
+	 * 		The number of failures.
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CompressionStats[compressed:%d, skipped:%d, in:%d, out:%d, " +
+							 "compressNanos:%d, decompressed:%d, decompressNanos:%d, failures:%d]",
+							 compressed, skipped, bytesIn, bytesOut, compressNanos,
+							 decompressed, decompressNanos, failures);
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+/**
+ * A snapshot of the carrier handler event dispatch queue metrics.
+ *
+ * Only meaningful when a dispatch executor is set in Carrier.Options,
+ * otherwise handler events run inline on the carrier thread and all
+ * values are zero.
+ */
+public final class DispatchStats {
+	private final int depth;
+	private final int peakDepth;
+	private final int capacity;
+	private final long posted;
+	private final long dispatched;
+	private final long dropped;
+	private final long coalesced;
+	private final long blocked;
+
+	DispatchStats(int depth, int peakDepth, int capacity, long posted, long dispatched,
+				  long dropped, long coalesced, long blocked) {
+		this.depth = depth;
+		this.peakDepth = peakDepth;
+		this.capacity = capacity;
+		this.posted = posted;
+		this.dispatched = dispatched;
+		this.dropped = dropped;
+		this.coalesced = coalesced;
+		this.blocked = blocked;
+	}
+
+	/**
+	 * Get the number of events queued and not yet dispatched.
+	 *
+	 * @return
+	 * 		The current queue depth.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Get the highest queue depth seen so far.
+	 *
+	 * @return
+	 * 		The peak queue depth.
+	 */
+	public int getPeakDepth() {
+		return peakDepth;
+	}
+
+	/**
+	 * Get the queue capacity.
+	 *
+	 * @return
+	 * 		The max number of queued events.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of events accepted into the queue.
+	 *
+	 * @return
+	 * 		The number of queued events.
+	 */
+	public long getPosted() {
+		return posted;
+	}
+
+	/**
+	 * Get the number of events delivered to the handler.
+	 *
+	 * @return
+	 * 		The number of dispatched events.
+	 */
+	public long getDispatched() {
+		return dispatched;
+	}
+
+	/**
+	 * Get the number of events discarded because the queue was full.
+	 *
+	 * @return
+	 * 		The number of dropped events.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Get the number of events merged into an already queued event.
+	 *
+	 * @return
+	 * 		The number of coalesced events.
+	 */
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * Get the number of times the carrier thread waited for queue space.
+	 *
+	 * @return
+	 * 		The number of blocked posts.
+	 */
+	public long getBlocked() {
+		return blocked;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("DispatchStats[depth:%d, peak:%d, capacity:%d, posted:%d, " +
+							 "dispatched:%d, dropped:%d, coalesced:%d, blocked:%d]",
+							 depth, peakDepth, capacity, posted, dispatched,
+							 dropped, coalesced, blocked);
+	}
+}
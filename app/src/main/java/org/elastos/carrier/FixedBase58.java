@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+/**
+ * Base58 codec specialized for the fixed size carrier ids and addresses.
+ *
+ * Values are handled as big numbers in 32-bit limbs, and five base58 digits
+ * are folded into each pass over the limbs, so a 32-byte id takes nine passes
+ * where the generic Base58 takes one pass per digit. Decoding writes into the
+ * caller's buffer and validation neither allocates nor throws; the limbs live
+ * in a per-thread scratch area.
+ *
+ * The results match Base58 for every input: a string is a valid encoding of
+ * len bytes if its leading '1' digits plus the significant bytes of the rest
+ * add up to exactly len bytes.
+ */
+final class FixedBase58 {
+	static final int ID_LEN = 32;
+	static final int ADDRESS_LEN = 38;
+
+	private static final char[] ALPHABET =
+		"123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+
+	/* 58^5 fits in 30 bits, so limb * 58^5 + carry fits in a long */
+	private static final int DIGITS_PER_PASS = 5;
+	private static final long[] POWERS = { 1, 58, 58 * 58, 58 * 58 * 58, 58 * 58 * 58 * 58,
+										   58L * 58 * 58 * 58 * 58 };
+
+	private static final byte[] INDEXES = new byte[128];
+
+	private static final int MAX_LIMBS = (ADDRESS_LEN + 3) / 4;
+
+	/* Longest encodings: ceil(len * log(256) / log(58)) */
+	private static final int MAX_ID_CHARS = 44;
+	private static final int MAX_ADDRESS_CHARS = 52;
+
+	/* Digits come out five per pass, so encoding needs room to round up */
+	static final int ENCODE_BUFFER_LEN = (MAX_ADDRESS_CHARS + DIGITS_PER_PASS - 1)
+										 / DIGITS_PER_PASS * DIGITS_PER_PASS;
+
+	static {
+		for (int i = 0; i < INDEXES.length; i++)
+			INDEXES[i] = -1;
+		for (int i = 0; i < ALPHABET.length; i++)
+			INDEXES[ALPHABET[i]] = (byte)i;
+	}
+
+	private static final class Scratch {
+		final int[] limbs = new int[MAX_LIMBS];
+		final byte[] bytes = new byte[ADDRESS_LEN];
+		final char[] chars = new char[ENCODE_BUFFER_LEN];
+	}
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private FixedBase58() {
+	}
+
+	private static int maxChars(int len) {
+		return len == ID_LEN ? MAX_ID_CHARS : MAX_ADDRESS_CHARS;
+	}
+
+	/*
+	 * Parse input into limbs, big-endian, each an unsigned 32-bit value.
+	 * Returns the count of leading '1' digits, or -1 if input is not base58
+	 * or its value does not fit in the limbs.
+	 */
+	private static int parse(CharSequence input, int[] limbs, int count) {
+		int length = input.length();
+		int zeros = 0;
+
+		while (zeros < length && input.charAt(zeros) == '1')
+			zeros++;
+
+		for (int i = 0; i < count; i++)
+			limbs[i] = 0;
+
+		int i = zeros;
+		while (i < length) {
+			int n = Math.min(DIGITS_PER_PASS, length - i);
+			long carry = 0;
+
+			for (int end = i + n; i < end; i++) {
+				char c = input.charAt(i);
+				int digit = c < 128 ? INDEXES[c] : -1;
+				if (digit < 0)
+					return -1;
+				carry = carry * 58 + digit;
+			}
+
+			long multiplier = POWERS[n];
+			for (int k = count - 1; k >= 0; k--) {
+				long t = (limbs[k] & 0xFFFFFFFFL) * multiplier + carry;
+				limbs[k] = (int)t;
+				carry = t >>> 32;
+			}
+			if (carry != 0)
+				return -1;
+		}
+
+		return zeros;
+	}
+
+	/* Count the significant bytes of the limbs value */
+	private static int significantBytes(int[] limbs, int count) {
+		for (int k = 0; k < count; k++) {
+			int limb = limbs[k];
+			if (limb != 0)
+				return (count - k - 1) * 4 + 4 - Integer.numberOfLeadingZeros(limb) / 8;
+		}
+		return 0;
+	}
+
+	private static boolean parseFixed(CharSequence input, int len, int[] limbs) {
+		if (input == null || input.length() == 0 || input.length() > maxChars(len))
+			return false;
+
+		int count = (len + 3) / 4;
+		int zeros = parse(input, limbs, count);
+		return zeros >= 0 && zeros + significantBytes(limbs, count) == len;
+	}
+
+	/**
+	 * Check whether input is the base58 encoding of exactly len bytes.
+	 *
+	 * @param
+	 * 		input		The string to check
+	 * @param
+	 * 		len			ID_LEN or ADDRESS_LEN
+	 */
+	static boolean isValid(CharSequence input, int len) {
+		return parseFixed(input, len, scratch.get().limbs);
+	}
+
+	/**
+	 * Decode input of exactly len bytes into out at offset.
+	 *
+	 * @return
+	 * 		True on success, false if input is not a valid encoding of len
+	 * 		bytes, in which case out is left unchanged.
+	 */
+	static boolean decode(CharSequence input, int len, byte[] out, int offset) {
+		int[] limbs = scratch.get().limbs;
+
+		if (!parseFixed(input, len, limbs))
+			return false;
+
+		// Limbs hold (len + 3) / 4 * 4 bytes, the extra leading bytes are zero.
+		int skip = (len + 3) / 4 * 4 - len;
+		for (int b = 0; b < len; b++) {
+			int pos = b + skip;
+			out[offset + b] = (byte)(limbs[pos >> 2] >>> (24 - (pos & 3) * 8));
+		}
+		return true;
+	}
+
+	/**
+	 * Encode len bytes of in at offset into out, which must hold at least
+	 * ENCODE_BUFFER_LEN chars.
+	 *
+	 * @return
+	 * 		The number of chars written.
+	 */
+	static int encode(byte[] in, int offset, int len, char[] out) {
+		int[] limbs = scratch.get().limbs;
+		int count = (len + 3) / 4;
+		int skip = count * 4 - len;
+
+		int zeros = 0;
+		while (zeros < len && in[offset + zeros] == 0)
+			zeros++;
+
+		for (int k = 0; k < count; k++)
+			limbs[k] = 0;
+		for (int b = 0; b < len; b++) {
+			int pos = b + skip;
+			limbs[pos >> 2] |= (in[offset + b] & 0xFF) << (24 - (pos & 3) * 8);
+		}
+
+		// Digits are produced least significant first, from the end of out.
+		int end = ENCODE_BUFFER_LEN;
+		int j = end;
+		int first = 0;
+		long divisor = POWERS[DIGITS_PER_PASS];
+		while (first < count) {
+			long remainder = 0;
+			for (int k = first; k < count; k++) {
+				long t = (remainder << 32) | (limbs[k] & 0xFFFFFFFFL);
+				limbs[k] = (int)(t / divisor);
+				remainder = t % divisor;
+			}
+			while (first < count && limbs[first] == 0)
+				first++;
+
+			for (int d = 0; d < DIGITS_PER_PASS; d++) {
+				out[--j] = ALPHABET[(int)(remainder % 58)];
+				remainder /= 58;
+			}
+		}
+
+		// The last pass may leave zero digits on top.
+		while (j < end && out[j] == ALPHABET[0])
+			j++;
+		while (zeros-- > 0)
+			out[--j] = ALPHABET[0];
+
+		int chars = end - j;
+		System.arraycopy(out, j, out, 0, chars);
+		return chars;
+	}
+
+	static String encode(byte[] in, int offset, int len) {
+		char[] chars = scratch.get().chars;
+		return new String(chars, 0, encode(in, offset, len, chars));
+	}
+
+	/**
+	 * Extract the user id from an address without decoding it to a new array.
+	 *
+	 * @return
+	 * 		The encoded id, or null if address is not valid.
+	 */
+	static String idFromAddress(CharSequence address) {
+		byte[] bytes = scratch.get().bytes;
+
+		if (!decode(address, ADDRESS_LEN, bytes, 0))
+			return null;
+
+		return encode(bytes, 0, ID_LEN);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the current user's friends.
+ *
+ * The index is seeded once from the friend list the native carrier reports
+ * when it starts, and then kept current from the friend callbacks on the
+ * carrier thread. Indexed FriendInfo objects are copies that are never
+ * modified: an update replaces the entry with a new object, so lookups and
+ * list snapshots can be read without locking. Objects handed out to the
+ * application, other than the shared snapshot, must be copied.
+ */
+final class FriendIndex {
+	private final ConcurrentHashMap<String, FriendInfo> friends =
+		new ConcurrentHashMap<String, FriendInfo>();
+	private final Object lock = new Object();
+
+	private volatile boolean seeded = false;
+	private volatile List<FriendInfo> snapshot;
+
+	boolean isSeeded() {
+		return seeded;
+	}
+
+	void seed(List<FriendInfo> list) {
+		synchronized (lock) {
+			friends.clear();
+			for (FriendInfo info : list)
+				friends.put(info.getUserId(), copyOf(info));
+
+			snapshot = null;
+			seeded = true;
+		}
+	}
+
+	void reset() {
+		synchronized (lock) {
+			seeded = false;
+			friends.clear();
+			snapshot = null;
+		}
+	}
+
+	FriendInfo get(String userId) {
+		return friends.get(userId);
+	}
+
+	boolean contains(String userId) {
+		return friends.containsKey(userId);
+	}
+
+	int size() {
+		return friends.size();
+	}
+
+	List<FriendInfo> getSnapshot() {
+		List<FriendInfo> list = snapshot;
+		if (list != null)
+			return list;
+
+		synchronized (lock) {
+			if (snapshot == null)
+				snapshot = Collections.unmodifiableList(new ArrayList<FriendInfo>(friends.values()));
+
+			return snapshot;
+		}
+	}
+
+	void put(FriendInfo info) {
+		synchronized (lock) {
+			if (!seeded)
+				return;
+
+			friends.put(info.getUserId(), copyOf(info));
+			snapshot = null;
+		}
+	}
+
+	void remove(String userId) {
+		synchronized (lock) {
+			if (friends.remove(userId) != null)
+				snapshot = null;
+		}
+	}
+
+	void updatePresence(String userId, PresenceStatus presence) {
+		synchronized (lock) {
+			FriendInfo info = friends.get(userId);
+			if (info == null || info.getPresence() == presence)
+				return;
+
+			FriendInfo copy = copyOf(info);
+			copy.setPresence(presence);
+			friends.put(userId, copy);
+			snapshot = null;
+		}
+	}
+
+	void updateConnection(String userId, ConnectionStatus status) {
+		synchronized (lock) {
+			FriendInfo info = friends.get(userId);
+			if (info == null || info.getConnectionStatus() == status)
+				return;
+
+			FriendInfo copy = copyOf(info);
+			copy.setConnectionStatus(status);
+			friends.put(userId, copy);
+			snapshot = null;
+		}
+	}
+
+	void updateLabel(String userId, String label) {
+		synchronized (lock) {
+			FriendInfo info = friends.get(userId);
+			if (info == null)
+				return;
+
+			FriendInfo copy = copyOf(info);
+			copy.setLabel(label);
+			friends.put(userId, copy);
+			snapshot = null;
+		}
+	}
+
+	static FriendInfo copyOf(FriendInfo info) {
+		FriendInfo copy = new FriendInfo();
+
+		copy.setUserId(info.getUserId());
+		copy.setName(info.getName());
+		copy.setDescription(info.getDescription());
+		copy.setHasAvatar(info.hasAvatar());
+		copy.setGender(info.getGender());
+		copy.setPhone(info.getPhone());
+		copy.setEmail(info.getEmail());
+		copy.setRegion(info.getRegion());
+		copy.setLabel(info.getLabel());
+		copy.setPresence(info.getPresence());
+		copy.setConnectionStatus(info.getConnectionStatus());
+		return copy;
+	}
+}
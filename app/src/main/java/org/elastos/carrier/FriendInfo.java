@@ -42,6 +42,21 @@ public class FriendInfo extends UserInfo {
 		connection = ConnectionStatus.Disconnected;
 	}
 
+	/*
+	 * Decode the packed form built by the JNI layer, see PackedInfo.
+	 * This constructor is only called in JNI.
+	 */
+	FriendInfo(byte[] packed) {
+		this(new PackedInfo(packed));
+	}
+
+	private FriendInfo(PackedInfo in) {
+		super(in);
+		label = in.readString();
+		connection = ConnectionStatus.valueOf(in.readByte());
+		presence = PresenceStatus.valueOf(in.readByte());
+	}
+
 	/**
 	 * Set friend's label name.
 	 *
@@ -26,6 +26,11 @@ package org.elastos.carrier;
  * The interface to process the friend invite response.
  */
 public interface FriendInviteResponseHandler {
+	/**
+	 * The status of the response delivered when the friend did not answer
+	 * within the friend invite timeout.
+	 */
+	int STATUS_TIMEOUT = 1;
 
 	/**
 	 * The callback function to process the friend invite response.
@@ -33,7 +38,8 @@ public interface FriendInviteResponseHandler {
 	 * @param
 	 * 		from		The target user id who send friend invite response
 	 * @param
-	 * 		status		The status code of invite response. 0 is success, otherwise error
+	 * 		status		The status code of invite response. 0 is success, STATUS_TIMEOUT
+	 * 					if no response arrived in time, otherwise error
 	 * @param
 	 * 		reason		The error message if status is error, otherwise null
 	 * @param
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/**
+ * Packs small friend messages bound for the same friend into one carrier
+ * message.
+ *
+ * A friend's pending batch is sent when it is full, or when the linger
+ * time has passed since its first message was queued. Batches of a friend
+ * are sent in the order they were filled. A batch frame is:
+ *   magic(1) type(1) { length(2) message }+
+ */
+final class FriendMessageBatcher {
+	private static final String TAG = "CarrierBatcher";
+
+	static final int ENTRY_HEADER_LEN = 2;
+
+	/* The largest message that can be batched */
+	static final int MAX_BATCHED_MESSAGE_LEN =
+		Carrier.MAX_APP_MESSAGE_LEN - MessageFraming.HEADER_LEN - ENTRY_HEADER_LEN;
+
+	private static final class Batch {
+		final byte[] frame = new byte[Carrier.MAX_APP_MESSAGE_LEN];
+		int length = MessageFraming.HEADER_LEN;
+		int count;
+	}
+
+	/*
+	 * Batches of one friend: the one being filled, and the full or flushed
+	 * ones waiting to be sent. One thread at a time sends the ready batches
+	 * of a friend, in order.
+	 */
+	private static final class Peer {
+		Batch filling;
+		final ArrayDeque<Batch> ready = new ArrayDeque<Batch>();
+		boolean sending;
+	}
+
+	private final Carrier carrier;
+	private final long linger;
+	private final HashMap<String, Peer> peers = new HashMap<String, Peer>();
+	private final ScheduledExecutorService timer;
+
+	FriendMessageBatcher(Carrier carrier, long linger) {
+		this.carrier = carrier;
+		this.linger = linger;
+		this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CarrierMessageBatcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	void queue(final String to, byte[] message) {
+		Peer peer;
+		boolean drain;
+
+		synchronized (this) {
+			peer = peers.get(to);
+			if (peer == null) {
+				peer = new Peer();
+				peers.put(to, peer);
+			}
+
+			Batch batch = peer.filling;
+			if (batch != null && batch.length + ENTRY_HEADER_LEN + message.length > batch.frame.length) {
+				peer.ready.add(batch);
+				batch = null;
+			}
+
+			if (batch == null) {
+				final Batch created = new Batch();
+				batch = created;
+				peer.filling = created;
+				// The timer only flushes the batch it was armed for.
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(to, created);
+					}
+				}, linger, TimeUnit.MILLISECONDS);
+			}
+
+			MessageFraming.writeShort(batch.frame, batch.length, message.length);
+			System.arraycopy(message, 0, batch.frame, batch.length + ENTRY_HEADER_LEN, message.length);
+			batch.length += ENTRY_HEADER_LEN + message.length;
+			batch.count++;
+
+			drain = claim(peer);
+		}
+
+		if (drain)
+			drain(to, peer);
+	}
+
+	/*
+	 * Send the batches of a friend now. Returns the first error of the
+	 * batches sent by this call that could not be queued in the outbox,
+	 * or null.
+	 */
+	CarrierException flush(String to) {
+		return flush(to, null);
+	}
+
+	/* Send the batch being filled for a friend, if it is still the expected one */
+	private CarrierException flush(String to, Batch expected) {
+		Peer peer;
+		boolean drain;
+
+		synchronized (this) {
+			peer = peers.get(to);
+			if (peer == null)
+				return null;
+
+			if (peer.filling != null && (expected == null || peer.filling == expected)) {
+				peer.ready.add(peer.filling);
+				peer.filling = null;
+			}
+
+			drain = claim(peer);
+		}
+
+		return drain ? drain(to, peer) : null;
+	}
+
+	void flushAll() {
+		List<String> friends;
+
+		synchronized (this) {
+			friends = new ArrayList<String>(peers.keySet());
+		}
+
+		for (String to : friends)
+			flush(to);
+	}
+
+	void shutdown() {
+		flushAll();
+		timer.shutdownNow();
+	}
+
+	/* Must be called with lock held, true if the caller must send the ready batches */
+	private boolean claim(Peer peer) {
+		if (peer.sending || peer.ready.isEmpty())
+			return false;
+
+		peer.sending = true;
+		return true;
+	}
+
+	private CarrierException drain(String to, Peer peer) {
+		CarrierException error = null;
+
+		while (true) {
+			Batch batch;
+
+			synchronized (this) {
+				batch = peer.ready.poll();
+				if (batch == null) {
+					peer.sending = false;
+					if (peer.filling == null && peers.get(to) == peer)
+						peers.remove(to);
+					return error;
+				}
+			}
+
+			CarrierException e = send(to, batch);
+			if (error == null)
+				error = e;
+		}
+	}
+
+	/*
+	 * A batch that can not be sent, as when the friend went offline within
+	 * the linger time, is handed to the outbox if enabled, to be delivered
+	 * when the friend is connected. Returns the error if the batch is lost.
+	 */
+	private CarrierException send(String to, Batch batch) {
+		try {
+			if (batch.count == 1) {
+				byte[] message = new byte[batch.length - MessageFraming.HEADER_LEN - ENTRY_HEADER_LEN];
+				System.arraycopy(batch.frame, MessageFraming.HEADER_LEN + ENTRY_HEADER_LEN,
+								 message, 0, message.length);
+				carrier.sendFriendMessage(to, message);
+			} else {
+				byte[] frame = new byte[batch.length];
+				System.arraycopy(batch.frame, 0, frame, 0, batch.length);
+				frame[0] = MessageFraming.MAGIC;
+				frame[1] = MessageFraming.TYPE_BATCH;
+				carrier.sendFrame(to, frame);
+				carrier.getMetrics().friendSent(to, batch.count, batch.length -
+					MessageFraming.HEADER_LEN - batch.count * ENTRY_HEADER_LEN);
+			}
+		} catch (CarrierException e) {
+			byte[] frame = new byte[batch.length];
+			System.arraycopy(batch.frame, 0, frame, 0, batch.length);
+			if (carrier.requeueFriendMessages(to, unpack(frame))) {
+				Log.w(TAG, "Send %d batched messages to %s error: %s, queued in outbox",
+					  batch.count, to, e);
+				return null;
+			}
+
+			Log.e(TAG, "Send %d batched messages to %s error: %s", batch.count, to, e);
+			return e;
+		}
+		return null;
+	}
+
+	/**
+	 * Split a received batch frame into its messages.
+	 *
+	 * @return the messages, or null if the frame is malformed.
+	 */
+	static List<byte[]> unpack(byte[] frame) {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		int offset = MessageFraming.HEADER_LEN;
+
+		while (offset < frame.length) {
+			if (offset + ENTRY_HEADER_LEN > frame.length)
+				return null;
+
+			int length = MessageFraming.readShort(frame, offset);
+			offset += ENTRY_HEADER_LEN;
+			if (length == 0 || offset + length > frame.length)
+				return null;
+
+			byte[] message = new byte[length];
+			System.arraycopy(frame, offset, message, 0, length);
+			messages.add(message);
+			offset += length;
+		}
+
+		return messages;
+	}
+}
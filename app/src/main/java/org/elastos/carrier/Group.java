@@ -22,12 +22,20 @@
 
 package org.elastos.carrier;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.elastos.carrier.exceptions.CarrierException;
 
 public class Group {
+	private static final String TAG = "CarrierGroup";
+
 	/**
 	 * Carrier App message max length.
 	 */
@@ -38,21 +46,52 @@ public class Group {
 	 */
 	public static final int MAX_GROUP_TITLE_LEN = 127;
 
+	/*
+	 * Max events kept for a group without handler, older events are dropped.
+	 */
+	private static final int MAX_PENDING_EVENTS = 256;
+
 	private String groupId;
-	private GroupHandler handler;
+	private volatile GroupHandler handler;
 	private Carrier carrier;
 
+	/* Events waiting for a handler, or to be replayed once it is set */
+	private ArrayDeque<Runnable> pendingEvents;
+
+	/*
+	 * Peers by user id. The carrier only tells the peer list changed, so the
+	 * list is read again off the carrier thread once per burst of changes,
+	 * or when read while stale, and diffed against this.
+	 */
+	private final ConcurrentHashMap<String, PeerInfo> peers =
+		new ConcurrentHashMap<String, PeerInfo>();
+	private final Object peersLock = new Object();
+	private volatile boolean peersStale = true;
+	private final AtomicBoolean peersRefreshing = new AtomicBoolean();
+	private final Runnable refreshPeersTask = new Runnable() {
+		@Override
+		public void run() {
+			peersRefreshing.set(false);
+			try {
+				refreshPeers();
+			} catch (CarrierException e) {
+				Log.e(TAG, "Refresh peers of group %s error: %s", groupId, e.getMessage());
+			}
+		}
+	};
+
 	private static native String new_group(Carrier carrier);
 	private static native String group_join(Carrier carrier, String friendId, byte[] cookie);
 	private native boolean leave_group(Carrier carrier, String groupId);
 	private native boolean group_invite(Carrier carrier, String groupId, String friendId);
 
-	private native boolean group_send_message(Carrier carrier, String groupId, byte[] message);
+	private native int group_send_message(Carrier carrier, String groupId, byte[] message);
 	private native String group_get_title(Carrier carrier, String groupId);
 	private native boolean group_set_title(Carrier carrier, String groupId, String title);
 	private native boolean group_get_peers(Carrier carrier, String groupId, GroupPeersIterator iterator, Object context);
 	private native PeerInfo group_get_peer(Carrier carrier, String groupId, String peerId);
 
+	private static native String[] get_groups(Carrier carrier);
 	private static native int get_error_code();
 
 	Group(Carrier carrier, GroupHandler handler) throws CarrierException {
@@ -73,15 +112,83 @@ public class Group {
 		this.carrier = carrier;
 	}
 
+	/* A group restored from the persistent data, or not registered yet */
+	Group(Carrier carrier, String groupId) {
+		this.groupId = groupId;
+		this.carrier = carrier;
+	}
+
+	static String[] getGroupIds(Carrier carrier) {
+		return get_groups(carrier);
+	}
+
 	void leave() throws CarrierException {
 		if (!leave_group(carrier, groupId))
 			throw CarrierException.fromErrorCode(get_error_code());
 	}
 
-	String getId() {
+	/**
+	 * Get the group id.
+	 *
+	 * @return
+	 *	  The group id
+	 */
+	public String getId() {
 		return groupId;
 	}
 
+	/**
+	 * Set the handler of group events.
+	 *
+	 * Groups restored from the persistent data have no handler, and events
+	 * received before a handler is set are delivered to it in order.
+	 *
+	 * @param
+	 *	  handler	The interface handler of carrier group
+	 *
+	 * @throws
+	 * 		IllegalArgumentException
+	 */
+	public void setHandler(GroupHandler handler) {
+		if (handler == null)
+			throw new IllegalArgumentException();
+
+		synchronized (this) {
+			this.handler = handler;
+		}
+
+		// New events keep queueing behind the pending ones until all are replayed.
+		for (;;) {
+			Runnable event;
+			synchronized (this) {
+				event = pendingEvents == null ? null : pendingEvents.poll();
+				if (event == null) {
+					pendingEvents = null;
+					return;
+				}
+			}
+			carrier.dispatch(groupId, event);
+		}
+	}
+
+	/* Dispatch an event to the handler, or keep it until a handler is set */
+	void post(Runnable event) {
+		synchronized (this) {
+			if (handler == null || pendingEvents != null) {
+				if (pendingEvents == null)
+					pendingEvents = new ArrayDeque<Runnable>();
+
+				if (pendingEvents.size() >= MAX_PENDING_EVENTS) {
+					pendingEvents.poll();
+					Log.w(TAG, "Too many events pending on group %s, oldest dropped", groupId);
+				}
+				pendingEvents.add(event);
+				return;
+			}
+		}
+		carrier.dispatch(groupId, event);
+	}
+
 	void connected() {
 		handler.onGroupConnected(this);
 	}
@@ -102,6 +209,70 @@ public class Group {
 		handler.onPeerListChanged(this);
 	}
 
+	/* Called on the carrier thread when a peer changed its name */
+	void peerRenamed(String peerId, String name) {
+		PeerInfo peer = peers.get(peerId);
+		if (peer != null)
+			peers.replace(peerId, peer, new PeerInfo(name, peerId));
+	}
+
+	/*
+	 * Called on the carrier thread when the peer list changed, only marks
+	 * the cache stale. Changes coming while a refresh is queued are read
+	 * by that refresh.
+	 */
+	void peersChanged() {
+		peersStale = true;
+		if (peersRefreshing.compareAndSet(false, true))
+			carrier.refreshGroupPeers(refreshPeersTask);
+	}
+
+	/*
+	 * Read the peer list again if changed, update the cache and post the
+	 * delta to the handler. Changes seen while reading mark the cache stale
+	 * again, and get another refresh.
+	 */
+	private void refreshPeers() throws CarrierException {
+		final List<PeerInfo> added = new ArrayList<PeerInfo>();
+		final List<PeerInfo> removed = new ArrayList<PeerInfo>();
+
+		synchronized (peersLock) {
+			if (!peersStale)
+				return;
+
+			peersStale = false;
+			List<PeerInfo> current;
+			try {
+				current = fetchPeers();
+			} catch (CarrierException e) {
+				peersStale = true;
+				throw e;
+			}
+
+			HashMap<String, PeerInfo> gone = new HashMap<String, PeerInfo>(peers);
+			for (PeerInfo peer : current) {
+				if (gone.remove(peer.getUserId()) == null)
+					added.add(peer);
+				peers.put(peer.getUserId(), peer);
+			}
+			for (Map.Entry<String, PeerInfo> entry : gone.entrySet()) {
+				peers.remove(entry.getKey());
+				removed.add(entry.getValue());
+			}
+		}
+
+		if (added.isEmpty() && removed.isEmpty())
+			return;
+
+		post(new Runnable() {
+			@Override
+			public void run() {
+				handler.onPeersDelta(Group.this, Collections.unmodifiableList(added),
+									 Collections.unmodifiableList(removed));
+			}
+		});
+	}
+
 	/**
 	 * Invite a specified friend into group.
 	 *
@@ -120,12 +291,33 @@ public class Group {
 			throw CarrierException.fromErrorCode(get_error_code());
 	}
 
+	/**
+	 * Invite a specified friend into group.
+	 *
+	 * @param
+	 *	  friendId	The invited friendId
+	 *
+	 * @throws
+	 * 		CarrierException
+	 * 		IllegalArgumentException
+	 */
+	public void invite(CarrierId friendId) throws CarrierException {
+		if (friendId == null)
+			throw new IllegalArgumentException();
+
+		invite(friendId.toString());
+	}
+
 	/**
 	 * Send a message to a group.
 	 *
 	 * The message length may not exceed MAX_APP_MESSAGE_LEN. Larger messages
 	 * must be split by application and sent as separate fragments. Other carrier
-	 * nodes can reassemble the fragments.
+	 * nodes can reassemble the fragments. The message is deflated on the way
+	 * when group message compression is enabled in Carrier.Options. In that
+	 * case a message starting with byte 0xFF that does not compress gets a
+	 * two byte escape header, so it may be at most MAX_APP_MESSAGE_LEN - 2
+	 * bytes long.
 	 *
 	 * Message may not be empty or null.
 	 * @param
@@ -139,8 +331,15 @@ public class Group {
 		if (message == null || message.length == 0 || message.length > MAX_APP_MESSAGE_LEN)
 			throw new IllegalArgumentException();
 
-		if (!group_send_message(carrier, groupId, message))
-			throw CarrierException.fromErrorCode(get_error_code());
+		int length = message.length;
+		message = carrier.encodeGroupMessage(message);
+		int rc = group_send_message(carrier, groupId, message);
+		if (rc < 0) {
+			carrier.getMetrics().writeFailed(rc);
+			throw CarrierException.fromErrorCode(rc);
+		}
+
+		carrier.getMetrics().groupSent(groupId, length);
 	}
 
 	/**
@@ -201,16 +400,7 @@ public class Group {
 		}
 	}
 
-	/**
-	 * Get group peer list.
-	 *
-	 * @return
-	 * 		A list of all peers in the specified group
-	 *
-	 * @throws
-	 * 		CarrierException
-	 */
-	public List<PeerInfo> getPeers() throws CarrierException {
+	private List<PeerInfo> fetchPeers() throws CarrierException {
 		List<PeerInfo> peers = new ArrayList<PeerInfo>();
 		boolean result = group_get_peers(carrier, groupId, new GroupPeersIterator() {
 			public boolean onIterated(PeerInfo peerInfo, Object context) {
@@ -228,6 +418,25 @@ public class Group {
 		return peers;
 	}
 
+	/**
+	 * Get group peer list.
+	 *
+	 * The list is served from a cache of the group peers, only read again
+	 * from the carrier after the peer list changed.
+	 *
+	 * @return
+	 * 		A list of all peers in the specified group
+	 *
+	 * @throws
+	 * 		CarrierException
+	 */
+	public List<PeerInfo> getPeers() throws CarrierException {
+		if (peersStale)
+			refreshPeers();
+
+		return new ArrayList<PeerInfo>(peers.values());
+	}
+
 	/**
 	 * Get group peer information.
 	 *
@@ -245,7 +454,15 @@ public class Group {
 		if (peerId == null || peerId.length() == 0)
 			throw new IllegalArgumentException();
 
-		PeerInfo peerInfo = group_get_peer(carrier, groupId, peerId);
+		if (peersStale)
+			refreshPeers();
+
+		PeerInfo peerInfo = peers.get(peerId);
+		if (peerInfo != null)
+			return peerInfo;
+
+		// Not a peer, let the carrier tell why.
+		peerInfo = group_get_peer(carrier, groupId, peerId);
 		if (peerInfo == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
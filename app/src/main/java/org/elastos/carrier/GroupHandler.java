@@ -22,6 +22,8 @@
 
 package org.elastos.carrier;
 
+import java.util.List;
+
 interface GroupHandler {
 	/**
 	 * The callback function that process event of being connected to group.
@@ -74,4 +76,20 @@ interface GroupHandler {
 	 *      group       The target group that changed it's peer list
 	 */
 	void onPeerListChanged(Group group);
+
+	/**
+	 * The callback function that process the peers joined or left the group.
+	 *
+	 * Bursts of peer list changes are reported as one delta, after the
+	 * onPeerListChanged callbacks. The first delta of a group reports all
+	 * its current peers as added.
+	 *
+	 * @param
+	 *      group       The target group that changed it's peer list
+	 * @param
+	 *      added       The peers joined the group
+	 * @param
+	 *      removed     The peers left the group
+	 */
+	void onPeersDelta(Group group, List<Group.PeerInfo> added, List<Group.PeerInfo> removed);
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed power of two buckets, from 1 microsecond
+ * up to about 16 seconds, plus one bucket for anything longer. Recording a
+ * value costs a few atomic adds and never allocates.
+ */
+public final class Histogram {
+	/* Bucket i holds values up to 2^i microseconds */
+	private static final int BUCKETS = 25;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param
+	 * 		nanos		The duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = nanos > 0 ? nanos / 1000 : 0;
+		int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+
+		counts.getAndIncrement(bucket < BUCKETS ? bucket : BUCKETS);
+		total.getAndAdd(micros);
+
+		long current = max.get();
+		while (micros > current && !max.compareAndSet(current, micros))
+			current = max.get();
+	}
+
+	public Snapshot snapshot() {
+		long[] values = new long[BUCKETS + 1];
+		for (int i = 0; i <= BUCKETS; i++)
+			values[i] = counts.get(i);
+
+		return new Snapshot(values, total.get(), max.get());
+	}
+
+	/**
+	 * An immutable copy of the histogram counts.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		Snapshot(long[] counts, long total, long max) {
+			long count = 0;
+			for (long n : counts)
+				count += n;
+
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		/**
+		 * Get the number of recorded values.
+		 *
+		 * @return
+		 * 		The number of values.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the mean of the recorded values.
+		 *
+		 * @return
+		 * 		The mean in microseconds, 0 if nothing was recorded.
+		 */
+		public long getMean() {
+			return count > 0 ? total / count : 0;
+		}
+
+		/**
+		 * Get the largest recorded value.
+		 *
+		 * @return
+		 * 		The max in microseconds.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Get an upper bound of a percentile of the recorded values.
+		 *
+		 * @param
+		 * 		percentile	The percentile, between 0 and 100
+		 *
+		 * @return
+		 * 		The upper bound of the bucket holding the percentile, in
+		 * 		microseconds, and never more than the max.
+		 */
+		public long getPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100)
+				throw new IllegalArgumentException();
+
+			if (count == 0)
+				return 0;
+
+			long rank = (long)Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(1L << i, max);
+			}
+			return max;
+		}
+
+		/**
+		 * Get the number of values in each bucket. Bucket i holds the values
+		 * up to 2^i microseconds, the last bucket the values above.
+		 *
+		 * @return
+		 * 		A copy of the bucket counts.
+		 */
+		public long[] getBucketCounts() {
+			return counts.clone();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Histogram[count:%d, mean:%dus, p50:%dus, p99:%dus, max:%dus]",
+								 count, getMean(), getPercentile(50), getPercentile(99), max);
+		}
+	}
+}
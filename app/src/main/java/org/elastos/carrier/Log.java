@@ -22,31 +22,181 @@
 
 package org.elastos.carrier;
 
+/**
+ * Logging facade of the carrier binding.
+ *
+ * Messages below the current level cost a level check and nothing else:
+ * the format variants only build the message when it is logged, and the
+ * fixed arity variants do not even allocate an argument array. Arguments
+ * of primitive types are still boxed by the caller, so hot paths logging
+ * numbers should check isLoggable first.
+ *
+ * The level defaults to VERBOSE in debug builds and NONE in release builds,
+ * and can be changed at runtime with setLevel.
+ */
 public class Log {
-	private static final boolean DEBUG = BuildConfig.DEBUG;
+	public static final int VERBOSE = android.util.Log.VERBOSE;
+	public static final int DEBUG   = android.util.Log.DEBUG;
+	public static final int INFO    = android.util.Log.INFO;
+	public static final int WARN    = android.util.Log.WARN;
+	public static final int ERROR   = android.util.Log.ERROR;
+	public static final int NONE    = android.util.Log.ASSERT + 1;
 
-	public static void i(String tag, String msg) {
-		if (DEBUG)
-			android.util.Log.i(tag, msg);
+	private static volatile int level = BuildConfig.DEBUG ? VERBOSE : NONE;
+
+	/**
+	 * Set the lowest level of messages to log.
+	 *
+	 * @param
+	 * 		level		One of VERBOSE, DEBUG, INFO, WARN, ERROR, or NONE to
+	 * 					log nothing
+	 */
+	public static void setLevel(int level) {
+		if (level < VERBOSE || level > NONE)
+			throw new IllegalArgumentException();
+
+		Log.level = level;
 	}
 
-	public static void e(String tag, String msg) {
-		if (DEBUG)
-			android.util.Log.e(tag, msg);
+	public static int getLevel() {
+		return level;
 	}
 
-	public static void d(String tag, String msg) {
-		if (DEBUG)
-			android.util.Log.d(tag, msg);
+	/**
+	 * Check whether messages of a level are logged.
+	 *
+	 * @param
+	 * 		level		The message level
+	 *
+	 * @return
+	 * 		True if the messages are logged, false if they are discarded
+	 */
+	public static boolean isLoggable(int level) {
+		return level >= Log.level;
 	}
 
 	public static void v(String tag, String msg) {
-		if (DEBUG)
+		if (isLoggable(VERBOSE))
 			android.util.Log.v(tag, msg);
 	}
 
+	public static void v(String tag, String format, Object arg) {
+		if (isLoggable(VERBOSE))
+			android.util.Log.v(tag, String.format(format, arg));
+	}
+
+	public static void v(String tag, String format, Object arg1, Object arg2) {
+		if (isLoggable(VERBOSE))
+			android.util.Log.v(tag, String.format(format, arg1, arg2));
+	}
+
+	public static void v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(VERBOSE))
+			android.util.Log.v(tag, String.format(format, arg1, arg2, arg3));
+	}
+
+	public static void v(String tag, String format, Object... args) {
+		if (isLoggable(VERBOSE))
+			android.util.Log.v(tag, String.format(format, args));
+	}
+
+	public static void d(String tag, String msg) {
+		if (isLoggable(DEBUG))
+			android.util.Log.d(tag, msg);
+	}
+
+	public static void d(String tag, String format, Object arg) {
+		if (isLoggable(DEBUG))
+			android.util.Log.d(tag, String.format(format, arg));
+	}
+
+	public static void d(String tag, String format, Object arg1, Object arg2) {
+		if (isLoggable(DEBUG))
+			android.util.Log.d(tag, String.format(format, arg1, arg2));
+	}
+
+	public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(DEBUG))
+			android.util.Log.d(tag, String.format(format, arg1, arg2, arg3));
+	}
+
+	public static void d(String tag, String format, Object... args) {
+		if (isLoggable(DEBUG))
+			android.util.Log.d(tag, String.format(format, args));
+	}
+
+	public static void i(String tag, String msg) {
+		if (isLoggable(INFO))
+			android.util.Log.i(tag, msg);
+	}
+
+	public static void i(String tag, String format, Object arg) {
+		if (isLoggable(INFO))
+			android.util.Log.i(tag, String.format(format, arg));
+	}
+
+	public static void i(String tag, String format, Object arg1, Object arg2) {
+		if (isLoggable(INFO))
+			android.util.Log.i(tag, String.format(format, arg1, arg2));
+	}
+
+	public static void i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(INFO))
+			android.util.Log.i(tag, String.format(format, arg1, arg2, arg3));
+	}
+
+	public static void i(String tag, String format, Object... args) {
+		if (isLoggable(INFO))
+			android.util.Log.i(tag, String.format(format, args));
+	}
+
 	public static void w(String tag, String msg) {
-		if (DEBUG)
+		if (isLoggable(WARN))
 			android.util.Log.w(tag, msg);
 	}
-}
\ No newline at end of file
+
+	public static void w(String tag, String format, Object arg) {
+		if (isLoggable(WARN))
+			android.util.Log.w(tag, String.format(format, arg));
+	}
+
+	public static void w(String tag, String format, Object arg1, Object arg2) {
+		if (isLoggable(WARN))
+			android.util.Log.w(tag, String.format(format, arg1, arg2));
+	}
+
+	public static void w(String tag, String format, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(WARN))
+			android.util.Log.w(tag, String.format(format, arg1, arg2, arg3));
+	}
+
+	public static void w(String tag, String format, Object... args) {
+		if (isLoggable(WARN))
+			android.util.Log.w(tag, String.format(format, args));
+	}
+
+	public static void e(String tag, String msg) {
+		if (isLoggable(ERROR))
+			android.util.Log.e(tag, msg);
+	}
+
+	public static void e(String tag, String format, Object arg) {
+		if (isLoggable(ERROR))
+			android.util.Log.e(tag, String.format(format, arg));
+	}
+
+	public static void e(String tag, String format, Object arg1, Object arg2) {
+		if (isLoggable(ERROR))
+			android.util.Log.e(tag, String.format(format, arg1, arg2));
+	}
+
+	public static void e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+		if (isLoggable(ERROR))
+			android.util.Log.e(tag, String.format(format, arg1, arg2, arg3));
+	}
+
+	public static void e(String tag, String format, Object... args) {
+		if (isLoggable(ERROR))
+			android.util.Log.e(tag, String.format(format, args));
+	}
+}
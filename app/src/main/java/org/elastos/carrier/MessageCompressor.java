@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates messages with a preset dictionary shared by both ends.
+ *
+ * The dictionary is identified on the wire by its Adler-32 checksum, so
+ * a frame deflated with another dictionary is refused rather than
+ * inflated into garbage. Messages that would not get smaller are left
+ * alone. One deflater and one inflater are shared under their own locks.
+ */
+final class MessageCompressor {
+	/* Shorter messages are hardly ever worth the frame header */
+	static final int MIN_COMPRESS_LEN = 64;
+
+	/* Deflate can not refer further back than its window */
+	static final int MAX_DICTIONARY_LEN = 32 * 1024;
+
+	private final byte[] dictionary;
+	private final int dictionaryId;
+	private final Deflater deflater;
+	private final Inflater inflater;
+
+	private long compressed;
+	private long skipped;
+	private long bytesIn;
+	private long bytesOut;
+	private long compressNanos;
+	private long decompressed;
+	private long decompressNanos;
+	private long failures;
+
+	MessageCompressor(byte[] dictionary) {
+		this.dictionary = dictionary != null ? dictionary : new byte[0];
+		this.dictionaryId = checksum(this.dictionary);
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		this.inflater = new Inflater(true);
+	}
+
+	static int checksum(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary, 0, dictionary.length);
+		return (int)adler.getValue();
+	}
+
+	int getDictionaryId() {
+		return dictionaryId;
+	}
+
+	/**
+	 * Deflate a message into a TYPE_COMPRESSED frame.
+	 *
+	 * @return the frame, or null when the frame would not be shorter than
+	 *         the message itself.
+	 */
+	byte[] compress(byte[] message) {
+		if (message.length < MIN_COMPRESS_LEN) {
+			synchronized (deflater) {
+				skipped++;
+			}
+			return null;
+		}
+
+		synchronized (deflater) {
+			long start = System.nanoTime();
+			// No room for deflate to reach the message length: once the output
+			// buffer fills up, the message is incompressible and we stop early.
+			byte[] frame = new byte[message.length];
+			int length = MessageFraming.COMPRESSED_HEADER_LEN;
+
+			deflater.reset();
+			if (dictionary.length > 0)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(message);
+			deflater.finish();
+
+			while (!deflater.finished() && length < frame.length)
+				length += deflater.deflate(frame, length, frame.length - length);
+
+			boolean done = deflater.finished();
+			compressNanos += System.nanoTime() - start;
+
+			if (!done) {
+				skipped++;
+				return null;
+			}
+
+			frame[0] = MessageFraming.MAGIC;
+			frame[1] = MessageFraming.TYPE_COMPRESSED;
+			MessageFraming.writeInt(frame, 2, dictionaryId);
+			MessageFraming.writeInt(frame, 6, message.length);
+
+			compressed++;
+			bytesIn += message.length;
+			bytesOut += length;
+
+			byte[] result = new byte[length];
+			System.arraycopy(frame, 0, result, 0, length);
+			return result;
+		}
+	}
+
+	/**
+	 * Inflate a TYPE_COMPRESSED frame.
+	 *
+	 * @return the original message, or null when the frame is malformed,
+	 *         was deflated with another dictionary, or inflates to more
+	 *         than maxLength bytes.
+	 */
+	byte[] decompress(byte[] frame, int maxLength) {
+		synchronized (inflater) {
+			if (frame.length <= MessageFraming.COMPRESSED_HEADER_LEN ||
+				MessageFraming.readInt(frame, 2) != dictionaryId) {
+				failures++;
+				return null;
+			}
+
+			int length = MessageFraming.readInt(frame, 6);
+			if (length <= 0 || length > maxLength) {
+				failures++;
+				return null;
+			}
+
+			long start = System.nanoTime();
+			byte[] message = new byte[length];
+			int offset = 0;
+
+			inflater.reset();
+			try {
+				if (dictionary.length > 0)
+					inflater.setDictionary(dictionary);
+				inflater.setInput(frame, MessageFraming.COMPRESSED_HEADER_LEN,
+								  frame.length - MessageFraming.COMPRESSED_HEADER_LEN);
+
+				while (offset < length) {
+					int n = inflater.inflate(message, offset, length - offset);
+					if (n == 0 && (inflater.finished() || inflater.needsInput() ||
+								   inflater.needsDictionary()))
+						break;
+					offset += n;
+				}
+			} catch (DataFormatException e) {
+				offset = -1;
+			} catch (IllegalArgumentException e) {
+				offset = -1;
+			}
+
+			decompressNanos += System.nanoTime() - start;
+
+			if (offset != length) {
+				failures++;
+				return null;
+			}
+
+			decompressed++;
+			return message;
+		}
+	}
+
+	CompressionStats getStats() {
+		synchronized (deflater) {
+			synchronized (inflater) {
+				return new CompressionStats(compressed, skipped, bytesIn, bytesOut,
+											compressNanos, decompressed, decompressNanos,
+											failures);
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+/**
+ * Wire framing of friend messages built by this binding on top of plain
+ * carrier messages.
+ *
+ * A framed message starts with the MAGIC byte (never a valid first byte of
+ * UTF-8 text) followed by a type byte. Messages not starting with MAGIC are
+ * plain application messages and are passed through untouched. The
+ * fragment layout must be kept in sync with carrier.c.
+ */
+final class MessageFraming {
+	static final byte MAGIC = (byte)0xFF;
+
+	/* A plain message that happens to start with MAGIC */
+	static final byte TYPE_ESCAPED  = 0x00;
+
+	/*
+	 * One fragment of a large message:
+	 *   magic(1) type(1) message id(4) fragment index(2) fragment count(2) payload
+	 */
+	static final byte TYPE_FRAGMENT = 0x01;
+
+	/* Small messages packed together, see FriendMessageBatcher */
+	static final byte TYPE_BATCH    = 0x02;
+
+	/*
+	 * A deflated message, see MessageCompressor:
+	 *   magic(1) type(1) dictionary id(4) original length(4) raw deflate data
+	 */
+	static final byte TYPE_COMPRESSED = 0x03;
+
+	/*
+	 * Capabilities announced to a friend when it gets connected:
+	 *   magic(1) type(1) flags(1) dictionary id(4)
+	 */
+	static final byte TYPE_CAPABILITIES = 0x04;
+
+	static final int CAP_DEFLATE = 0x01;
+
+	static final int HEADER_LEN = 2;
+	static final int FRAGMENT_HEADER_LEN = 10;
+	static final int FRAGMENT_PAYLOAD_LEN = Carrier.MAX_APP_MESSAGE_LEN - FRAGMENT_HEADER_LEN;
+	static final int COMPRESSED_HEADER_LEN = 10;
+	static final int CAPABILITIES_LEN = 7;
+
+	private MessageFraming() {}
+
+	static boolean isFramed(byte[] message) {
+		return message.length >= HEADER_LEN && message[0] == MAGIC;
+	}
+
+	static byte typeOf(byte[] message) {
+		return message[1];
+	}
+
+	static byte[] escape(byte[] message) {
+		byte[] framed = new byte[HEADER_LEN + message.length];
+		framed[0] = MAGIC;
+		framed[1] = TYPE_ESCAPED;
+		System.arraycopy(message, 0, framed, HEADER_LEN, message.length);
+		return framed;
+	}
+
+	static byte[] unescape(byte[] framed) {
+		byte[] message = new byte[framed.length - HEADER_LEN];
+		System.arraycopy(framed, HEADER_LEN, message, 0, message.length);
+		return message;
+	}
+
+	static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+			((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	static int readShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	static void writeInt(byte[] data, int offset, int value) {
+		data[offset]     = (byte)(value >>> 24);
+		data[offset + 1] = (byte)(value >>> 16);
+		data[offset + 2] = (byte)(value >>> 8);
+		data[offset + 3] = (byte)value;
+	}
+
+	static void writeShort(byte[] data, int offset, int value) {
+		data[offset]     = (byte)(value >>> 8);
+		data[offset + 1] = (byte)value;
+	}
+}
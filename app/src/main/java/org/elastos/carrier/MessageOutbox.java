@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/**
+ * Store-and-forward queue of friend messages, kept in an append-only,
+ * memory-mapped log so that queued messages survive a restart.
+ *
+ * The log is a header followed by records:
+ *   state(1) deadline(8) friend id length(1) message length(4) friend id message
+ * A record is written with state 0, which ends the log, and only then
+ * marked PENDING. Delivered and expired records are marked DONE in place.
+ * When the log is full, the pending records are copied to a new log that
+ * replaces the old one. Messages of each friend are delivered in order.
+ */
+final class MessageOutbox {
+	private static final String TAG = "CarrierOutbox";
+
+	static final String FILE_NAME = "outbox.log";
+
+	private static final int FILE_MAGIC = 0x454F4231;	// "EOB1"
+	private static final int FILE_HEADER_LEN = 8;
+
+	private static final byte RECORD_END = 0;
+	private static final byte RECORD_PENDING = 1;
+	private static final byte RECORD_DONE = 2;
+	private static final int RECORD_HEADER_LEN = 14;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	interface Sender {
+		void send(String to, byte[] message) throws CarrierException;
+	}
+
+	private static final class Entry {
+		final int offset;
+		final long deadline;
+		final int length;
+
+		Entry(int offset, long deadline, int length) {
+			this.offset = offset;
+			this.deadline = deadline;
+			this.length = length;
+		}
+	}
+
+	private final File file;
+	private int capacity;
+	private RandomAccessFile raf;
+	private MappedByteBuffer log;
+	private int tail;
+	private boolean closed;
+
+	/* Pending messages per friend, in the order they were queued */
+	private final HashMap<String, ArrayDeque<Entry>> queues =
+		new HashMap<String, ArrayDeque<Entry>>();
+
+	MessageOutbox(File file, int capacity) {
+		this.file = file;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Send a message at once if the friend is connected and has no older
+	 * message queued, otherwise queue it until the friend gets connected.
+	 *
+	 * @return false if the outbox is full.
+	 */
+	synchronized boolean offer(String to, byte[] message, long deadline, boolean connected,
+							   Sender sender) throws IOException {
+		if (closed)
+			throw new IllegalStateException("Outbox closed");
+
+		if (connected && !queues.containsKey(to)) {
+			try {
+				sender.send(to, message);
+				return true;
+			} catch (CarrierException e) {
+				Log.d(TAG, "Send to %s failed, message queued: %s", to, e);
+			}
+		}
+
+		open(true);
+
+		byte[] id = to.getBytes(UTF8);
+		int size = RECORD_HEADER_LEN + id.length + message.length;
+		if (tail + size > capacity)
+			compact(System.currentTimeMillis());
+		if (tail + size > capacity)
+			return false;
+
+		int offset = tail;
+		log.position(offset + 1);
+		log.putLong(deadline);
+		log.put((byte)id.length);
+		log.putInt(message.length);
+		log.put(id);
+		log.put(message);
+		tail = offset + size;
+		if (tail < capacity)
+			log.put(tail, RECORD_END);
+		log.put(offset, RECORD_PENDING);
+
+		ArrayDeque<Entry> queue = queues.get(to);
+		if (queue == null) {
+			queue = new ArrayDeque<Entry>();
+			queues.put(to, queue);
+		}
+		queue.add(new Entry(offset, deadline, message.length));
+		return true;
+	}
+
+	/**
+	 * Deliver the queued messages of a friend in order, stopping at the first
+	 * failure. Expired messages are dropped.
+	 *
+	 * @return the number of messages delivered.
+	 */
+	synchronized int flush(String to, Sender sender) throws IOException {
+		if (closed || !open(false))
+			return 0;
+
+		ArrayDeque<Entry> queue = queues.get(to);
+		if (queue == null)
+			return 0;
+
+		long now = System.currentTimeMillis();
+		int delivered = 0;
+
+		while (!queue.isEmpty()) {
+			Entry entry = queue.peek();
+			if (entry.deadline - now > 0) {
+				try {
+					sender.send(to, readMessage(entry));
+				} catch (CarrierException e) {
+					Log.w(TAG, "Flush to %s stopped with %d messages left: %s", to, queue.size(), e);
+					break;
+				}
+				delivered++;
+			} else {
+				Log.d(TAG, "Queued message to %s expired", to);
+			}
+
+			log.put(entry.offset, RECORD_DONE);
+			queue.poll();
+		}
+
+		if (queue.isEmpty())
+			queues.remove(to);
+		if (queues.isEmpty())
+			reset();
+		return delivered;
+	}
+
+	/* Drop the queued messages of a friend, when it is removed */
+	synchronized void discard(String to) throws IOException {
+		if (closed || !open(false))
+			return;
+
+		ArrayDeque<Entry> queue = queues.remove(to);
+		if (queue == null)
+			return;
+
+		for (Entry entry : queue)
+			log.put(entry.offset, RECORD_DONE);
+
+		if (queues.isEmpty())
+			reset();
+	}
+
+	synchronized int getPendingCount(String to) throws IOException {
+		if (closed || !open(false))
+			return 0;
+
+		ArrayDeque<Entry> queue = queues.get(to);
+		return queue == null ? 0 : queue.size();
+	}
+
+	synchronized void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		if (raf == null)
+			return;
+
+		log.force();
+		try {
+			raf.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Close outbox error: %s", e);
+		}
+		raf = null;
+		log = null;
+	}
+
+	/*
+	 * Map the log, recovering the pending messages of a previous run.
+	 * Without create, a missing log is left alone and false is returned.
+	 */
+	private boolean open(boolean create) throws IOException {
+		if (log != null)
+			return true;
+
+		if (!create && !file.exists())
+			return false;
+
+		boolean exists = file.exists() && file.length() >= FILE_HEADER_LEN;
+		// A log left by a run with a larger capacity is kept whole.
+		if (exists)
+			capacity = (int)Math.min(Integer.MAX_VALUE, Math.max(capacity, file.length()));
+		map();
+
+		if (!exists || log.getInt(0) != FILE_MAGIC) {
+			if (exists)
+				Log.w(TAG, "Invalid outbox log, discarded");
+			log.putInt(0, FILE_MAGIC);
+			log.putInt(4, 0);
+			reset();
+			return true;
+		}
+
+		recover(System.currentTimeMillis());
+		return true;
+	}
+
+	private void map() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(capacity);
+			log = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} catch (IOException e) {
+			raf.close();
+			raf = null;
+			throw e;
+		}
+	}
+
+	private void recover(long now) {
+		int offset = FILE_HEADER_LEN;
+		int pending = 0;
+
+		while (offset + RECORD_HEADER_LEN <= capacity) {
+			byte state = log.get(offset);
+			if (state != RECORD_PENDING && state != RECORD_DONE)
+				break;
+
+			long deadline = log.getLong(offset + 1);
+			int idLength = log.get(offset + 9) & 0xFF;
+			int length = log.getInt(offset + 10);
+			int size = RECORD_HEADER_LEN + idLength + length;
+			if (length < 0 || size > capacity - offset)
+				break;
+
+			if (state == RECORD_PENDING) {
+				if (deadline - now > 0) {
+					byte[] id = new byte[idLength];
+					log.position(offset + RECORD_HEADER_LEN);
+					log.get(id);
+					String to = new String(id, UTF8);
+
+					ArrayDeque<Entry> queue = queues.get(to);
+					if (queue == null) {
+						queue = new ArrayDeque<Entry>();
+						queues.put(to, queue);
+					}
+					queue.add(new Entry(offset, deadline, length));
+					pending++;
+				} else {
+					log.put(offset, RECORD_DONE);
+				}
+			}
+
+			offset += size;
+		}
+
+		tail = offset;
+		if (tail < capacity)
+			log.put(tail, RECORD_END);
+
+		Log.i(TAG, "Recovered %d queued messages for %d friends", pending, queues.size());
+	}
+
+	/* All records are done, start the log over */
+	private void reset() {
+		tail = FILE_HEADER_LEN;
+		log.put(tail, RECORD_END);
+	}
+
+	private byte[] readMessage(Entry entry) {
+		int idLength = log.get(entry.offset + 9) & 0xFF;
+		byte[] message = new byte[entry.length];
+		log.position(entry.offset + RECORD_HEADER_LEN + idLength);
+		log.get(message);
+		return message;
+	}
+
+	/*
+	 * Copy the unexpired pending records to a new log and swap it in, so a
+	 * crash in between leaves either the old or the new log intact.
+	 */
+	private void compact(long now) throws IOException {
+		List<Entry> live = new ArrayList<Entry>();
+		for (ArrayDeque<Entry> queue : queues.values()) {
+			Iterator<Entry> it = queue.iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.deadline - now > 0) {
+					live.add(entry);
+				} else {
+					log.put(entry.offset, RECORD_DONE);
+					it.remove();
+				}
+			}
+		}
+
+		// Keep the queue order of each friend, records were appended in order.
+		Collections.sort(live, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+			}
+		});
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		HashMap<Integer, Integer> moved = new HashMap<Integer, Integer>();
+		int offset = FILE_HEADER_LEN;
+		try {
+			byte[] header = new byte[FILE_HEADER_LEN];
+			MessageFraming.writeInt(header, 0, FILE_MAGIC);
+			out.write(header);
+
+			for (Entry entry : live) {
+				int idLength = log.get(entry.offset + 9) & 0xFF;
+				byte[] record = new byte[RECORD_HEADER_LEN + idLength + entry.length];
+				log.position(entry.offset);
+				log.get(record);
+				out.write(record);
+
+				moved.put(entry.offset, offset);
+				offset += record.length;
+			}
+
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Can not replace " + file);
+		}
+
+		raf.close();
+		raf = null;
+		log = null;
+		map();
+		tail = offset;
+		if (tail < capacity)
+			log.put(tail, RECORD_END);
+
+		for (ArrayDeque<Entry> queue : queues.values()) {
+			int n = queue.size();
+			for (int i = 0; i < n; i++) {
+				Entry entry = queue.poll();
+				queue.add(new Entry(moved.get(entry.offset), entry.deadline, entry.length));
+			}
+		}
+
+		Iterator<ArrayDeque<Entry>> it = queues.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isEmpty())
+				it.remove();
+		}
+
+		Log.d(TAG, "Outbox compacted to %d messages, %d bytes", live.size(), tail);
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles large friend messages from their fragments.
+ *
+ * Memory is bounded per friend and in total, the oldest incomplete
+ * messages are evicted to make room, and incomplete messages time out.
+ * Fragments may arrive in any order and fragments of several messages
+ * may be interleaved.
+ *
+ * Only used from the carrier thread, so it is not thread-safe.
+ */
+final class MessageReassembler {
+	private static final String TAG = "CarrierReassembler";
+
+	/* Max incomplete messages kept per friend */
+	private static final int MAX_PARTIALS_PER_FRIEND = 16;
+
+	/* Interval to look for timed out messages, in milliseconds */
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private static final class Partial {
+		final int count;
+		final byte[][] fragments;
+		final long deadline;
+		int received;
+		int bytes;
+
+		Partial(int count, long deadline) {
+			this.count = count;
+			this.fragments = new byte[count][];
+			this.deadline = deadline;
+		}
+	}
+
+	private static final class Peer {
+		/* In insertion order, so the first entry is the oldest message */
+		final LinkedHashMap<Integer, Partial> partials = new LinkedHashMap<Integer, Partial>();
+		int bytes;
+	}
+
+	private final HashMap<String, Peer> peers = new HashMap<String, Peer>();
+	private final int maxBytesPerFriend;
+	private final int maxTotalBytes;
+	private final long timeout;
+	private final int maxFragments;
+
+	private int totalBytes;
+	private long lastSweep;
+
+	MessageReassembler(int maxBytesPerFriend, int maxTotalBytes, long timeout) {
+		this.maxBytesPerFriend = maxBytesPerFriend;
+		this.maxTotalBytes = maxTotalBytes;
+		this.timeout = timeout;
+		this.maxFragments = (Carrier.MAX_LARGE_MESSAGE_LEN + MessageFraming.FRAGMENT_PAYLOAD_LEN - 1) /
+			MessageFraming.FRAGMENT_PAYLOAD_LEN;
+	}
+
+	/**
+	 * Add a fragment received from a friend.
+	 *
+	 * @return the whole message when this fragment completes it, otherwise null.
+	 */
+	byte[] onFragment(String from, byte[] frame, long now) {
+		tick(now);
+
+		if (frame.length <= MessageFraming.FRAGMENT_HEADER_LEN)
+			return null;
+
+		int id = MessageFraming.readInt(frame, 2);
+		int index = MessageFraming.readShort(frame, 6);
+		int count = MessageFraming.readShort(frame, 8);
+		int size = frame.length - MessageFraming.FRAGMENT_HEADER_LEN;
+
+		if (count == 0 || count > maxFragments || index >= count ||
+			(index < count - 1 && size != MessageFraming.FRAGMENT_PAYLOAD_LEN)) {
+			Log.w(TAG, "Malformed message fragment from %s", from);
+			return null;
+		}
+
+		Peer peer = peers.get(from);
+		if (peer == null) {
+			peer = new Peer();
+			peers.put(from, peer);
+		}
+
+		Partial partial = peer.partials.get(id);
+		if (partial != null && partial.count != count) {
+			drop(peer, id, partial);
+			partial = null;
+		}
+
+		if (partial == null) {
+			if (count == 1)
+				return fragmentPayload(frame);
+
+			while (peer.partials.size() >= MAX_PARTIALS_PER_FRIEND)
+				evictOldest(peer);
+
+			partial = new Partial(count, now + timeout);
+			peer.partials.put(id, partial);
+		}
+
+		if (partial.fragments[index] != null)
+			return null;	// duplicated fragment
+
+		while (peer.bytes + size > maxBytesPerFriend && evictOldestOther(peer, partial))
+			;
+		while (totalBytes + size > maxTotalBytes && evictGlobalOldest(partial))
+			;
+		if (peer.bytes + size > maxBytesPerFriend || totalBytes + size > maxTotalBytes) {
+			Log.w(TAG, "Reassembly buffer of %s is full, message dropped", from);
+			drop(peer, id, partial);
+			removeIfIdle(from, peer);
+			return null;
+		}
+
+		partial.fragments[index] = fragmentPayload(frame);
+		partial.received++;
+		partial.bytes += size;
+		peer.bytes += size;
+		totalBytes += size;
+
+		if (partial.received < partial.count)
+			return null;
+
+		byte[] message = new byte[partial.bytes];
+		int offset = 0;
+		for (byte[] fragment : partial.fragments) {
+			System.arraycopy(fragment, 0, message, offset, fragment.length);
+			offset += fragment.length;
+		}
+
+		drop(peer, id, partial);
+		removeIfIdle(from, peer);
+		return message;
+	}
+
+	/**
+	 * Expire timed out messages, at most once per sweep interval. Called
+	 * for every fragment and from the carrier idle callback, so messages
+	 * expire even when no more fragments arrive.
+	 */
+	void tick(long now) {
+		if (now - lastSweep >= SWEEP_INTERVAL)
+			sweep(now);
+	}
+
+	void sweep(long now) {
+		lastSweep = now;
+
+		Iterator<Map.Entry<String, Peer>> it = peers.entrySet().iterator();
+		while (it.hasNext()) {
+			Peer peer = it.next().getValue();
+			Iterator<Partial> pit = peer.partials.values().iterator();
+			while (pit.hasNext()) {
+				Partial partial = pit.next();
+				if (partial.deadline - now <= 0) {
+					pit.remove();
+					peer.bytes -= partial.bytes;
+					totalBytes -= partial.bytes;
+				}
+			}
+
+			if (peer.partials.isEmpty())
+				it.remove();
+		}
+	}
+
+	/* Drop the incomplete messages of a friend */
+	void removeFriend(String from) {
+		Peer peer = peers.remove(from);
+		if (peer != null)
+			totalBytes -= peer.bytes;
+	}
+
+	void clear() {
+		peers.clear();
+		totalBytes = 0;
+	}
+
+	int getBufferedBytes() {
+		return totalBytes;
+	}
+
+	private static byte[] fragmentPayload(byte[] frame) {
+		byte[] payload = new byte[frame.length - MessageFraming.FRAGMENT_HEADER_LEN];
+		System.arraycopy(frame, MessageFraming.FRAGMENT_HEADER_LEN, payload, 0, payload.length);
+		return payload;
+	}
+
+	private void drop(Peer peer, int id, Partial partial) {
+		peer.partials.remove(id);
+		peer.bytes -= partial.bytes;
+		totalBytes -= partial.bytes;
+	}
+
+	private void removeIfIdle(String from, Peer peer) {
+		if (peer.partials.isEmpty())
+			peers.remove(from);
+	}
+
+	private void evictOldest(Peer peer) {
+		Iterator<Map.Entry<Integer, Partial>> it = peer.partials.entrySet().iterator();
+		Map.Entry<Integer, Partial> oldest = it.next();
+		drop(peer, oldest.getKey(), oldest.getValue());
+	}
+
+	private boolean evictOldestOther(Peer peer, Partial keep) {
+		for (Map.Entry<Integer, Partial> entry : peer.partials.entrySet()) {
+			if (entry.getValue() != keep) {
+				drop(peer, entry.getKey(), entry.getValue());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean evictGlobalOldest(Partial keep) {
+		String oldestFrom = null;
+		Peer oldestPeer = null;
+		Map.Entry<Integer, Partial> oldest = null;
+
+		for (Map.Entry<String, Peer> peerEntry : peers.entrySet()) {
+			for (Map.Entry<Integer, Partial> entry : peerEntry.getValue().partials.entrySet()) {
+				if (entry.getValue() == keep)
+					continue;
+
+				if (oldest == null || entry.getValue().deadline - oldest.getValue().deadline < 0) {
+					oldestFrom = peerEntry.getKey();
+					oldestPeer = peerEntry.getValue();
+					oldest = entry;
+				}
+				break;
+			}
+		}
+
+		if (oldest == null)
+			return false;
+
+		drop(oldestPeer, oldest.getKey(), oldest.getValue());
+		removeIfIdle(oldestFrom, oldestPeer);
+		return true;
+	}
+}
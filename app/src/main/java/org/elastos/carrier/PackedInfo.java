@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.nio.charset.Charset;
+
+/**
+ * The packed form of UserInfo and FriendInfo passed across JNI.
+ *
+ * Layout, all in one byte array:
+ *   flags (1 byte, FLAG_HAS_AVATAR)
+ *   user id, name, description, gender, phone, email, region
+ *   FriendInfo only: label, connection status (1 byte), presence (1 byte)
+ *
+ * Strings are a big-endian 16-bit byte count followed by UTF-8 bytes,
+ * and an absent string has count 0. This must stay in step with
+ * packUserInfo and unpackUserInfo in carrierUtils.c.
+ */
+final class PackedInfo {
+	static final int FLAG_HAS_AVATAR = 0x01;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] data;
+	private int pos;
+
+	PackedInfo(byte[] data) {
+		this.data = data;
+	}
+
+	int readByte() {
+		if (pos >= data.length)
+			throw new IllegalArgumentException("Truncated packed info");
+
+		return data[pos++] & 0xFF;
+	}
+
+	String readString() {
+		int length = (readByte() << 8) | readByte();
+		if (length > data.length - pos)
+			throw new IllegalArgumentException("Truncated packed info");
+
+		String value = new String(data, pos, length, UTF8);
+		pos += length;
+		return value;
+	}
+
+	private static int writeString(byte[] out, int pos, byte[] value) {
+		out[pos++] = (byte)(value.length >>> 8);
+		out[pos++] = (byte)value.length;
+		System.arraycopy(value, 0, out, pos, value.length);
+		return pos + value.length;
+	}
+
+	private static byte[] utf8(String value) {
+		return value != null ? value.getBytes(UTF8) : new byte[0];
+	}
+
+	static byte[] pack(UserInfo info) {
+		byte[][] fields = {
+			utf8(info.getUserId()),
+			utf8(info.getName()),
+			utf8(info.getDescription()),
+			utf8(info.getGender()),
+			utf8(info.getPhone()),
+			utf8(info.getEmail()),
+			utf8(info.getRegion())
+		};
+
+		int length = 1;
+		for (byte[] field : fields)
+			length += 2 + field.length;
+
+		byte[] out = new byte[length];
+		int pos = 0;
+		out[pos++] = (byte)(info.hasAvatar() ? FLAG_HAS_AVATAR : 0);
+		for (byte[] field : fields)
+			pos = writeString(out, pos, field);
+
+		return out;
+	}
+}
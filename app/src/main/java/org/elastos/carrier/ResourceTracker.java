@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Leak accounting and phantom reference cleanup for objects owning native
+ * state. Owners are meant to be closed explicitly; one that becomes
+ * unreachable while still open is counted as a leak and its native state
+ * is released from a daemon thread.
+ */
+public final class ResourceTracker {
+	private static final String TAG = "ResourceTracker";
+
+	/**
+	 * Releases the native state of a leaked owner. Implementations must not
+	 * reference the owner, or it never becomes unreachable.
+	 */
+	public interface Releaser {
+		void release();
+	}
+
+	/**
+	 * The tracking handle of one owner.
+	 */
+	public static final class Handle extends PhantomReference<Object> {
+		private final String kind;
+		private final Releaser releaser;
+		private final Throwable creationSite;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		private Handle(Object owner, String kind, Releaser releaser, Throwable creationSite) {
+			super(owner, queue);
+			this.kind = kind;
+			this.releaser = releaser;
+			this.creationSite = creationSite;
+		}
+
+		/**
+		 * Tell the tracker the owner was closed explicitly, call it before
+		 * releasing the native state. The releaser is never run afterwards.
+		 */
+		public void closed() {
+			if (done.compareAndSet(false, true)) {
+				live.remove(this);
+				clear();
+			}
+		}
+	}
+
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private static final Set<Handle> live =
+		Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+	private static final Counter leaks = new Counter();
+
+	private static volatile boolean trackCreationSites;
+	private static Thread reaper;
+
+	private ResourceTracker() {}
+
+	/**
+	 * Start tracking an owner of native state.
+	 *
+	 * @param
+	 * 		owner		The object owning the native state
+	 * @param
+	 * 		kind		A short name of the owner kind, used in reports
+	 * @param
+	 * 		releaser	Releases the native state if the owner leaks, or null
+	 * 					to only count the leak
+	 *
+	 * @return
+	 * 		The tracking handle, to be marked closed by the owner
+	 */
+	public static Handle track(Object owner, String kind, Releaser releaser) {
+		if (owner == null || kind == null)
+			throw new IllegalArgumentException();
+
+		Handle handle = new Handle(owner, kind, releaser,
+			trackCreationSites ? new Throwable(kind + " created here") : null);
+		live.add(handle);
+		ensureReaper();
+		return handle;
+	}
+
+	/**
+	 * Record where tracked owners are created, so that leak reports and
+	 * dumpOpenHandles show the stack. Off by default, it costs a stack
+	 * trace per owner.
+	 *
+	 * @param
+	 * 		enabled		Whether to record creation sites of new owners
+	 */
+	public static void setTrackCreationSites(boolean enabled) {
+		trackCreationSites = enabled;
+	}
+
+	/**
+	 * Get the number of owners collected without being closed.
+	 *
+	 * @return
+	 * 		The leak count since the process started
+	 */
+	public static long getLeakCount() {
+		return leaks.get();
+	}
+
+	/**
+	 * Get the owners not closed yet, by kind.
+	 *
+	 * @return
+	 * 		The number of open handles of each kind
+	 */
+	public static Map<String, Integer> getOpenHandles() {
+		HashMap<String, Integer> open = new HashMap<String, Integer>();
+		for (Handle handle : live) {
+			Integer count = open.get(handle.kind);
+			open.put(handle.kind, count == null ? 1 : count + 1);
+		}
+		return Collections.unmodifiableMap(open);
+	}
+
+	/**
+	 * Log the owners not closed yet, with their creation sites if recorded.
+	 */
+	public static void dumpOpenHandles() {
+		for (Handle handle : live) {
+			if (handle.creationSite != null)
+				Log.w(TAG, "%s still open\n%s", handle.kind,
+					  android.util.Log.getStackTraceString(handle.creationSite));
+			else
+				Log.w(TAG, "%s still open", handle.kind);
+		}
+	}
+
+	private static synchronized void ensureReaper() {
+		if (reaper != null)
+			return;
+
+		reaper = new Thread("CarrierResourceReaper") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						reap((Handle)queue.remove());
+					} catch (InterruptedException e) {
+						// Keep draining, the queue outlives any caller.
+					}
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	private static void reap(Handle handle) {
+		if (!handle.done.compareAndSet(false, true))
+			return;
+
+		live.remove(handle);
+		leaks.increment();
+
+		if (handle.creationSite != null)
+			Log.w(TAG, "%s was not closed\n%s", handle.kind,
+				  android.util.Log.getStackTraceString(handle.creationSite));
+		else
+			Log.w(TAG, "%s was not closed", handle.kind);
+
+		if (handle.releaser == null)
+			return;
+
+		try {
+			handle.releaser.release();
+		} catch (Throwable e) {
+			Log.e(TAG, "Releasing leaked %s failed: %s", handle.kind, e);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.elastos.carrier.exceptions.CarrierException;
+
+/**
+ * The class controlling the native event trace.
+ *
+ * When enabled, the jni layer records the entry and exit of every native
+ * callback and of the java handler it calls, the main send and write calls
+ * from java, the idle waits of the run loop, and connection and stream state
+ * transitions. Events are kept in a fixed-size ring buffer shared by all
+ * threads, so only the most recent events are exported.
+ *
+ * The export is in Chrome trace event format, to be loaded in chrome://tracing
+ * or any compatible viewer. Tracing is disabled by default, and costs a load
+ * and a branch per trace point when disabled.
+ */
+public final class Trace {
+	private static final String TAG = "CarrierTrace";
+
+	/* Jni native methods */
+	private static native void set_enabled(boolean enabled);
+	private static native boolean is_enabled();
+	private static native void native_clear();
+	private static native String export_events();
+	private static native int get_error_code();
+
+	static {
+		System.loadLibrary("carrierjni");
+	}
+
+	private Trace() {
+	}
+
+	/**
+	 * Enable or disable the event trace.
+	 *
+	 * The ring buffer is allocated when the trace is first enabled, and
+	 * events recorded before disabling are kept until exported or cleared.
+	 *
+	 * @param
+	 * 		enabled		Whether events are recorded
+	 */
+	public static void setEnabled(boolean enabled) {
+		set_enabled(enabled);
+		Log.i(TAG, "Native event trace %s", enabled ? "enabled" : "disabled");
+	}
+
+	/**
+	 * Check whether the event trace is enabled.
+	 *
+	 * @return
+	 * 		True if events are recorded, or false if not.
+	 */
+	public static boolean isEnabled() {
+		return is_enabled();
+	}
+
+	/**
+	 * Discard all recorded events.
+	 */
+	public static void clear() {
+		native_clear();
+	}
+
+	/**
+	 * Export the recorded events.
+	 *
+	 * @return
+	 * 		The events in Chrome trace event JSON format.
+	 *
+	 * @throws
+	 * 		CarrierException
+	 */
+	public static String export() throws CarrierException {
+		String trace = export_events();
+		if (trace == null)
+			throw CarrierException.fromErrorCode(get_error_code());
+
+		return trace;
+	}
+
+	/**
+	 * Export the recorded events to a file.
+	 *
+	 * @param
+	 * 		file		The file to write the Chrome trace event JSON to
+	 *
+	 * @throws
+	 * 		CarrierException
+	 * 		IOException
+	 */
+	public static void export(File file) throws CarrierException, IOException {
+		if (file == null)
+			throw new IllegalArgumentException();
+
+		byte[] trace = export().getBytes("UTF-8");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(trace);
+		} finally {
+			out.close();
+		}
+
+		Log.i(TAG, "Exported %d bytes of native events to %s", trace.length, file);
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier;
+
+/**
+ * A snapshot of the messages exchanged with one friend or in one group.
+ */
+public final class TrafficStats {
+	private final long messagesSent;
+	private final long bytesSent;
+	private final long messagesReceived;
+	private final long bytesReceived;
+
+	TrafficStats(long messagesSent, long bytesSent, long messagesReceived, long bytesReceived) {
+		this.messagesSent = messagesSent;
+		this.bytesSent = bytesSent;
+		this.messagesReceived = messagesReceived;
+		this.bytesReceived = bytesReceived;
+	}
+
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * Get the bytes of application messages sent, before any framing or
+	 * compression.
+	 *
+	 * @return
+	 * 		The number of bytes sent.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * Get the bytes of application messages received, after reassembly
+	 * and decompression.
+	 *
+	 * @return
+	 * 		The number of bytes received.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TrafficStats[sent:%d/%dB, received:%d/%dB]",
+							 messagesSent, bytesSent, messagesReceived, bytesReceived);
+	}
+}
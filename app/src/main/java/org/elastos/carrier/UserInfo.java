@@ -76,6 +76,30 @@ public class UserInfo {
 
 	protected UserInfo() {}
 
+	/*
+	 * Decode the packed form built by the JNI layer, see PackedInfo.
+	 * This constructor is only called in JNI.
+	 */
+	UserInfo(byte[] packed) {
+		this(new PackedInfo(packed));
+	}
+
+	UserInfo(PackedInfo in) {
+		hasAvatar = (in.readByte() & PackedInfo.FLAG_HAS_AVATAR) != 0;
+		userId = in.readString();
+		name = in.readString();
+		description = in.readString();
+		gender = in.readString();
+		phone = in.readString();
+		email = in.readString();
+		region = in.readString();
+	}
+
+	/* Called from JNI to read the whole user info at once */
+	byte[] pack() {
+		return PackedInfo.pack(this);
+	}
+
 	/**
 	 * Set user ID.
 	 *
@@ -98,6 +122,16 @@ public class UserInfo {
 		return userId;
 	}
 
+	/**
+	 * Get user ID as a CarrierId
+	 *
+	 * @return
+	 * 		The user ID, or null if not set
+	 */
+	public CarrierId getCarrierId() {
+		return userId != null ? CarrierId.fromString(userId) : null;
+	}
+
 	/**
 	 * Set nickname, also as display name.
 	 *
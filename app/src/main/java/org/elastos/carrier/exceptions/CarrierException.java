@@ -31,6 +31,9 @@ public abstract class CarrierException extends Exception {
 	public static final int FACILITY_DHT		= 6;
 
 	private static final long serialVersionUID = -1729415961509977814L;
+
+	private static final int ERROR_BUSY	= 0x10;
+	private static final int EAGAIN		= 11;
 	private int errorCode;
 
 	protected CarrierException(int errorCode) {
@@ -87,6 +90,24 @@ public abstract class CarrierException extends Exception {
 		return (errorCode & 0x7FFFFFFF) >> 24;
 	}
 
+	/**
+	 * Check if an error code returned by a non-throwing write only means the
+	 * data can not be sent right now, and the write may be retried later.
+	 *
+	 * @param
+	 * 		errorCode	The negative error code returned by the write
+	 *
+	 * @return
+	 * 		True if the transport was busy or would block, otherwise false.
+	 */
+	public static boolean isWouldBlock(int errorCode) {
+		int facility = getFacility(errorCode);
+		int code = errorCode & 0x00FFFFFF;
+
+		return (facility == FACILITY_GENERAL && code == ERROR_BUSY) ||
+			   (facility == FACILITY_SYSTEM && code == EAGAIN);
+	}
+
 	public static CarrierException fromErrorCode(int errorCode, String message, Throwable cause) {
 		CarrierException e;
 
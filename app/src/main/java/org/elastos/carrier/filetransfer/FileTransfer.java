@@ -24,18 +24,32 @@ package org.elastos.carrier.filetransfer;
 
 import org.elastos.carrier.exceptions.CarrierException;
 import org.elastos.carrier.Carrier;
+import org.elastos.carrier.ResourceTracker;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
-public class FileTransfer {
+/**
+ * The class representing a file transfer with a friend.
+ *
+ * A file transfer should be closed when done with, for example with
+ * try-with-resources. While the transfer is active it stays reachable even
+ * if the application only sees it through its handler callbacks. Once it
+ * reaches the Closed or Failed state, a file transfer that is dropped
+ * without being closed is reported as a leak by ResourceTracker and its
+ * native resources are released when it is collected.
+ */
+public class FileTransfer implements AutoCloseable {
 	private long nativeCookie; // store native (jni-layered) file transfer handler.
 	private long nativeContext;
+	private boolean didClose;
+	private ResourceTracker.Handle handle;
 
 	private static native String generate_fileId();
 	private native void native_close();
+	private static native void native_release(long filetransfer, long context);
 	private native String get_fileId(String filename);
 	private native String get_filename(String fileId);
 	private native boolean native_connect();
@@ -51,6 +65,27 @@ public class FileTransfer {
 
 	private FileTransfer() {}
 
+	/* Closes the native file transfer of a leaked FileTransfer, holds no reference to it. */
+	private static final class Releaser implements ResourceTracker.Releaser {
+		private final long filetransfer;
+		private final long context;
+
+		Releaser(long filetransfer, long context) {
+			this.filetransfer = filetransfer;
+			this.context = context;
+		}
+
+		@Override
+		public void release() {
+			native_release(filetransfer, context);
+		}
+	}
+
+	void track() {
+		handle = ResourceTracker.track(this, "FileTransfer",
+									   new Releaser(nativeCookie, nativeContext));
+	}
+
 	private class FileTransferOutputStream extends OutputStream {
 		private String fileId;
 
@@ -116,8 +151,14 @@ public class FileTransfer {
 	/**
 	 * Close file transfer instance.
 	 */
-	public void close() {
-		native_close();
+	@Override
+	public synchronized void close() {
+		if (!didClose) {
+			if (handle != null)
+				handle.closed();
+			native_close();
+			didClose = true;
+		}
 	}
 
 	/**
@@ -258,10 +299,38 @@ public class FileTransfer {
 
 		int bytes = native_send(fileId, data, offset, len);
 		if (bytes < 0)
-			throw CarrierException.fromErrorCode(get_error_code());
+			throw CarrierException.fromErrorCode(bytes);
 		return bytes;
 	}
 
+	/**
+	 * To transfer file data with specified fileId, without throwing on
+	 * write errors.
+	 *
+	 * A busy transport is routine under load, so this variant returns the
+	 * error code instead of building a CarrierException. Use
+	 * CarrierException.isWouldBlock to tell it from fatal errors.
+	 *
+	 * @param
+	 *      fileId          [in] The file identifier.
+	 * @param
+	 *      data            [in] The data to transfer for file.
+	 * @param
+	 *      offset          [in] The start offset of data.
+	 * @param
+	 *      len             [in] The bytes to transfer.
+	 *
+	 * @return
+	 * 		Bytes of data sent on success, or a negative carrier error code.
+	 */
+	public int tryWriteData(String fileId, byte[] data, int offset, int len) {
+		if (fileId == null || fileId.isEmpty() || data == null || data.length == 0 ||
+			offset < 0 || len <= 0 || offset + len < len || offset + len > data.length)
+			throw new IllegalArgumentException();
+
+		return native_send(fileId, data, offset, len);
+	}
+
 	/**
 	 * To transfer file data with specified fileId.
 	 *
@@ -320,7 +389,7 @@ public class FileTransfer {
 
 		int bytes = native_send(fileId, new byte[0], 0, 0);
 		if (bytes < 0)
-			throw CarrierException.fromErrorCode(get_error_code());
+			throw CarrierException.fromErrorCode(bytes);
 	}
 
 	/**
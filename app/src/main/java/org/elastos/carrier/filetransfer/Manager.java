@@ -24,18 +24,20 @@ package org.elastos.carrier.filetransfer;
 
 import org.elastos.carrier.Carrier;
 import org.elastos.carrier.Log;
+import org.elastos.carrier.ResourceTracker;
 import org.elastos.carrier.exceptions.CarrierException;
 
 /**
  * The class representing Carrier file transfer manager.
  */
-public class Manager {
+public class Manager implements AutoCloseable {
 	private static final String TAG = "FileTransMgr";
 
 	private static Manager fileTransMgr;
 
 	private Carrier carrier;
 	private boolean didCleanup;
+	private ResourceTracker.Handle handle;
 
 	// jni native methods.
 	private static native boolean native_init(Carrier carrier, ManagerHandler handler);
@@ -101,12 +103,7 @@ public class Manager {
 	private Manager(Carrier carrier) {
 		this.carrier = carrier;
 		this.didCleanup = false;
-	}
-
-	@Override
-	protected void finalize() throws Throwable {
-		cleanup();
-		super.finalize();
+		this.handle = ResourceTracker.track(this, "FileTransferManager", null);
 	}
 
 	/**
@@ -114,6 +111,7 @@ public class Manager {
 	 */
 	public synchronized void cleanup() {
 		if (!didCleanup) {
+			handle.closed();
 			native_cleanup(carrier);
 			carrier = null;
 			Manager.fileTransMgr = null;
@@ -121,6 +119,14 @@ public class Manager {
 		}
 	}
 
+	/**
+	 * Same as cleanup, for use with try-with-resources.
+	 */
+	@Override
+	public void close() {
+		cleanup();
+	}
+
 	/**
 	 * Create a new file transfer to a friend.
 	 *
@@ -153,14 +159,15 @@ public class Manager {
 		if (to == null || handler == null)
 			throw new IllegalArgumentException();
 
-		Log.d(TAG, "Attempt to create a new file transfer to:" + to);
+		Log.d(TAG, "Attempt to create a new file transfer to:%s", to);
 
 		FileTransfer filetransfer = create_filetransfer(carrier, to, fileinfo, handler);
 		if (filetransfer == null) {
 			throw CarrierException.fromErrorCode(get_error_code());
 		}
+		filetransfer.track();
 
-		Log.d(TAG, "Filetransfer to " + to +  " created");
+		Log.d(TAG, "Filetransfer to %s created", to);
 		return filetransfer;
 	}
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.elastos.carrier.session;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The opt-in stream handler that receives incoming data in direct buffers.
+ *
+ * When the handler passed to Session.addStream implements this interface,
+ * incoming stream and channel data is delivered through the ByteBuffer
+ * variants below instead of newly allocated byte arrays. The buffers are
+ * taken from a small per-stream pool of reusable direct buffers, and are
+ * returned to the pool as soon as the callback returns. When all of them
+ * are in use, the data is passed in a one-off direct buffer instead.
+ *
+ * The buffer content is only valid during the callback. Application must
+ * copy the data out if it needs to keep it, and must not hold a reference
+ * to the buffer after the callback returns. The byte[] variants inherited
+ * from StreamHandler are not called for streams using this handler.
+ */
+public interface DirectStreamHandler extends StreamHandler {
+	/**
+	 * The callback will be called when the stream receives incoming packet.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance
+	 * @param
+	 *      data        The received packet data, between position and limit
+	 */
+	void onStreamData(Stream stream, ByteBuffer data);
+
+	/**
+	 * The callback functiont to be called when channel received incoming data.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance
+	 * @param
+	 *      channel     The current channel ID
+	 * @param
+	 *      data        The received data, between position and limit
+	 *
+	 * @return
+	 *      True on success, or false if an error occurred.
+	 *      If this callback return false, the channel will be closed
+	 *      with CloseReason_Error.
+	 */
+	boolean onChannelData(Stream stream, int channel, ByteBuffer data);
+}
@@ -24,18 +24,20 @@ package org.elastos.carrier.session;
 
 import org.elastos.carrier.Carrier;
 import org.elastos.carrier.Log;
+import org.elastos.carrier.ResourceTracker;
 import org.elastos.carrier.exceptions.CarrierException;
 
 /**
  * The class representing Carrier session manager.
  */
-public class Manager {
+public class Manager implements AutoCloseable {
 	private static final String TAG = "CarrierManager";
 
 	private static Manager sessionMgr;
 
 	private Carrier carrier;
 	private boolean didCleanup;
+	private ResourceTracker.Handle handle;
 
 	// jni native methods.
 	private static native boolean native_init(Carrier carrier, ManagerHandler handler);
@@ -107,12 +109,7 @@ public class Manager {
 	private Manager(Carrier carrier) {
 		this.carrier = carrier;
 		this.didCleanup = false;
-	}
-
-	@Override
-	protected void finalize() throws Throwable {
-		cleanup();
-		super.finalize();
+		this.handle = ResourceTracker.track(this, "SessionManager", null);
 	}
 
 	/**
@@ -120,6 +117,7 @@ public class Manager {
 	 */
 	public synchronized void cleanup() {
 		if (!didCleanup) {
+			handle.closed();
 			native_cleanup(carrier);
 			carrier = null;
 			Manager.sessionMgr = null;
@@ -127,6 +125,14 @@ public class Manager {
 		}
 	}
 
+	/**
+	 * Same as cleanup, for use with try-with-resources.
+	 */
+	@Override
+	public void close() {
+		cleanup();
+	}
+
 	/**
 	 * Create a new session to a friend.
 	 *
@@ -147,14 +153,15 @@ public class Manager {
 		if (to == null)
 			throw new IllegalArgumentException();
 
-		Log.d(TAG, "Attempt to create a new session to:" + to);
+		Log.d(TAG, "Attempt to create a new session to:%s", to);
 
 		Session session = create_session(carrier, to);
 		if (session == null) {
 			throw CarrierException.fromErrorCode(get_error_code());
 		}
+		session.track();
 
-		Log.d(TAG, "Session to " + to +  " created");
+		Log.d(TAG, "Session to %s created", to);
 
 		return session;
 	}
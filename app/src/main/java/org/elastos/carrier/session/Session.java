@@ -23,21 +23,25 @@
 package org.elastos.carrier.session;
 
 import org.elastos.carrier.Log;
+import org.elastos.carrier.ResourceTracker;
 import org.elastos.carrier.exceptions.CarrierException;
 
 /**
  * The class representing Carrier session conversion with friends.
  */
-public class Session {
+public class Session implements AutoCloseable {
 	private static final String TAG = "CarrierSession";
 
 	private long nativeCookie = 0; // store native (jni-layered) session handler.
 
 	private String to;  // with whom being conversation.
 	private boolean didClose;
+	private ResourceTracker.Handle handle;
+	private final SessionMetrics metrics = new SessionMetrics();
 
 	/* Jni native methods. */
 	private native void session_close();
+	private static native void session_release(long session);
 	private native boolean native_request(SessionRequestCompleteHandler handler);
 	private native boolean native_reply_request(int status, String reason);
 	private native boolean native_start(String sdp);
@@ -51,29 +55,44 @@ public class Session {
 	private Session(String to) {
 		this.to = to;
 		this.didClose = false;
-		Log.d(TAG, "Session identityHashCode:" + System.identityHashCode(this));
+		Log.d(TAG, "Session identityHashCode:%d", System.identityHashCode(this));
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		close();
-		super.finalize();
+	/* Closes the native session of a leaked Session, holds no reference to it. */
+	private static final class Releaser implements ResourceTracker.Releaser {
+		private final long session;
+
+		Releaser(long session) {
+			this.session = session;
+		}
+
+		@Override
+		public void release() {
+			session_release(session);
+		}
+	}
+
+	void track() {
+		handle = ResourceTracker.track(this, "Session", new Releaser(nativeCookie));
 	}
 
 	/**
 	 * Close a session to friend. All resources include streams, channels, portforwardings
 	 * associated with current session will be destroyed.
 	 */
+	@Override
 	public synchronized void close() {
 		if (!didClose) {
 
-			Log.d(TAG, "Closing session with " + to + " ...");
-			Log.d(TAG, "close identityHashCode:" + System.identityHashCode(this));
+			Log.d(TAG, "Closing session with %s ...", to);
+			Log.d(TAG, "close identityHashCode:%d", System.identityHashCode(this));
 
+			if (handle != null)
+				handle.closed();
 			session_close();
 			didClose = true;
 
-			Log.d(TAG, "Session with " + to + " closed");
+			Log.d(TAG, "Session with %s closed", to);
 		}
 	}
 
@@ -87,6 +106,16 @@ public class Session {
 		return to;
 	}
 
+	/**
+	 * Get the metrics of the session and its streams.
+	 *
+	 * @return
+	 *      A snapshot of the session metrics.
+	 */
+	public SessionStats getStats() {
+		return metrics.snapshot();
+	}
+
 	/**
 	 * Send session request to the friend.
 	 *
@@ -104,10 +133,11 @@ public class Session {
 		if (handler == null)
 			throw new IllegalArgumentException();
 
+		metrics.started();
 		if (!native_request(handler))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Initiate session request to " + to);
+		Log.d(TAG, "Initiate session request to %s", to);
 	}
 
 	/**
@@ -133,9 +163,10 @@ public class Session {
 			throw CarrierException.fromErrorCode(get_error_code());
 
 		if (status == 0) {
-			Log.d(TAG, "Confirmed session request from " + to);
+			metrics.started();
+			Log.d(TAG, "Confirmed session request from %s", to);
 		} else {
-			Log.d(TAG, "Refused session request from " + to + " with reason " + reason);
+			Log.d(TAG, "Refused session request from %s with reason %s", to, reason);
 		}
 	}
 
@@ -160,7 +191,7 @@ public class Session {
 		if (!native_start(sdp))
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, "Session to " + to + " started");
+		Log.d(TAG, "Session to %s started", to);
 	}
 
 	/**
@@ -197,13 +228,14 @@ public class Session {
 		if (handler == null)
 			throw new IllegalArgumentException();
 
-		Log.d(TAG, String.format("Attempt to add stream (type:%s, options:%d)", type, options));
+		Log.d(TAG, "Attempt to add stream (type:%s, options:%d)", type, options);
 
 		Stream stream = add_stream(type, options, handler);
 		if (stream == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, String.format("Stream %d with %s type created", stream.getStreamId(), type.name()));
+		stream.metrics = metrics;
+		Log.d(TAG, "Stream %d with %s type created", stream.getStreamId(), type.name());
 
 		return stream;
 	}
@@ -226,7 +258,7 @@ public class Session {
 			throw CarrierException.fromErrorCode(get_error_code());
 
 
-		Log.d(TAG, "Stream " + stream.getStreamId() + " was removed from session");
+		Log.d(TAG, "Stream %d was removed from session", stream.getStreamId());
 	}
 
 	/**
@@ -259,7 +291,7 @@ public class Session {
 			throw CarrierException.fromErrorCode(get_error_code());
 
 
-		Log.d(TAG, "Service " + service + " added to session");
+		Log.d(TAG, "Service %s added to session", service);
 	}
 
 	/**
@@ -276,6 +308,6 @@ public class Session {
 
 		remove_service(service);
 
-		Log.d(TAG, "Service " + service + "was removed from session");
+		Log.d(TAG, "Service %s was removed from session", service);
 	}
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.elastos.carrier.Counter;
+
+/**
+ * Counters of a session and its streams, see Session.getStats.
+ */
+final class SessionMetrics {
+	private final Counter streamBytes = new Counter();
+	private final Counter channelBytes = new Counter();
+	private final ConcurrentHashMap<Integer, Counter> writeErrors =
+		new ConcurrentHashMap<Integer, Counter>();
+
+	private volatile long startTime = 0;
+	private volatile long establishTime = -1;
+
+	void started() {
+		startTime = System.nanoTime();
+	}
+
+	/* Called on each stream connected, only the first one counts */
+	void established() {
+		long start = startTime;
+		if (start != 0 && establishTime < 0)
+			establishTime = System.nanoTime() - start;
+	}
+
+	void streamWritten(int bytes) {
+		streamBytes.add(bytes);
+	}
+
+	void channelWritten(int bytes) {
+		channelBytes.add(bytes);
+	}
+
+	void writeFailed(int errorCode) {
+		Counter counter = writeErrors.get(errorCode);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = writeErrors.putIfAbsent(errorCode, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.increment();
+	}
+
+	SessionStats snapshot() {
+		HashMap<Integer, Long> errors = new HashMap<Integer, Long>();
+		for (Map.Entry<Integer, Counter> entry : writeErrors.entrySet())
+			errors.put(entry.getKey(), entry.getValue().get());
+
+		return new SessionStats(streamBytes.get(), channelBytes.get(),
+								Collections.unmodifiableMap(errors), establishTime);
+	}
+}
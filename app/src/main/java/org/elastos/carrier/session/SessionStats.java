@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics of a session, see Session.getStats.
+ */
+public final class SessionStats {
+	private final long streamBytesWritten;
+	private final long channelBytesWritten;
+	private final Map<Integer, Long> writeErrors;
+	private final long establishTime;
+
+	SessionStats(long streamBytesWritten, long channelBytesWritten,
+				 Map<Integer, Long> writeErrors, long establishTime) {
+		this.streamBytesWritten = streamBytesWritten;
+		this.channelBytesWritten = channelBytesWritten;
+		this.writeErrors = writeErrors;
+		this.establishTime = establishTime;
+	}
+
+	/**
+	 * Get the bytes written to the streams of the session, outside channels.
+	 *
+	 * @return
+	 * 		The number of bytes.
+	 */
+	public long getStreamBytesWritten() {
+		return streamBytesWritten;
+	}
+
+	/**
+	 * Get the bytes written to the channels of multiplexing streams.
+	 *
+	 * @return
+	 * 		The number of bytes.
+	 */
+	public long getChannelBytesWritten() {
+		return channelBytesWritten;
+	}
+
+	/**
+	 * Get the failed stream and channel writes.
+	 *
+	 * @return
+	 * 		The number of failures by CarrierException error code.
+	 */
+	public Map<Integer, Long> getWriteErrors() {
+		return writeErrors;
+	}
+
+	/**
+	 * Get the time from sending or accepting the session request to the
+	 * first stream connected.
+	 *
+	 * @return
+	 * 		The time in nanoseconds, or -1 if no stream connected yet.
+	 */
+	public long getEstablishTime() {
+		return establishTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SessionStats[streamBytes:%d, channelBytes:%d, writeErrors:%s, " +
+							 "establishTime:%d]", streamBytesWritten, channelBytesWritten,
+							 writeErrors, establishTime);
+	}
+}
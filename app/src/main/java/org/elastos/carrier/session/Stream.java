@@ -24,6 +24,7 @@ package org.elastos.carrier.session;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import org.elastos.carrier.Log;
 import org.elastos.carrier.exceptions.CarrierException;
 
@@ -38,6 +39,7 @@ public class Stream {
 
 	private int streamId;
 	private StreamType type;
+	volatile SessionMetrics metrics;
 
 	public static int PROPERTY_COMPRESS = 0x01;
 	public static int PROPERTY_PLAIN = 0x02;
@@ -47,11 +49,17 @@ public class Stream {
 
 	/* Jni native methods */
 	private native boolean get_transport_info(int streamId, TransportInfo info);
-	private native int write_stream_data(int streamId, byte[] data, int offset, int len);
+	private static native int write_stream_data(long session, int streamId, byte[] data,
+												int offset, int len);
+	private static native int write_stream_buffer(long session, int streamId, ByteBuffer data,
+												  int offset, int len);
 
 	private native int open_channel(int streamId, String cookie);
 	private native boolean close_channel(int streamId, int channel);
-	private native int write_channel_data(int streamId, int channel, byte[] data, int offset, int len);
+	private static native int write_channel_data(long session, int streamId, int channel,
+												 byte[] data, int offset, int len);
+	private static native int write_channel_buffer(long session, int streamId, int channel,
+												   ByteBuffer data, int offset, int len);
 	private native boolean pend_channel(int streamId, int channel);
 	private native boolean resume_channel(int streamId, int channel);
 
@@ -193,11 +201,29 @@ public class Stream {
 		if (data == null || data.length == 0 || offset < 0 || len <= 0 || (offset + len) > data.length)
 			throw new IllegalArgumentException();
 
-		int bytes = write_stream_data(streamId, data, offset, len);
-		if (bytes < 0)
-			throw CarrierException.fromErrorCode(get_error_code());
+		return check(tryWriteData(data, offset, len));
+	}
 
-		return bytes;
+	/**
+	 * Send outgoing data to remote peer without throwing on write errors.
+	 *
+	 * Busy or full transports are routine under load, so this variant
+	 * returns the error code instead of building a CarrierException. Use
+	 * CarrierException.isWouldBlock to tell them from fatal errors.
+	 *
+	 * @param
+	 *      data        The outgoing data
+	 *      offset      The start offset
+	 *      len         The bytes to write
+	 *
+	 * @return
+	 *      Bytes of data sent on success, or a negative carrier error code
+	 */
+	public int tryWriteData(byte[] data, int offset, int len) {
+		if (data == null || data.length == 0 || offset < 0 || len <= 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		return written(-1, write_stream_data(nativeCookie, streamId, data, offset, len));
 	}
 
 	/**
@@ -243,6 +269,46 @@ public class Stream {
 		return writeData(_data);
 	}
 
+	/**
+	 * Send outgoing data to remote peer.
+	 *
+	 * The bytes between the buffer's position and limit are sent, and the
+	 * position is advanced by the number of bytes sent. Direct buffers are
+	 * handed to the native layer without any copy.
+	 *
+	 * If the stream is in multiplexing mode, application can not call this function
+	 * to send data. If this function is called on multiplexing mode stream, it will
+	 * throw exception.
+	 *
+	 * @param
+	 *      data        The outgoing data
+	 *
+	 * @return
+	 *      Bytes of data sent on success
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public int writeData(ByteBuffer data) throws CarrierException {
+		return check(writeBuffer(-1, data));
+	}
+
+	/**
+	 * Send outgoing data to remote peer without throwing on write errors.
+	 *
+	 * The buffer's position is advanced by the bytes sent, and left as is
+	 * on error.
+	 *
+	 * @param
+	 *      data        The outgoing data
+	 *
+	 * @return
+	 *      Bytes of data sent on success, or a negative carrier error code
+	 */
+	public int tryWriteData(ByteBuffer data) {
+		return writeBuffer(-1, data);
+	}
+
 	public OutputStream getOutputStream() {
 		return new ChannelOutputStream(this, -1);
 	}
@@ -277,7 +343,7 @@ public class Stream {
 		if (channel < 0)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, String.format("Channel %d on stream %d created", channel, streamId));
+		Log.d(TAG, "Channel %d on stream %d created", channel, streamId);
 
 		return channel;
 	}
@@ -301,7 +367,7 @@ public class Stream {
 		if (!result)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, String.format("Channel %d on stream %d closed", channel, streamId));
+		Log.d(TAG, "Channel %d on stream %d closed", channel, streamId);
 	}
 
 	/**
@@ -323,11 +389,27 @@ public class Stream {
 		if (channel <= 0 || data == null || data.length == 0 || offset < 0 || len <= 0 || (offset + len) > data.length)
 			throw new IllegalArgumentException();
 
-		int result = write_channel_data(streamId, channel, data, offset, len);
-		if (result < 0)
-			throw CarrierException.fromErrorCode(get_error_code());
+		return check(tryWriteData(channel, data, offset, len));
+	}
 
-		return result;
+	/**
+	 * Send outgoing data to remote peer without throwing on write errors.
+	 *
+	 * @param
+	 *      channel     [in] The channel ID
+	 * @param
+	 *      data        [in] The outgoing data
+	 *      offset      [in] The start offset
+	 *      len         [in] The bytes to write
+	 *
+	 * @return
+	 *      Bytes of data sent on success, or a negative carrier error code
+	 */
+	public int tryWriteData(int channel, byte[] data, int offset, int len) {
+		if (channel <= 0 || data == null || data.length == 0 || offset < 0 || len <= 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		return written(channel, write_channel_data(nativeCookie, streamId, channel, data, offset, len));
 	}
 
 	/**
@@ -367,6 +449,108 @@ public class Stream {
 		return writeData(channel, _data);
 	}
 
+	/**
+	 * Send outgoing data to remote peer.
+	 *
+	 * The bytes between the buffer's position and limit are sent, and the
+	 * position is advanced by the number of bytes sent. Direct buffers are
+	 * handed to the native layer without any copy.
+	 *
+	 * If the stream is not multiplexing this function will throw exception.
+	 *
+	 * @param
+	 *      channel     [in] The channel ID
+	 * @param
+	 *      data        [in] The outgoing data
+	 *
+	 * @return
+	 *      Bytes of data sent on success.
+	 */
+	public int writeData(int channel, ByteBuffer data) throws CarrierException {
+		return check(tryWriteData(channel, data));
+	}
+
+	/**
+	 * Send outgoing data to remote peer without throwing on write errors.
+	 *
+	 * @param
+	 *      channel     [in] The channel ID
+	 * @param
+	 *      data        [in] The outgoing data
+	 *
+	 * @return
+	 *      Bytes of data sent on success, or a negative carrier error code
+	 */
+	public int tryWriteData(int channel, ByteBuffer data) {
+		if (channel <= 0)
+			throw new IllegalArgumentException();
+
+		return writeBuffer(channel, data);
+	}
+
+	private int writeBuffer(int channel, ByteBuffer data) {
+		if (data == null || !data.hasRemaining())
+			throw new IllegalArgumentException();
+
+		int position = data.position();
+		int len = data.remaining();
+		int bytes;
+
+		if (data.isDirect()) {
+			bytes = channel < 0 ?
+				write_stream_buffer(nativeCookie, streamId, data, position, len) :
+				write_channel_buffer(nativeCookie, streamId, channel, data, position, len);
+		} else if (data.hasArray()) {
+			int offset = data.arrayOffset() + position;
+			bytes = channel < 0 ?
+				write_stream_data(nativeCookie, streamId, data.array(), offset, len) :
+				write_channel_data(nativeCookie, streamId, channel, data.array(), offset, len);
+		} else {
+			// read-only heap buffer, its backing array is not accessible.
+			byte[] _data = new byte[len];
+			data.duplicate().get(_data);
+			bytes = channel < 0 ?
+				write_stream_data(nativeCookie, streamId, _data, 0, len) :
+				write_channel_data(nativeCookie, streamId, channel, _data, 0, len);
+		}
+
+		if (written(channel, bytes) > 0)
+			data.position(position + bytes);
+		return bytes;
+	}
+
+	/* Natives return the error code itself on failure, a negative int */
+	private static int check(int result) throws CarrierException {
+		if (result < 0)
+			throw CarrierException.fromErrorCode(result);
+		return result;
+	}
+
+	private int written(int channel, int bytes) {
+		SessionMetrics metrics = this.metrics;
+
+		if (bytes < 0) {
+			if (metrics != null)
+				metrics.writeFailed(bytes);
+			return bytes;
+		}
+
+		if (metrics != null) {
+			if (channel < 0)
+				metrics.streamWritten(bytes);
+			else
+				metrics.channelWritten(bytes);
+		}
+		return bytes;
+	}
+
+	/* Called from jni before the handler gets the state */
+	private void stateChanged(StreamState state) {
+		SessionMetrics metrics = this.metrics;
+		if (metrics != null && state == StreamState.Connected)
+			metrics.established();
+	}
+
 	/**
 	 * Request remote peer to pend channel data sending.
 	 *
@@ -436,9 +620,9 @@ public class Stream {
 		if (pfId < 0)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, String.format("Port forwarding %d to service %s created, " +
+		Log.d(TAG, "Port forwarding %d to service %s created, " +
 				"and currently listening on %s://%s:%s",
-				pfId, service, protocol, host, port));
+				pfId, service, protocol, host, port);
 
 		return pfId;
 	}
@@ -462,6 +646,6 @@ public class Stream {
 		if (!result)
 			throw CarrierException.fromErrorCode(get_error_code());
 
-		Log.d(TAG, String.format("Port forwarding %d closed nicely", portForwarding));
+		Log.d(TAG, "Port forwarding %d closed nicely", portForwarding);
 	}
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the fixed width base58 codec, checked against the
+ * generic Base58 codec it replaces for ids and addresses.
+ */
+public class FixedBase58Test {
+	private static final String ALPHABET =
+		"123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+	private static final int ROUNDS = 2000;
+
+	private Random random;
+
+	@BeforeClass
+	public static void setUpClass() {
+		Log.setLevel(Log.NONE);
+	}
+
+	@Before
+	public void setUp() {
+		random = new Random(42);
+	}
+
+	/* Random bytes, with a run of leading zeros every few rounds */
+	private byte[] randomBytes(int len, int round) {
+		byte[] bytes = new byte[len];
+		random.nextBytes(bytes);
+		if (round % 4 == 0)
+			Arrays.fill(bytes, 0, random.nextInt(len + 1), (byte)0);
+		return bytes;
+	}
+
+	/* What Base58 says about input being the encoding of len bytes */
+	private static boolean isValidBase58(String input, int len) {
+		if (input.length() == 0)
+			return false;
+
+		try {
+			return Base58.decode(input).length == len;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private String mutate(String input) {
+		int pos = random.nextInt(input.length());
+		char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+
+		switch (random.nextInt(6)) {
+		case 0:
+			return input.substring(0, input.length() - 1);
+		case 1:
+			return input.substring(1);
+		case 2:
+			return input + c;
+		case 3:
+			return c + input;
+		case 4:
+			return input.substring(0, pos) + c + input.substring(pos + 1);
+		default:
+			return input.substring(0, pos) + "0OIl+/ \u00e9".charAt(random.nextInt(8)) +
+				input.substring(pos + 1);
+		}
+	}
+
+	private void checkEncode(int len) {
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] bytes = randomBytes(len, round);
+			assertEquals(Base58.encode(bytes), FixedBase58.encode(bytes, 0, len));
+		}
+
+		byte[] bytes = new byte[len];
+		assertEquals(Base58.encode(bytes), FixedBase58.encode(bytes, 0, len));
+		Arrays.fill(bytes, (byte)0xFF);
+		assertEquals(Base58.encode(bytes), FixedBase58.encode(bytes, 0, len));
+	}
+
+	private void checkDecode(int len) {
+		byte[] out = new byte[len + 6];
+
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] bytes = randomBytes(len, round);
+			String encoded = Base58.encode(bytes);
+
+			Arrays.fill(out, (byte)0x5A);
+			assertTrue(FixedBase58.isValid(encoded, len));
+			assertTrue(FixedBase58.decode(encoded, len, out, 3));
+			assertArrayEquals(bytes, Arrays.copyOfRange(out, 3, 3 + len));
+			assertEquals(0x5A, out[2]);
+			assertEquals(0x5A, out[len + 3]);
+		}
+	}
+
+	private void checkMutations(int len) {
+		byte[] out = new byte[len];
+
+		for (int round = 0; round < ROUNDS; round++) {
+			String input = mutate(Base58.encode(randomBytes(len, round)));
+			boolean valid = isValidBase58(input, len);
+
+			assertEquals(input, valid, FixedBase58.isValid(input, len));
+
+			Arrays.fill(out, (byte)0x5A);
+			assertEquals(input, valid, FixedBase58.decode(input, len, out, 0));
+			if (valid)
+				assertArrayEquals(input, Base58.decode(input), out);
+			else
+				assertEquals(input, 0, out[0] ^ 0x5A | out[len - 1] ^ 0x5A);
+		}
+	}
+
+	@Test
+	public void encodesIdsLikeBase58() {
+		checkEncode(FixedBase58.ID_LEN);
+	}
+
+	@Test
+	public void encodesAddressesLikeBase58() {
+		checkEncode(FixedBase58.ADDRESS_LEN);
+	}
+
+	@Test
+	public void encodesIntoBuffer() {
+		byte[] bytes = new byte[FixedBase58.ADDRESS_LEN];
+		Arrays.fill(bytes, (byte)0xFF);
+		char[] chars = new char[FixedBase58.ENCODE_BUFFER_LEN];
+
+		int length = FixedBase58.encode(bytes, 0, bytes.length, chars);
+		assertEquals(Base58.encode(bytes), new String(chars, 0, length));
+	}
+
+	@Test
+	public void encodesAtOffset() {
+		byte[] bytes = randomBytes(FixedBase58.ID_LEN + 5, 1);
+
+		assertEquals(Base58.encode(Arrays.copyOfRange(bytes, 5, bytes.length)),
+					 FixedBase58.encode(bytes, 5, FixedBase58.ID_LEN));
+	}
+
+	@Test
+	public void decodesIdsLikeBase58() {
+		checkDecode(FixedBase58.ID_LEN);
+	}
+
+	@Test
+	public void decodesAddressesLikeBase58() {
+		checkDecode(FixedBase58.ADDRESS_LEN);
+	}
+
+	@Test
+	public void validatesMutatedIdsLikeBase58() {
+		checkMutations(FixedBase58.ID_LEN);
+	}
+
+	@Test
+	public void validatesMutatedAddressesLikeBase58() {
+		checkMutations(FixedBase58.ADDRESS_LEN);
+	}
+
+	@Test
+	public void rejectsInvalidInput() {
+		String id = Base58.encode(randomBytes(FixedBase58.ID_LEN, 1));
+		String address = Base58.encode(randomBytes(FixedBase58.ADDRESS_LEN, 1));
+
+		assertFalse(FixedBase58.isValid(null, FixedBase58.ID_LEN));
+		assertFalse(FixedBase58.isValid("", FixedBase58.ID_LEN));
+		assertFalse(FixedBase58.isValid("0" + id.substring(1), FixedBase58.ID_LEN));
+		assertFalse(FixedBase58.isValid(id + id, FixedBase58.ID_LEN));
+		assertFalse(FixedBase58.isValid(address, FixedBase58.ID_LEN));
+		assertFalse(FixedBase58.isValid(id, FixedBase58.ADDRESS_LEN));
+
+		// Too many leading zeros, and an all zero id with one too few
+		char[] ones = new char[FixedBase58.ID_LEN + 1];
+		Arrays.fill(ones, '1');
+		assertFalse(FixedBase58.isValid(new String(ones), FixedBase58.ID_LEN));
+		assertTrue(FixedBase58.isValid(new String(ones, 0, FixedBase58.ID_LEN), FixedBase58.ID_LEN));
+		assertFalse(FixedBase58.isValid(new String(ones, 0, FixedBase58.ID_LEN - 1), FixedBase58.ID_LEN));
+	}
+
+	@Test
+	public void extractsIdFromAddress() {
+		for (int round = 0; round < ROUNDS; round++) {
+			byte[] address = randomBytes(FixedBase58.ADDRESS_LEN, round);
+			String id = Base58.encode(Arrays.copyOf(address, FixedBase58.ID_LEN));
+
+			assertEquals(id, FixedBase58.idFromAddress(Base58.encode(address)));
+		}
+	}
+
+	@Test
+	public void rejectsInvalidAddress() {
+		String id = Base58.encode(randomBytes(FixedBase58.ID_LEN, 1));
+		String address = Base58.encode(randomBytes(FixedBase58.ADDRESS_LEN, 1));
+
+		assertNull(FixedBase58.idFromAddress(id));
+		assertNull(FixedBase58.idFromAddress(""));
+		assertNull(FixedBase58.idFromAddress(address.substring(0, 10)));
+		assertNull(FixedBase58.idFromAddress(address.replace(address.charAt(5), '0')));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the batch frame parsing.
+ */
+public class FriendMessageBatcherTest {
+	@BeforeClass
+	public static void setUpClass() {
+		Log.setLevel(Log.NONE);
+	}
+
+	/* Build a batch frame the way the batcher fills it */
+	private static byte[] pack(List<byte[]> messages) {
+		int length = MessageFraming.HEADER_LEN;
+		for (byte[] message : messages)
+			length += FriendMessageBatcher.ENTRY_HEADER_LEN + message.length;
+
+		byte[] frame = new byte[length];
+		frame[0] = MessageFraming.MAGIC;
+		frame[1] = MessageFraming.TYPE_BATCH;
+
+		int offset = MessageFraming.HEADER_LEN;
+		for (byte[] message : messages) {
+			MessageFraming.writeShort(frame, offset, message.length);
+			offset += FriendMessageBatcher.ENTRY_HEADER_LEN;
+			System.arraycopy(message, 0, frame, offset, message.length);
+			offset += message.length;
+		}
+		return frame;
+	}
+
+	private static byte[] truncate(byte[] frame, int length) {
+		byte[] truncated = new byte[length];
+		System.arraycopy(frame, 0, truncated, 0, length);
+		return truncated;
+	}
+
+	private static void assertMessages(List<byte[]> expected, List<byte[]> actual) {
+		assertNotNull(actual);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertArrayEquals(expected.get(i), actual.get(i));
+	}
+
+	@Test
+	public void unpacksMessagesInOrder() {
+		Random random = new Random(42);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int length = 1; length < 40; length += 3) {
+			byte[] message = new byte[length];
+			random.nextBytes(message);
+			messages.add(message);
+		}
+
+		byte[] frame = pack(messages);
+		assertTrue(frame.length <= Carrier.MAX_APP_MESSAGE_LEN);
+		assertMessages(messages, FriendMessageBatcher.unpack(frame));
+	}
+
+	@Test
+	public void unpacksLargestBatchedMessage() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		byte[] message = new byte[FriendMessageBatcher.MAX_BATCHED_MESSAGE_LEN];
+		new Random(42).nextBytes(message);
+		messages.add(message);
+
+		byte[] frame = pack(messages);
+		assertEquals(Carrier.MAX_APP_MESSAGE_LEN, frame.length);
+		assertMessages(messages, FriendMessageBatcher.unpack(frame));
+	}
+
+	@Test
+	public void unpacksFramelikeMessages() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		messages.add(new byte[] { MessageFraming.MAGIC, MessageFraming.TYPE_BATCH, 0, 1 });
+		messages.add(new byte[] { MessageFraming.MAGIC });
+
+		assertMessages(messages, FriendMessageBatcher.unpack(pack(messages)));
+	}
+
+	@Test
+	public void unpacksEmptyBatch() {
+		List<byte[]> messages = FriendMessageBatcher.unpack(pack(new ArrayList<byte[]>()));
+
+		assertNotNull(messages);
+		assertTrue(messages.isEmpty());
+	}
+
+	@Test
+	public void rejectsEmptyEntry() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		messages.add(new byte[] { 1, 2, 3 });
+		messages.add(new byte[0]);
+
+		assertNull(FriendMessageBatcher.unpack(pack(messages)));
+	}
+
+	@Test
+	public void rejectsTruncatedMessage() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		messages.add(new byte[] { 1, 2, 3 });
+		messages.add(new byte[] { 4, 5, 6, 7 });
+		byte[] frame = pack(messages);
+
+		for (int length = frame.length - 1; length > MessageFraming.HEADER_LEN; length--) {
+			// Cut right after the first message is a valid batch of one message
+			if (length == MessageFraming.HEADER_LEN + FriendMessageBatcher.ENTRY_HEADER_LEN + 3)
+				continue;
+
+			assertNull("Truncated to " + length,
+					   FriendMessageBatcher.unpack(truncate(frame, length)));
+		}
+	}
+
+	@Test
+	public void rejectsLengthOverrun() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		messages.add(new byte[] { 1, 2, 3 });
+		byte[] frame = pack(messages);
+		MessageFraming.writeShort(frame, MessageFraming.HEADER_LEN, 0xFFFF);
+
+		assertNull(FriendMessageBatcher.unpack(frame));
+	}
+
+	@Test
+	public void rejectsPartialEntryHeader() {
+		byte[] frame = { MessageFraming.MAGIC, MessageFraming.TYPE_BATCH, 0 };
+
+		assertNull(FriendMessageBatcher.unpack(frame));
+	}
+}
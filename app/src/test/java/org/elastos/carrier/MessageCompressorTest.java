@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of message compression with and without a preset
+ * dictionary.
+ */
+public class MessageCompressorTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_LENGTH = Carrier.MAX_LARGE_MESSAGE_LEN;
+
+	@BeforeClass
+	public static void setUpClass() {
+		Log.setLevel(Log.NONE);
+	}
+
+	private static byte[] sample(int seq) {
+		return String.format("{\"type\":\"chat\",\"seq\":%d,\"sender\":\"user%d\"," +
+				"\"status\":\"delivered\",\"text\":\"message number %d\"}", seq, seq % 7, seq)
+				.getBytes(UTF8);
+	}
+
+	private static List<byte[]> samples() {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		for (int i = 0; i < 50; i++)
+			samples.add(sample(i));
+		return samples;
+	}
+
+	private static byte[] truncate(byte[] frame, int length) {
+		byte[] truncated = new byte[length];
+		System.arraycopy(frame, 0, truncated, 0, length);
+		return truncated;
+	}
+
+	private static void checkRoundTrip(MessageCompressor compressor, byte[] message) {
+		byte[] frame = compressor.compress(message);
+
+		assertNotNull(frame);
+		assertTrue(frame.length < message.length);
+		assertTrue(MessageFraming.isFramed(frame));
+		assertEquals(MessageFraming.TYPE_COMPRESSED, MessageFraming.typeOf(frame));
+		assertEquals(compressor.getDictionaryId(), MessageFraming.readInt(frame, 2));
+		assertEquals(message.length, MessageFraming.readInt(frame, 6));
+		assertArrayEquals(message, compressor.decompress(frame, MAX_LENGTH));
+	}
+
+	@Test
+	public void roundTripsWithoutDictionary() {
+		MessageCompressor compressor = new MessageCompressor(null);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 40; i++)
+			text.append("hello carrier ").append(i).append('\n');
+
+		checkRoundTrip(compressor, text.toString().getBytes(UTF8));
+	}
+
+	@Test
+	public void roundTripsWithDictionary() {
+		byte[] dictionary = CompressionDictionary.train(samples(), 1024);
+		MessageCompressor compressor = new MessageCompressor(dictionary);
+		byte[] message = sample(1000);
+
+		assertTrue(dictionary.length > 0);
+		checkRoundTrip(compressor, message);
+
+		// The message is too short to compress well without the dictionary
+		byte[] plain = new MessageCompressor(null).compress(message);
+		assertTrue(plain == null || compressor.compress(message).length < plain.length);
+	}
+
+	@Test
+	public void roundTripsLargeMessage() {
+		MessageCompressor compressor = new MessageCompressor(
+				CompressionDictionary.train(samples(), MessageCompressor.MAX_DICTIONARY_LEN));
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 256 * 1024; i++)
+			text.append(new String(sample(i), UTF8));
+
+		checkRoundTrip(compressor, text.toString().getBytes(UTF8));
+	}
+
+	@Test
+	public void skipsShortMessages() {
+		byte[] message = new byte[MessageCompressor.MIN_COMPRESS_LEN - 1];
+
+		assertNull(new MessageCompressor(null).compress(message));
+		assertNotNull(new MessageCompressor(null).compress(new byte[MessageCompressor.MIN_COMPRESS_LEN]));
+	}
+
+	@Test
+	public void skipsIncompressibleMessages() {
+		byte[] message = new byte[1000];
+		new Random(42).nextBytes(message);
+
+		assertNull(new MessageCompressor(null).compress(message));
+	}
+
+	@Test
+	public void identifiesDictionaryByChecksum() {
+		byte[] dictionary = CompressionDictionary.train(samples(), 1024);
+
+		assertEquals(MessageCompressor.checksum(dictionary),
+					 new MessageCompressor(dictionary).getDictionaryId());
+		assertEquals(new MessageCompressor(null).getDictionaryId(),
+					 new MessageCompressor(new byte[0]).getDictionaryId());
+	}
+
+	@Test
+	public void rejectsOtherDictionary() {
+		byte[] dictionary = CompressionDictionary.train(samples(), 1024);
+		byte[] frame = new MessageCompressor(dictionary).compress(sample(1000));
+		byte[] other = dictionary.clone();
+		other[other.length - 1] ^= 1;
+
+		assertNotNull(frame);
+		assertNull(new MessageCompressor(null).decompress(frame, MAX_LENGTH));
+		assertNull(new MessageCompressor(other).decompress(frame, MAX_LENGTH));
+	}
+
+	@Test
+	public void rejectsMessagesOverMaxLength() {
+		byte[] message = new byte[4096];
+		MessageCompressor compressor = new MessageCompressor(null);
+		byte[] frame = compressor.compress(message);
+
+		assertNull(compressor.decompress(frame, message.length - 1));
+		assertArrayEquals(message, compressor.decompress(frame, message.length));
+	}
+
+	@Test
+	public void rejectsInvalidLength() {
+		byte[] message = new byte[4096];
+		MessageCompressor compressor = new MessageCompressor(null);
+		byte[] frame = compressor.compress(message);
+
+		MessageFraming.writeInt(frame, 6, 0);
+		assertNull(compressor.decompress(frame, MAX_LENGTH));
+		MessageFraming.writeInt(frame, 6, -1);
+		assertNull(compressor.decompress(frame, MAX_LENGTH));
+
+		// Claims more bytes than the frame inflates to
+		MessageFraming.writeInt(frame, 6, message.length + 1);
+		assertNull(compressor.decompress(frame, MAX_LENGTH));
+	}
+
+	@Test
+	public void rejectsTruncatedFrames() {
+		MessageCompressor compressor = new MessageCompressor(
+				CompressionDictionary.train(samples(), 1024));
+		byte[] message = sample(1000);
+		byte[] frame = compressor.compress(message);
+
+		for (int length = 0; length < frame.length - 1; length++)
+			assertNull("Truncated to " + length, compressor.decompress(truncate(frame, length), MAX_LENGTH));
+
+		// Only the end of stream marker may be lost, never any message byte
+		byte[] result = compressor.decompress(truncate(frame, frame.length - 1), MAX_LENGTH);
+		assertTrue(result == null || Arrays.equals(message, result));
+
+		// Still usable after a failure
+		assertArrayEquals(message, compressor.decompress(frame, MAX_LENGTH));
+	}
+
+	@Test
+	public void rejectsCorruptedFrames() {
+		MessageCompressor compressor = new MessageCompressor(null);
+		byte[] message = new byte[4096];
+		byte[] frame = compressor.compress(message);
+
+		for (int i = MessageFraming.COMPRESSED_HEADER_LEN; i < frame.length; i++)
+			frame[i] = (byte)0xFF;
+		assertNull(compressor.decompress(frame, MAX_LENGTH));
+	}
+
+	@Test
+	public void trainsDictionaryWithinMaxSize() {
+		assertTrue(CompressionDictionary.train(samples(), 100).length <= 100);
+
+		// Nothing in common, nothing to keep
+		List<byte[]> samples = new ArrayList<byte[]>();
+		Random random = new Random(42);
+		for (int i = 0; i < 10; i++) {
+			byte[] sample = new byte[64];
+			random.nextBytes(sample);
+			samples.add(sample);
+		}
+		assertEquals(0, CompressionDictionary.train(samples, 1024).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsOversizedDictionary() {
+		CompressionDictionary.train(samples(), MessageCompressor.MAX_DICTIONARY_LEN + 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyDictionarySize() {
+		CompressionDictionary.train(samples(), 0);
+	}
+}
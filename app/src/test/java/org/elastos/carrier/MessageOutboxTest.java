@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the persistent outbox: queueing, ordered delivery,
+ * recovery after a restart, expiry and compaction.
+ */
+public class MessageOutboxTest {
+	private static final int MESSAGE_LEN = 100;
+	/* Log header and a record of a one char friend id */
+	private static final int HEADER_LEN = 8;
+	private static final int RECORD_LEN = 14 + 1 + MESSAGE_LEN;
+	private static final int CAPACITY = HEADER_LEN + 4 * RECORD_LEN;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private MessageOutbox outbox;
+
+	/* Records the sent messages, and fails from the failAt-th one on */
+	private static final class Recorder implements MessageOutbox.Sender {
+		final List<String> to = new ArrayList<String>();
+		final List<byte[]> messages = new ArrayList<byte[]>();
+		int failAt = -1;
+
+		@Override
+		public void send(String to, byte[] message) throws CarrierException {
+			if (messages.size() == failAt)
+				throw CarrierException.fromErrorCode(
+						0x80000000 | (CarrierException.FACILITY_GENERAL << 24) | 0x0D, "offline");
+
+			this.to.add(to);
+			messages.add(message);
+		}
+	}
+
+	@BeforeClass
+	public static void setUpClass() {
+		Log.setLevel(Log.NONE);
+	}
+
+	@Before
+	public void setUp() {
+		file = new File(folder.getRoot(), MessageOutbox.FILE_NAME);
+		outbox = new MessageOutbox(file, CAPACITY);
+	}
+
+	@After
+	public void tearDown() {
+		outbox.close();
+	}
+
+	private void restart() {
+		outbox.close();
+		outbox = new MessageOutbox(file, CAPACITY);
+	}
+
+	private static byte[] message(int n) {
+		byte[] message = new byte[MESSAGE_LEN];
+		Arrays.fill(message, (byte)n);
+		return message;
+	}
+
+	private static long live() {
+		return System.currentTimeMillis() + 60 * 1000;
+	}
+
+	private static long expired() {
+		return System.currentTimeMillis() - 1;
+	}
+
+	private void queue(String to, int n, long deadline) throws IOException {
+		assertTrue(outbox.offer(to, message(n), deadline, false, new Recorder()));
+	}
+
+	private static void assertSent(Recorder recorder, int... expected) {
+		assertEquals(expected.length, recorder.messages.size());
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals("Message " + i, message(expected[i]), recorder.messages.get(i));
+	}
+
+	@Test
+	public void sendsAtOnceWhenConnected() throws IOException {
+		Recorder recorder = new Recorder();
+
+		assertTrue(outbox.offer("a", message(1), live(), true, recorder));
+		assertSent(recorder, 1);
+		assertEquals(0, outbox.getPendingCount("a"));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void queuesWhenDisconnected() throws IOException {
+		queue("a", 1, live());
+		queue("b", 2, live());
+		queue("a", 3, live());
+
+		assertEquals(2, outbox.getPendingCount("a"));
+		assertEquals(1, outbox.getPendingCount("b"));
+
+		Recorder recorder = new Recorder();
+		assertEquals(2, outbox.flush("a", recorder));
+		assertSent(recorder, 1, 3);
+		assertEquals(Arrays.asList("a", "a"), recorder.to);
+		assertEquals(0, outbox.getPendingCount("a"));
+		assertEquals(1, outbox.getPendingCount("b"));
+	}
+
+	@Test
+	public void queuesWhenSendFails() throws IOException {
+		Recorder failing = new Recorder();
+		failing.failAt = 0;
+
+		assertTrue(outbox.offer("a", message(1), live(), true, failing));
+		assertEquals(1, outbox.getPendingCount("a"));
+	}
+
+	@Test
+	public void keepsOrderBehindQueuedMessages() throws IOException {
+		Recorder recorder = new Recorder();
+		queue("a", 1, live());
+
+		// Connected, but an older message is still queued
+		assertTrue(outbox.offer("a", message(2), live(), true, recorder));
+		assertSent(recorder);
+		assertEquals(2, outbox.getPendingCount("a"));
+
+		assertEquals(2, outbox.flush("a", recorder));
+		assertSent(recorder, 1, 2);
+	}
+
+	@Test
+	public void stopsFlushAtFirstFailure() throws IOException {
+		queue("a", 1, live());
+		queue("a", 2, live());
+		queue("a", 3, live());
+
+		Recorder recorder = new Recorder();
+		recorder.failAt = 1;
+		assertEquals(1, outbox.flush("a", recorder));
+		assertSent(recorder, 1);
+		assertEquals(2, outbox.getPendingCount("a"));
+
+		recorder = new Recorder();
+		assertEquals(2, outbox.flush("a", recorder));
+		assertSent(recorder, 2, 3);
+	}
+
+	@Test
+	public void recoversAfterRestart() throws IOException {
+		queue("a", 1, live());
+		queue("b", 2, live());
+		queue("a", 3, live());
+		queue("a", 4, live());
+
+		Recorder recorder = new Recorder();
+		recorder.failAt = 1;
+		assertEquals(1, outbox.flush("a", recorder));
+
+		restart();
+		assertEquals(2, outbox.getPendingCount("a"));
+		assertEquals(1, outbox.getPendingCount("b"));
+
+		recorder = new Recorder();
+		assertEquals(2, outbox.flush("a", recorder));
+		assertSent(recorder, 3, 4);
+
+		recorder = new Recorder();
+		assertEquals(1, outbox.flush("b", recorder));
+		assertSent(recorder, 2);
+
+		restart();
+		assertEquals(0, outbox.getPendingCount("a"));
+		assertEquals(0, outbox.getPendingCount("b"));
+	}
+
+	@Test
+	public void dropsExpiredMessages() throws IOException {
+		queue("a", 1, expired());
+		queue("a", 2, live());
+		queue("a", 3, expired());
+
+		Recorder recorder = new Recorder();
+		assertEquals(1, outbox.flush("a", recorder));
+		assertSent(recorder, 2);
+		assertEquals(0, outbox.getPendingCount("a"));
+	}
+
+	@Test
+	public void dropsExpiredMessagesOnRecovery() throws IOException {
+		queue("a", 1, expired());
+		queue("a", 2, live());
+
+		restart();
+		assertEquals(1, outbox.getPendingCount("a"));
+
+		Recorder recorder = new Recorder();
+		assertEquals(1, outbox.flush("a", recorder));
+		assertSent(recorder, 2);
+	}
+
+	@Test
+	public void discardsMessagesOfFriend() throws IOException {
+		queue("a", 1, live());
+		queue("b", 2, live());
+
+		outbox.discard("a");
+		assertEquals(0, outbox.getPendingCount("a"));
+
+		restart();
+		assertEquals(0, outbox.getPendingCount("a"));
+		assertEquals(1, outbox.getPendingCount("b"));
+	}
+
+	@Test
+	public void compactsWhenFull() throws IOException {
+		queue("a", 1, live());
+		queue("b", 2, live());
+		queue("a", 3, live());
+		queue("b", 4, live());
+
+		// Frees two records, that only compaction can reuse
+		assertEquals(2, outbox.flush("b", new Recorder()));
+
+		queue("a", 5, live());
+		queue("a", 6, live());
+		assertEquals(4, outbox.getPendingCount("a"));
+		assertEquals(CAPACITY, file.length());
+
+		restart();
+		Recorder recorder = new Recorder();
+		assertEquals(4, outbox.flush("a", recorder));
+		assertSent(recorder, 1, 3, 5, 6);
+	}
+
+	@Test
+	public void compactionDropsExpiredMessages() throws IOException {
+		queue("a", 1, expired());
+		queue("a", 2, live());
+		queue("a", 3, live());
+		queue("a", 4, live());
+
+		queue("a", 5, live());
+		assertEquals(4, outbox.getPendingCount("a"));
+
+		Recorder recorder = new Recorder();
+		assertEquals(4, outbox.flush("a", recorder));
+		assertSent(recorder, 2, 3, 4, 5);
+	}
+
+	@Test
+	public void refusesMessagesWhenFull() throws IOException {
+		for (int i = 0; i < 4; i++)
+			queue("a", i, live());
+
+		assertFalse(outbox.offer("a", message(4), live(), false, new Recorder()));
+		assertEquals(4, outbox.getPendingCount("a"));
+
+		Recorder recorder = new Recorder();
+		assertEquals(4, outbox.flush("a", recorder));
+		assertSent(recorder, 0, 1, 2, 3);
+	}
+
+	@Test
+	public void startsOverAfterFlush() throws IOException {
+		for (int i = 0; i < 4; i++)
+			queue("a", i, live());
+		assertEquals(4, outbox.flush("a", new Recorder()));
+
+		// Nothing pending, the whole log is free again
+		for (int i = 4; i < 8; i++)
+			queue("a", i, live());
+		assertEquals(4, outbox.getPendingCount("a"));
+	}
+
+	@Test
+	public void discardsInvalidLog() throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[CAPACITY / 2]);
+		out.close();
+
+		assertEquals(0, outbox.getPendingCount("a"));
+		queue("a", 1, live());
+
+		restart();
+		assertEquals(1, outbox.getPendingCount("a"));
+	}
+
+	@Test
+	public void ignoresUnfinishedRecord() throws IOException {
+		queue("a", 1, live());
+		queue("a", 2, live());
+		queue("a", 3, live());
+		outbox.close();
+
+		// A crash before the second record was marked pending ends the log there
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(HEADER_LEN + RECORD_LEN);
+		raf.write(0);
+		raf.close();
+
+		outbox = new MessageOutbox(file, CAPACITY);
+		assertEquals(1, outbox.getPendingCount("a"));
+		Recorder recorder = new Recorder();
+		assertEquals(1, outbox.flush("a", recorder));
+		assertSent(recorder, 1);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesMessagesWhenClosed() throws IOException {
+		outbox.close();
+		queue("a", 1, live());
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the large message fragments reassembly and of the
+ * escaping of plain messages that look like frames.
+ */
+public class MessageReassemblerTest {
+	private static final int PAYLOAD = MessageFraming.FRAGMENT_PAYLOAD_LEN;
+	private static final long TIMEOUT = 5000;
+	private static final long START = 10000;
+
+	private MessageReassembler reassembler;
+	private Random random;
+
+	@BeforeClass
+	public static void setUpClass() {
+		Log.setLevel(Log.NONE);
+	}
+
+	@Before
+	public void setUp() {
+		reassembler = new MessageReassembler(1024 * 1024, 4 * 1024 * 1024, TIMEOUT);
+		random = new Random(42);
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/* Split a message the way the native layer does */
+	private static List<byte[]> fragments(int id, byte[] message) {
+		int count = (message.length + PAYLOAD - 1) / PAYLOAD;
+		List<byte[]> frames = new ArrayList<byte[]>();
+
+		for (int index = 0; index < count; index++) {
+			int offset = index * PAYLOAD;
+			int size = Math.min(PAYLOAD, message.length - offset);
+			frames.add(fragment(id, index, count, message, offset, size));
+		}
+		return frames;
+	}
+
+	private static byte[] fragment(int id, int index, int count, byte[] message, int offset, int size) {
+		byte[] frame = new byte[MessageFraming.FRAGMENT_HEADER_LEN + size];
+		frame[0] = MessageFraming.MAGIC;
+		frame[1] = MessageFraming.TYPE_FRAGMENT;
+		MessageFraming.writeInt(frame, 2, id);
+		MessageFraming.writeShort(frame, 6, index);
+		MessageFraming.writeShort(frame, 8, count);
+		System.arraycopy(message, offset, frame, MessageFraming.FRAGMENT_HEADER_LEN, size);
+		return frame;
+	}
+
+	/* Feed all fragments but the last, which must be the one to complete the message */
+	private byte[] feed(String from, List<byte[]> frames, long now) {
+		for (int i = 0; i < frames.size() - 1; i++)
+			assertNull(reassembler.onFragment(from, frames.get(i), now));
+		return reassembler.onFragment(from, frames.get(frames.size() - 1), now);
+	}
+
+	@Test
+	public void reassemblesInOrder() {
+		byte[] message = randomBytes(3 * PAYLOAD + 100);
+
+		assertArrayEquals(message, feed("a", fragments(1, message), START));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void reassemblesOutOfOrder() {
+		byte[] message = randomBytes(5 * PAYLOAD);
+		List<byte[]> frames = fragments(1, message);
+		Collections.reverse(frames);
+
+		assertArrayEquals(message, feed("a", frames, START));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void reassemblesInterleavedMessages() {
+		byte[] first = randomBytes(2 * PAYLOAD + 1);
+		byte[] second = randomBytes(3 * PAYLOAD);
+		List<byte[]> firstFrames = fragments(1, first);
+		List<byte[]> secondFrames = fragments(2, second);
+
+		assertNull(reassembler.onFragment("a", firstFrames.get(0), START));
+		assertNull(reassembler.onFragment("a", secondFrames.get(2), START));
+		assertNull(reassembler.onFragment("a", firstFrames.get(2), START));
+		assertNull(reassembler.onFragment("a", secondFrames.get(0), START));
+		assertArrayEquals(second, reassembler.onFragment("a", secondFrames.get(1), START));
+		assertArrayEquals(first, reassembler.onFragment("a", firstFrames.get(1), START));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void keepsFriendsApart() {
+		byte[] message = randomBytes(2 * PAYLOAD);
+		List<byte[]> frames = fragments(1, message);
+
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		assertNull(reassembler.onFragment("b", frames.get(1), START));
+		assertArrayEquals(message, reassembler.onFragment("a", frames.get(1), START));
+		assertEquals(PAYLOAD, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void returnsSingleFragmentAtOnce() {
+		byte[] message = randomBytes(100);
+
+		assertArrayEquals(message, reassembler.onFragment("a", fragments(1, message).get(0), START));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void ignoresDuplicatedFragments() {
+		byte[] message = randomBytes(3 * PAYLOAD);
+		List<byte[]> frames = fragments(1, message);
+
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		assertEquals(PAYLOAD, reassembler.getBufferedBytes());
+		assertNull(reassembler.onFragment("a", frames.get(1), START));
+		assertArrayEquals(message, reassembler.onFragment("a", frames.get(2), START));
+	}
+
+	@Test
+	public void restartsMessageWithAnotherCount() {
+		byte[] stale = randomBytes(3 * PAYLOAD);
+		byte[] message = randomBytes(2 * PAYLOAD);
+
+		assertNull(reassembler.onFragment("a", fragments(1, stale).get(0), START));
+		assertArrayEquals(message, feed("a", fragments(1, message), START));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void rejectsMalformedFragments() {
+		byte[] message = randomBytes(2 * PAYLOAD);
+
+		// Header only
+		assertNull(reassembler.onFragment("a", fragment(1, 0, 2, message, 0, 0), START));
+		// No fragments
+		assertNull(reassembler.onFragment("a", fragment(1, 0, 0, message, 0, 10), START));
+		// Index out of range
+		assertNull(reassembler.onFragment("a", fragment(1, 2, 2, message, 0, 10), START));
+		// Short fragment that is not the last one
+		assertNull(reassembler.onFragment("a", fragment(1, 0, 2, message, 0, PAYLOAD - 1), START));
+		// More fragments than the largest message needs
+		int tooMany = (Carrier.MAX_LARGE_MESSAGE_LEN + PAYLOAD - 1) / PAYLOAD + 1;
+		assertNull(reassembler.onFragment("a", fragment(1, 0, tooMany, message, 0, PAYLOAD), START));
+		// Truncated frame
+		assertNull(reassembler.onFragment("a", new byte[] { MessageFraming.MAGIC,
+				MessageFraming.TYPE_FRAGMENT, 0, 0, 0, 1 }, START));
+
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void keepsTruncatedMessageIncomplete() {
+		byte[] message = randomBytes(3 * PAYLOAD);
+		List<byte[]> frames = fragments(1, message);
+
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		assertNull(reassembler.onFragment("a", frames.get(1), START));
+		assertEquals(2 * PAYLOAD, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void evictsOldestMessageOfFriend() {
+		reassembler = new MessageReassembler(2 * PAYLOAD, 4 * 1024 * 1024, TIMEOUT);
+		byte[] first = randomBytes(3 * PAYLOAD);
+		byte[] second = randomBytes(2 * PAYLOAD);
+		List<byte[]> firstFrames = fragments(1, first);
+
+		assertNull(reassembler.onFragment("a", firstFrames.get(0), START));
+		assertNull(reassembler.onFragment("a", firstFrames.get(1), START));
+		assertArrayEquals(second, feed("a", fragments(2, second), START));
+
+		// The first message was evicted and can not complete any more
+		assertNull(reassembler.onFragment("a", firstFrames.get(2), START));
+		assertEquals(PAYLOAD, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void dropsMessageLargerThanFriendBound() {
+		reassembler = new MessageReassembler(PAYLOAD, 4 * 1024 * 1024, TIMEOUT);
+		List<byte[]> frames = fragments(1, randomBytes(2 * PAYLOAD));
+
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		assertNull(reassembler.onFragment("a", frames.get(1), START));
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void evictsOldestMessageOfAllFriends() {
+		reassembler = new MessageReassembler(1024 * 1024, 2 * PAYLOAD, TIMEOUT);
+		List<byte[]> first = fragments(1, randomBytes(2 * PAYLOAD));
+		byte[] second = randomBytes(2 * PAYLOAD);
+		List<byte[]> secondFrames = fragments(1, second);
+		List<byte[]> third = fragments(1, randomBytes(2 * PAYLOAD));
+
+		assertNull(reassembler.onFragment("a", first.get(0), START));
+		assertNull(reassembler.onFragment("b", secondFrames.get(0), START + 1));
+		assertNull(reassembler.onFragment("c", third.get(0), START + 2));
+		assertEquals(2 * PAYLOAD, reassembler.getBufferedBytes());
+
+		// The message of a was the oldest one
+		assertNull(reassembler.onFragment("a", first.get(1), START + 3));
+		assertEquals(2 * PAYLOAD, reassembler.getBufferedBytes());
+		assertNull(reassembler.onFragment("b", secondFrames.get(1), START + 4));
+	}
+
+	@Test
+	public void expiresIncompleteMessagesOnTick() {
+		List<byte[]> frames = fragments(1, randomBytes(2 * PAYLOAD));
+
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		reassembler.tick(START + TIMEOUT - 1000);
+		assertEquals(PAYLOAD, reassembler.getBufferedBytes());
+
+		reassembler.tick(START + TIMEOUT);
+		assertEquals(0, reassembler.getBufferedBytes());
+
+		// The late fragment starts over and does not complete the message
+		assertNull(reassembler.onFragment("a", frames.get(1), START + TIMEOUT));
+		assertEquals(frames.get(1).length - MessageFraming.FRAGMENT_HEADER_LEN,
+					 reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void sweepsAtMostOncePerSecond() {
+		List<byte[]> frames = fragments(1, randomBytes(2 * PAYLOAD));
+
+		assertNull(reassembler.onFragment("a", frames.get(0), START));
+		reassembler.tick(START + TIMEOUT - 500);
+		reassembler.tick(START + TIMEOUT);
+		assertEquals(PAYLOAD, reassembler.getBufferedBytes());
+
+		reassembler.tick(START + TIMEOUT + 500);
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void removesFriend() {
+		List<byte[]> first = fragments(1, randomBytes(3 * PAYLOAD));
+		List<byte[]> second = fragments(1, randomBytes(2 * PAYLOAD));
+
+		assertNull(reassembler.onFragment("a", first.get(0), START));
+		assertNull(reassembler.onFragment("a", first.get(1), START));
+		assertNull(reassembler.onFragment("b", second.get(0), START));
+
+		reassembler.removeFriend("a");
+		assertEquals(PAYLOAD, reassembler.getBufferedBytes());
+		assertNull(reassembler.onFragment("a", first.get(2), START));
+
+		reassembler.clear();
+		assertEquals(0, reassembler.getBufferedBytes());
+		assertNull(reassembler.onFragment("b", second.get(1), START));
+	}
+
+	@Test
+	public void escapesFramelikeMessages() {
+		byte[] message = randomBytes(100);
+		message[0] = MessageFraming.MAGIC;
+
+		assertTrue(MessageFraming.isFramed(message));
+		byte[] framed = MessageFraming.escape(message);
+		assertEquals(message.length + MessageFraming.HEADER_LEN, framed.length);
+		assertTrue(MessageFraming.isFramed(framed));
+		assertEquals(MessageFraming.TYPE_ESCAPED, MessageFraming.typeOf(framed));
+		assertArrayEquals(message, MessageFraming.unescape(framed));
+
+		assertFalse(MessageFraming.isFramed(new byte[] { MessageFraming.MAGIC }));
+		assertFalse(MessageFraming.isFramed(new byte[] { 0x00, MessageFraming.TYPE_ESCAPED }));
+	}
+
+	@Test
+	public void escapedMessageFitsUpTo1022Bytes() {
+		byte[] message = randomBytes(Carrier.MAX_APP_MESSAGE_LEN - MessageFraming.HEADER_LEN);
+		message[0] = MessageFraming.MAGIC;
+
+		assertEquals(Carrier.MAX_APP_MESSAGE_LEN, MessageFraming.escape(message).length);
+	}
+
+	@Test
+	public void reassembles1023BytesEscapedMessage() {
+		checkEscapedBoundary(Carrier.MAX_APP_MESSAGE_LEN - 1);
+	}
+
+	@Test
+	public void reassembles1024BytesEscapedMessage() {
+		checkEscapedBoundary(Carrier.MAX_APP_MESSAGE_LEN);
+	}
+
+	/*
+	 * A message starting with the magic byte that no longer fits a carrier
+	 * message once escaped is escaped whole and sent in fragments.
+	 */
+	private void checkEscapedBoundary(int length) {
+		byte[] message = randomBytes(length);
+		message[0] = MessageFraming.MAGIC;
+
+		byte[] framed = MessageFraming.escape(message);
+		assertTrue(framed.length > Carrier.MAX_APP_MESSAGE_LEN);
+
+		List<byte[]> frames = fragments(7, framed);
+		assertEquals(2, frames.size());
+		for (byte[] frame : frames)
+			assertTrue(frame.length <= Carrier.MAX_APP_MESSAGE_LEN);
+
+		byte[] received = feed("a", frames, START);
+		assertNotNull(received);
+		assertTrue(MessageFraming.isFramed(received));
+		assertEquals(MessageFraming.TYPE_ESCAPED, MessageFraming.typeOf(received));
+		assertArrayEquals(message, MessageFraming.unescape(received));
+	}
+}